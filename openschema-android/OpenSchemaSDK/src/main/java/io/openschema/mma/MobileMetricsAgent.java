@@ -20,13 +20,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import androidx.core.util.Pair;
 import io.openschema.mma.backend.CertificateManager;
 import io.openschema.mma.id.Identity;
 import io.openschema.mma.metrics.MetricsManager;
+import io.openschema.mma.utils.CollectorConfig;
+import io.openschema.mma.utils.NetworkQualityConfig;
 import io.openschema.mma.utils.PersistentNotification;
+import io.openschema.mma.utils.QualityProbe;
+import io.openschema.mma.utils.QualityScorer;
+import io.openschema.mma.utils.ThroughputTester;
+import io.openschema.mma.utils.UdpEchoProbe;
 
 /**
  * Main class to act as an interface to access the functionality in the library.
@@ -40,6 +47,27 @@ public class MobileMetricsAgent {
     private final String mBackendUsername;
     private final String mBackendPassword;
     private final boolean mEnableLibraryMetrics;
+    private final long mProbeTimeoutFloor;
+    private final long mProbeTimeoutCeiling;
+    private final QualityScorer mQualityScorer;
+    private final List<QualityScorer> mAlternativeQualityScorers;
+    private final List<QualityProbe> mQualityProbes;
+    private final long mProbeBudget;
+    private final UdpEchoProbe mUdpEchoProbe;
+    private final ThroughputTester mThroughputTester;
+    private final long mThroughputDailyByteCap;
+    private final boolean mLatencyUnderLoadEnabled;
+    private final long mQualityCacheTtl;
+    private final boolean mSamplingEnabled;
+    private final long mSamplingMinInterval;
+    private final long mSamplingMaxInterval;
+    private final boolean mConcurrentMeasurementEnabled;
+    private final boolean mUsageCallbacksEnabled;
+    private final long mLocationMaxAge;
+    private final float mLocationMaxAccuracy;
+    private final boolean mGridAggregationEnabled;
+    private final int mGridPrecision;
+    private final boolean mRadioSamplingEnabled;
 
     private final Context mAppContext;
     private final Notification mCustomNotification;
@@ -55,6 +83,27 @@ public class MobileMetricsAgent {
         mBackendUsername = mmaBuilder.mBackendUsername;
         mBackendPassword = mmaBuilder.mBackendPassword;
         mEnableLibraryMetrics = mmaBuilder.mEnableLibraryMetrics;
+        mProbeTimeoutFloor = mmaBuilder.mProbeTimeoutFloor;
+        mProbeTimeoutCeiling = mmaBuilder.mProbeTimeoutCeiling;
+        mQualityScorer = mmaBuilder.mQualityScorer;
+        mAlternativeQualityScorers = new ArrayList<>(mmaBuilder.mAlternativeQualityScorers);
+        mQualityProbes = new ArrayList<>(mmaBuilder.mQualityProbes);
+        mProbeBudget = mmaBuilder.mProbeBudget;
+        mUdpEchoProbe = mmaBuilder.mUdpEchoProbe;
+        mThroughputTester = mmaBuilder.mThroughputTester;
+        mThroughputDailyByteCap = mmaBuilder.mThroughputDailyByteCap;
+        mLatencyUnderLoadEnabled = mmaBuilder.mLatencyUnderLoadEnabled;
+        mQualityCacheTtl = mmaBuilder.mQualityCacheTtl;
+        mSamplingEnabled = mmaBuilder.mSamplingEnabled;
+        mSamplingMinInterval = mmaBuilder.mSamplingMinInterval;
+        mSamplingMaxInterval = mmaBuilder.mSamplingMaxInterval;
+        mConcurrentMeasurementEnabled = mmaBuilder.mConcurrentMeasurementEnabled;
+        mUsageCallbacksEnabled = mmaBuilder.mUsageCallbacksEnabled;
+        mLocationMaxAge = mmaBuilder.mLocationMaxAge;
+        mLocationMaxAccuracy = mmaBuilder.mLocationMaxAccuracy;
+        mGridAggregationEnabled = mmaBuilder.mGridAggregationEnabled;
+        mGridPrecision = mmaBuilder.mGridPrecision;
+        mRadioSamplingEnabled = mmaBuilder.mRadioSamplingEnabled;
 
         mAppContext = mmaBuilder.mAppContext;
         mCustomNotification = mmaBuilder.mCustomNotification;
@@ -122,6 +171,30 @@ public class MobileMetricsAgent {
                 persistentNotification.setCustomNotification(mCustomNotification);
             }
 
+            //Share the network quality options with the collectors running in the service
+            NetworkQualityConfig networkQualityConfig = NetworkQualityConfig.getInstance();
+            networkQualityConfig.setProbeTimeoutBounds(mProbeTimeoutFloor, mProbeTimeoutCeiling);
+            if (mQualityScorer != null) {
+                networkQualityConfig.setQualityScorer(mQualityScorer);
+            }
+            networkQualityConfig.setAlternativeQualityScorers(mAlternativeQualityScorers);
+            networkQualityConfig.setQualityProbes(mQualityProbes);
+            networkQualityConfig.setProbeBudget(mProbeBudget);
+            networkQualityConfig.setUdpEchoProbe(mUdpEchoProbe);
+            networkQualityConfig.setThroughputTester(mThroughputTester, mThroughputDailyByteCap);
+            networkQualityConfig.setLatencyUnderLoadEnabled(mLatencyUnderLoadEnabled);
+            networkQualityConfig.setQualityCacheTtl(mQualityCacheTtl);
+            networkQualityConfig.setSamplingEnabled(mSamplingEnabled);
+            networkQualityConfig.setSamplingIntervals(mSamplingMinInterval, mSamplingMaxInterval);
+            networkQualityConfig.setConcurrentMeasurementEnabled(mConcurrentMeasurementEnabled);
+
+            //Same for the options of the other collectors
+            CollectorConfig collectorConfig = CollectorConfig.getInstance();
+            collectorConfig.setUsageCallbacksEnabled(mUsageCallbacksEnabled);
+            collectorConfig.setLocationFreshness(mLocationMaxAge, mLocationMaxAccuracy);
+            collectorConfig.setGridAggregation(mGridAggregationEnabled, mGridPrecision);
+            collectorConfig.setRadioSamplingEnabled(mRadioSamplingEnabled);
+
             mAppContext.startForegroundService(new Intent(mAppContext, MobileMetricsService.class));
         }
 
@@ -149,6 +222,27 @@ public class MobileMetricsAgent {
         private String mBackendUsername;
         private String mBackendPassword;
         private boolean mEnableLibraryMetrics = true;
+        private long mProbeTimeoutFloor = NetworkQualityConfig.DEFAULT_PROBE_TIMEOUT_FLOOR;
+        private long mProbeTimeoutCeiling = NetworkQualityConfig.DEFAULT_PROBE_TIMEOUT_CEILING;
+        private QualityScorer mQualityScorer = null;
+        private final List<QualityScorer> mAlternativeQualityScorers = new ArrayList<>();
+        private final List<QualityProbe> mQualityProbes = new ArrayList<>();
+        private long mProbeBudget = NetworkQualityConfig.DEFAULT_PROBE_BUDGET;
+        private UdpEchoProbe mUdpEchoProbe = null;
+        private ThroughputTester mThroughputTester = null;
+        private long mThroughputDailyByteCap = NetworkQualityConfig.DEFAULT_THROUGHPUT_DAILY_BYTE_CAP;
+        private boolean mLatencyUnderLoadEnabled = false;
+        private long mQualityCacheTtl = NetworkQualityConfig.DEFAULT_QUALITY_CACHE_TTL;
+        private boolean mSamplingEnabled = false;
+        private long mSamplingMinInterval = NetworkQualityConfig.DEFAULT_SAMPLING_MIN_INTERVAL;
+        private long mSamplingMaxInterval = NetworkQualityConfig.DEFAULT_SAMPLING_MAX_INTERVAL;
+        private boolean mConcurrentMeasurementEnabled = false;
+        private boolean mUsageCallbacksEnabled = false;
+        private long mLocationMaxAge = CollectorConfig.DEFAULT_LOCATION_MAX_AGE;
+        private float mLocationMaxAccuracy = CollectorConfig.DEFAULT_LOCATION_MAX_ACCURACY;
+        private boolean mGridAggregationEnabled = false;
+        private int mGridPrecision = CollectorConfig.DEFAULT_GRID_PRECISION;
+        private boolean mRadioSamplingEnabled = false;
         //TODO: add flag to disable storing metrics locally for UI
 
         private Context mAppContext;
@@ -195,6 +289,167 @@ public class MobileMetricsAgent {
             return this;
         }
 
+        /**
+         * @param floorMillis   Minimum timeout used on each network quality probe, in milliseconds
+         * @param ceilingMillis Maximum timeout used on each network quality probe, in milliseconds.
+         *                      Timeouts between these bounds are estimated from each server's RTT history.
+         */
+        public Builder setProbeTimeoutBounds(long floorMillis, long ceilingMillis) {
+            mProbeTimeoutFloor = floorMillis;
+            mProbeTimeoutCeiling = ceilingMillis;
+            return this;
+        }
+
+        /**
+         * @param qualityScorer Model used to calculate the reported network quality score.
+         *                      {@link io.openschema.mma.utils.DefaultQualityScorer DefaultQualityScorer} is used if not set.
+         */
+        public Builder setQualityScorer(QualityScorer qualityScorer) {
+            mQualityScorer = qualityScorer;
+            return this;
+        }
+
+        /**
+         * @param qualityScorer Additional model evaluated on every network quality measurement.
+         *                      Its score is reported separately, named after {@link QualityScorer#getName()}.
+         */
+        public Builder addAlternativeQualityScorer(QualityScorer qualityScorer) {
+            mAlternativeQualityScorers.add(qualityScorer);
+            return this;
+        }
+
+        /**
+         * @param qualityProbe Probe run against its endpoint on every network quality measurement, such as
+         *                     {@link io.openschema.mma.utils.TcpConnectProbe TcpConnectProbe},
+         *                     {@link io.openschema.mma.utils.TlsHandshakeProbe TlsHandshakeProbe} or
+         *                     {@link io.openschema.mma.utils.HttpTtfbProbe HttpTtfbProbe}
+         */
+        public Builder addQualityProbe(QualityProbe qualityProbe) {
+            mQualityProbes.add(qualityProbe);
+            return this;
+        }
+
+        /**
+         * @param budgetMillis Maximum time all the quality probes can take on each measurement, in milliseconds
+         */
+        public Builder setProbeBudget(long budgetMillis) {
+            mProbeBudget = budgetMillis;
+            return this;
+        }
+
+        /**
+         * @param udpEchoProbe Stream of UDP packets sent to an echo reflector on every network quality measurement to
+         *                     estimate packet loss, reordering, duplication and jitter. Shares the probe budget.
+         */
+        public Builder setUdpEchoProbe(UdpEchoProbe udpEchoProbe) {
+            mUdpEchoProbe = udpEchoProbe;
+            return this;
+        }
+
+        /**
+         * Enables the throughput test, which is disabled by default since it uses a significant amount of data.
+         *
+         * @param throughputTester Download & upload endpoints and limits used on each network quality measurement
+         * @param dailyByteCap     Maximum amount of bytes the throughput tests can use per day
+         */
+        public Builder setThroughputTest(ThroughputTester throughputTester, long dailyByteCap) {
+            mThroughputTester = throughputTester;
+            mThroughputDailyByteCap = dailyByteCap;
+            return this;
+        }
+
+        /**
+         * @param enabled Boolean flag to determine if the latency is also measured while the throughput test loads the
+         *                link, reporting how much it grows (bufferbloat) and the responsiveness under load.
+         *                Requires the throughput test set through {@link #setThroughputTest(ThroughputTester, long)}.
+         */
+        public Builder setLatencyUnderLoadEnabled(boolean enabled) {
+            mLatencyUnderLoadEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @param ttlMillis Time a network quality measurement is reused when reconnecting to the same Wi-Fi access point
+         *                  or cell, instead of measuring it again. Set to 0 to measure on every connection.
+         *                  Defaults to {@link NetworkQualityConfig#DEFAULT_QUALITY_CACHE_TTL}.
+         */
+        public Builder setQualityCacheTtl(long ttlMillis) {
+            mQualityCacheTtl = ttlMillis;
+            return this;
+        }
+
+        /**
+         * @param enabled Boolean flag to determine if the active network's quality is sampled periodically, besides on every
+         *                network change. The interval adapts to how stable the score is and to the device's battery state.
+         *                Disabled by default.
+         */
+        public Builder setQualitySamplingEnabled(boolean enabled) {
+            mSamplingEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @param minIntervalMillis Interval used while the network quality is changing, or while the device is charging
+         * @param maxIntervalMillis Interval reached after backing off on a stable network
+         */
+        public Builder setQualitySamplingIntervals(long minIntervalMillis, long maxIntervalMillis) {
+            mSamplingMinInterval = minIntervalMillis;
+            mSamplingMaxInterval = maxIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param enabled Boolean flag to determine if a connected non-default network (e.g. cellular while on Wi-Fi) is
+         *                measured at the same time as the default one. Its requests are bound to that network, and the
+         *                throughput test is never run on it. Disabled by default.
+         */
+        public Builder setConcurrentMeasurementEnabled(boolean enabled) {
+            mConcurrentMeasurementEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled Boolean flag to determine if network sessions sample their usage when the OS reports that an
+         *                adaptive bytes threshold was reached, along with a slow heartbeat, instead of polling every
+         *                15 seconds. Polling is still used if usage callbacks can't be registered. Disabled by default.
+         */
+        public Builder setUsageCallbacksEnabled(boolean enabled) {
+            mUsageCallbacksEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @param maxAgeMillis      Maximum age of a cached or last known location fix to be reused by the collectors
+         *                          instead of requesting a new fix, in milliseconds
+         * @param maxAccuracyMeters Maximum accuracy radius of a reused location fix, in meters
+         */
+        public Builder setLocationFreshness(long maxAgeMillis, float maxAccuracyMeters) {
+            mLocationMaxAge = maxAgeMillis;
+            mLocationMaxAccuracy = maxAccuracyMeters;
+            return this;
+        }
+
+        /**
+         * @param enabled          Boolean flag to determine if network session segments are aggregated on the device into
+         *                         geohash cells and uploaded hourly as per-cell summaries, instead of uploading each
+         *                         segment with its raw coordinates. Quality scores are added to the cells too.
+         * @param geohashPrecision Length of the cells' geohash, from 1 to 12. Precision 6 is about 1.2 km x 0.6 km.
+         */
+        public Builder setGridAggregation(boolean enabled, int geohashPrecision) {
+            mGridAggregationEnabled = enabled;
+            mGridPrecision = geohashPrecision;
+            return this;
+        }
+
+        /**
+         * @param enabled Boolean flag to determine if the RSRP, RSRQ, SINR & CQI of the serving cell and the neighboring
+         *                cells are sampled at an adaptive rate and uploaded as delta-encoded series. Disabled by default.
+         */
+        public Builder setRadioSamplingEnabled(boolean enabled) {
+            mRadioSamplingEnabled = enabled;
+            return this;
+        }
+
         /**
          * @param appContext Application context
          */
@@ -29,11 +29,17 @@ import androidx.core.util.Pair;
 import io.openschema.mma.metrics.HourlyUsageWorker;
 import io.openschema.mma.metrics.MetricsManager;
 import io.openschema.mma.metrics.collectors.AsyncMetrics;
+import io.openschema.mma.metrics.collectors.CellTransitionMetrics;
 import io.openschema.mma.metrics.collectors.CellularSessionMetrics;
 import io.openschema.mma.metrics.collectors.DeviceMetrics;
+import io.openschema.mma.metrics.collectors.GridSummaryMetrics;
 import io.openschema.mma.metrics.collectors.NetworkQualityMetrics;
+import io.openschema.mma.metrics.collectors.RadioSeriesMetrics;
 import io.openschema.mma.metrics.collectors.WifiSessionMetrics;
+import io.openschema.mma.utils.ExecutorManager;
+import io.openschema.mma.utils.LocationBroker;
 import io.openschema.mma.utils.PersistentNotification;
+import io.openschema.mma.utils.TelephonyStateCache;
 
 /**
  * Foreground service used to keep the app running in the background and collect information.
@@ -42,6 +48,8 @@ public class MobileMetricsService extends Service implements AsyncMetrics.Metric
 
     private static final String TAG = "MobileMetricsService";
     public static final String ACTION_MEASURE_NETWORK_QUALITY = "action_measure_network_quality";
+    //Boolean extra for ACTION_MEASURE_NETWORK_QUALITY to measure again even if the network has a recent cached measurement
+    public static final String EXTRA_FORCE_REFRESH = "extra_force_refresh";
 
     @Nullable
     @Override
@@ -53,12 +61,18 @@ public class MobileMetricsService extends Service implements AsyncMetrics.Metric
     private WifiSessionMetrics mWifiSessionMetrics;
     private CellularSessionMetrics mCellularSessionMetrics;
     private NetworkQualityMetrics mNetworkQualityMetrics;
+    private GridSummaryMetrics mGridSummaryMetrics;
+    private RadioSeriesMetrics mRadioSeriesMetrics;
+    private CellTransitionMetrics mCellTransitionMetrics;
 
     @Override
     public void onCreate() {
         Log.d(TAG, "MMA: Creating foreground service.");
         mMetricsManager = new MetricsManager(getApplicationContext());
 
+        //Start caching the registered cell's state, read by the cellular collectors
+        TelephonyStateCache.getInstance(this).start();
+
         //Start listening to changes in wi-fi connections to measure duration and usage
         mWifiSessionMetrics = new WifiSessionMetrics(getApplicationContext(), this);
         mWifiSessionMetrics.startTrackers();
@@ -80,6 +94,18 @@ public class MobileMetricsService extends Service implements AsyncMetrics.Metric
         });
         mNetworkQualityMetrics.startTrackers();
 
+        //Start uploading the per-cell summaries if grid aggregation is enabled
+        mGridSummaryMetrics = new GridSummaryMetrics(getApplicationContext(), this);
+        mGridSummaryMetrics.startTrackers();
+
+        //Start sampling the serving & neighboring cells' radio measurements
+        mRadioSeriesMetrics = new RadioSeriesMetrics(getApplicationContext(), this);
+        mRadioSeriesMetrics.startTrackers();
+
+        //Start recording handovers & radio technology changes
+        mCellTransitionMetrics = new CellTransitionMetrics(getApplicationContext(), this);
+        mCellTransitionMetrics.startTrackers();
+
         //Start periodic worker to measure network usage on a per hour basis
         HourlyUsageWorker.enqueuePeriodicWorker(getApplicationContext());
 
@@ -92,7 +118,7 @@ public class MobileMetricsService extends Service implements AsyncMetrics.Metric
         if (intent != null && intent.getAction() != null) {
             //startService was called to communicate with active MobileMetricsService instance.
             if (intent.getAction().equals(ACTION_MEASURE_NETWORK_QUALITY)) {
-                mNetworkQualityMetrics.remeasureQuality();
+                mNetworkQualityMetrics.remeasureQuality(intent.getBooleanExtra(EXTRA_FORCE_REFRESH, false));
             }
         } else {
             //Starting service normally
@@ -113,6 +139,14 @@ public class MobileMetricsService extends Service implements AsyncMetrics.Metric
         mWifiSessionMetrics.stopTrackers();
         mCellularSessionMetrics.stopTrackers();
         mNetworkQualityMetrics.stopTrackers();
+        mGridSummaryMetrics.stopTrackers();
+        mRadioSeriesMetrics.stopTrackers();
+        mCellTransitionMetrics.stopTrackers();
+        TelephonyStateCache.getInstance(this).stop();
+
+        //Release the collectors' thread & every idle pool thread. Pending DB writes still finish first.
+        ExecutorManager.getInstance().shutdown();
+        LocationBroker.getInstance(this).shutdown();
     }
 
     //Interface implementation to write asynchronous metrics to the DB queue to be pushed later.
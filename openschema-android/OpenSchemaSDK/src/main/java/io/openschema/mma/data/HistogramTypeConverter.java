@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import androidx.room.TypeConverter;
+import io.openschema.mma.data.pojo.Histogram;
+
+/**
+ * Class used by Room to handle complex data objects.
+ */
+public class HistogramTypeConverter {
+    private static final String TAG = "HistogramTypeConverter";
+
+    /**
+     * Create the histogram object from its string representation
+     */
+    @TypeConverter
+    public static Histogram fromString(String value) {
+        if (value == null) return null;
+        try {
+            return new Gson().fromJson(value, Histogram.class);
+        } catch (JsonSyntaxException e) {
+            Log.e(TAG, e.toString());
+            Log.e(TAG, "Json string was " + value);
+            return null;
+        }
+    }
+
+    /**
+     * Convert the histogram object to its string representation. Also used to attach it to the uploaded metrics.
+     */
+    @TypeConverter
+    public static String toString(Histogram histogram) {
+        if (histogram == null) return null;
+        return new Gson().toJson(histogram);
+    }
+}
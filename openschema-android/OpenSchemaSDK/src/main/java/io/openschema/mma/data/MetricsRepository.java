@@ -21,18 +21,20 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 
 import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
+import androidx.lifecycle.MutableLiveData;
+import io.openschema.mma.data.dao.AppUsageDAO;
 import io.openschema.mma.data.dao.HourlyUsageDAO;
 import io.openschema.mma.data.dao.MetricsDAO;
 import io.openschema.mma.data.dao.NetworkConnectionsDAO;
 import io.openschema.mma.data.dao.NetworkQualityDAO;
 import io.openschema.mma.data.dao.NetworkUsageDAO;
 import io.openschema.mma.data.database.MMADatabase;
+import io.openschema.mma.data.entity.AppUsageEntity;
 import io.openschema.mma.data.entity.CellularConnectionsEntity;
 import io.openschema.mma.data.entity.HourlyUsageEntity;
 import io.openschema.mma.data.entity.MetricsEntity;
@@ -41,6 +43,7 @@ import io.openschema.mma.data.entity.NetworkQualityEntity;
 import io.openschema.mma.data.entity.NetworkUsageEntity;
 import io.openschema.mma.data.entity.WifiConnectionsEntity;
 import io.openschema.mma.metrics.MetricsWorker;
+import io.openschema.mma.utils.ExecutorManager;
 
 /**
  * Repository class to manage the metrics data.
@@ -67,22 +70,26 @@ public class MetricsRepository {
         return _instance;
     }
 
-    /**
-     * Thread pool used to handle multiple metrics being pushed to the database simultaneously.
-     */
-    private final ThreadPoolExecutor mExecutor;
-
     /**
      * Data access object used to interact with the data tables in the database.
      */
+    private final MMADatabase mDatabase;
     private final MetricsDAO mMetricsDAO;
     private final NetworkConnectionsDAO mNetworkConnectionsDAO;
     private final NetworkUsageDAO mNetworkUsageDAO;
     private final HourlyUsageDAO mHourlyUsageDAO;
     private final NetworkQualityDAO mNetworkQualityDAO;
+    private final AppUsageDAO mAppUsageDAO;
+
+    /**
+     * Last network quality measurement reused from the cache instead of being measured again. These aren't written to the
+     * database a second time, so they are merged into {@link #getLastNetworkQualityMeasurement()} through this stream.
+     */
+    private final MutableLiveData<NetworkQualityEntity> mCachedNetworkQuality = new MutableLiveData<>();
 
     private MetricsRepository(Context appContext) {
         MMADatabase db = MMADatabase.getDatabase(appContext);
+        mDatabase = db;
         mMetricsDAO = db.metricsDAO();
 
         //TODO: disable with flag from MMA builder
@@ -90,15 +97,21 @@ public class MetricsRepository {
         mNetworkUsageDAO = db.networkUsageDAO();
         mHourlyUsageDAO = db.hourlyUsageDAO();
         mNetworkQualityDAO = db.networkQualityDAO();
+        mAppUsageDAO = db.appUsageDAO();
+    }
 
-        mExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    /**
+     * Executor shared by every write to the database. Runs them one at a time, in the order they're requested.
+     */
+    private Executor getExecutor() {
+        return ExecutorManager.getInstance().getDatabaseExecutor();
     }
 
     /**
      * Writes a metrics object to the database. Queued metrics will get flushed periodically through {@link MetricsWorker}.
      */
     public void queueMetric(MetricsEntity metricsEntity) {
-        mExecutor.execute(() -> mMetricsDAO.insert(metricsEntity));
+        getExecutor().execute(() -> mMetricsDAO.insert(metricsEntity));
     }
 
     /**
@@ -131,13 +144,13 @@ public class MetricsRepository {
             Log.d(TAG, "MMA: Writing network connection to DB");
 
             if (entity instanceof WifiConnectionsEntity) {
-                mExecutor.execute(() -> {
+                getExecutor().execute(() -> {
                     long rowId = mNetworkConnectionsDAO.insert((WifiConnectionsEntity) entity);
                     WifiConnectionsEntity newEntity = mNetworkConnectionsDAO.getWifiSingle((int) rowId);
                     completableFuture.complete(newEntity);
                 });
             } else if (entity instanceof CellularConnectionsEntity) {
-                mExecutor.execute(() -> {
+                getExecutor().execute(() -> {
                     long rowId = mNetworkConnectionsDAO.insert((CellularConnectionsEntity) entity);
                     CellularConnectionsEntity newEntity = mNetworkConnectionsDAO.getCellularSingle((int) rowId);
                     completableFuture.complete(newEntity);
@@ -157,9 +170,9 @@ public class MetricsRepository {
         if (entity != null) {
             Log.d(TAG, "MMA: Updating network connection in DB");
             if (entity instanceof WifiConnectionsEntity) {
-                mExecutor.execute(() -> mNetworkConnectionsDAO.update((WifiConnectionsEntity) entity));
+                getExecutor().execute(() -> mNetworkConnectionsDAO.update((WifiConnectionsEntity) entity));
             } else if (entity instanceof CellularConnectionsEntity) {
-                mExecutor.execute(() -> mNetworkConnectionsDAO.update((CellularConnectionsEntity) entity));
+                getExecutor().execute(() -> mNetworkConnectionsDAO.update((CellularConnectionsEntity) entity));
             } else {
                 Log.e(TAG, "MMA: The connection entity didn't have a valid class");
             }
@@ -172,7 +185,7 @@ public class MetricsRepository {
         if (entity != null) {
             //TODO: disable with flag from MMA builder
             Log.d(TAG, "MMA: Writing network usage session to DB");
-            mExecutor.execute(() -> {
+            getExecutor().execute(() -> {
                 long rowId = mNetworkUsageDAO.insert(entity);
                 NetworkUsageEntity newEntity = mNetworkUsageDAO.getSingle((int) rowId);
                 completableFuture.complete(newEntity);
@@ -186,7 +199,7 @@ public class MetricsRepository {
     public void updateNetworkSessionSegment(NetworkUsageEntity entity) {
         if (entity != null) {
 //            Log.d(TAG, "MMA: Updating network usage session in DB");
-            mExecutor.execute(() -> {
+            getExecutor().execute(() -> {
                 mNetworkUsageDAO.update(entity);
 
                 //Update parent NetworkConnectionEntity with aggregated duration & usage values for easy access from UI
@@ -219,7 +232,7 @@ public class MetricsRepository {
         if (entity != null) {
             //TODO: disable with flag from MMA builder
             Log.d(TAG, "MMA: Writing network quality to DB");
-            mExecutor.execute(() -> {
+            getExecutor().execute(() -> {
                 //TODO: cleanup test logs
 //                Log.d(TAG, "MMA: Writing Network Quality Entity: " +
 //                        "\nID:" + entity.getId() +
@@ -231,6 +244,16 @@ public class MetricsRepository {
 //                        "\ntimestamp:" + entity.getTimestamp());
                 mNetworkQualityDAO.insert(entity);
             });
+            //New measurements take priority over any previously reused one
+            mCachedNetworkQuality.postValue(null);
+        }
+    }
+
+    //Local metrics for UI
+    public void publishCachedNetworkQuality(NetworkQualityEntity entity) {
+        if (entity != null) {
+            Log.d(TAG, "MMA: Publishing cached network quality");
+            mCachedNetworkQuality.postValue(entity);
         }
     }
 
@@ -239,10 +262,32 @@ public class MetricsRepository {
         if (entity != null) {
             //TODO: disable with flag from MMA builder
             Log.d(TAG, "MMA: Writing hourly usage to DB");
-            mExecutor.execute(() -> mHourlyUsageDAO.insert(entity));
+            getExecutor().execute(() -> mHourlyUsageDAO.insert(entity));
         }
     }
 
+    //Local metrics for UI
+    public void writeAppUsage(List<AppUsageEntity> entities) {
+        if (entities != null && !entities.isEmpty()) {
+            //TODO: disable with flag from MMA builder
+            Log.d(TAG, "MMA: Writing app usage to DB");
+            getExecutor().execute(() -> mAppUsageDAO.insert(entities));
+        }
+    }
+
+    /**
+     * Writes every entry generated while backfilling several missing hours in a single transaction,
+     * including the metrics queued for uploading.
+     */
+    public void writeUsageBackfill(List<HourlyUsageEntity> hourlyUsage, List<AppUsageEntity> appUsage, List<MetricsEntity> metrics) {
+        Log.d(TAG, "MMA: Writing usage backfill to DB");
+        getExecutor().execute(() -> mDatabase.runInTransaction(() -> {
+            mHourlyUsageDAO.insertAll(hourlyUsage);
+            mAppUsageDAO.insert(appUsage);
+            mMetricsDAO.insertAll(metrics);
+        }));
+    }
+
     //TODO: only expose UI related calls and hide the rest?
     public LiveData<List<NetworkConnectionsEntity>> getAllNetworkConnections(long startTime, long endTime) {
         return new NetworkConnectionsLiveData(mNetworkConnectionsDAO.getWifiConnections(startTime, endTime), mNetworkConnectionsDAO.getCellularConnections(startTime, endTime));
@@ -251,10 +296,10 @@ public class MetricsRepository {
     public void flagNetworkConnectionReported(NetworkConnectionsEntity entity) {
         switch (entity.getTransportType()) {
             case NetworkCapabilities.TRANSPORT_WIFI:
-                mExecutor.execute(() -> mNetworkConnectionsDAO.setWifiReported(entity.getId()));
+                getExecutor().execute(() -> mNetworkConnectionsDAO.setWifiReported(entity.getId()));
                 break;
             case NetworkCapabilities.TRANSPORT_CELLULAR:
-                mExecutor.execute(() -> mNetworkConnectionsDAO.setCellularReported(entity.getId()));
+                getExecutor().execute(() -> mNetworkConnectionsDAO.setCellularReported(entity.getId()));
                 break;
         }
     }
@@ -267,8 +312,31 @@ public class MetricsRepository {
         return mHourlyUsageDAO.getUsageEntities(startTime, endTime);
     }
 
+    public LiveData<List<AppUsageEntity>> getAppUsageEntities(long startTime, long endTime) {
+        return mAppUsageDAO.getUsageEntities(startTime, endTime);
+    }
+
+    public LiveData<List<AppUsageEntity>> getAppUsageEntities(long startTime, long endTime, int transportType) {
+        return mAppUsageDAO.getUsageEntities(startTime, endTime, transportType);
+    }
+
     public LiveData<NetworkQualityEntity> getLastNetworkQualityMeasurement() {
-        return mNetworkQualityDAO.getLastMeasurement();
+        MediatorLiveData<NetworkQualityEntity> lastMeasurement = new MediatorLiveData<>();
+        lastMeasurement.addSource(mNetworkQualityDAO.getLastMeasurement(), lastMeasurement::setValue);
+        lastMeasurement.addSource(mCachedNetworkQuality, entity -> {
+            if (entity != null) lastMeasurement.setValue(entity);
+        });
+        return lastMeasurement;
+    }
+
+    //Networks of different transports can be measured at the same time, so the last entry overall could belong to the other one
+    public LiveData<NetworkQualityEntity> getLastNetworkQualityMeasurement(int transportType) {
+        MediatorLiveData<NetworkQualityEntity> lastMeasurement = new MediatorLiveData<>();
+        lastMeasurement.addSource(mNetworkQualityDAO.getLastMeasurement(transportType), lastMeasurement::setValue);
+        lastMeasurement.addSource(mCachedNetworkQuality, entity -> {
+            if (entity != null && entity.getTransportType() == transportType) lastMeasurement.setValue(entity);
+        });
+        return lastMeasurement;
     }
 
     //MediatorLiveData used to merge both Wifi and Cellular connections into a single List stream
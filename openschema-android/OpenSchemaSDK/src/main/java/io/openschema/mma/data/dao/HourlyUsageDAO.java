@@ -31,6 +31,9 @@ public interface HourlyUsageDAO {
     @Insert
     void insert(HourlyUsageEntity newEntity);
 
+    @Insert
+    void insertAll(List<HourlyUsageEntity> newEntities);
+
     @Query("SELECT * from hourly_usage " +
                    "WHERE timestamp >= :startTime " +
                    "AND timestamp < :endTime")
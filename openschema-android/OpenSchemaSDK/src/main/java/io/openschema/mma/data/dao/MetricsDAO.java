@@ -43,6 +43,12 @@ public interface MetricsDAO {
     @Insert
     void insert(MetricsEntity newMetric);
 
+    /**
+     * Inserts a list of metrics in the database.
+     */
+    @Insert
+    void insertAll(List<MetricsEntity> newMetrics);
+
     /**
      * Deletes a list of metrics from the database.
      */
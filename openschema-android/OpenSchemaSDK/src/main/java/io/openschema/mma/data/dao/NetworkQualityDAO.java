@@ -33,4 +33,10 @@ public interface NetworkQualityDAO {
                    "ORDER BY id DESC " +
                    "LIMIT 1")
     LiveData<NetworkQualityEntity> getLastMeasurement();
+
+    @Query("SELECT * from network_quality " +
+                   "WHERE transport_type = :transportType " +
+                   "ORDER BY id DESC " +
+                   "LIMIT 1")
+    LiveData<NetworkQualityEntity> getLastMeasurement(int transportType);
 }
@@ -16,17 +16,23 @@ package io.openschema.mma.data.database;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import io.openschema.mma.data.HistogramTypeConverter;
 import io.openschema.mma.data.MetricsTypeConverter;
 import io.openschema.mma.data.TimestampTypeConverter;
+import io.openschema.mma.data.dao.AppUsageDAO;
 import io.openschema.mma.data.dao.HourlyUsageDAO;
 import io.openschema.mma.data.dao.MetricsDAO;
 import io.openschema.mma.data.dao.NetworkConnectionsDAO;
 import io.openschema.mma.data.dao.NetworkQualityDAO;
 import io.openschema.mma.data.dao.NetworkUsageDAO;
+import io.openschema.mma.data.entity.AppUsageEntity;
 import io.openschema.mma.data.entity.CellularConnectionsEntity;
 import io.openschema.mma.data.entity.HourlyUsageEntity;
 import io.openschema.mma.data.entity.MetricsEntity;
@@ -44,13 +50,15 @@ import io.openschema.mma.data.entity.WifiConnectionsEntity;
                 CellularConnectionsEntity.class,
                 NetworkUsageEntity.class,
                 HourlyUsageEntity.class,
-                NetworkQualityEntity.class
+                NetworkQualityEntity.class,
+                AppUsageEntity.class
         },
-        version = 1
+        version = 4
 )
 @TypeConverters({
                         MetricsTypeConverter.class,
-                        TimestampTypeConverter.class
+                        TimestampTypeConverter.class,
+                        HistogramTypeConverter.class
                 })
 public abstract class MMADatabase extends RoomDatabase {
     public abstract MetricsDAO metricsDAO();
@@ -58,9 +66,44 @@ public abstract class MMADatabase extends RoomDatabase {
     public abstract NetworkUsageDAO networkUsageDAO();
     public abstract HourlyUsageDAO hourlyUsageDAO();
     public abstract NetworkQualityDAO networkQualityDAO();
+    public abstract AppUsageDAO appUsageDAO();
 
     private static volatile MMADatabase _instance;
 
+    /**
+     * Adds the latency histogram to network quality entries.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE network_quality ADD COLUMN latency_histogram TEXT");
+        }
+    };
+
+    /**
+     * Adds the goodput from throughput tests to network quality entries.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE network_quality ADD COLUMN download_goodput REAL NOT NULL DEFAULT -1");
+            database.execSQL("ALTER TABLE network_quality ADD COLUMN upload_goodput REAL NOT NULL DEFAULT -1");
+        }
+    };
+
+    /**
+     * Adds the table holding the hourly usage of the top apps on each network.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `app_usage` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`transport_type` INTEGER NOT NULL, `uid` INTEGER NOT NULL, `package_name` TEXT, `rx_bytes` INTEGER NOT NULL, " +
+                    "`tx_bytes` INTEGER NOT NULL, `timestamp` INTEGER NOT NULL)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_app_usage_timestamp` ON `app_usage` (`timestamp`)");
+        }
+    };
+
     /**
      * Call to retrieve a {@link MMADatabase} object.
      */
@@ -69,6 +112,7 @@ public abstract class MMADatabase extends RoomDatabase {
             synchronized (MMADatabase.class) {
                 if (_instance == null) {
                     _instance = Room.databaseBuilder(context.getApplicationContext(), MMADatabase.class, "mma_database")
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
                             .build();
                 }
             }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data.entity;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Entity class used by Room to store the usage of the apps that used the most data on a network.
+ * Entries will be split on an hourly-basis, with the remaining apps added together into a single entry.
+ */
+@Entity(tableName = "app_usage", indices = {@Index("timestamp")})
+public class AppUsageEntity {
+
+    /**
+     * UID used for the entry holding every app outside of the top ones. NetworkStats already uses small negative
+     * values for its special UIDs (e.g. UID_ALL is -1), so this one is kept well outside of their range.
+     */
+    public static final int UID_OTHER = Integer.MIN_VALUE;
+    public static final String PACKAGE_NAME_OTHER = "other";
+
+    /**
+     * Autogenerated ID for Room database
+     */
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "id")
+    private int id = 0;
+
+    @ColumnInfo(name = "transport_type")
+    private int transportType;
+
+    @ColumnInfo(name = "uid")
+    private int uid;
+
+    //Package name, or the OS' name for shared & special UIDs
+    @ColumnInfo(name = "package_name")
+    private String packageName;
+
+    //Stored in bytes
+    @ColumnInfo(name = "rx_bytes")
+    private long rxBytes;
+
+    //Stored in bytes
+    @ColumnInfo(name = "tx_bytes")
+    private long txBytes;
+
+    @ColumnInfo(name = "timestamp")
+    private long timestamp;
+
+    @Ignore
+    public AppUsageEntity(int transportType, int uid, String packageName, long rxBytes, long txBytes, long timestamp) {
+        this(0, transportType, uid, packageName, rxBytes, txBytes, timestamp);
+    }
+
+    /**
+     * Constructor with all fields. Required for Android Room.
+     */
+    public AppUsageEntity(int id, int transportType, int uid, String packageName, long rxBytes, long txBytes, long timestamp) {
+        this.id = id;
+        this.transportType = transportType;
+        this.uid = uid;
+        this.packageName = packageName;
+        this.rxBytes = rxBytes;
+        this.txBytes = txBytes;
+        this.timestamp = timestamp;
+    }
+
+    public int getId() { return id;}
+    public int getTransportType() {return transportType;}
+    public int getUid() {return uid;}
+    public String getPackageName() {return packageName;}
+    public long getRxBytes() {return rxBytes;}
+    public long getTxBytes() {return txBytes;}
+    public long getUsage() {return rxBytes + txBytes;}
+    public long getTimestamp() {return timestamp;}
+}
@@ -18,6 +18,7 @@ import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Ignore;
 import androidx.room.PrimaryKey;
+import io.openschema.mma.data.pojo.Histogram;
 
 /**
  * Entity class used by Room to store network quality locally.
@@ -51,15 +52,28 @@ public class NetworkQualityEntity {
     @ColumnInfo(name = "timestamp")
     private long timestamp;
 
+    //Distribution of every RTT sample in the measurement, using the fixed buckets from LatencyHistogram
+    @ColumnInfo(name = "latency_histogram")
+    private Histogram latencyHistogram;
+
+    //Median goodput in Mbps from the optional throughput test, -1 if it wasn't run
+    @ColumnInfo(name = "download_goodput", defaultValue = "-1")
+    private double downloadGoodput;
+
+    @ColumnInfo(name = "upload_goodput", defaultValue = "-1")
+    private double uploadGoodput;
+
     @Ignore
-    public NetworkQualityEntity(int networkConnectionId, int transportType, double qualityScore, double rtt, int rssi, long timestamp) {
-        this(0, networkConnectionId, transportType, qualityScore, rtt, rssi, timestamp);
+    public NetworkQualityEntity(int networkConnectionId, int transportType, double qualityScore, double rtt, int rssi, long timestamp, Histogram latencyHistogram,
+                                double downloadGoodput, double uploadGoodput) {
+        this(0, networkConnectionId, transportType, qualityScore, rtt, rssi, timestamp, latencyHistogram, downloadGoodput, uploadGoodput);
     }
 
     /**
      * Constructor with all fields. Required for Android Room.
      */
-    public NetworkQualityEntity(int id, int networkConnectionId, int transportType, double qualityScore, double rtt, int rssi, long timestamp) {
+    public NetworkQualityEntity(int id, int networkConnectionId, int transportType, double qualityScore, double rtt, int rssi, long timestamp, Histogram latencyHistogram,
+                                double downloadGoodput, double uploadGoodput) {
         this.id = id;
         this.networkConnectionId = networkConnectionId;
         this.transportType = transportType;
@@ -67,6 +81,9 @@ public class NetworkQualityEntity {
         this.rtt = rtt;
         this.rssi = rssi;
         this.timestamp = timestamp;
+        this.latencyHistogram = latencyHistogram;
+        this.downloadGoodput = downloadGoodput;
+        this.uploadGoodput = uploadGoodput;
     }
 
     public int getId() { return id;}
@@ -76,4 +93,7 @@ public class NetworkQualityEntity {
     public double getRtt() {return rtt;}
     public int getRssi() {return rssi;}
     public long getTimestamp() {return timestamp;}
+    public Histogram getLatencyHistogram() {return latencyHistogram;}
+    public double getDownloadGoodput() {return downloadGoodput;}
+    public double getUploadGoodput() {return uploadGoodput;}
 }
\ No newline at end of file
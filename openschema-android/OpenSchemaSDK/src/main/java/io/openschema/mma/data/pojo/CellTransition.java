@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.data.pojo;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Change of serving cell or radio technology, along with the time spent & bytes transferred on the previous one.
+ */
+public class CellTransition {
+
+    @SerializedName("timestamp") private final long mTimestamp;
+    @SerializedName("from_cell_id") private final long mFromCellIdentity;
+    @SerializedName("to_cell_id") private final long mToCellIdentity;
+    @SerializedName("from_network_type") private final String mFromNetworkType;
+    @SerializedName("to_network_type") private final String mToNetworkType;
+    @SerializedName("dwell_millis") private final long mDwellMillis;
+    @SerializedName("rx_bytes") private final long mRxBytes;
+    @SerializedName("tx_bytes") private final long mTxBytes;
+
+    public CellTransition(long timestamp, long fromCellIdentity, long toCellIdentity, String fromNetworkType, String toNetworkType,
+                          long dwellMillis, long rxBytes, long txBytes) {
+        mTimestamp = timestamp;
+        mFromCellIdentity = fromCellIdentity;
+        mToCellIdentity = toCellIdentity;
+        mFromNetworkType = fromNetworkType;
+        mToNetworkType = toNetworkType;
+        mDwellMillis = dwellMillis;
+        mRxBytes = rxBytes;
+        mTxBytes = txBytes;
+    }
+
+    public long getTimestamp() { return mTimestamp; }
+    public long getFromCellIdentity() { return mFromCellIdentity; }
+    public long getToCellIdentity() { return mToCellIdentity; }
+    public String getFromNetworkType() { return mFromNetworkType; }
+    public String getToNetworkType() { return mToNetworkType; }
+    public long getDwellMillis() { return mDwellMillis; }
+    public long getRxBytes() { return mRxBytes; }
+    public long getTxBytes() { return mTxBytes; }
+}
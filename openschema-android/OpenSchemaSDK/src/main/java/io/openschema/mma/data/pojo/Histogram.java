@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.data.pojo;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.openschema.mma.utils.LatencyHistogram;
+
+/**
+ * Class to handle histograms the way the Histogram & Bucket messages from metrics.proto expect to.
+ * Buckets are cumulative and ordered by their inclusive upper bound.
+ */
+public class Histogram {
+
+    @SerializedName("sample_count") private long mSampleCount;
+    @SerializedName("sample_sum") private double mSampleSum;
+    @SerializedName("bucket") private List<Bucket> mBuckets;
+
+    public Histogram(long sampleCount, double sampleSum, List<Bucket> buckets) {
+        mSampleCount = sampleCount;
+        mSampleSum = sampleSum;
+        mBuckets = buckets;
+    }
+
+    public long getSampleCount() { return mSampleCount; }
+    public double getSampleSum() { return mSampleSum; }
+    public List<Bucket> getBuckets() { return mBuckets; }
+
+    /**
+     * Converts a {@link LatencyHistogram} using its fixed bucket bounds. Only buckets where the cumulative count
+     * increases are included, since the missing ones can be rebuilt from the shared bounds when merging.
+     * The +Inf bucket is left out as it always matches sample_count.
+     */
+    public static Histogram fromLatencyHistogram(LatencyHistogram latencyHistogram) {
+        List<Bucket> buckets = new ArrayList<>();
+        long cumulativeCount = 0;
+        for (int i = 0; i < LatencyHistogram.getBucketCount() - 1; i++) {
+            long count = latencyHistogram.getCount(i);
+            if (count == 0) continue;
+
+            cumulativeCount += count;
+            buckets.add(new Bucket(cumulativeCount, LatencyHistogram.getUpperBound(i)));
+        }
+
+        return new Histogram(latencyHistogram.getSampleCount(), latencyHistogram.getSampleSum(), buckets);
+    }
+
+    public static class Bucket {
+        @SerializedName("cumulative_count") private long mCumulativeCount;
+        @SerializedName("upper_bound") private double mUpperBound;
+
+        public Bucket(long cumulativeCount, double upperBound) {
+            mCumulativeCount = cumulativeCount;
+            mUpperBound = upperBound;
+        }
+
+        public long getCumulativeCount() { return mCumulativeCount; }
+        public double getUpperBound() { return mUpperBound; }
+    }
+}
@@ -4,10 +4,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.NetworkCapabilities;
 import android.util.Log;
+import android.util.SparseLongArray;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
@@ -17,10 +19,15 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 import io.openschema.mma.data.MetricsRepository;
+import io.openschema.mma.data.entity.AppUsageEntity;
 import io.openschema.mma.data.entity.HourlyUsageEntity;
+import io.openschema.mma.data.entity.MetricsEntity;
+import io.openschema.mma.data.pojo.Timestamp;
+import io.openschema.mma.metrics.collectors.AppUsageMetrics;
 import io.openschema.mma.metrics.collectors.NetworkHourlyMetrics;
 import io.openschema.mma.utils.CalendarUtils;
 import io.openschema.mma.utils.SharedPreferencesHelper;
+import io.openschema.mma.utils.UsageQueryService;
 import io.openschema.mma.utils.UsageRetriever;
 
 public class HourlyUsageWorker extends Worker {
@@ -30,19 +37,28 @@ public class HourlyUsageWorker extends Worker {
     public static final String UNIQUE_PERIODIC_WORKER_NAME = "HOURLY_USAGE_PERIODIC";
     private static final String WORKER_TAG = "HOURLY_USAGE_TAG";
 
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+    //Gaps of at least this many hours are backfilled in bulk instead of querying each hour on its own
+    private static final long BACKFILL_THRESHOLD_HOURS = 3;
+    private static final long MAX_BACKFILL_HOURS = 24 * 7;
+
     private final SharedPreferences mSharedPreferences;
+    private final UsageQueryService mUsageQueryService;
     private final UsageRetriever mUsageRetriever;
     private final MetricsRepository mMetricsRepository;
     private final NetworkHourlyMetrics mNetworkHourlyMetrics;
+    private final AppUsageMetrics mAppUsageMetrics;
     private MetricsManager mMetricsManager;
 
     public HourlyUsageWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
         Log.d(TAG, "MMA: Initializing HourlyUsageWorker");
         mSharedPreferences = SharedPreferencesHelper.getInstance(context);
+        mUsageQueryService = UsageQueryService.getInstance(context);
         mUsageRetriever = new UsageRetriever(context);
         mMetricsRepository = MetricsRepository.getRepository(context.getApplicationContext());
         mNetworkHourlyMetrics = new NetworkHourlyMetrics(context);
+        mAppUsageMetrics = new AppUsageMetrics(context);
         mMetricsManager = new MetricsManager(getApplicationContext());
     }
 
@@ -62,46 +78,104 @@ public class HourlyUsageWorker extends Worker {
         long hourSegments = ChronoUnit.HOURS.between(lastCollectedInstant, Instant.ofEpochMilli(System.currentTimeMillis()));
         Log.d(TAG, "MMA: Collecting " + hourSegments + " hours: ");
 
-        //Iterate over each hour missing from DB
-        Calendar currentSegmentStart = Calendar.getInstance();
-        currentSegmentStart.setTimeInMillis(lastCollectedTimestamp);
-        for (int i = 0; i < hourSegments; i++) {
-            Calendar segmentStart = Calendar.getInstance();
-            Calendar segmentEnd = Calendar.getInstance();
-
-            segmentStart.setTimeInMillis(currentSegmentStart.getTimeInMillis());
+        //Long gaps, e.g. after downtime, are backfilled with a single query per transport for up to a week at a time,
+        //instead of querying each hour on its own
+        long segmentStart = lastCollectedTimestamp;
+        while (hourSegments >= BACKFILL_THRESHOLD_HOURS) {
+            int backfillHours = (int) Math.min(hourSegments, MAX_BACKFILL_HOURS);
+            backfillSegments(segmentStart, backfillHours);
 
+            segmentStart += backfillHours * HOUR_MILLIS;
+            hourSegments -= backfillHours;
+        }
 
-            segmentEnd.setTimeInMillis(segmentStart.getTimeInMillis());
-            segmentEnd.add(Calendar.HOUR_OF_DAY, 1);
+        //Iterate over each hour missing from DB
+        for (int i = 0; i < hourSegments; i++) {
+            long segmentEnd = segmentStart + HOUR_MILLIS;
 
             //Retrieve stats within this segment and push it
             collectSegment(segmentStart, segmentEnd);
 
             //Configure variables for next iteration
-            currentSegmentStart.setTimeInMillis(segmentEnd.getTimeInMillis());
+            segmentStart = segmentEnd;
         }
 
         //Save the last hour segment into persistent storage
         mSharedPreferences.edit()
-                .putLong(SharedPreferencesHelper.KEY_LAST_HOURLY_USAGE_TIMESTAMP, currentSegmentStart.getTimeInMillis())
+                .putLong(SharedPreferencesHelper.KEY_LAST_HOURLY_USAGE_TIMESTAMP, segmentStart)
                 .apply();
     }
 
-    private void collectSegment(Calendar segmentStart, Calendar segmentEnd) {
-        Log.d(TAG, "MMA: Collecting Segment: " + segmentStart.getTime().toString() + " | " + segmentEnd.getTime().toString());
+    private void collectSegment(long segmentStart, long segmentEnd) {
+        Log.d(TAG, "MMA: Collecting Segment: " + Instant.ofEpochMilli(segmentStart).toString() + " | " + Instant.ofEpochMilli(segmentEnd).toString());
         //Collect information to write to local db for UI
         mMetricsRepository.writeHourlyUsage(getUsageEntity(NetworkCapabilities.TRANSPORT_WIFI, segmentStart, segmentEnd));
         mMetricsRepository.writeHourlyUsage(getUsageEntity(NetworkCapabilities.TRANSPORT_CELLULAR, segmentStart, segmentEnd));
 
         //Collect information to write to metrics db for uploading
-        mMetricsManager.collect(NetworkHourlyMetrics.METRIC_NAME, mNetworkHourlyMetrics.retrieveMetrics(NetworkCapabilities.TRANSPORT_WIFI, segmentStart.getTimeInMillis(), segmentEnd.getTimeInMillis()));
-        mMetricsManager.collect(NetworkHourlyMetrics.METRIC_NAME, mNetworkHourlyMetrics.retrieveMetrics(NetworkCapabilities.TRANSPORT_CELLULAR, segmentStart.getTimeInMillis(), segmentEnd.getTimeInMillis()));
+        mMetricsManager.collect(NetworkHourlyMetrics.METRIC_NAME, mNetworkHourlyMetrics.retrieveMetrics(NetworkCapabilities.TRANSPORT_WIFI, segmentStart, segmentEnd));
+        mMetricsManager.collect(NetworkHourlyMetrics.METRIC_NAME, mNetworkHourlyMetrics.retrieveMetrics(NetworkCapabilities.TRANSPORT_CELLULAR, segmentStart, segmentEnd));
+
+        //Collect the top apps' usage for both local db and uploading
+        collectAppUsage(NetworkCapabilities.TRANSPORT_WIFI, segmentStart, segmentEnd);
+        collectAppUsage(NetworkCapabilities.TRANSPORT_CELLULAR, segmentStart, segmentEnd);
     }
 
-    private HourlyUsageEntity getUsageEntity(int transportType, Calendar segmentStart, Calendar segmentEnd) {
-        long usage = mUsageRetriever.getDeviceTonnage(transportType, segmentStart.getTimeInMillis(), segmentEnd.getTimeInMillis());
-        return new HourlyUsageEntity(transportType, usage, segmentStart.getTimeInMillis());
+    private void collectAppUsage(int transportType, long segmentStart, long segmentEnd) {
+        List<AppUsageEntity> appUsage = mAppUsageMetrics.retrieveAppUsage(transportType, segmentStart, segmentEnd);
+        mMetricsRepository.writeAppUsage(appUsage);
+        for (AppUsageEntity entity : appUsage) {
+            mMetricsManager.collect(AppUsageMetrics.METRIC_NAME, mAppUsageMetrics.getMetrics(entity));
+        }
+    }
+
+    private HourlyUsageEntity getUsageEntity(int transportType, long segmentStart, long segmentEnd) {
+        long usage = mUsageQueryService.getDeviceTonnage(transportType, segmentStart, segmentEnd);
+        return new HourlyUsageEntity(transportType, usage, segmentStart);
+    }
+
+    //Collects several consecutive hours from a single per-UID query for each transport, and writes every resulting
+    //entry and metric in a single transaction.
+    private void backfillSegments(long backfillStart, int hours) {
+        Log.d(TAG, "MMA: Backfilling " + hours + " hours since: " + Instant.ofEpochMilli(backfillStart).toString());
+        List<HourlyUsageEntity> hourlyUsage = new ArrayList<>();
+        List<AppUsageEntity> appUsage = new ArrayList<>();
+        List<MetricsEntity> metrics = new ArrayList<>();
+        Timestamp timestamp = Timestamp.getTimestampInstance();
+
+        for (int transportType : new int[]{NetworkCapabilities.TRANSPORT_WIFI, NetworkCapabilities.TRANSPORT_CELLULAR}) {
+            SparseLongArray[] rxBytes = new SparseLongArray[hours];
+            SparseLongArray[] txBytes = new SparseLongArray[hours];
+            for (int i = 0; i < hours; i++) {
+                rxBytes[i] = new SparseLongArray();
+                txBytes[i] = new SparseLongArray();
+            }
+
+            //If the usage can't be queried, the hours are still written with no usage, as when collecting them one by one
+            mUsageRetriever.getHourlyAppUsage(transportType, backfillStart, rxBytes, txBytes);
+
+            for (int i = 0; i < hours; i++) {
+                long segmentStart = backfillStart + i * HOUR_MILLIS;
+                long totalRxBytes = 0, totalTxBytes = 0;
+                for (int j = 0; j < rxBytes[i].size(); j++) {
+                    totalRxBytes += rxBytes[i].valueAt(j);
+                }
+                for (int j = 0; j < txBytes[i].size(); j++) {
+                    totalTxBytes += txBytes[i].valueAt(j);
+                }
+
+                hourlyUsage.add(new HourlyUsageEntity(transportType, totalRxBytes + totalTxBytes, segmentStart));
+                metrics.add(new MetricsEntity(NetworkHourlyMetrics.METRIC_NAME, mNetworkHourlyMetrics.getMetrics(transportType, totalRxBytes, totalTxBytes, segmentStart), timestamp));
+
+                int firstAppIndex = appUsage.size();
+                mAppUsageMetrics.addTopAppUsage(appUsage, transportType, segmentStart, rxBytes[i], txBytes[i]);
+                for (int j = firstAppIndex; j < appUsage.size(); j++) {
+                    metrics.add(new MetricsEntity(AppUsageMetrics.METRIC_NAME, mAppUsageMetrics.getMetrics(appUsage.get(j)), timestamp));
+                }
+            }
+        }
+
+        mMetricsRepository.writeUsageBackfill(hourlyUsage, appUsage, metrics);
     }
 
     @NonNull
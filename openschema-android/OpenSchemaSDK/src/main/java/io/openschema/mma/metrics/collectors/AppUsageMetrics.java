@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.app.usage.NetworkStats;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.data.entity.AppUsageEntity;
+import io.openschema.mma.utils.TopUsageSelector;
+import io.openschema.mma.utils.TransportType;
+import io.openschema.mma.utils.UsageRetriever;
+
+/**
+ * Wi-Fi and Cellular usage of the apps that used the most data, collected on an hourly basis.
+ * Only the top apps are kept, with the rest added together, so the stored and uploaded data stays bounded
+ * regardless of the amount of installed apps.
+ */
+public class AppUsageMetrics extends SyncMetrics {
+    private static final String TAG = "AppUsageMetrics";
+
+    /**
+     * Metric name to be used for the collected information.
+     */
+    public static final String METRIC_NAME = "openschemaAppUsageHourly";
+
+    public static final String METRIC_UID = "uid";
+    public static final String METRIC_PACKAGE_NAME = "packageName";
+    public static final String METRIC_RX_BYTES = "rxBytes";
+    public static final String METRIC_TX_BYTES = "txBytes";
+    public static final String METRIC_SEGMENT_START_TIME = "segmentStartTime";
+
+    /**
+     * Amount of apps reported individually on each network for every hour.
+     */
+    public static final int TOP_APPS_COUNT = 10;
+
+    private final UsageRetriever mUsageRetriever;
+    private final PackageManager mPackageManager;
+
+    //Reused between queries to avoid reallocating them every hour
+    private final SparseLongArray mRxBytes = new SparseLongArray();
+    private final SparseLongArray mTxBytes = new SparseLongArray();
+    private final TopUsageSelector mTopUsageSelector = new TopUsageSelector(TOP_APPS_COUNT);
+    private long[] mRxValues = new long[0];
+    private long[] mTxValues = new long[0];
+
+    public AppUsageMetrics(Context context) {
+        super(context);
+        mUsageRetriever = new UsageRetriever(context);
+        mPackageManager = context.getPackageManager();
+    }
+
+    /**
+     * Collects the usage of the top apps for the specified network during the specified time window,
+     * along with an entry holding the remaining apps' usage.
+     */
+    public List<AppUsageEntity> retrieveAppUsage(int transportType, long startTime, long endTime) {
+        Log.d(TAG, "MMA: Generating app usage metrics...");
+        List<AppUsageEntity> appUsage = new ArrayList<>();
+
+        mRxBytes.clear();
+        mTxBytes.clear();
+        if (!mUsageRetriever.getAppUsage(transportType, startTime, endTime, mRxBytes, mTxBytes)) return appUsage;
+
+        addTopAppUsage(appUsage, transportType, startTime, mRxBytes, mTxBytes);
+        return appUsage;
+    }
+
+    /**
+     * Adds the entries for the top apps found in the per-UID usage maps, along with an entry holding the remaining
+     * apps' usage. Apps are ranked through the UIDs in the rx map, so every UID with traffic must be in it, even with
+     * 0 bytes. Tx bytes are looked up by UID.
+     */
+    public void addTopAppUsage(List<AppUsageEntity> appUsage, int transportType, long startTime, SparseLongArray rxBytesMap, SparseLongArray txBytesMap) {
+        //Totals are summed on each map, so they stay correct even if the maps don't hold the same UIDs
+        long totalRxBytes = 0, totalTxBytes = 0;
+        for (int i = 0; i < rxBytesMap.size(); i++) {
+            totalRxBytes += rxBytesMap.valueAt(i);
+        }
+        for (int i = 0; i < txBytesMap.size(); i++) {
+            totalTxBytes += txBytesMap.valueAt(i);
+        }
+
+        //Copied into arrays aligned with the rx map's UIDs, only grown when an hour has more UIDs than any before
+        int uidCount = rxBytesMap.size();
+        if (mRxValues.length < uidCount) {
+            mRxValues = new long[uidCount];
+            mTxValues = new long[uidCount];
+        }
+        for (int i = 0; i < uidCount; i++) {
+            mRxValues[i] = rxBytesMap.valueAt(i);
+            mTxValues[i] = txBytesMap.get(rxBytesMap.keyAt(i));
+        }
+
+        int topCount = mTopUsageSelector.select(mRxValues, mTxValues, uidCount);
+        for (int i = 0; i < topCount; i++) {
+            int index = mTopUsageSelector.getTopIndex(i);
+            int uid = rxBytesMap.keyAt(index);
+            appUsage.add(new AppUsageEntity(transportType, uid, getPackageName(uid), mRxValues[index], mTxValues[index], startTime));
+        }
+
+        long otherRxBytes = mTopUsageSelector.getRemainder(totalRxBytes, mRxValues);
+        long otherTxBytes = mTopUsageSelector.getRemainder(totalTxBytes, mTxValues);
+        if (otherRxBytes + otherTxBytes > 0) {
+            appUsage.add(new AppUsageEntity(transportType, AppUsageEntity.UID_OTHER, AppUsageEntity.PACKAGE_NAME_OTHER, otherRxBytes, otherTxBytes, startTime));
+        }
+
+        Log.d(TAG, "MMA: Collected usage for " + rxBytesMap.size() + " UIDs, keeping " + topCount + " (transport: " + transportType + ")");
+    }
+
+    /**
+     * Converts an app usage entry into the metric uploaded for it.
+     */
+    public List<Pair<String, String>> getMetrics(AppUsageEntity entity) {
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        metricsList.add(new Pair<>(TransportType.METRIC_TRANSPORT_TYPE, TransportType.getTransportString(entity.getTransportType())));
+        metricsList.add(new Pair<>(METRIC_UID, Integer.toString(entity.getUid())));
+        metricsList.add(new Pair<>(METRIC_PACKAGE_NAME, entity.getPackageName()));
+        metricsList.add(new Pair<>(METRIC_RX_BYTES, Long.toString(entity.getRxBytes())));
+        metricsList.add(new Pair<>(METRIC_TX_BYTES, Long.toString(entity.getTxBytes())));
+        metricsList.add(new Pair<>(METRIC_SEGMENT_START_TIME, Long.toString(entity.getTimestamp())));
+        return metricsList;
+    }
+
+    //Only called for the top apps, so the lookups don't scale with the amount of installed apps
+    private String getPackageName(int uid) {
+        switch (uid) {
+            case NetworkStats.Bucket.UID_REMOVED:
+                return "removed";
+            case NetworkStats.Bucket.UID_TETHERING:
+                return "tethering";
+            default:
+                String name = mPackageManager.getNameForUid(uid);
+                return name != null ? name : Integer.toString(uid);
+        }
+    }
+
+    public List<Pair<String, String>> retrieveMetrics() { return null; }
+}
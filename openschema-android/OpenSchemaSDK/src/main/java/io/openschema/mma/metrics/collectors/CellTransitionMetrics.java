@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.metrics.collectors;
+
+import android.content.Context;
+import android.net.NetworkCapabilities;
+import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.data.pojo.CellTransition;
+import io.openschema.mma.utils.ExecutorManager;
+import io.openschema.mma.utils.TelephonyStateCache;
+import io.openschema.mma.utils.UsageRetriever;
+
+/**
+ * Records every change of serving cell (handover) or radio technology reported by {@link TelephonyStateCache}, with
+ * the time spent & mobile bytes transferred since the previous change. Transitions are kept in memory and uploaded
+ * in batches, so a moving device doesn't write to the DB on every handover.
+ */
+public class CellTransitionMetrics extends AsyncMetrics implements TelephonyStateCache.Listener {
+    private static final String TAG = "CellTransitionMetrics";
+
+    /**
+     * Metric name to be used for the collected information.
+     */
+    public static final String METRIC_NAME = "openschemaCellTransitions";
+
+    public static final String METRIC_TRANSITION_COUNT = "transitionCount";
+    public static final String METRIC_TRANSITIONS = "transitions";
+
+    //Batches are uploaded once they reach either limit
+    private static final int MAX_BATCH_TRANSITIONS = 50;
+    private static final long FREQUENCE_TRANSITION_FLUSH = 1000 * 60 * 15; //15 min
+
+    private final MetricsCollectorListener mListener;
+    private final TelephonyStateCache mTelephonyStateCache;
+    private final UsageRetriever mUsageRetriever;
+    private final Handler mHandler;
+    private final List<CellTransition> mPendingTransitions = new ArrayList<>();
+
+    //Current cell & radio technology, along with the time and mobile counters when they were entered
+    private long mCellIdentity = TelephonyStateCache.UNKNOWN_CELL_ID;
+    private String mNetworkType = null;
+    private long mDwellStart = 0;
+    private long mDwellStartRxBytes = 0;
+    private long mDwellStartTxBytes = 0;
+
+    public CellTransitionMetrics(Context context, MetricsCollectorListener listener) {
+        super(context);
+        mListener = listener;
+        mTelephonyStateCache = TelephonyStateCache.getInstance(context);
+        mUsageRetriever = new UsageRetriever(context);
+        mHandler = new Handler(ExecutorManager.getInstance().getCollectorLooper());
+    }
+
+    private final Runnable mFlushTransitions = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            mHandler.postDelayed(this, FREQUENCE_TRANSITION_FLUSH);
+        }
+    };
+
+    public void startTrackers() {
+        mHandler.post(() -> {
+            TelephonyStateCache.CellSnapshot snapshot = mTelephonyStateCache.getSnapshot();
+            if (isKnown(snapshot)) startDwell(snapshot);
+            mTelephonyStateCache.addListener(this);
+        });
+        mHandler.postDelayed(mFlushTransitions, FREQUENCE_TRANSITION_FLUSH);
+    }
+
+    //Uploads the pending transitions, so they aren't lost while the service is stopped
+    public void stopTrackers() {
+        mHandler.removeCallbacks(mFlushTransitions);
+        mHandler.post(() -> {
+            mTelephonyStateCache.removeListener(this);
+            flush();
+        });
+    }
+
+    //Called on the collectors' thread
+    @Override
+    public void onSnapshotChanged(TelephonyStateCache.CellSnapshot previous, TelephonyStateCache.CellSnapshot current) {
+        //Losing the cell info or the data connection isn't a transition, the dwell continues until a new cell is known
+        if (!isKnown(current)) return;
+
+        if (mNetworkType == null) {
+            startDwell(current);
+            return;
+        }
+
+        if (current.getCellIdentity() == mCellIdentity && current.getRadioTechnology().equals(mNetworkType)) return;
+
+        long now = SystemClock.elapsedRealtime();
+        long rxBytes = getBytesSince(mUsageRetriever.getRxBytes(NetworkCapabilities.TRANSPORT_CELLULAR), mDwellStartRxBytes);
+        long txBytes = getBytesSince(mUsageRetriever.getTxBytes(NetworkCapabilities.TRANSPORT_CELLULAR), mDwellStartTxBytes);
+        CellTransition transition = new CellTransition(System.currentTimeMillis(), mCellIdentity, current.getCellIdentity(),
+                mNetworkType, current.getRadioTechnology(), now - mDwellStart, rxBytes, txBytes);
+        Log.d(TAG, "MMA: Cell transition from " + mCellIdentity + " (" + mNetworkType + ") to " +
+                current.getCellIdentity() + " (" + current.getRadioTechnology() + ")");
+
+        mPendingTransitions.add(transition);
+        startDwell(current);
+
+        if (mPendingTransitions.size() >= MAX_BATCH_TRANSITIONS) flush();
+    }
+
+    private void startDwell(TelephonyStateCache.CellSnapshot snapshot) {
+        mCellIdentity = snapshot.getCellIdentity();
+        mNetworkType = snapshot.getRadioTechnology();
+        mDwellStart = SystemClock.elapsedRealtime();
+        mDwellStartRxBytes = mUsageRetriever.getRxBytes(NetworkCapabilities.TRANSPORT_CELLULAR);
+        mDwellStartTxBytes = mUsageRetriever.getTxBytes(NetworkCapabilities.TRANSPORT_CELLULAR);
+    }
+
+    private void flush() {
+        if (mPendingTransitions.isEmpty()) return;
+
+        Log.d(TAG, "MMA: Collecting " + mPendingTransitions.size() + " cell transitions");
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        metricsList.add(new Pair<>(METRIC_TRANSITION_COUNT, Integer.toString(mPendingTransitions.size())));
+        metricsList.add(new Pair<>(METRIC_TRANSITIONS, new Gson().toJson(mPendingTransitions)));
+        mListener.onMetricCollected(METRIC_NAME, metricsList);
+        mPendingTransitions.clear();
+    }
+
+    private boolean isKnown(TelephonyStateCache.CellSnapshot snapshot) {
+        return snapshot.getCellIdentity() != TelephonyStateCache.UNKNOWN_CELL_ID &&
+                snapshot.getDataNetworkType() != TelephonyManager.NETWORK_TYPE_UNKNOWN;
+    }
+
+    //Mobile counters restart on reboot & may be unsupported, in which case no bytes are attributed
+    private long getBytesSince(long current, long start) {
+        if (current == TrafficStats.UNSUPPORTED || start == TrafficStats.UNSUPPORTED || current < start) return 0;
+        return current - start;
+    }
+}
@@ -15,32 +15,18 @@
 package io.openschema.mma.metrics.collectors;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.os.Build;
-import android.telephony.CellIdentityCdma;
-import android.telephony.CellIdentityGsm;
-import android.telephony.CellIdentityLte;
-import android.telephony.CellIdentityNr;
-import android.telephony.CellIdentityWcdma;
-import android.telephony.CellInfo;
-import android.telephony.CellInfoCdma;
-import android.telephony.CellInfoGsm;
-import android.telephony.CellInfoLte;
-import android.telephony.CellInfoNr;
-import android.telephony.CellInfoWcdma;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
 
-import androidx.annotation.RequiresApi;
 import androidx.core.content.ContextCompat;
 import androidx.core.util.Pair;
-import io.openschema.mma.utils.LocationServicesChecker;
 import io.openschema.mma.metrics.MetricsManager;
+import io.openschema.mma.utils.TelephonyStateCache;
 
 /**
  * Collects metrics related to cellular networks.
@@ -61,27 +47,24 @@ public class CellularNetworkMetrics extends SyncMetrics {
     public static final String METRIC_NETWORK_TYPE = "networkType";
     public static final String METRIC_CELL_ID = "cellId";
 
-    private final Context mContext;
     private final TelephonyManager mTelephonyManager;
+    private final TelephonyStateCache mTelephonyStateCache;
     private final boolean mPhonePermissionGranted;
-    private final boolean mLocationPermissionGranted;
 
     private String mNetworkType = null;
     private long mCellIdentity = -1;
 
     public CellularNetworkMetrics(Context context) {
         super(context);
-        mContext = context;
         mTelephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        mTelephonyStateCache = TelephonyStateCache.getInstance(context);
         mPhonePermissionGranted = ContextCompat.checkSelfPermission(context, Manifest.permission.READ_PHONE_STATE) == PackageManager.PERMISSION_GRANTED;
-        mLocationPermissionGranted = ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
     }
 
     /**
      * Collects information about available cellular networks and generates a list of pairs to
      * be used in {@link MetricsManager#collect(String, List)}.
      */
-    @SuppressLint("MissingPermission")
     public List<Pair<String, String>> retrieveMetrics() {
         Log.d(TAG, "MMA: Generating cellular network metrics...");
 
@@ -91,36 +74,18 @@ public class CellularNetworkMetrics extends SyncMetrics {
 
         metricsList.add(new Pair<>(METRIC_CARRIER_NAME, mTelephonyManager.getNetworkOperatorName()));
         metricsList.add(new Pair<>(METRIC_ISO_COUNTRY_CODE, mTelephonyManager.getNetworkCountryIso()));
+
+        //Read from the cached telephony state instead of querying the modem
+        TelephonyStateCache.CellSnapshot snapshot = mTelephonyStateCache.getSnapshot();
         if (mPhonePermissionGranted) {
-            mNetworkType = getRadioTechnologyString(mTelephonyManager.getDataNetworkType());
+            mNetworkType = snapshot.getRadioTechnology();
             metricsList.add(new Pair<>(METRIC_NETWORK_TYPE, mNetworkType));
         }
 
-        if (mLocationPermissionGranted && LocationServicesChecker.isLocationEnabled(mContext)) {
-            // Requires location services to be enabled, otherwise returned list will be empty
-            List<CellInfo> allCellInfo = mTelephonyManager.getAllCellInfo();
-
-            if (allCellInfo != null) {
-                for (int i = 0; i < allCellInfo.size(); i++) {
-                    CellInfo cellInfo = allCellInfo.get(i);
-
-                    if (cellInfo == null || !cellInfo.isRegistered()) continue;
-                    //TODO: Can there be more than 1 registered network?
-
-                    if (cellInfo instanceof CellInfoCdma) {
-                        getInfoCDMA(metricsList, cellInfo);
-                    } else if (cellInfo instanceof CellInfoGsm) {
-                        getInfoGSM(metricsList, cellInfo);
-                    } else if (cellInfo instanceof CellInfoLte) {
-                        getInfoLTE(metricsList, cellInfo);
-                    } else if (cellInfo instanceof CellInfoWcdma) {
-                        getInfoWCDMA(metricsList, cellInfo);
-                    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
-                            cellInfo instanceof CellInfoNr) {
-                        getInfoNR(metricsList, cellInfo);
-                    }
-                }
-            }
+        mCellIdentity = snapshot.getCellIdentity();
+        if (mCellIdentity != TelephonyStateCache.UNKNOWN_CELL_ID) {
+            getNetworkCodes(metricsList, snapshot);
+            metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
         }
 
 //        Log.d(TAG, "MMA: Collected metrics:\n"+metricsList.toString());
@@ -128,123 +93,21 @@ public class CellularNetworkMetrics extends SyncMetrics {
     }
 
     /**
-     * Collects the mobile network code & mobile country code from a CDMA cell.
+     * Collects the mobile network code & mobile country code from the registered cell.
      */
-    private void getInfoCDMA(List<Pair<String, String>> metricsList, CellInfo cellInfo) {
-        CellInfoCdma info = (CellInfoCdma) cellInfo;
-        CellIdentityCdma cellIdentity = info.getCellIdentity();
+    private void getNetworkCodes(List<Pair<String, String>> metricsList, TelephonyStateCache.CellSnapshot snapshot) {
+        if (snapshot.getMobileCountryCode() != null) {
+            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, snapshot.getMobileNetworkCode()));
+            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, snapshot.getMobileCountryCode()));
+            return;
+        }
 
+        //CDMA cells don't report them
         String networkOperator = mTelephonyManager.getNetworkOperator();
-        if (networkOperator != null) {
+        if (networkOperator != null && networkOperator.length() > 3) {
             metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, networkOperator.substring(3)));
             metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, networkOperator.substring(0, 3)));
         }
-        //TODO: Is this the correct equivalent?
-        mCellIdentity = cellIdentity.getBasestationId();
-        metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
-    }
-
-    /**
-     * Collects the mobile network code & mobile country code from a GSM cell.
-     */
-    private void getInfoGSM(List<Pair<String, String>> metricsList, CellInfo cellInfo) {
-        CellInfoGsm info = (CellInfoGsm) cellInfo;
-        CellIdentityGsm cellIdentity = info.getCellIdentity();
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, cellIdentity.getMncString()));
-            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, cellIdentity.getMccString()));
-        } else {
-            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, Integer.toString(cellIdentity.getMnc())));
-            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, Integer.toString(cellIdentity.getMcc())));
-        }
-
-        mCellIdentity = cellIdentity.getCid();
-        metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
-    }
-
-    /**
-     * Collects the mobile network code & mobile country code from an LTE cell.
-     */
-    private void getInfoLTE(List<Pair<String, String>> metricsList, CellInfo cellInfo) {
-        CellInfoLte info = (CellInfoLte) cellInfo;
-        CellIdentityLte cellIdentity = info.getCellIdentity();
-
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, cellIdentity.getMncString()));
-            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, cellIdentity.getMccString()));
-        } else {
-            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, Integer.toString(cellIdentity.getMnc())));
-            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, Integer.toString(cellIdentity.getMcc())));
-        }
-
-        mCellIdentity = cellIdentity.getCi();
-        metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
-    }
-
-    /**
-     * Collects the mobile network code & mobile country code from a WCDMA cell.
-     */
-    private void getInfoWCDMA(List<Pair<String, String>> metricsList, CellInfo cellInfo) {
-        CellInfoWcdma info = (CellInfoWcdma) cellInfo;
-        CellIdentityWcdma cellIdentity = info.getCellIdentity();
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, cellIdentity.getMncString()));
-            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, cellIdentity.getMccString()));
-        } else {
-            metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, Integer.toString(cellIdentity.getMnc())));
-            metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, Integer.toString(cellIdentity.getMcc())));
-        }
-
-        mCellIdentity = cellIdentity.getCid();
-        metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
-    }
-
-    /**
-     * Collects the mobile network code & mobile country code from a 5G NR cell.
-     */
-    @RequiresApi(api = Build.VERSION_CODES.Q)
-    private void getInfoNR(List<Pair<String, String>> metricsList, CellInfo cellInfo) {
-        CellInfoNr info = (CellInfoNr) cellInfo;
-        CellIdentityNr cellIdentity = (CellIdentityNr) info.getCellIdentity();
-
-        metricsList.add(new Pair<>(METRIC_MOBILE_NETWORK_CODE, cellIdentity.getMncString()));
-        metricsList.add(new Pair<>(METRIC_MOBILE_COUNTRY_CODE, cellIdentity.getMccString()));
-
-        mCellIdentity = cellIdentity.getNci();
-        metricsList.add(new Pair<>(METRIC_CELL_ID, Long.toString(mCellIdentity)));
-    }
-
-    /**
-     * Converts the Data Network Type int value to a Radio Technology string
-     */
-    private String getRadioTechnologyString(int dataNetworkType) {
-        switch (dataNetworkType) {
-            case TelephonyManager.NETWORK_TYPE_GPRS:
-            case TelephonyManager.NETWORK_TYPE_EDGE:
-            case TelephonyManager.NETWORK_TYPE_CDMA:
-            case TelephonyManager.NETWORK_TYPE_1xRTT:
-            case TelephonyManager.NETWORK_TYPE_IDEN:
-                return "2G";
-            case TelephonyManager.NETWORK_TYPE_UMTS:
-            case TelephonyManager.NETWORK_TYPE_EVDO_0:
-            case TelephonyManager.NETWORK_TYPE_EVDO_A:
-            case TelephonyManager.NETWORK_TYPE_HSDPA:
-            case TelephonyManager.NETWORK_TYPE_HSUPA:
-            case TelephonyManager.NETWORK_TYPE_HSPA:
-            case TelephonyManager.NETWORK_TYPE_EVDO_B:
-            case TelephonyManager.NETWORK_TYPE_EHRPD:
-            case TelephonyManager.NETWORK_TYPE_HSPAP:
-                return "3G";
-            case TelephonyManager.NETWORK_TYPE_LTE:
-                return "4G";
-            case TelephonyManager.NETWORK_TYPE_NR:
-                return "5G";
-            default:
-                return "Unknown";
-        }
     }
 
     public String getNetworkType() {
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.metrics.collectors;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.data.HistogramTypeConverter;
+import io.openschema.mma.utils.CollectorConfig;
+import io.openschema.mma.utils.ExecutorManager;
+import io.openschema.mma.utils.GridAggregator;
+import io.openschema.mma.utils.SharedPreferencesHelper;
+import io.openschema.mma.utils.TransportType;
+
+/**
+ * Periodically uploads the per-cell summaries accumulated by {@link GridAggregator}. Only active when grid aggregation
+ * is enabled through {@link CollectorConfig#setGridAggregation(boolean, int)}.
+ */
+public class GridSummaryMetrics extends AsyncMetrics {
+    private static final String TAG = "GridSummaryMetrics";
+
+    /**
+     * Metric name to be used for the collected information.
+     */
+    public static final String METRIC_NAME = "openschemaGridSummary";
+
+    public static final String METRIC_GEOHASH = "geohash";
+    public static final String METRIC_WINDOW_START_TIME = "windowStartTime";
+    public static final String METRIC_SEGMENT_COUNT = "segmentCount";
+    public static final String METRIC_DURATION_MILLIS = "durationMillis";
+    public static final String METRIC_RX_BYTES = "rxBytes";
+    public static final String METRIC_TX_BYTES = "txBytes";
+    public static final String METRIC_QUALITY_SCORE_COUNT = "qualityScoreCount";
+    public static final String METRIC_QUALITY_SCORE_HISTOGRAM = "qualityScoreHistogram";
+
+    private static final long FREQUENCE_GRID_FLUSH = 1000 * 60 * 60; //60 min
+    //Bounds how much of a window is lost if the process dies before it's flushed
+    private static final long FREQUENCE_GRID_CHECKPOINT = 1000 * 60 * 5; //5 min
+
+    private final MetricsCollectorListener mListener;
+    private final GridAggregator mGridAggregator;
+    private final Handler mHandler;
+    private final SharedPreferences mSharedPreferences;
+
+    public GridSummaryMetrics(Context context, MetricsCollectorListener listener) {
+        super(context);
+        mListener = listener;
+        mGridAggregator = GridAggregator.getInstance();
+        mHandler = new Handler(ExecutorManager.getInstance().getCollectorLooper());
+        mSharedPreferences = SharedPreferencesHelper.getInstance(context);
+    }
+
+    private final Runnable mFlushGridSummaries = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            mHandler.postDelayed(this, FREQUENCE_GRID_FLUSH);
+        }
+    };
+
+    private final Runnable mCheckpointGridSummaries = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+            mHandler.postDelayed(this, FREQUENCE_GRID_CHECKPOINT);
+        }
+    };
+
+    public void startTrackers() {
+        if (!CollectorConfig.getInstance().isGridAggregationEnabled()) return;
+
+        //Cells left by a process that died before flushing them continue in the current window
+        String checkpoint = mSharedPreferences.getString(SharedPreferencesHelper.KEY_GRID_CHECKPOINT, null);
+        if (checkpoint != null) {
+            Log.d(TAG, "MMA: Restoring grid checkpoint");
+            mGridAggregator.restore(checkpoint);
+        }
+
+        long windowAge = System.currentTimeMillis() - mGridAggregator.getWindowStart();
+        mHandler.postDelayed(mFlushGridSummaries, Math.max(0, FREQUENCE_GRID_FLUSH - windowAge));
+        mHandler.postDelayed(mCheckpointGridSummaries, FREQUENCE_GRID_CHECKPOINT);
+    }
+
+    //Uploads whatever was accumulated so far, so it isn't lost while the service is stopped
+    public void stopTrackers() {
+        mHandler.removeCallbacks(mFlushGridSummaries);
+        mHandler.removeCallbacks(mCheckpointGridSummaries);
+        flush();
+    }
+
+    private void checkpoint() {
+        mSharedPreferences.edit()
+                .putString(SharedPreferencesHelper.KEY_GRID_CHECKPOINT, mGridAggregator.checkpoint())
+                .apply();
+    }
+
+    private void flush() {
+        List<GridAggregator.CellSummary> cells = mGridAggregator.flush();
+        Log.d(TAG, "MMA: Collecting summaries for " + cells.size() + " cells");
+        for (GridAggregator.CellSummary cell : cells) {
+            mListener.onMetricCollected(METRIC_NAME, getMetrics(cell));
+        }
+        //The flushed cells are stored with the rest of the metrics now
+        mSharedPreferences.edit()
+                .remove(SharedPreferencesHelper.KEY_GRID_CHECKPOINT)
+                .apply();
+    }
+
+    private List<Pair<String, String>> getMetrics(GridAggregator.CellSummary cell) {
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        metricsList.add(new Pair<>(TransportType.METRIC_TRANSPORT_TYPE, TransportType.getTransportString(cell.getTransportType())));
+        metricsList.add(new Pair<>(METRIC_GEOHASH, cell.getGeohash()));
+        metricsList.add(new Pair<>(METRIC_WINDOW_START_TIME, Long.toString(cell.getWindowStart())));
+        metricsList.add(new Pair<>(METRIC_SEGMENT_COUNT, Integer.toString(cell.getSegmentCount())));
+        metricsList.add(new Pair<>(METRIC_DURATION_MILLIS, Long.toString(cell.getDurationMillis())));
+        metricsList.add(new Pair<>(METRIC_RX_BYTES, Long.toString(cell.getRxBytes())));
+        metricsList.add(new Pair<>(METRIC_TX_BYTES, Long.toString(cell.getTxBytes())));
+        metricsList.add(new Pair<>(METRIC_QUALITY_SCORE_COUNT, Integer.toString(cell.getScoreCount())));
+        metricsList.add(new Pair<>(METRIC_QUALITY_SCORE_HISTOGRAM, HistogramTypeConverter.toString(cell.getScoreHistogram())));
+        return metricsList;
+    }
+}
@@ -15,22 +15,18 @@
 package io.openschema.mma.metrics.collectors;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
+import android.os.Handler;
 import android.util.Log;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.tasks.CancellationTokenSource;
-
 import java.util.ArrayList;
 import java.util.List;
 
 import androidx.core.content.ContextCompat;
 import androidx.core.util.Pair;
+import io.openschema.mma.utils.LocationBroker;
 import io.openschema.mma.utils.LocationServicesChecker;
 
 /**
@@ -48,37 +44,34 @@ public class LocationMetrics extends AsyncMetrics {
     public static final String METRIC_LONGITUDE = "longitude";
 
     private final Context mContext;
-    private final FusedLocationProviderClient mLocationClient;
+    private final LocationBroker mLocationBroker;
     private final boolean mLocationPermissionGranted;
 
     private final MetricsCollectorListener mListener;
+    private final Handler mHandler;
 
     private Location mLastLocation;
-    private CancellationTokenSource mCancellationTokenSource = null;
+    private final LocationBroker.Listener mBrokerListener = this::onRequestSuccess;
 
-    public LocationMetrics(Context context, MetricsCollectorListener listener) {
+    /**
+     * @param handler Handler the listener is called through, to receive the results on its thread
+     */
+    public LocationMetrics(Context context, MetricsCollectorListener listener, Handler handler) {
         super(context);
         mContext = context;
         mListener = listener;
+        mHandler = handler;
 
-        mLocationClient = LocationServices.getFusedLocationProviderClient(context);
+        mLocationBroker = LocationBroker.getInstance(context);
 
         mLocationPermissionGranted = ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
     }
 
-    @SuppressLint("MissingPermission")
+    //Fixes are shared with the other collectors through LocationBroker, which reuses recent fixes when possible
     public void requestLocation() {
         Log.d(TAG, "MMA: Generating location metrics...");
-        //TODO: need to evaluate the correct priority/accuracy
-        //TODO: need to consider cases where google play services aren't available
         if (mLocationPermissionGranted && LocationServicesChecker.isLocationEnabled(mContext)) {
-            mCancellationTokenSource = new CancellationTokenSource();
-            mLocationClient.getCurrentLocation(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, mCancellationTokenSource.getToken())
-                    .addOnSuccessListener(this::onRequestSuccess)
-                    .addOnFailureListener(e -> {
-                        e.printStackTrace();
-                        onRequestFailure();
-                    });
+            mLocationBroker.requestLocation(mBrokerListener, mHandler);
         } else {
             onRequestFailure();
         }
@@ -91,21 +84,17 @@ public class LocationMetrics extends AsyncMetrics {
             Log.d(TAG, "MMA: Failed to compute location");
         }
         mLastLocation = location;
-        mCancellationTokenSource = null;
         mListener.onMetricCollected(METRIC_NAME, extractLocationValues(location));
     }
 
     private void onRequestFailure() {
         Log.d(TAG, "MMA: Failed to retrieve location");
         mLastLocation = null;
-        mCancellationTokenSource = null;
         mListener.onMetricCollected(METRIC_NAME, null);
     }
 
     public void cancelLocationRequest() {
-        if (mCancellationTokenSource != null) {
-            mCancellationTokenSource.cancel();
-        }
+        mLocationBroker.cancelRequest(mBrokerListener);
     }
 
     //To be used if location attributes are needed after receiving metrics on listener
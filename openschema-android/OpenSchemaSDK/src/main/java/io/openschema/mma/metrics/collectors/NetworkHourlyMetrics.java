@@ -14,7 +14,6 @@
 
 package io.openschema.mma.metrics.collectors;
 
-import android.app.usage.NetworkStats;
 import android.content.Context;
 import android.util.Log;
 
@@ -23,7 +22,7 @@ import java.util.List;
 
 import androidx.core.util.Pair;
 import io.openschema.mma.utils.TransportType;
-import io.openschema.mma.utils.UsageRetriever;
+import io.openschema.mma.utils.UsageQueryService;
 
 /**
  * Wi-Fi and Cellular usage collected on an hourly basis.
@@ -40,11 +39,11 @@ public class NetworkHourlyMetrics extends SyncMetrics {
     public static final String METRIC_TX_BYTES = "txBytes";
     public static final String METRIC_SEGMENT_START_TIME = "segmentStartTime";
 
-    private UsageRetriever mUsageRetriever;
+    private final UsageQueryService mUsageQueryService;
 
     public NetworkHourlyMetrics(Context context) {
         super(context);
-        mUsageRetriever = new UsageRetriever(context);
+        mUsageQueryService = UsageQueryService.getInstance(context);
     }
 
     /**
@@ -54,14 +53,20 @@ public class NetworkHourlyMetrics extends SyncMetrics {
     public List<Pair<String, String>> retrieveMetrics(int transportType, long startTime, long endTime) {
         Log.d(TAG, "MMA: Generating network hourly metrics...");
 
+        //Usually served from the cache, since the same window was just queried for the local hourly usage entry
+        UsageQueryService.DeviceUsage usage = mUsageQueryService.getDeviceUsage(transportType, startTime, endTime);
+        return getMetrics(transportType, usage == null ? 0 : usage.getRxBytes(), usage == null ? 0 : usage.getTxBytes(), startTime);
+    }
+
+    /**
+     * Builds the metric for usage that was already retrieved, e.g. while backfilling several hours at once.
+     */
+    public List<Pair<String, String>> getMetrics(int transportType, long rxBytes, long txBytes, long startTime) {
         List<Pair<String, String>> metricsList = new ArrayList<>();
 
         metricsList.add(new Pair<>(TransportType.METRIC_TRANSPORT_TYPE, TransportType.getTransportString(transportType)));
-
-        NetworkStats.Bucket bucket = mUsageRetriever.getDeviceNetworkBucket(transportType, startTime, endTime);
-        metricsList.add(new Pair<>(METRIC_RX_BYTES, Long.toString(bucket.getRxBytes())));
-        metricsList.add(new Pair<>(METRIC_TX_BYTES, Long.toString(bucket.getTxBytes())));
-
+        metricsList.add(new Pair<>(METRIC_RX_BYTES, Long.toString(rxBytes)));
+        metricsList.add(new Pair<>(METRIC_TX_BYTES, Long.toString(txBytes)));
         metricsList.add(new Pair<>(METRIC_SEGMENT_START_TIME, Long.toString(startTime)));
 
         //TODO: Add debugging flag to enable detailed metrics
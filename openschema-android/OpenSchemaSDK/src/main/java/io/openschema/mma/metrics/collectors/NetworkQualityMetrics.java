@@ -16,27 +16,56 @@ package io.openschema.mma.metrics.collectors;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntSupplier;
 
 import androidx.annotation.NonNull;
 import androidx.core.util.Pair;
+import io.openschema.mma.data.HistogramTypeConverter;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.data.entity.NetworkQualityEntity;
+import io.openschema.mma.data.pojo.Histogram;
+import io.openschema.mma.utils.CollectorConfig;
+import io.openschema.mma.utils.DnsServerRegistry;
 import io.openschema.mma.utils.DnsServersDetector;
 import io.openschema.mma.utils.DnsTester;
+import io.openschema.mma.utils.ExecutorManager;
+import io.openschema.mma.utils.GridAggregator;
+import io.openschema.mma.utils.LatencyHistogram;
+import io.openschema.mma.utils.LoadedLatencyResult;
+import io.openschema.mma.utils.LocationBroker;
+import io.openschema.mma.utils.LoadedLatencyTester;
+import io.openschema.mma.utils.NetworkIdentity;
+import io.openschema.mma.utils.NetworkQualityCache;
+import io.openschema.mma.utils.NetworkQualityConfig;
+import io.openschema.mma.utils.ProbeContext;
 import io.openschema.mma.utils.QosInfo;
+import io.openschema.mma.utils.QualityProbe;
+import io.openschema.mma.utils.QualitySamplingScheduler;
+import io.openschema.mma.utils.QualityScoreInput;
+import io.openschema.mma.utils.QualityScorer;
+import io.openschema.mma.utils.RttHistory;
 import io.openschema.mma.utils.SignalStrength;
+import io.openschema.mma.utils.ThroughputBudget;
+import io.openschema.mma.utils.ThroughputResult;
+import io.openschema.mma.utils.ThroughputTester;
+import io.openschema.mma.utils.UdpEchoProbe;
+import io.openschema.mma.utils.UdpEchoResult;
 import io.openschema.mma.utils.TransportType;
 
 /**
@@ -52,18 +81,124 @@ public class NetworkQualityMetrics extends AsyncMetrics {
     public static final String METRIC_NAME = "openschemaNetworkQuality";
 
     public static final String METRIC_QUALITY_SCORE = "qualityScore";
+    public static final String METRIC_QUALITY_SCORER = "qualityScorer";
+    public static final String METRIC_ALTERNATIVE_QUALITY_SCORE_PREFIX = "qualityScore_";
     public static final String METRIC_LATENCY = "latency";
     public static final String METRIC_RSSI = "rssi";
+    public static final String METRIC_LATENCY_HISTOGRAM = "latencyHistogram";
+    public static final String METRIC_IPV4_LATENCY = "ipv4Latency";
+    public static final String METRIC_IPV4_SUCCESS_RATE = "ipv4SuccessRate";
+    public static final String METRIC_IPV6_LATENCY = "ipv6Latency";
+    public static final String METRIC_IPV6_SUCCESS_RATE = "ipv6SuccessRate";
+    public static final String METRIC_PREFERRED_FAMILY = "preferredFamily";
+    //Whether the measured network was the default one, or another network measured at the same time through socket binding
+    public static final String METRIC_DEFAULT_NETWORK = "defaultNetwork";
+
+    public static final String FAMILY_IPV4 = "ipv4";
+    public static final String FAMILY_IPV6 = "ipv6";
+
+    //Differences in success rate smaller than this are considered a tie between IP families, which is then decided by latency
+    private static final double FAMILY_SUCCESS_RATE_MARGIN = 0.1;
+
+    //Metrics reported for each additional probe are named "probe_<index>_<suffix>", where the index is the probe's position
+    //in the configured list. Endpoints are sent as values, so metric names stay the same across configurations.
+    public static final String METRIC_PROBE_PREFIX = "probe_";
+    public static final String METRIC_PROBE_TYPE_SUFFIX = "_type";
+    public static final String METRIC_PROBE_TARGET_SUFFIX = "_target";
+    public static final String METRIC_PROBE_LATENCY_SUFFIX = "_latency";
+    public static final String METRIC_PROBE_P90_SUFFIX = "_p90";
+    public static final String METRIC_PROBE_SUCCESS_RATE_SUFFIX = "_successRate";
+    public static final String METRIC_PROBE_HISTOGRAM_SUFFIX = "_histogram";
+
+    //Metrics reported by the UDP echo probe
+    public static final String METRIC_UDP_PACKETS_SENT = "udpPacketsSent";
+    public static final String METRIC_UDP_LOSS = "udpLoss";
+    public static final String METRIC_UDP_REORDERED = "udpReordered";
+    public static final String METRIC_UDP_DUPLICATES = "udpDuplicates";
+    public static final String METRIC_UDP_JITTER = "udpJitter";
+    public static final String METRIC_UDP_LATENCY = "udpLatency";
+
+    //Metrics reported by the throughput test are named "<direction><suffix>"
+    public static final String METRIC_DOWNLOAD_PREFIX = "download";
+    public static final String METRIC_UPLOAD_PREFIX = "upload";
+    public static final String METRIC_GOODPUT_P10_SUFFIX = "GoodputP10";
+    public static final String METRIC_GOODPUT_P50_SUFFIX = "GoodputP50";
+    public static final String METRIC_GOODPUT_P90_SUFFIX = "GoodputP90";
+    public static final String METRIC_RAMP_UP_SUFFIX = "RampUp";
+    public static final String METRIC_BYTES_SUFFIX = "Bytes";
+    public static final String METRIC_LOADED_LATENCY_SUFFIX = "LoadedLatency";
+    public static final String METRIC_LATENCY_DELTA_SUFFIX = "LatencyDelta";
+    public static final String METRIC_LATENCY_P90_DELTA_SUFFIX = "LatencyP90Delta";
+    public static final String METRIC_RESPONSIVENESS_SUFFIX = "Responsiveness";
+    public static final String METRIC_LOADED_RSSI_SUFFIX = "LoadedRssi";
+
+    //Round trips per minute across every latency sample taken under load
+    public static final String METRIC_RESPONSIVENESS = "responsiveness";
+
+    //Throughput tests aren't started if the daily cap has less than this amount of bytes left
+    private static final long MIN_THROUGHPUT_TEST_BYTES = 1024 * 1024;
+
+    //Maximum time both rounds of DNS tests can take together, instead of letting every request time out in turn
+    private static final long RTT_TEST_BUDGET = 1000 * 20; //20 seconds
 
     private final MetricsCollectorListener mListener;
     private final MetricsRepository mMetricsRepository;
     private final ConnectivityManager mConnectivityManager;
     private final SignalStrength mSignalStrength;
-    private final ExecutorService mExecutorService;
+    //Concurrent measurements run on different threads, so each one fills its own input
+    private final ThreadLocal<QualityScoreInput> mQualityScoreInputs = ThreadLocal.withInitial(QualityScoreInput::new);
+    private final ExecutorManager mExecutorManager;
+
+    private final NetworkQualityCache mQualityCache = new NetworkQualityCache();
+
+    //Periodic samples of the active network, on top of the ones triggered by network changes. Runs on the collectors' thread
+    //along with the network callbacks. Handler delays don't advance while the device is in deep sleep, which only stretches the interval further.
+    private final Handler mHandler;
+    private final QualitySamplingScheduler mSamplingScheduler;
+    private final Runnable mSampleQuality = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrentActiveTransportType == -1) return;
+            Log.d(TAG, "MMA: Taking scheduled network quality sample");
+            //The scheduler already controls how often this runs, so the cached result isn't used
+            requestMetrics(mCurrentActiveConnectionId, mCurrentActiveTransportType, true);
+        }
+    };
 
     private Future<?> mLastRequestFuture = null;
-    private int mCurrentActiveTransportType = -1;
-    private int mCurrentActiveConnectionId = -1;
+    private String mLastRequestKey = null;
+    private volatile Network mCurrentActiveNetwork = null;
+    //Written by the network callbacks, but also read by remeasureQuality() & requestMetrics() from other threads
+    private volatile int mCurrentActiveTransportType = -1;
+    private volatile int mCurrentActiveConnectionId = -1;
+
+    //Every connected Wi-Fi & cellular network, default or not, so both can be measured at the same time.
+    //These callbacks are passive: they never keep mobile data up by themselves.
+    private final Map<Integer, Network> mConnectedNetworks = new ConcurrentHashMap<>();
+    //DNS servers of the tracked networks, kept up to date by the callbacks so measurements don't need to look them up
+    private final DnsServerRegistry mDnsServerRegistry = new DnsServerRegistry();
+    private final DnsServersDetector mDnsServersDetector;
+    private final ConnectivityManager.NetworkCallback mWifiNetworkCallBack;
+    private final ConnectivityManager.NetworkCallback mCellularNetworkCallBack;
+    private ConnectivityManager.NetworkCallback getTransportNetworkCallback(final int transportType) {
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                mConnectedNetworks.put(transportType, network);
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties linkProperties) {
+                mDnsServerRegistry.onLinkPropertiesChanged(network, linkProperties);
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                mConnectedNetworks.remove(transportType, network);
+                mDnsServerRegistry.onLost(network);
+            }
+        };
+    }
 
     private final ConnectivityManager.NetworkCallback mNetworkCallBack;
     private ConnectivityManager.NetworkCallback getNetworkCallback() {
@@ -88,6 +223,7 @@ public class NetworkQualityMetrics extends AsyncMetrics {
                         return;
                     }
 
+                    mCurrentActiveNetwork = network;
                     mCurrentActiveTransportType = transportType;
 
                     //TODO: Figure out how to handle the case where the connection entry hasn't finished writing to DB yet.
@@ -96,19 +232,32 @@ public class NetworkQualityMetrics extends AsyncMetrics {
                     if (mCurrentActiveConnectionId == -1) {
                         Log.e(TAG, "MMA: Active connection ID failed to be retrieved");
                     }
-                    requestMetrics(mCurrentActiveConnectionId, mCurrentActiveTransportType);
+                    //Score history from the previous network doesn't say anything about this one
+                    mSamplingScheduler.reset();
+                    requestMetrics(mCurrentActiveConnectionId, mCurrentActiveTransportType, false);
                 }
             }
 
+            @Override
+            public void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties linkProperties) {
+                mDnsServerRegistry.onLinkPropertiesChanged(network, linkProperties);
+            }
+
             @Override
             public void onLost(@NonNull Network network) {
+                mDnsServerRegistry.onLost(network);
+                mCurrentActiveNetwork = null;
                 mCurrentActiveTransportType = -1;
                 mCurrentActiveConnectionId = -1;
+                mHandler.removeCallbacks(mSampleQuality);
 
                 //Check if the previous test is still running and cancel it. Due to active network changes the results won't be relevant anymore.
-                if (mLastRequestFuture != null && !mLastRequestFuture.isDone()) {
-                    Log.d(TAG, "MMA: Network disconnected, cancelling previous DNS test.");
-                    mLastRequestFuture.cancel(true);
+                synchronized (NetworkQualityMetrics.this) {
+                    if (mLastRequestFuture != null && !mLastRequestFuture.isDone()) {
+                        Log.d(TAG, "MMA: Network disconnected, cancelling previous DNS test.");
+                        mLastRequestFuture.cancel(true);
+                    }
+                    mLastRequestKey = null;
                 }
             }
         };
@@ -120,212 +269,459 @@ public class NetworkQualityMetrics extends AsyncMetrics {
         super(context);
         mListener = listener;
         mSignalStrength = new SignalStrength(context);
-        mExecutorService = Executors.newCachedThreadPool();
+        mExecutorManager = ExecutorManager.getInstance();
         mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         mNetworkCallBack = getNetworkCallback();
+        mWifiNetworkCallBack = getTransportNetworkCallback(NetworkCapabilities.TRANSPORT_WIFI);
+        mCellularNetworkCallBack = getTransportNetworkCallback(NetworkCapabilities.TRANSPORT_CELLULAR);
         mMetricsRepository = MetricsRepository.getRepository(context.getApplicationContext());
         mActiveConnectionRetriever = activeConnectionRetriever;
         mContext = context;
+        mDnsServersDetector = new DnsServersDetector(context);
+        mHandler = new Handler(mExecutorManager.getCollectorLooper());
+        mSamplingScheduler = new QualitySamplingScheduler(context);
     }
 
-    private void requestMetrics(final int networkConnectionId, final int transportType) {
+    /**
+     * Starts a new measurement unless the network was measured within the cache TTL, in which case the cached result is
+     * published instead. Requests for the network that is already being measured are merged into the running measurement.
+     * If the other transport also has a connected network, it's measured at the same time.
+     */
+    private void requestMetrics(final int networkConnectionId, final int transportType, final boolean forceRefresh) {
+        final String measurementKey = NetworkIdentity.getMeasurementKey(mContext, transportType);
+        final MeasurementTarget primaryTarget = new MeasurementTarget(networkConnectionId, transportType, mCurrentActiveNetwork, measurementKey, true);
+        final MeasurementTarget secondaryTarget = getSecondaryTarget(transportType, forceRefresh);
+
+        synchronized (this) {
+            if (mLastRequestFuture != null && !mLastRequestFuture.isDone()) {
+                //Networks that can't be identified are never merged, they could be a different network than the one being measured
+                if (measurementKey != null && measurementKey.equals(mLastRequestKey)) {
+                    Log.d(TAG, "MMA: This network is already being measured, ignoring new request");
+                    return;
+                }
+                Log.d(TAG, "MMA: Requesting a new test, cancelling previous DNS test");
+                mLastRequestFuture.cancel(true);
+            }
+
+            if (!forceRefresh && measurementKey != null) {
+                NetworkQualityEntity cachedEntity = mQualityCache.get(measurementKey, NetworkQualityConfig.getInstance().getQualityCacheTtl());
+                if (cachedEntity != null) {
+                    Log.d(TAG, "MMA: This network was measured recently, reusing the cached result");
+                    mMetricsRepository.publishCachedNetworkQuality(cachedEntity);
+                    scheduleNextSample();
+                    return;
+                }
+            }
 
-        if (mLastRequestFuture != null && !mLastRequestFuture.isDone()) {
-            Log.d(TAG, "MMA: Requesting a new test, cancelling previous DNS test");
-            mLastRequestFuture.cancel(true);
+            mLastRequestKey = measurementKey;
+            mLastRequestFuture = mExecutorManager.getIoExecutor().submit(() -> runRequest(primaryTarget, secondaryTarget));
         }
+    }
 
-        mLastRequestFuture = mExecutorService.submit(() -> {
+    //Returns the connected network of the other transport, if there's one that isn't the default network and doesn't have a recent measurement
+    private MeasurementTarget getSecondaryTarget(int defaultTransportType, boolean forceRefresh) {
+        if (!NetworkQualityConfig.getInstance().isConcurrentMeasurementEnabled()) return null;
+
+        int transportType = defaultTransportType == NetworkCapabilities.TRANSPORT_WIFI ?
+                NetworkCapabilities.TRANSPORT_CELLULAR : NetworkCapabilities.TRANSPORT_WIFI;
+        Network network = mConnectedNetworks.get(transportType);
+        if (network == null || network.equals(mCurrentActiveNetwork)) return null;
+
+        String measurementKey = NetworkIdentity.getMeasurementKey(mContext, transportType);
+        if (!forceRefresh && measurementKey != null && mQualityCache.get(measurementKey, NetworkQualityConfig.getInstance().getQualityCacheTtl()) != null) {
+            Log.d(TAG, "MMA: Non-default network was measured recently, skipping it");
+            return null;
+        }
+
+        return new MeasurementTarget(mActiveConnectionRetriever.getActiveConnectionId(transportType), transportType, network, measurementKey, false);
+    }
+
+    private void runRequest(final MeasurementTarget primaryTarget, final MeasurementTarget secondaryTarget) {
+        //Each test is bound to its own network, so the non-default network is measured in parallel without extending the measurement.
+        //It runs on its own executor, since waiting for a task queued on the I/O executor could block every I/O thread.
+        Future<?> secondaryFuture = null;
+        if (secondaryTarget != null) {
+            Log.d(TAG, "MMA: Measuring " + TransportType.getTransportString(secondaryTarget.mTransportType) + " network at the same time");
             try {
-                List<Pair<String, String>> networkQualityMetrics = runTests(networkConnectionId, transportType);
-                //Collect metrics to DB to be pushed later
-                mListener.onMetricCollected(METRIC_NAME, networkQualityMetrics);
-            } catch (InterruptedException e) {
-                Log.d(TAG, "MMA: This network quality test was cancelled. Ignoring the result");
+                secondaryFuture = mExecutorManager.getSecondaryExecutor().submit(() -> {
+                    try {
+                        measureNetwork(secondaryTarget);
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "MMA: The non-default network quality test was cancelled. Ignoring the result");
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "MMA: The non-default network quality test couldn't be started");
             }
-        });
+        }
+
+        try {
+            measureNetwork(primaryTarget);
+            if (secondaryFuture != null) secondaryFuture.get();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "MMA: This network quality test was cancelled. Ignoring the result");
+            return;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "MMA: The non-default network quality test failed: " + e.getCause());
+        } finally {
+            if (secondaryFuture != null) secondaryFuture.cancel(true);
+        }
+        scheduleNextSample();
+
+        //Thread & queue usage left by this measurement
+        mListener.onMetricCollected(ExecutorManager.METRIC_NAME, mExecutorManager.getMetrics());
+    }
+
+    private void measureNetwork(MeasurementTarget target) throws InterruptedException {
+        List<Pair<String, String>> networkQualityMetrics = runTests(target);
+        //Collect metrics to DB to be pushed later
+        mListener.onMetricCollected(METRIC_NAME, networkQualityMetrics);
+    }
+
+    //Replaces any pending sample, so measurements triggered by network changes or manual requests also push the next one back
+    private void scheduleNextSample() {
+        if (!NetworkQualityConfig.getInstance().isSamplingEnabled() || mCurrentActiveTransportType == -1) return;
+
+        mHandler.removeCallbacks(mSampleQuality);
+        mHandler.postDelayed(mSampleQuality, mSamplingScheduler.getNextInterval());
     }
 
-    private List<Pair<String, String>> runTests(final int networkConnectionId, final int transportType) throws InterruptedException {
+    private List<Pair<String, String>> runTests(final MeasurementTarget target) throws InterruptedException {
         Log.d(TAG, "MMA: Generating network quality metrics...");
+        final int transportType = target.mTransportType;
+        final Network network = target.mNetwork;
 
         //Latency / RTT
-        Pair<List<QosInfo>, List<QosInfo>> rttTestsResults = runRttTests();
-        //Using average of default DNS servers as a placeholder.
-        double rtt = rttTestsResults.first.stream()
-                .mapToDouble(QosInfo::getRttMean)
-                .average()
-                .orElse(Double.NaN);
+        Pair<List<QosInfo>, List<QosInfo>> rttTestsResults = runRttTests(transportType, network);
+
+        //Default DNS servers are tested on both IP families. Results from the family that works best on this network are used
+        //for the overall latency & score, so IPv6-only (NAT64) networks aren't penalized for failing IPv4 requests.
+        List<QosInfo> ipv4Results = new ArrayList<>();
+        List<QosInfo> ipv6Results = new ArrayList<>();
+        for (int i = 0; i < rttTestsResults.first.size(); i++) {
+            QosInfo qosInfo = rttTestsResults.first.get(i);
+            if (DnsTester.isIpv6Server(qosInfo.getDnsServer())) {
+                ipv6Results.add(qosInfo);
+            } else {
+                ipv4Results.add(qosInfo);
+            }
+        }
+        double ipv4Rtt = getAverageRtt(ipv4Results);
+        double ipv4SuccessRate = getAverageSuccessRate(ipv4Results);
+        double ipv6Rtt = getAverageRtt(ipv6Results);
+        double ipv6SuccessRate = getAverageSuccessRate(ipv6Results);
+        //A family without any tested server is never preferred, e.g. when all its servers were skipped as unreachable
+        boolean isIpv6Preferred = !ipv6Results.isEmpty() &&
+                (ipv4Results.isEmpty() || isIpv6Preferred(ipv4Rtt, ipv4SuccessRate, ipv6Rtt, ipv6SuccessRate));
+        List<QosInfo> referenceResults = isIpv6Preferred ? ipv6Results : ipv4Results;
+        Log.d(TAG, "MMA: Preferred IP family: " + (isIpv6Preferred ? FAMILY_IPV6 : FAMILY_IPV4));
+
+        //Using average of default DNS servers as a placeholder
+        double rtt = isIpv6Preferred ? ipv6Rtt : ipv4Rtt;
+
+        //Distribution of every RTT sample, exported with the Histogram structure from metrics.proto so it can be merged server-side
+        LatencyHistogram latencyHistogram = new LatencyHistogram();
+        mergeHistograms(latencyHistogram, rttTestsResults.first);
+        mergeHistograms(latencyHistogram, rttTestsResults.second);
+        Histogram exportedHistogram = Histogram.fromLatencyHistogram(latencyHistogram);
+
+        //Additional probes against the configured endpoints, sharing the same deadline
+        ProbeContext probeContext = new ProbeContext(NetworkQualityConfig.getInstance().getProbeBudget(), network);
+        //Copied so the reported indexes match the probes that ran even if the configuration changes meanwhile
+        List<QualityProbe> qualityProbes = new ArrayList<>(NetworkQualityConfig.getInstance().getQualityProbes());
+        List<QosInfo> probeResults = runProbes(qualityProbes, probeContext);
+        UdpEchoResult udpEchoResult = runUdpEchoProbe(probeContext);
+
+        //Optional capacity test, limited by the daily byte cap. Can also measure the latency while the link is loaded.
+        //Only run on the default network, so a concurrent measurement doesn't spend mobile data the user isn't currently using.
+        Pair<LoadedLatencyResult, LoadedLatencyResult> throughputResults = target.mIsDefaultNetwork ?
+                runThroughputTests(referenceResults, transportType, network) : new Pair<>(null, null);
+        double downloadGoodput = throughputResults.first == null ? -1 : throughputResults.first.getThroughputResult().getGoodputP50();
+        double uploadGoodput = throughputResults.second == null ? -1 : throughputResults.second.getThroughputResult().getGoodputP50();
 
         //RSSI
         int rssi = mSignalStrength.getRSSI(transportType);
 
         //Final QoS/QoE score
-        double score = calculateQualityScore(rttTestsResults);
+        Log.d(TAG, "MMA: Calculating final quality score...");
+        NetworkQualityConfig networkQualityConfig = NetworkQualityConfig.getInstance();
+        QualityScoreInput qualityScoreInput = buildQualityScoreInput(referenceResults, rttTestsResults.second);
+        QualityScorer qualityScorer = networkQualityConfig.getQualityScorer();
+        double score = qualityScorer.score(qualityScoreInput);
+        Log.d(TAG, "MMA: Final QoS Score: " + score);
+        if (CollectorConfig.getInstance().isGridAggregationEnabled()) {
+            //Binned with the last shared fix, the measurement never requests one on its own
+            GridAggregator.getInstance().recordQualityScore(transportType, LocationBroker.getInstance(mContext).getCachedLocation(), score);
+        }
 
         //Extract information shared by both network types
         List<Pair<String, String>> metricsList = new ArrayList<>();
         metricsList.add(new Pair<>(TransportType.METRIC_TRANSPORT_TYPE, TransportType.getTransportString(transportType)));
+        metricsList.add(new Pair<>(METRIC_DEFAULT_NETWORK, Boolean.toString(target.mIsDefaultNetwork)));
         metricsList.add(new Pair<>(METRIC_QUALITY_SCORE, Double.toString(score)));
+        metricsList.add(new Pair<>(METRIC_QUALITY_SCORER, qualityScorer.getName()));
+        //Models being compared against the main one are reported under their own names
+        for (QualityScorer alternativeScorer : networkQualityConfig.getAlternativeQualityScorers()) {
+            double alternativeScore = alternativeScorer.score(qualityScoreInput);
+            metricsList.add(new Pair<>(METRIC_ALTERNATIVE_QUALITY_SCORE_PREFIX + alternativeScorer.getName(), Double.toString(alternativeScore)));
+        }
         metricsList.add(new Pair<>(METRIC_LATENCY, Double.toString(rtt)));
         metricsList.add(new Pair<>(METRIC_RSSI, Integer.toString(rssi)));
+        metricsList.add(new Pair<>(METRIC_LATENCY_HISTOGRAM, HistogramTypeConverter.toString(exportedHistogram)));
+        metricsList.add(new Pair<>(METRIC_IPV4_LATENCY, Double.toString(ipv4Rtt)));
+        metricsList.add(new Pair<>(METRIC_IPV4_SUCCESS_RATE, Double.toString(ipv4SuccessRate)));
+        metricsList.add(new Pair<>(METRIC_IPV6_LATENCY, Double.toString(ipv6Rtt)));
+        metricsList.add(new Pair<>(METRIC_IPV6_SUCCESS_RATE, Double.toString(ipv6SuccessRate)));
+        metricsList.add(new Pair<>(METRIC_PREFERRED_FAMILY, isIpv6Preferred ? FAMILY_IPV6 : FAMILY_IPV4));
+        for (int i = 0; i < probeResults.size(); i++) {
+            if (probeResults.get(i) == null) continue;
+            addProbeMetrics(metricsList, i, qualityProbes.get(i), probeResults.get(i));
+        }
+        if (udpEchoResult != null) {
+            addUdpEchoMetrics(metricsList, udpEchoResult);
+        }
+        if (throughputResults.first != null) {
+            addThroughputMetrics(metricsList, METRIC_DOWNLOAD_PREFIX, throughputResults.first);
+        }
+        if (throughputResults.second != null) {
+            addThroughputMetrics(metricsList, METRIC_UPLOAD_PREFIX, throughputResults.second);
+        }
+        addResponsivenessMetric(metricsList, throughputResults);
 
         //Write to local DB
         if (Thread.currentThread().isInterrupted()) {
             Log.d(TAG, "MMA: This network quality test was cancelled");
             throw new InterruptedException();
         }
-        writeNetworkQuality(new NetworkQualityEntity(networkConnectionId, transportType, score, rtt, rssi, System.currentTimeMillis()));
+        NetworkQualityEntity networkQualityEntity = new NetworkQualityEntity(target.mNetworkConnectionId, transportType, score, rtt, rssi,
+                System.currentTimeMillis(), exportedHistogram, downloadGoodput, uploadGoodput);
+        writeNetworkQuality(networkQualityEntity);
+        if (target.mMeasurementKey != null) mQualityCache.put(target.mMeasurementKey, networkQualityEntity);
+        //Background samples follow the default network
+        if (target.mIsDefaultNetwork) mSamplingScheduler.onScoreMeasured(score);
 
         Log.d(TAG, "MMA: Collected report:\n" + metricsList.toString());
         return metricsList;
     }
 
-    private Pair<List<QosInfo>, List<QosInfo>> runRttTests() throws InterruptedException {
+    //Average of the servers' mean RTT. Servers without any response don't have a mean to contribute.
+    private double getAverageRtt(List<QosInfo> qosInfos) {
+        double rttSum = 0;
+        int respondingServers = 0;
+        for (int i = 0; i < qosInfos.size(); i++) {
+            QosInfo qosInfo = qosInfos.get(i);
+            if (qosInfo.getRttCount() == 0) continue;
+            rttSum += qosInfo.getRttMean();
+            respondingServers++;
+        }
+        return respondingServers == 0 ? Double.NaN : rttSum / respondingServers;
+    }
+
+    private double getAverageSuccessRate(List<QosInfo> qosInfos) {
+        if (qosInfos.isEmpty()) return 0;
+        double successRateSum = 0;
+        for (int i = 0; i < qosInfos.size(); i++) {
+            successRateSum += qosInfos.get(i).getSuccessRate();
+        }
+        return successRateSum / qosInfos.size();
+    }
+
+    //Similar to Happy Eyeballs (RFC 8305): the family that answers more reliably wins, then the faster one. IPv6 wins ties.
+    private boolean isIpv6Preferred(double ipv4Rtt, double ipv4SuccessRate, double ipv6Rtt, double ipv6SuccessRate) {
+        if (Math.abs(ipv6SuccessRate - ipv4SuccessRate) >= FAMILY_SUCCESS_RATE_MARGIN) {
+            return ipv6SuccessRate > ipv4SuccessRate;
+        }
+        if (Double.isNaN(ipv6Rtt)) return Double.isNaN(ipv4Rtt);
+        if (Double.isNaN(ipv4Rtt)) return true;
+        return ipv6Rtt <= ipv4Rtt;
+    }
+
+    private void mergeHistograms(LatencyHistogram target, List<QosInfo> qosInfos) {
+        for (int i = 0; i < qosInfos.size(); i++) {
+            target.merge(qosInfos.get(i).getHistogram());
+        }
+    }
+
+    private Pair<List<QosInfo>, List<QosInfo>> runRttTests(final int transportType, final Network network) throws InterruptedException {
         Log.d(TAG, "MMA: Running RTT tests...");
         long timer = SystemClock.elapsedRealtime();
+
+        //Per-server timeouts are derived from the RTTs previously measured on this same network, if it can be identified
+        RttHistory rttHistory = new RttHistory(mContext, NetworkIdentity.getNetworkKey(mContext, transportType));
+
+        //Both rounds share a deadline, so unresponsive servers can't hold the measurement for long
+        ProbeContext rttContext = new ProbeContext(RTT_TEST_BUDGET, network);
+
         DnsTester.randomizeDomains();
-        List<QosInfo> testDnsServers = DnsTester.testDefaultServers();
+        List<QosInfo> testDnsServers = DnsTester.testDefaultServers(rttHistory, rttContext);
 
         //Randomizing domains again in case there's collisions between our default DNS servers and the device's
         DnsTester.randomizeDomains();
-        DnsServersDetector mDnsServersDetector = new DnsServersDetector(mContext);
-        List<QosInfo> deviceDnsServers = DnsTester.testServers(mDnsServersDetector.getServers());
+        List<QosInfo> deviceDnsServers = DnsTester.testServers(getDnsServers(network), rttHistory, rttContext);
+        rttHistory.save();
         Log.d(TAG, "MMA: Running RTT tests took: " + (SystemClock.elapsedRealtime() - timer) + "ms");
         return new Pair<>(testDnsServers, deviceDnsServers);
     }
 
-    private double calculateQualityScore(Pair<List<QosInfo>, List<QosInfo>> rttTestsResults) {
-        //For the default DNS we will be using the one that returns the lowest RTTs for now from the ones returned from mDnsServersDetector.getServers()
-        //Step 1: Get the min RTT from default DNS. And make sure test is usable:
-        //1- each dns test should have at least 50% success to be considered for the calculation.
-        //2- Default DNS tes should be success
-        //3- at least 50% of non default DNS test should be success
-        Log.d(TAG, "MMA: Calculating final quality score...");
-        //TODO: cleanup test logs
+    //Servers received through the network callbacks, only falling back to the detector's lookup if the network hasn't reported any yet
+    private String[] getDnsServers(Network network) {
+        String[] dnsServers = mDnsServerRegistry.getServers(network);
+        if (dnsServers != null) return dnsServers;
+
+        Log.d(TAG, "MMA: DNS servers for this network weren't cached, using detector");
+        return mDnsServersDetector.getServers(network);
+    }
 
-        QosInfo minDefaultRttServer = rttTestsResults.second.get(0);
+    private List<QosInfo> runProbes(List<QualityProbe> qualityProbes, ProbeContext probeContext) throws InterruptedException {
+        List<QosInfo> probeResults = new ArrayList<>(qualityProbes.size());
+        if (qualityProbes.isEmpty()) return probeResults;
 
-        for (int i = 1; i < rttTestsResults.second.size(); i++) {
-            //TODO: Handle 0(failed RTT's) in a better way
-            if (rttTestsResults.second.get(i).getSuccessRate() < 0.5) {
-                continue;
-            }
+        Log.d(TAG, "MMA: Running quality probes...");
+        long timer = SystemClock.elapsedRealtime();
 
-            if (rttTestsResults.second.get(i).getMinRTTValue() == 0) {
+        for (QualityProbe qualityProbe : qualityProbes) {
+            if (probeContext.isExpired()) {
+                //Skipped probes keep their slot, so every result stays at its probe's index
+                Log.d(TAG, "MMA: Probe budget expired, skipping " + qualityProbe.getName());
+                probeResults.add(null);
                 continue;
             }
-            if (minDefaultRttServer.getMinRTTValue() == 0) {
-                minDefaultRttServer = rttTestsResults.second.get(i);
-            }
-            if (rttTestsResults.second.get(i).getMinRTTValue() < minDefaultRttServer.getMinRTTValue()) {
-                minDefaultRttServer = rttTestsResults.second.get(i);
-            }
+            probeResults.add(qualityProbe.run(probeContext));
         }
 
-        //TODO: Handle no default DNS, Maybe throw an error.
-        //Conditions Default DNS
-        //Default DNS has to have a successRate of 0.5 or greater.
-        if (minDefaultRttServer.getRttMean() == 0 || minDefaultRttServer.getSuccessRate() < 0.5) {
-            Log.d(TAG, "MMA: Default DNS success Rate is lower than 50%");
-            //return -1;
-        }
+        Log.d(TAG, "MMA: Running quality probes took: " + (SystemClock.elapsedRealtime() - timer) + "ms");
+        return probeResults;
+    }
 
-        double totalSuccessfulHardcodedDNS = 0.0;
-        for (int i = 0; i < rttTestsResults.first.size(); i++) {
-            if (rttTestsResults.first.get(i).getSuccessRate() >= 0.5) {
-                totalSuccessfulHardcodedDNS = totalSuccessfulHardcodedDNS + 1.0;
-            }
+    private UdpEchoResult runUdpEchoProbe(ProbeContext probeContext) throws InterruptedException {
+        UdpEchoProbe udpEchoProbe = NetworkQualityConfig.getInstance().getUdpEchoProbe();
+        if (udpEchoProbe == null) return null;
+        if (probeContext.isExpired()) {
+            Log.d(TAG, "MMA: Probe budget expired, skipping " + udpEchoProbe.getName());
+            return null;
         }
-        Log.d(TAG, "MMA: Hardcoded DNSs Total successful Tests: " + totalSuccessfulHardcodedDNS + " and Total hardcoded DNSs: " + rttTestsResults.first.size());
 
-        double totalSuccessfulHardcodedDNSPercentage = totalSuccessfulHardcodedDNS / rttTestsResults.first.size();
-        if (totalSuccessfulHardcodedDNSPercentage < 0.5) {
-            Log.d(TAG, "MMA: Hardcoded Dns Servers success rate is lower than 50%: " + totalSuccessfulHardcodedDNSPercentage);
-            //return -1;
+        Log.d(TAG, "MMA: Running UDP echo probe...");
+        try {
+            return udpEchoProbe.run(probeContext);
+        } catch (IOException e) {
+            Log.e(TAG, "MMA: UDP echo probe failed: " + e);
+            return null;
         }
+    }
 
-        Log.d(TAG, "MMA: Default DNS Success Rate: " + minDefaultRttServer.getSuccessRate());
-        Log.d(TAG, "MMA: Default Min RTT: " + minDefaultRttServer.getMinRTTValue());
-
-        //Step 2: Calculate confidence Factor: (percentage of non default success test) + (average of success's of all tests) / 2
-        double confidenceFactor;
-        double successfulNonDefaultTests = 0.0;
-        double nonDefaultSuccessRate;
-        double averageSuccessRate = 0.0;
-
-        for (int i = 0; i < rttTestsResults.first.size(); i++) {
+    private void addUdpEchoMetrics(List<Pair<String, String>> metricsList, UdpEchoResult udpEchoResult) {
+        double latency = udpEchoResult.getPacketsReceived() == 0 ? Double.NaN : udpEchoResult.getRttHistogram().getPercentile(0.5);
+        metricsList.add(new Pair<>(METRIC_UDP_PACKETS_SENT, Integer.toString(udpEchoResult.getPacketsSent())));
+        metricsList.add(new Pair<>(METRIC_UDP_LOSS, Double.toString(udpEchoResult.getLossRate())));
+        metricsList.add(new Pair<>(METRIC_UDP_REORDERED, Integer.toString(udpEchoResult.getReorderedPackets())));
+        metricsList.add(new Pair<>(METRIC_UDP_DUPLICATES, Integer.toString(udpEchoResult.getDuplicatePackets())));
+        metricsList.add(new Pair<>(METRIC_UDP_JITTER, Double.toString(udpEchoResult.getJitter())));
+        metricsList.add(new Pair<>(METRIC_UDP_LATENCY, Double.toString(latency)));
+    }
 
-            averageSuccessRate = averageSuccessRate + rttTestsResults.first.get(i).getSuccessRate();
+    private void addProbeMetrics(List<Pair<String, String>> metricsList, int probeIndex, QualityProbe qualityProbe, QosInfo probeResult) {
+        String prefix = METRIC_PROBE_PREFIX + probeIndex;
+        metricsList.add(new Pair<>(prefix + METRIC_PROBE_TYPE_SUFFIX, qualityProbe.getType()));
+        metricsList.add(new Pair<>(prefix + METRIC_PROBE_TARGET_SUFFIX, qualityProbe.getTarget()));
+        double latency = probeResult.getRttCount() == 0 ? Double.NaN : probeResult.getRttMean();
+        metricsList.add(new Pair<>(prefix + METRIC_PROBE_LATENCY_SUFFIX, Double.toString(latency)));
+        metricsList.add(new Pair<>(prefix + METRIC_PROBE_P90_SUFFIX, Double.toString(probeResult.getRttP90())));
+        metricsList.add(new Pair<>(prefix + METRIC_PROBE_SUCCESS_RATE_SUFFIX, Double.toString(probeResult.getSuccessRate())));
+        Histogram histogram = Histogram.fromLatencyHistogram(probeResult.getHistogram());
+        metricsList.add(new Pair<>(prefix + METRIC_PROBE_HISTOGRAM_SUFFIX, HistogramTypeConverter.toString(histogram)));
+    }
 
-            if (rttTestsResults.first.get(i).getSuccessRate() >= 0.5) {
-                successfulNonDefaultTests = successfulNonDefaultTests + 1.0;
-            }
+    private Pair<LoadedLatencyResult, LoadedLatencyResult> runThroughputTests(List<QosInfo> idleResults, int transportType, Network network) throws InterruptedException {
+        NetworkQualityConfig networkQualityConfig = NetworkQualityConfig.getInstance();
+        ThroughputTester throughputTester = networkQualityConfig.getThroughputTester();
+        if (throughputTester == null) return new Pair<>(null, null);
+
+        ThroughputBudget throughputBudget = ThroughputBudget.getInstance(mContext);
+        long dailyByteCap = networkQualityConfig.getThroughputDailyByteCap();
+        LoadedLatencyResult downloadResult = null;
+        LoadedLatencyResult uploadResult = null;
+
+        //Latency under load is probed against the fastest responsive server from the idle test, so both can be compared
+        QosInfo idleResult = networkQualityConfig.isLatencyUnderLoadEnabled() ? getFastestServer(idleResults) : null;
+        String loadedDnsServer = idleResult == null ? null : idleResult.getDnsServer();
+        IntSupplier rssiSampler = idleResult == null ? null : () -> mSignalStrength.getRSSI(transportType);
+
+        //Bytes are reserved before each test, so concurrent measurements can't exceed the cap together
+        ThroughputBudget.Reservation downloadReservation = throughputTester.hasDownload() ?
+                throughputBudget.reserve(dailyByteCap, MIN_THROUGHPUT_TEST_BYTES, throughputTester.getMaxBytes()) : null;
+        if (downloadReservation != null) {
+            Log.d(TAG, "MMA: Running download throughput test...");
+            downloadResult = LoadedLatencyTester.testDownload(throughputTester, new ProbeContext(throughputTester.getMaxDuration(), network),
+                    downloadReservation.getBytes(), loadedDnsServer, idleResult, rssiSampler);
+            throughputBudget.settle(downloadReservation, downloadResult.getThroughputResult().getTransferredBytes());
         }
 
-        nonDefaultSuccessRate = successfulNonDefaultTests/rttTestsResults.first.size();
-        averageSuccessRate = (averageSuccessRate + minDefaultRttServer.getSuccessRate())/(rttTestsResults.first.size()+1);
-        confidenceFactor = (nonDefaultSuccessRate + averageSuccessRate)/2;
-        Log.d(TAG, "QOS Confidence Factor: " + confidenceFactor);
-
-        //Step 3: Clean Data
-        minDefaultRttServer.cleanData();
-        for (int i = 0; i < rttTestsResults.first.size(); i++) {
-            rttTestsResults.first.get(i).cleanData();
+        ThroughputBudget.Reservation uploadReservation = throughputTester.hasUpload() ?
+                throughputBudget.reserve(dailyByteCap, MIN_THROUGHPUT_TEST_BYTES, throughputTester.getMaxBytes()) : null;
+        if (uploadReservation != null) {
+            Log.d(TAG, "MMA: Running upload throughput test...");
+            uploadResult = LoadedLatencyTester.testUpload(throughputTester, new ProbeContext(throughputTester.getMaxDuration(), network),
+                    uploadReservation.getBytes(), loadedDnsServer, idleResult, rssiSampler);
+            throughputBudget.settle(uploadReservation, uploadResult.getThroughputResult().getTransferredBytes());
         }
 
-        //Step 4: Map Mean RTT of the default server to scoring scale, for now we call this scale Pivot Scale.
-
-        int pivotScore = 0;
-        ///Not using switch since it doesn't accept long type
-        if (minDefaultRttServer.getRttMean() < 25) pivotScore = 5;
-        else if (minDefaultRttServer.getRttMean() >= 25 && minDefaultRttServer.getRttMean() < 50) pivotScore = 4;
-        else if (minDefaultRttServer.getRttMean() >= 50 && minDefaultRttServer.getRttMean() < 100) pivotScore = 3;
-        else if (minDefaultRttServer.getRttMean() >= 100 && minDefaultRttServer.getRttMean() < 125) pivotScore = 2;
-        else if (minDefaultRttServer.getRttMean() >= 125) pivotScore = 1;
-
-        Log.d(TAG, "MMA: Pivot Score: " + pivotScore);
-
-        //Step 5: Scale other result of default DNS
-
-        List<Long> defaultDNStRTTS = minDefaultRttServer.getRttValues();
-        double[] scaledDefaultDNSRTTS = new double[defaultDNStRTTS.size()];
-
-        for (int i = 0; i < defaultDNStRTTS.size(); i++) {
-            scaledDefaultDNSRTTS[i] = (pivotScore * minDefaultRttServer.getRttMean()) / defaultDNStRTTS.get(i);
-            if (scaledDefaultDNSRTTS[i] < 1.0) scaledDefaultDNSRTTS[i] = 1.0;
-            if (scaledDefaultDNSRTTS[i] > 5.0) scaledDefaultDNSRTTS[i] = 5.0;
-
+        if (downloadResult == null && uploadResult == null) {
+            Log.d(TAG, "MMA: Throughput daily byte cap reached, skipping test");
         }
+        return new Pair<>(downloadResult, uploadResult);
+    }
 
-        //Step 6: Calculate mean of all standard deviations
-        double averageStdDev = 0.0;
-        for (int i = 0; i < rttTestsResults.first.size(); i++) {
-            averageStdDev = averageStdDev + rttTestsResults.first.get(i).getRttStdDev();
+    //Returns the server with the lowest median RTT among those that answered most requests, null if none did
+    private QosInfo getFastestServer(List<QosInfo> qosInfos) {
+        QosInfo fastestServer = null;
+        for (int i = 0; i < qosInfos.size(); i++) {
+            QosInfo qosInfo = qosInfos.get(i);
+            if (qosInfo.getRttCount() == 0 || qosInfo.getSuccessRate() < 0.5) continue;
+            if (fastestServer == null || qosInfo.getRttP50() < fastestServer.getRttP50()) {
+                fastestServer = qosInfo;
+            }
         }
+        return fastestServer;
+    }
 
-        averageStdDev = (averageStdDev + minDefaultRttServer.getRttStdDev()) / (rttTestsResults.first.size() + 1);
-
-        //Step 7: Map step 6 result to pivot range:
-        int averageStdDevScore = 0;
-        ///Not using switch since it doesn't accept long type
-        if (averageStdDev < 25) averageStdDevScore = 5;
-        else if (averageStdDev >= 25 && averageStdDev < 50) averageStdDevScore = 4;
-        else if (averageStdDev >= 50 && averageStdDev < 100) averageStdDevScore = 3;
-        else if (averageStdDev >= 100 && averageStdDev < 125) averageStdDevScore = 2;
-        else if (averageStdDev >= 125) averageStdDevScore = 1;
+    private void addThroughputMetrics(List<Pair<String, String>> metricsList, String prefix, LoadedLatencyResult loadedLatencyResult) {
+        ThroughputResult throughputResult = loadedLatencyResult.getThroughputResult();
+        metricsList.add(new Pair<>(prefix + METRIC_GOODPUT_P10_SUFFIX, Double.toString(throughputResult.getGoodputP10())));
+        metricsList.add(new Pair<>(prefix + METRIC_GOODPUT_P50_SUFFIX, Double.toString(throughputResult.getGoodputP50())));
+        metricsList.add(new Pair<>(prefix + METRIC_GOODPUT_P90_SUFFIX, Double.toString(throughputResult.getGoodputP90())));
+        metricsList.add(new Pair<>(prefix + METRIC_RAMP_UP_SUFFIX, Long.toString(throughputResult.getRampUpMillis())));
+        metricsList.add(new Pair<>(prefix + METRIC_BYTES_SUFFIX, Long.toString(throughputResult.getTransferredBytes())));
+
+        if (!loadedLatencyResult.hasLoadedLatency()) return;
+        metricsList.add(new Pair<>(prefix + METRIC_LOADED_LATENCY_SUFFIX, Double.toString(loadedLatencyResult.getLoadedLatency())));
+        metricsList.add(new Pair<>(prefix + METRIC_LATENCY_DELTA_SUFFIX, Double.toString(loadedLatencyResult.getLatencyDelta())));
+        metricsList.add(new Pair<>(prefix + METRIC_LATENCY_P90_DELTA_SUFFIX, Double.toString(loadedLatencyResult.getLatencyP90Delta())));
+        metricsList.add(new Pair<>(prefix + METRIC_RESPONSIVENESS_SUFFIX, Double.toString(loadedLatencyResult.getResponsiveness())));
+        metricsList.add(new Pair<>(prefix + METRIC_LOADED_RSSI_SUFFIX, Double.toString(loadedLatencyResult.getMeanRssi())));
+    }
 
-        Log.d(TAG, "MMA: Average StdDev Score: " + averageStdDevScore);
+    private void addResponsivenessMetric(List<Pair<String, String>> metricsList, Pair<LoadedLatencyResult, LoadedLatencyResult> throughputResults) {
+        LatencyHistogram loadedHistogram = new LatencyHistogram();
+        if (throughputResults.first != null) loadedHistogram.merge(throughputResults.first.getLoadedHistogram());
+        if (throughputResults.second != null) loadedHistogram.merge(throughputResults.second.getLoadedHistogram());
+        if (loadedHistogram.getSampleCount() == 0) return;
 
-        //Step 8: Calculate QoS score -> .7(average of step5) + .3 of step 7
-        double averageScaledDefaultDNSRTTS = Arrays.stream(scaledDefaultDNSRTTS).average().orElse(0.0);
-        if (averageScaledDefaultDNSRTTS > 5.0) averageScaledDefaultDNSRTTS = 5.0;
-        if (averageScaledDefaultDNSRTTS < 1.0) averageScaledDefaultDNSRTTS = 1.0;
-        double qosScore = 0.7 * averageScaledDefaultDNSRTTS + 0.3 * averageStdDevScore;
-        qosScore = qosScore * confidenceFactor;
-        Log.d(TAG, "MMA: Final QoS Score: " + qosScore);
+        double responsiveness = LoadedLatencyResult.toRoundTripsPerMinute(loadedHistogram.getPercentile(0.5));
+        metricsList.add(new Pair<>(METRIC_RESPONSIVENESS, Double.toString(responsiveness)));
+    }
 
-        return qosScore;
+    //Reuses the calling thread's input, so scoring a measurement doesn't allocate once its arrays have grown
+    private QualityScoreInput buildQualityScoreInput(List<QosInfo> referenceResults, List<QosInfo> deviceResults) {
+        QualityScoreInput input = mQualityScoreInputs.get();
+        input.clear();
+        for (int i = 0; i < referenceResults.size(); i++) {
+            input.getReferenceServers().addServer(referenceResults.get(i));
+        }
+        for (int i = 0; i < deviceResults.size(); i++) {
+            input.getDeviceServers().addServer(deviceResults.get(i));
+        }
+        return input;
     }
 
     private void writeNetworkQuality(NetworkQualityEntity networkQualityEntity) {
@@ -335,13 +731,16 @@ public class NetworkQualityMetrics extends AsyncMetrics {
         mMetricsRepository.writeNetworkQuality(networkQualityEntity);
     }
 
-    public void remeasureQuality() {
+    /**
+     * @param forceRefresh Measure again even if the active network has a cached measurement within the TTL
+     */
+    public void remeasureQuality(boolean forceRefresh) {
         if (mCurrentActiveTransportType == -1) {
             Log.e(TAG, "MMA: Couldn't recognize active network type");
             return;
         }
 
-        requestMetrics(mCurrentActiveConnectionId, mCurrentActiveTransportType);
+        requestMetrics(mCurrentActiveConnectionId, mCurrentActiveTransportType, forceRefresh);
     }
 
     public void startTrackers() {
@@ -349,12 +748,42 @@ public class NetworkQualityMetrics extends AsyncMetrics {
                 .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
                 .build();
 
-        mConnectivityManager.requestNetwork(activeNetworkRequest, mNetworkCallBack);
+        mConnectivityManager.requestNetwork(activeNetworkRequest, mNetworkCallBack, mHandler);
+
+        mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build(), mWifiNetworkCallBack, mHandler);
+        mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                .build(), mCellularNetworkCallBack, mHandler);
     }
 
     //Stops tracking the network's changes
     public void stopTrackers() {
         mConnectivityManager.unregisterNetworkCallback(mNetworkCallBack);
+        mConnectivityManager.unregisterNetworkCallback(mWifiNetworkCallBack);
+        mConnectivityManager.unregisterNetworkCallback(mCellularNetworkCallBack);
+        mHandler.removeCallbacks(mSampleQuality);
+    }
+
+    //Network measured on a single test, along with the information needed to store its results
+    private static class MeasurementTarget {
+        private final int mNetworkConnectionId;
+        private final int mTransportType;
+        private final Network mNetwork;
+        //Null if the network can't be identified, in which case its results aren't cached
+        private final String mMeasurementKey;
+        private final boolean mIsDefaultNetwork;
+
+        private MeasurementTarget(int networkConnectionId, int transportType, Network network, String measurementKey, boolean isDefaultNetwork) {
+            mNetworkConnectionId = networkConnectionId;
+            mTransportType = transportType;
+            mNetwork = network;
+            mMeasurementKey = measurementKey;
+            mIsDefaultNetwork = isDefaultNetwork;
+        }
     }
 
     //Interface to supply the metrics class with the network connection's DB entry ID
@@ -14,7 +14,7 @@
 
 package io.openschema.mma.metrics.collectors;
 
-import android.app.usage.NetworkStats;
+import android.app.usage.NetworkStatsManager;
 import android.content.Context;
 import android.location.Location;
 import android.net.ConnectivityManager;
@@ -25,12 +25,17 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
 import androidx.core.util.Pair;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.data.entity.NetworkConnectionsEntity;
 import io.openschema.mma.data.entity.NetworkUsageEntity;
+import io.openschema.mma.utils.CollectorConfig;
+import io.openschema.mma.utils.ExecutorManager;
+import io.openschema.mma.utils.GridAggregator;
+import io.openschema.mma.utils.UsageQueryService;
 import io.openschema.mma.utils.UsageRetriever;
 
 /**
@@ -52,13 +57,29 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
     protected long mSessionStartTimestamp, mSessionEndTimestamp;
     protected long mLastReportedSegmentTimestamp;
     protected boolean mIsExpectingLocation;
-    protected long mLastRxBytes, mTotalRxBytes;
-    protected long mLastTxBytes, mTotalTxBytes;
+    protected long mLastRxBytes, mLastTxBytes;
+    //Usage counted during the current segment. Written by the sampling task and read from any thread, e.g. the UI.
+    protected final AtomicLong mTotalRxBytes = new AtomicLong(0);
+    protected final AtomicLong mTotalTxBytes = new AtomicLong(0);
+    //Usage is queried from this boundary onwards, so each query only covers the latest stats buckets.
+    // mLastRxBytes & mLastTxBytes hold the totals already counted since this boundary.
+    protected long mUsageQueryStart;
+    protected long mLastUsageSampleTimestamp;
+    //Fast usage tier from TrafficStats. Its bytes are added to the totals right away, then replaced by the
+    // NetworkStatsManager values on the next reconciliation.
+    protected long mLastLiveRxBytes, mLastLiveTxBytes;
+    protected long mLiveRxBytes, mLiveTxBytes;
+    protected long mLastReconciliationTimestamp;
+    //Usage callback state, used instead of fixed polling when available
+    private boolean mIsUsageCallbackRegistered = false;
+    private long mUsageCallbackThreshold;
+    private double mUsageRateEstimate;
 
     //Metrics sources
     protected final ConnectivityManager mConnectivityManager;
     protected final SyncMetrics mNetworkMetrics;
     protected final UsageRetriever mUsageRetriever;
+    protected final UsageQueryService mUsageQueryService;
     protected final LocationMetrics mLocationMetrics;
 
     private final MetricsCollectorListener mListener;
@@ -69,6 +90,13 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
     private static final long FREQUENCE_BYTE_MEASUREMENT = 1000 * 15; //15 seconds
     private static final long FREQUENCE_SEGMENT_LOGGING = 1000 * 60 * 60; //60 min
     private static final long BYTES_THRESHOLD = 1000 * 1000 * 200; //200 MB
+    private static final long USAGE_HEARTBEAT_INTERVAL = 1000 * 60 * 5; //5 min, bounds staleness while usage callbacks are used
+    private static final long USAGE_CALLBACK_TARGET_INTERVAL = 1000 * 60; //60 seconds of traffic between callbacks at the recent rate
+    private static final long USAGE_CALLBACK_MIN_THRESHOLD = 2 * 1024 * 1024; //2 MiB, lowest threshold allowed by the OS
+    private static final long USAGE_CALLBACK_MAX_THRESHOLD = 64 * 1024 * 1024; //64 MiB
+    private static final double USAGE_RATE_SMOOTHING = 0.5;
+    private static final long USAGE_RECONCILIATION_INTERVAL = 1000 * 60 * 15; //15 min
+    private static final long USAGE_QUERY_ALIGNMENT = 1000 * 60 * 60; //60 min, matches the OS' device stats buckets
 
     private final MetricsRepository mMetricsRepository;
     private NetworkConnectionsEntity mCurrentActiveConnection = null;
@@ -82,10 +110,12 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
         mListener = listener;
         mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         mUsageRetriever = new UsageRetriever(context);
-        mLocationMetrics = new LocationMetrics(context, (locationMetricName, metricsList) -> onLocationReceived(metricsList));
+        mUsageQueryService = UsageQueryService.getInstance(context);
         mMetricsRepository = MetricsRepository.getRepository(context.getApplicationContext());
 
-        mHandler = new Handler();
+        mHandler = new Handler(ExecutorManager.getInstance().getCollectorLooper());
+        //Delivered on the collector thread, which also processes the session's segments
+        mLocationMetrics = new LocationMetrics(context, (locationMetricName, metricsList) -> onLocationReceived(metricsList), mHandler);
     }
 
     private final ConnectivityManager.NetworkCallback mNetworkCallBack = new ConnectivityManager.NetworkCallback() {
@@ -118,9 +148,20 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
 
         mLastRxBytes = -1;
         mLastTxBytes = -1;
-        mTotalRxBytes = 0;
-        mTotalTxBytes = 0;
+        mTotalRxBytes.set(0);
+        mTotalTxBytes.set(0);
+        mUsageQueryStart = alignToUsageBucket(mSessionStartTimestamp);
+        mLastUsageSampleTimestamp = mSessionStartTimestamp;
+        mLastLiveRxBytes = -1;
+        mLastLiveTxBytes = -1;
+        mLiveRxBytes = 0;
+        mLiveTxBytes = 0;
+        mLastReconciliationTimestamp = -1;
+        mUsageRateEstimate = 0;
         createNetworkConnection();
+        if (CollectorConfig.getInstance().isUsageCallbacksEnabled()) {
+            registerUsageCallback(USAGE_CALLBACK_MIN_THRESHOLD);
+        }
         mHandler.post(mMeasureCurrentBytes);
         mHandler.postDelayed(mFlushSessionSegment, FREQUENCE_SEGMENT_LOGGING);
     }
@@ -130,6 +171,8 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
     protected void onSessionEnd() {
         mSessionEndTimestamp = System.currentTimeMillis();
 
+        //Usage may not have been sampled recently when relying on callbacks, so it's sampled once more to close the segment
+        if (mCurrentSession != null) sampleUsage(mSessionEndTimestamp, true);
         processSessionSegment(mLastReportedSegmentTimestamp, mSessionEndTimestamp);
 
         //Reset session-tracking variables
@@ -147,49 +190,164 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
         mCurrentActiveSegment = null;
         mHandler.removeCallbacks(mMeasureCurrentBytes);
         mHandler.removeCallbacks(mFlushSessionSegment);
+        unregisterUsageCallback();
     }
 
+    //Runs on the collector looper, either polling every 15 seconds or as a heartbeat while usage callbacks are registered.
     private final Runnable mMeasureCurrentBytes = new Runnable() {
         @Override
         public void run() {
-            NetworkStats.Bucket newBucket = mUsageRetriever.getDeviceNetworkBucket(mTransportType, 0, System.currentTimeMillis());
+            long now = System.currentTimeMillis();
+            long elapsed = now - mLastUsageSampleTimestamp;
+            long totalBytesDiff = sampleUsage(now, false);
+
+            long duration = now - mLastReportedSegmentTimestamp;
+            updateSessionSegment(duration, getSegmentUsage());
+
+            if (mIsUsageCallbackRegistered) {
+                adaptUsageCallbackThreshold(totalBytesDiff, elapsed);
+                mHandler.postDelayed(this, USAGE_HEARTBEAT_INTERVAL);
+            } else {
+                //Run every 15 seconds
+                mHandler.postDelayed(this, FREQUENCE_BYTE_MEASUREMENT);
+            }
+        }
+    };
 
-            long totalBytesDiff = 0;
+    //Called on the collector looper when the transport's usage grows by the registered threshold.
+    private final NetworkStatsManager.UsageCallback mUsageCallback = new NetworkStatsManager.UsageCallback() {
+        @Override
+        public void onThresholdReached(int networkType, String subscriberId) {
+            if (mCurrentSession == null) return;
 
-            if (mLastRxBytes != -1) {
-                long diff = newBucket.getRxBytes() - mLastRxBytes;
-                mTotalRxBytes += diff;
-                totalBytesDiff += diff;
-            }
+            //Sample right away, which also restarts the heartbeat
+            mHandler.removeCallbacks(mMeasureCurrentBytes);
+            mHandler.post(mMeasureCurrentBytes);
+        }
+    };
 
-            //Measure bytes transmitted since last call
-            if (mLastTxBytes != -1) {
-                long diff = newBucket.getTxBytes() - mLastTxBytes;
-                mTotalTxBytes += diff;
-                totalBytesDiff += diff;
-            }
+    //Updates the segment's counters from the fast tier, and reconciles them against NetworkStatsManager when it's due
+    // or when a segment is being closed. Returns the change in the segment's total bytes.
+    private long sampleUsage(long now, boolean forceReconciliation) {
+        long previousUsage = getSegmentUsage();
+        mLastUsageSampleTimestamp = now;
+
+        measureLiveBytes();
+        if (forceReconciliation || mLastReconciliationTimestamp == -1 || now - mLastReconciliationTimestamp >= USAGE_RECONCILIATION_INTERVAL) {
+            reconcileUsage(now);
+        }
+
+        return getSegmentUsage() - previousUsage;
+    }
+
+    //Adds the TrafficStats counters' growth since the last call to the segment's counters. These counters are cheap to
+    // read and don't require usage access, but they're only an estimate until the next reconciliation.
+    private void measureLiveBytes() {
+        long rxBytes = mUsageRetriever.getRxBytes(mTransportType);
+        long txBytes = mUsageRetriever.getTxBytes(mTransportType);
+
+        //Counters reset on reboot and may be unsupported, in which case only the baseline is updated
+        if (mLastLiveRxBytes != -1 && rxBytes >= mLastLiveRxBytes) {
+            long diff = rxBytes - mLastLiveRxBytes;
+            mLiveRxBytes += diff;
+            mTotalRxBytes.addAndGet(diff);
+        }
+        if (mLastLiveTxBytes != -1 && txBytes >= mLastLiveTxBytes) {
+            long diff = txBytes - mLastLiveTxBytes;
+            mLiveTxBytes += diff;
+            mTotalTxBytes.addAndGet(diff);
+        }
+
+        mLastLiveRxBytes = rxBytes;
+        mLastLiveTxBytes = txBytes;
+    }
+
+    //Replaces the bytes estimated from TrafficStats since the last reconciliation with the usage reported by
+    // NetworkStatsManager, correcting any drift. If the usage can't be queried, the estimate is kept.
+    // Each query starts from the last boundary instead of the whole device history, so its cost doesn't grow over time.
+    private void reconcileUsage(long now) {
+        UsageQueryService.DeviceUsage newUsage = mUsageQueryService.getDeviceUsage(mTransportType, mUsageQueryStart, now);
+        if (newUsage == null) return;
+        mLastReconciliationTimestamp = now;
+
+        long rxBytesDiff = 0;
+        long txBytesDiff = 0;
+
+        //Measure bytes received & transmitted since last call
+        if (mLastRxBytes != -1) rxBytesDiff = newUsage.getRxBytes() - mLastRxBytes;
+        if (mLastTxBytes != -1) txBytesDiff = newUsage.getTxBytes() - mLastTxBytes;
+        long totalBytesDiff = rxBytesDiff + txBytesDiff;
+
+        //TODO: remove? used for accuracy testing purposes
+        if (totalBytesDiff > BYTES_THRESHOLD || totalBytesDiff < 0) {
+            Log.e(TAG, "MMA: The measurement caught an unusual amount over " + BYTES_THRESHOLD + " bytes" +
+                    "\nCurrent usage measurements: (transport: " + mTransportType + ")" +
+                    "\nDiff since last measurement (Total Bytes): " + totalBytesDiff +
+                    "\nTotal Bytes: " + getSegmentUsage() +
+                    "\nRx Bytes: " + mTotalRxBytes.get() +
+                    "\nTx Bytes: " + mTotalTxBytes.get());
+        }
+
+        //On the first call there's no baseline yet, so the estimate is kept
+        if (mLastRxBytes != -1 && mLastTxBytes != -1) {
+            mTotalRxBytes.addAndGet(rxBytesDiff - mLiveRxBytes);
+            mTotalTxBytes.addAndGet(txBytesDiff - mLiveTxBytes);
+            mLiveRxBytes = 0;
+            mLiveTxBytes = 0;
+        }
 
-            //TODO: remove? used for accuracy testing purposes
-            if (totalBytesDiff > BYTES_THRESHOLD || totalBytesDiff < 0) {
-                Log.e(TAG, "MMA: The measurement caught an unusual amount over " + BYTES_THRESHOLD + " bytes" +
-                        "\nCurrent usage measurements: (transport: " + mTransportType + ")" +
-                        "\nDiff since last measurement (Total Bytes): " + totalBytesDiff +
-                        "\nTotal Bytes: " + (mTotalRxBytes + mTotalTxBytes) +
-                        "\nRx Bytes: " + mTotalRxBytes +
-                        "\nTx Bytes: " + mTotalTxBytes);
+        //Save current value for next call
+        mLastRxBytes = newUsage.getRxBytes();
+        mLastTxBytes = newUsage.getTxBytes();
+
+        //Move the boundary forward once a new stats bucket starts. The new boundary's totals are queried right away
+        // so that the next call's diff only includes new traffic.
+        long alignedNow = alignToUsageBucket(now);
+        if (alignedNow > mUsageQueryStart) {
+            UsageQueryService.DeviceUsage boundaryUsage = mUsageQueryService.getDeviceUsage(mTransportType, alignedNow, now);
+            if (boundaryUsage != null) {
+                mUsageQueryStart = alignedNow;
+                mLastRxBytes = boundaryUsage.getRxBytes();
+                mLastTxBytes = boundaryUsage.getTxBytes();
             }
+        }
+    }
 
-            //Save current value for next call
-            mLastRxBytes = newBucket.getRxBytes();
-            mLastTxBytes = newBucket.getTxBytes();
+    private void registerUsageCallback(long thresholdBytes) {
+        mIsUsageCallbackRegistered = mUsageRetriever.registerUsageCallback(mTransportType, thresholdBytes, mUsageCallback, mHandler);
+        mUsageCallbackThreshold = thresholdBytes;
+        if (!mIsUsageCallbackRegistered) {
+            Log.d(TAG, "MMA: Usage callback unavailable, polling usage instead. (transport: " + mTransportType + ")");
+        }
+    }
 
-            long duration = System.currentTimeMillis() - mLastReportedSegmentTimestamp;
-            updateSessionSegment(duration, mTotalRxBytes + mTotalTxBytes);
+    private void unregisterUsageCallback() {
+        if (mIsUsageCallbackRegistered) {
+            mUsageRetriever.unregisterUsageCallback(mUsageCallback);
+            mIsUsageCallbackRegistered = false;
+        }
+    }
+
+    //Sets the threshold to roughly a minute of traffic at the recent rate, so busy links aren't sampled for every
+    // few MBs and idle links are only sampled by the heartbeat. The callback is only re-registered on large changes.
+    private void adaptUsageCallbackThreshold(long bytesDiff, long elapsedMillis) {
+        if (elapsedMillis <= 0 || bytesDiff < 0) return;
+
+        double rate = (double) bytesDiff / elapsedMillis;
+        mUsageRateEstimate = USAGE_RATE_SMOOTHING * rate + (1 - USAGE_RATE_SMOOTHING) * mUsageRateEstimate;
 
-            //Run every 60 seconds
-            mHandler.postDelayed(this, FREQUENCE_BYTE_MEASUREMENT);
+        long threshold = (long) (mUsageRateEstimate * USAGE_CALLBACK_TARGET_INTERVAL);
+        threshold = Math.max(USAGE_CALLBACK_MIN_THRESHOLD, Math.min(USAGE_CALLBACK_MAX_THRESHOLD, threshold));
+        if (threshold >= mUsageCallbackThreshold * 2 || threshold * 2 <= mUsageCallbackThreshold) {
+            Log.d(TAG, "MMA: Updating usage callback threshold to " + threshold + " bytes. (transport: " + mTransportType + ")");
+            unregisterUsageCallback();
+            registerUsageCallback(threshold);
         }
-    };
+    }
+
+    private static long alignToUsageBucket(long timestamp) {
+        return timestamp - (timestamp % USAGE_QUERY_ALIGNMENT);
+    }
 
     //Called when the LocationMetrics object finishes calculating the device's location.
     protected void onLocationReceived(List<Pair<String, String>> metricsList) {
@@ -219,22 +377,30 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
         currentSegmentMetrics.add(new Pair<>(METRIC_SESSION_DURATION_MILLIS, Long.toString(segmentDuration)));
 
         //Set the received & transmitted bytes during this window.
-        currentSegmentMetrics.add(new Pair<>(METRIC_RX_BYTES, Long.toString(mTotalRxBytes)));
-        currentSegmentMetrics.add(new Pair<>(METRIC_TX_BYTES, Long.toString(mTotalTxBytes)));
-        long segmentUsage = mTotalRxBytes + mTotalTxBytes;
+        long rxBytes = mTotalRxBytes.get();
+        long txBytes = mTotalTxBytes.get();
+        currentSegmentMetrics.add(new Pair<>(METRIC_RX_BYTES, Long.toString(rxBytes)));
+        currentSegmentMetrics.add(new Pair<>(METRIC_TX_BYTES, Long.toString(txBytes)));
+        long segmentUsage = rxBytes + txBytes;
 
         //TODO: Add debugging flag to enable detailed metrics
         Log.d(TAG, "MMA: Collected metrics:\n" + currentSegmentMetrics.toString());
         Log.d(TAG, "MMA: Current segment measurements: (transport: " + mTransportType + ")" +
                 "\nSegment Duration: " + segmentDuration +
-                "\nTotal Bytes: " + (mTotalRxBytes + mTotalTxBytes) +
+                "\nTotal Bytes: " + segmentUsage +
                 "\nSegment Total: " + segmentUsage +
-                "\nRx Bytes: " + mTotalRxBytes +
-                "\nTx Bytes: " + mTotalTxBytes);
+                "\nRx Bytes: " + rxBytes +
+                "\nTx Bytes: " + txBytes);
 
         //Update segment entry with final values
         updateSessionSegment(segmentDuration, segmentUsage);
 
+        //With grid aggregation, the segment is only uploaded as part of its cell's summary, without raw coordinates
+        if (CollectorConfig.getInstance().isGridAggregationEnabled()) {
+            GridAggregator.getInstance().recordSegment(mTransportType, mLocationMetrics.getLastLocation(), segmentDuration, rxBytes, txBytes);
+            return;
+        }
+
         //Collect the metric locally to be pushed later.
         mListener.onMetricCollected(METRIC_NAME, currentSegmentMetrics);
     }
@@ -296,10 +462,14 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
 
                 long currentTimestamp = System.currentTimeMillis();
 
+                //Sample at the boundary so the usage isn't split between segments based on the last sample
+                sampleUsage(currentTimestamp, true);
                 processSessionSegment(mLastReportedSegmentTimestamp, currentTimestamp);
                 //Reset counter for next segment
-                mTotalRxBytes = 0;
-                mTotalTxBytes = 0;
+                mTotalRxBytes.set(0);
+                mTotalTxBytes.set(0);
+                mLiveRxBytes = 0;
+                mLiveTxBytes = 0;
                 mLastReportedSegmentTimestamp = currentTimestamp;
 
                 //Start new segment
@@ -315,12 +485,27 @@ public abstract class NetworkSessionMetrics extends AsyncMetrics {
                 .addTransportType(mTransportType)
                 .build();
 
-        mConnectivityManager.requestNetwork(wifiRequest, mNetworkCallBack);
+        mConnectivityManager.requestNetwork(wifiRequest, mNetworkCallBack, mHandler);
     }
 
     //Stops tracking the network's changes
     public void stopTrackers() {
         mConnectivityManager.unregisterNetworkCallback(mNetworkCallBack);
+        unregisterUsageCallback();
+    }
+
+    //Bytes received during the current segment. Safe to call from any thread.
+    public long getSegmentRxBytes() {
+        return mTotalRxBytes.get();
+    }
+
+    //Bytes transmitted during the current segment. Safe to call from any thread.
+    public long getSegmentTxBytes() {
+        return mTotalTxBytes.get();
+    }
+
+    public long getSegmentUsage() {
+        return mTotalRxBytes.get() + mTotalTxBytes.get();
     }
 
     public int getCurrentConnectionId() {
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.metrics.collectors;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.telephony.CellIdentityNr;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoNr;
+import android.telephony.CellSignalStrength;
+import android.telephony.CellSignalStrengthLte;
+import android.telephony.CellSignalStrengthNr;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.utils.CollectorConfig;
+import io.openschema.mma.utils.ExecutorManager;
+import io.openschema.mma.utils.RadioSample;
+import io.openschema.mma.utils.RadioSeriesEncoder;
+import io.openschema.mma.utils.TelephonyStateCache;
+
+/**
+ * Samples the serving cell's RSRP, RSRQ, SINR & CQI along with the neighboring cells, reading them from
+ * {@link TelephonyStateCache}. Samples are packed by {@link RadioSeriesEncoder} and each block is uploaded as a single
+ * metric.
+ * <p>
+ * The sampling interval doubles while the radio is stable, and drops back to the minimum when the serving cell or its
+ * RSRP changes.
+ */
+public class RadioSeriesMetrics extends AsyncMetrics {
+    private static final String TAG = "RadioSeriesMetrics";
+
+    /**
+     * Metric name to be used for the collected information.
+     */
+    public static final String METRIC_NAME = "openschemaRadioSeries";
+
+    public static final String METRIC_ENCODING = "encoding";
+    public static final String METRIC_BLOCK_START_TIME = "blockStartTime";
+    public static final String METRIC_SAMPLE_COUNT = "sampleCount";
+    public static final String METRIC_SERIES = "series";
+
+    private static final long SAMPLING_MIN_INTERVAL = 1000 * 5; //5 seconds
+    private static final long SAMPLING_MAX_INTERVAL = 1000 * 60; //60 seconds
+
+    //RSRP change considered significant enough to go back to the minimum interval
+    private static final int RSRP_CHANGE_THRESHOLD = 3; //dB
+
+    //Blocks are uploaded once they reach either limit
+    private static final int MAX_BLOCK_SAMPLES = 240;
+    private static final long MAX_BLOCK_DURATION = 1000 * 60 * 60; //60 min
+
+    private static final int MAX_NEIGHBORS = 8;
+
+    private final MetricsCollectorListener mListener;
+    private final TelephonyStateCache mTelephonyStateCache;
+    private final Handler mHandler;
+
+    private RadioSeriesEncoder mEncoder = null;
+    private long mSamplingInterval = SAMPLING_MIN_INTERVAL;
+    private RadioSample mLastSample = null;
+
+    public RadioSeriesMetrics(Context context, MetricsCollectorListener listener) {
+        super(context);
+        mListener = listener;
+        mTelephonyStateCache = TelephonyStateCache.getInstance(context);
+        mHandler = new Handler(ExecutorManager.getInstance().getCollectorLooper());
+    }
+
+    private final Runnable mSampleRadio = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            mHandler.postDelayed(this, mSamplingInterval);
+        }
+    };
+
+    public void startTrackers() {
+        if (!CollectorConfig.getInstance().isRadioSamplingEnabled()) return;
+        mHandler.post(mSampleRadio);
+    }
+
+    //Uploads the current block, so it isn't lost while the service is stopped
+    public void stopTrackers() {
+        mHandler.removeCallbacks(mSampleRadio);
+        mHandler.post(this::flush);
+    }
+
+    private void sample() {
+        TelephonyStateCache.CellSnapshot snapshot = mTelephonyStateCache.getSnapshot();
+        if (!snapshot.isInService() || snapshot.getRegisteredCellInfo() == null) {
+            mSamplingInterval = SAMPLING_MAX_INTERVAL;
+            mLastSample = null;
+            return;
+        }
+
+        RadioSample sample = createSample(snapshot);
+        mSamplingInterval = isSignificantChange(mLastSample, sample) ? SAMPLING_MIN_INTERVAL : Math.min(mSamplingInterval * 2, SAMPLING_MAX_INTERVAL);
+        mLastSample = sample;
+
+        if (mEncoder == null) mEncoder = new RadioSeriesEncoder(sample.getTimestamp());
+        mEncoder.add(sample);
+
+        if (mEncoder.getSampleCount() >= MAX_BLOCK_SAMPLES || sample.getTimestamp() - mEncoder.getBlockStart() >= MAX_BLOCK_DURATION) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (mEncoder == null || mEncoder.getSampleCount() == 0) return;
+
+        Log.d(TAG, "MMA: Collecting " + mEncoder.getSampleCount() + " radio samples in " + mEncoder.getByteCount() + " bytes");
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        metricsList.add(new Pair<>(METRIC_ENCODING, RadioSeriesEncoder.ENCODING));
+        metricsList.add(new Pair<>(METRIC_BLOCK_START_TIME, Long.toString(mEncoder.getBlockStart())));
+        metricsList.add(new Pair<>(METRIC_SAMPLE_COUNT, Integer.toString(mEncoder.getSampleCount())));
+        metricsList.add(new Pair<>(METRIC_SERIES, Base64.encodeToString(mEncoder.toByteArray(), Base64.NO_WRAP)));
+        mListener.onMetricCollected(METRIC_NAME, metricsList);
+        mEncoder = null;
+    }
+
+    private boolean isSignificantChange(RadioSample previous, RadioSample current) {
+        if (previous == null || previous.getCellIdentity() != current.getCellIdentity() ||
+                previous.getDataNetworkType() != current.getDataNetworkType()) {
+            return true;
+        }
+        if (previous.getRsrp() == RadioSample.UNAVAILABLE || current.getRsrp() == RadioSample.UNAVAILABLE) {
+            return previous.getRsrp() != current.getRsrp();
+        }
+        return Math.abs(previous.getRsrp() - current.getRsrp()) >= RSRP_CHANGE_THRESHOLD;
+    }
+
+    private RadioSample createSample(TelephonyStateCache.CellSnapshot snapshot) {
+        CellInfo registeredCellInfo = snapshot.getRegisteredCellInfo();
+        int pci = getPci(registeredCellInfo);
+
+        //Signal strengths pushed by the modem are fresher than the ones attached to the cell info
+        CellSignalStrength signalStrength = null;
+        for (CellSignalStrength cellSignalStrength : snapshot.getCellSignalStrengths()) {
+            if (isLteOrNr(cellSignalStrength)) {
+                signalStrength = cellSignalStrength;
+                break;
+            }
+        }
+        if (signalStrength == null) signalStrength = getSignalStrength(registeredCellInfo);
+
+        int rsrp = RadioSample.UNAVAILABLE, rsrq = RadioSample.UNAVAILABLE, sinr = RadioSample.UNAVAILABLE, cqi = RadioSample.UNAVAILABLE;
+        if (signalStrength instanceof CellSignalStrengthLte) {
+            CellSignalStrengthLte lte = (CellSignalStrengthLte) signalStrength;
+            rsrp = lte.getRsrp();
+            rsrq = lte.getRsrq();
+            sinr = lte.getRssnr();
+            cqi = lte.getCqi();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                signalStrength instanceof CellSignalStrengthNr) {
+            CellSignalStrengthNr nr = (CellSignalStrengthNr) signalStrength;
+            rsrp = nr.getSsRsrp();
+            rsrq = nr.getSsRsrq();
+            sinr = nr.getSsSinr();
+        }
+
+        //Neighbors usually only report their PCI, so it's used instead of the cell ID
+        List<CellInfo> allCellInfo = snapshot.getAllCellInfo();
+        int[] neighborPcis = new int[Math.min(allCellInfo.size(), MAX_NEIGHBORS)];
+        int[] neighborRsrps = new int[neighborPcis.length];
+        int neighborCount = 0;
+        for (int i = 0; i < allCellInfo.size() && neighborCount < neighborPcis.length; i++) {
+            CellInfo cellInfo = allCellInfo.get(i);
+            if (cellInfo == null || cellInfo.isRegistered()) continue;
+
+            int neighborPci = getPci(cellInfo);
+            int neighborRsrp = getRsrp(getSignalStrength(cellInfo));
+            if (neighborPci == RadioSample.UNAVAILABLE || neighborRsrp == RadioSample.UNAVAILABLE) continue;
+
+            neighborPcis[neighborCount] = neighborPci;
+            neighborRsrps[neighborCount] = neighborRsrp;
+            neighborCount++;
+        }
+
+        int[] pcis = new int[neighborCount];
+        int[] rsrps = new int[neighborCount];
+        System.arraycopy(neighborPcis, 0, pcis, 0, neighborCount);
+        System.arraycopy(neighborRsrps, 0, rsrps, 0, neighborCount);
+
+        return new RadioSample(System.currentTimeMillis(), snapshot.getDataNetworkType(), snapshot.getCellIdentity(),
+                pci, rsrp, rsrq, sinr, cqi, pcis, rsrps);
+    }
+
+    private boolean isLteOrNr(CellSignalStrength signalStrength) {
+        return signalStrength instanceof CellSignalStrengthLte ||
+                (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && signalStrength instanceof CellSignalStrengthNr);
+    }
+
+    private CellSignalStrength getSignalStrength(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoLte) {
+            return ((CellInfoLte) cellInfo).getCellSignalStrength();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                cellInfo instanceof CellInfoNr) {
+            return ((CellInfoNr) cellInfo).getCellSignalStrength();
+        }
+        return null;
+    }
+
+    private int getRsrp(CellSignalStrength signalStrength) {
+        if (signalStrength instanceof CellSignalStrengthLte) {
+            return ((CellSignalStrengthLte) signalStrength).getRsrp();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                signalStrength instanceof CellSignalStrengthNr) {
+            return ((CellSignalStrengthNr) signalStrength).getSsRsrp();
+        }
+        return RadioSample.UNAVAILABLE;
+    }
+
+    private int getPci(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoLte) {
+            return ((CellInfoLte) cellInfo).getCellIdentity().getPci();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                cellInfo instanceof CellInfoNr) {
+            return ((CellIdentityNr) ((CellInfoNr) cellInfo).getCellIdentity()).getPci();
+        }
+        return RadioSample.UNAVAILABLE;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import android.util.Log;
+
+import io.openschema.mma.MobileMetricsAgent;
+
+/**
+ * Singleton holding the network session, location, grid aggregation and radio sampling options supplied through
+ * {@link MobileMetricsAgent.Builder} so they can be accessed by the collectors running inside the service. Network
+ * quality options are held by {@link NetworkQualityConfig}.
+ */
+public class CollectorConfig {
+
+    private static final String TAG = "CollectorConfig";
+
+    /**
+     * Default maximum age of a cached location fix before a new one is requested, in milliseconds.
+     */
+    public static final long DEFAULT_LOCATION_MAX_AGE = 2 * 60 * 1000;
+
+    /**
+     * Default maximum accuracy radius of a cached location fix before a new one is requested, in meters.
+     */
+    public static final float DEFAULT_LOCATION_MAX_ACCURACY = 200;
+
+    /**
+     * Default geohash precision of the cells used by grid aggregation, about 1.2 km x 0.6 km.
+     */
+    public static final int DEFAULT_GRID_PRECISION = 6;
+
+    private static CollectorConfig _instance = null;
+
+    public static CollectorConfig getInstance() {
+        if (_instance == null) {
+            synchronized (CollectorConfig.class) {
+                if (_instance == null) {
+                    _instance = new CollectorConfig();
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private volatile boolean mUsageCallbacksEnabled = false;
+    private volatile long mLocationMaxAge = DEFAULT_LOCATION_MAX_AGE;
+    private volatile float mLocationMaxAccuracy = DEFAULT_LOCATION_MAX_ACCURACY;
+    private volatile boolean mGridAggregationEnabled = false;
+    private volatile int mGridPrecision = DEFAULT_GRID_PRECISION;
+    private volatile boolean mRadioSamplingEnabled = false;
+
+    private CollectorConfig() { }
+
+    /**
+     * Set whether network sessions sample their usage when the OS reports a bytes threshold was reached,
+     * rather than polling at a fixed interval.
+     */
+    public void setUsageCallbacksEnabled(boolean enabled) {
+        mUsageCallbacksEnabled = enabled;
+    }
+
+    /**
+     * Set the age and accuracy a cached or last known location fix must be within to be reused instead of requesting
+     * a new fix.
+     */
+    public void setLocationFreshness(long maxAgeMillis, float maxAccuracyMeters) {
+        if (maxAgeMillis < 0 || maxAccuracyMeters <= 0) {
+            Log.e(TAG, "MMA: Invalid location freshness, keeping previous values");
+            return;
+        }
+        mLocationMaxAge = maxAgeMillis;
+        mLocationMaxAccuracy = maxAccuracyMeters;
+    }
+
+    /**
+     * Set whether session segments are aggregated into geohash cells of the given precision and uploaded as per-cell
+     * summaries, instead of uploading each segment with its raw coordinates.
+     */
+    public void setGridAggregation(boolean enabled, int geohashPrecision) {
+        if (geohashPrecision < 1 || geohashPrecision > Geohash.MAX_PRECISION) {
+            Log.e(TAG, "MMA: Invalid geohash precision, keeping previous value");
+        } else {
+            mGridPrecision = geohashPrecision;
+        }
+        mGridAggregationEnabled = enabled;
+    }
+
+    /**
+     * Set whether the serving & neighboring cells' radio measurements are sampled and uploaded as compact series.
+     */
+    public void setRadioSamplingEnabled(boolean enabled) {
+        mRadioSamplingEnabled = enabled;
+    }
+
+    public boolean isUsageCallbacksEnabled() { return mUsageCallbacksEnabled; }
+
+    public long getLocationMaxAge() { return mLocationMaxAge; }
+
+    public float getLocationMaxAccuracy() { return mLocationMaxAccuracy; }
+
+    public boolean isGridAggregationEnabled() { return mGridAggregationEnabled; }
+
+    public int getGridPrecision() { return mGridPrecision; }
+
+    public boolean isRadioSamplingEnabled() { return mRadioSamplingEnabled; }
+}
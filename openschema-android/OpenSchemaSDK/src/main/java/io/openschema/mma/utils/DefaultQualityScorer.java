@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Default network quality model. Maps the RTTs of the best device DNS server to a 1-5 scale, combines it
+ * with the variability across every server and weights the result by the confidence in the tests' success.
+ */
+public class DefaultQualityScorer implements QualityScorer {
+
+    public static final String NAME = "default";
+
+    //Tests need at least this success rate to be considered usable
+    private static final double MIN_SUCCESS_RATE = 0.5;
+
+    private static final double MIN_SCORE = 1.0;
+    private static final double MAX_SCORE = 5.0;
+
+    private static final double RTT_SCORE_WEIGHT = 0.7;
+    private static final double STD_DEV_SCORE_WEIGHT = 0.3;
+
+    @Override
+    public String getName() { return NAME; }
+
+    @Override
+    public double score(QualityScoreInput input) {
+        QualityScoreInput.ServerGroup reference = input.getReferenceServers();
+        QualityScoreInput.ServerGroup device = input.getDeviceServers();
+        //Without reference servers there's nothing to weigh the confidence with
+        if (device.getServerCount() == 0 || reference.getServerCount() == 0) return Double.NaN;
+
+        //Step 1: Use the device DNS server that returns the lowest RTTs. Servers with less than 50% success, or without
+        //any successful RTT (0 min RTT), can't be scored.
+        int defaultServer = -1;
+        for (int i = 0; i < device.getServerCount(); i++) {
+            if (device.getSuccessRate(i) < MIN_SUCCESS_RATE || device.getMinRtt(i) == 0) continue;
+
+            if (defaultServer == -1 || device.getMinRtt(i) < device.getMinRtt(defaultServer)) {
+                defaultServer = i;
+            }
+        }
+        if (defaultServer == -1) return Double.NaN;
+        double defaultSuccessRate = device.getSuccessRate(defaultServer);
+
+        //Step 2: Calculate confidence Factor: ((percentage of successful reference tests) + (average success of all tests)) / 2
+        double successfulReferenceTests = 0.0;
+        double successRateSum = 0.0;
+        for (int i = 0; i < reference.getServerCount(); i++) {
+            successRateSum += reference.getSuccessRate(i);
+            if (reference.getSuccessRate(i) >= MIN_SUCCESS_RATE) {
+                successfulReferenceTests += 1.0;
+            }
+        }
+
+        double referenceSuccessRate = successfulReferenceTests / reference.getServerCount();
+        double averageSuccessRate = (successRateSum + defaultSuccessRate) / (reference.getServerCount() + 1);
+        double confidenceFactor = (referenceSuccessRate + averageSuccessRate) / 2;
+
+        //Step 3: Outliers are already excluded from the trimmed statistics & samples.
+        double defaultTrimmedMean = device.getTrimmedRttMean(defaultServer);
+
+        //Step 4: Map the mean RTT of the default server to the scoring scale, called the pivot scale.
+        int pivotScore = mapToScale(defaultTrimmedMean);
+
+        //Step 5: Scale every RTT of the default server relative to the pivot
+        double scaledRttSum = 0.0;
+        int scaledRttCount = device.getTrimmedSampleCount(defaultServer);
+        for (int i = 0; i < scaledRttCount; i++) {
+            double scaledRtt = (pivotScore * defaultTrimmedMean) / device.getTrimmedSample(defaultServer, i);
+            scaledRttSum += clampScore(scaledRtt);
+        }
+
+        //Step 6: Calculate mean of all standard deviations
+        double stdDevSum = 0.0;
+        for (int i = 0; i < reference.getServerCount(); i++) {
+            stdDevSum += reference.getTrimmedRttStdDev(i);
+        }
+        double averageStdDev = (stdDevSum + device.getTrimmedRttStdDev(defaultServer)) / (reference.getServerCount() + 1);
+
+        //Step 7: Map step 6 result to the pivot scale
+        int averageStdDevScore = mapToScale(averageStdDev);
+
+        //Step 8: Calculate QoS score -> .7(average of step 5) + .3(step 7), weighted by the confidence factor
+        double averageScaledRtt = clampScore(scaledRttCount == 0 ? 0.0 : scaledRttSum / scaledRttCount);
+        double qosScore = RTT_SCORE_WEIGHT * averageScaledRtt + STD_DEV_SCORE_WEIGHT * averageStdDevScore;
+        return qosScore * confidenceFactor;
+    }
+
+    //Map a value in milliseconds to the 1-5 scale, 0 if it isn't a number. Not using switch since it doesn't accept double type
+    private static int mapToScale(double millis) {
+        if (millis < 25) return 5;
+        else if (millis < 50) return 4;
+        else if (millis < 100) return 3;
+        else if (millis < 125) return 2;
+        else if (millis >= 125) return 1;
+        return 0;
+    }
+
+    private static double clampScore(double score) {
+        if (score < MIN_SCORE) return MIN_SCORE;
+        if (score > MAX_SCORE) return MAX_SCORE;
+        return score;
+    }
+}
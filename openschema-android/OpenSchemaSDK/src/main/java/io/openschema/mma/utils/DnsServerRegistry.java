@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import android.net.LinkProperties;
+import android.net.Network;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the DNS servers of every tracked network, updated from the network callbacks' link properties changes.
+ * Measurements read the servers from here instead of looking them up through {@link DnsServersDetector} each time.
+ */
+public class DnsServerRegistry {
+
+    private static final String TAG = "DnsServerRegistry";
+
+    private final Map<Network, String[]> mServers = new ConcurrentHashMap<>();
+
+    /**
+     * Store the DNS servers from the network's latest link properties.
+     */
+    public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+        List<InetAddress> dnsServersList = linkProperties.getDnsServers();
+        if (dnsServersList.isEmpty()) {
+            mServers.remove(network);
+            return;
+        }
+
+        String[] servers = new String[dnsServersList.size()];
+        for (int i = 0; i < dnsServersList.size(); i++) {
+            servers[i] = dnsServersList.get(i).getHostAddress();
+        }
+        mServers.put(network, servers);
+        Log.d(TAG, "MMA: Updated DNS servers for network " + network + ": " + servers.length + " servers");
+    }
+
+    public void onLost(Network network) {
+        mServers.remove(network);
+    }
+
+    /**
+     * Returns the cached DNS servers for the network, or null if none have been received for it.
+     */
+    public String[] getServers(Network network) {
+        if (network == null) return null;
+        return mServers.get(network);
+    }
+}
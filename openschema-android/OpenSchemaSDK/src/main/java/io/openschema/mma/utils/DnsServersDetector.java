@@ -98,6 +98,40 @@ public class DnsServersDetector {
         return FACTORY_DNS_SERVERS;
     }
 
+    /**
+     * Returns android DNS servers used for a specific network, which doesn't need to be the default one
+     *
+     * @param network Network to get the DNS servers from, or null to use the current connected network
+     * @return Dns servers array
+     */
+    public String[] getServers(Network network) {
+        if (network == null) {
+            return getServers();
+        }
+
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(CONNECTIVITY_SERVICE);
+            LinkProperties linkProperties = connectivityManager == null ? null : connectivityManager.getLinkProperties(network);
+            if (linkProperties != null) {
+                List<InetAddress> dnsServersList = linkProperties.getDnsServers();
+                String[] result = new String[dnsServersList.size()];
+                for (int i = 0; i < dnsServersList.size(); i++) {
+                    result[i] = dnsServersList.get(i).getHostAddress();
+                }
+
+                // Stop here if we have at least one DNS server
+                if (result.length > 0) {
+                    return result;
+                }
+            }
+        } catch (Exception ex) {
+            Log.d(TAG, "Exception detecting DNS servers for network " + network, ex);
+        }
+
+        // Fall back on factory DNS servers, the other methods would return the default network's servers
+        return FACTORY_DNS_SERVERS;
+    }
+
     /**
      * Detect android DNS servers by using connectivity manager
      * <p>
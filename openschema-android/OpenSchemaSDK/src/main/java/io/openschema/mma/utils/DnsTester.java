@@ -1,5 +1,6 @@
 package io.openschema.mma.utils;
 
+import android.net.Network;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -8,18 +9,18 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
-import java.util.StringTokenizer;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.WorkerThread;
 
@@ -28,132 +29,190 @@ public class DnsTester {
     private static final String TAG = "DnsTester";
     private static final int TIMEOUT = 5000;
     private static final int DNS_PORT = 53;
-    private static final Short QUERY_TYPE = 0x0001; //Type A
+    private static final short QUERY_TYPE_A = 0x0001;
+    private static final short QUERY_TYPE_AAAA = 0x001c;
 
-    private static final String[] TEST_DNS_SERVERS = {"8.8.8.8", "9.9.9.9", "1.1.1.1", "185.228.168.9", "76.76.19.19"};
-    private static final byte[][] TEST_DOMAIN_REQUESTS;
+    //Same providers on both families, so their results can be compared
+    private static final String[] TEST_DNS_SERVERS_IPV4 = {"8.8.8.8", "9.9.9.9", "1.1.1.1", "185.228.168.9", "76.76.19.19"};
+    private static final String[] TEST_DNS_SERVERS_IPV6 = {"2001:4860:4860::8888", "2620:fe::fe", "2606:4700:4700::1111", "2a0d:2a00:1::2", "2602:fcbc::ad"};
+    private static final String[] TEST_DNS_SERVERS;
     private static final int TEST_DOMAIN_COUNT = 10;
-    private static String[] TEST_DOMAINS;
+    //Servers reached over IPv4 are asked for A records, servers reached over IPv6 for AAAA records, like the device itself would
+    private static volatile byte[][] TEST_DOMAIN_REQUESTS_A;
+    private static volatile byte[][] TEST_DOMAIN_REQUESTS_AAAA;
 
     static {
-        TEST_DOMAINS = randomizeTestDomains();
-        TEST_DOMAIN_REQUESTS = new byte[TEST_DOMAINS.length][0];
-        for (int i = 0; i < TEST_DOMAINS.length; i++) {
+        TEST_DNS_SERVERS = new String[TEST_DNS_SERVERS_IPV4.length + TEST_DNS_SERVERS_IPV6.length];
+        System.arraycopy(TEST_DNS_SERVERS_IPV4, 0, TEST_DNS_SERVERS, 0, TEST_DNS_SERVERS_IPV4.length);
+        System.arraycopy(TEST_DNS_SERVERS_IPV6, 0, TEST_DNS_SERVERS, TEST_DNS_SERVERS_IPV4.length, TEST_DNS_SERVERS_IPV6.length);
+        randomizeDomains();
+    }
+
+    //Generate a new set of random domains to be used in DNS tests. Used to prevent DNS servers from returning a cached response.
+    public static synchronized void randomizeDomains() {
+        String[] testDomains = randomizeTestDomains();
+        byte[][] requestsA = new byte[testDomains.length][0];
+        byte[][] requestsAAAA = new byte[testDomains.length][0];
+        for (int i = 0; i < testDomains.length; i++) {
             try {
-                TEST_DOMAIN_REQUESTS[i] = buildQuestion(TEST_DOMAINS[i]);
+                requestsA[i] = buildQuestion(testDomains[i], QUERY_TYPE_A);
+                requestsAAAA[i] = buildQuestion(testDomains[i], QUERY_TYPE_AAAA);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        TEST_DOMAIN_REQUESTS_A = requestsA;
+        TEST_DOMAIN_REQUESTS_AAAA = requestsAAAA;
     }
 
-    //Generate a new set of random domains to be used in DNS tests. Used to prevent DNS servers from returning a cached response.
-    public static void randomizeDomains() {
-        TEST_DOMAINS = randomizeTestDomains();
+    //Whether the server is reached over IPv6. Servers are always numeric addresses, so this never makes a DNS lookup.
+    public static boolean isIpv6Server(String dnsServer) {
+        try {
+            return parseAddress(dnsServer) instanceof Inet6Address;
+        } catch (UnknownHostException e) {
+            return false;
+        }
     }
 
     //Test a list of specified DNS servers.
     @WorkerThread
     public static List<QosInfo> testServers(String[] dnsServers) throws InterruptedException {
-        Log.d(TAG, "MMA: Starting DNS test on specified list of servers.");
+        return testServers(dnsServers, null);
+    }
+
+    //Test a list of specified DNS servers. When an RttHistory is supplied, unreachable servers are skipped and each
+    //server uses a timeout estimated from its previous RTTs instead of the fixed one.
+    @WorkerThread
+    public static List<QosInfo> testServers(String[] dnsServers, RttHistory rttHistory) throws InterruptedException {
+        return testServers(dnsServers, rttHistory, new ProbeContext(TIMEOUT * TEST_DOMAIN_COUNT));
+    }
 
-        //Split DNS server tests into different threads
-        final ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-        final CountDownLatch latch = new CountDownLatch(dnsServers.length);
-        final List<QosInfo> testResults = Collections.synchronizedList(new ArrayList<>());
+    //Test a list of specified DNS servers through the context's network. Requests that would run past the context's
+    //deadline are cut short or skipped, without counting as failures.
+    @WorkerThread
+    public static List<QosInfo> testServers(String[] dnsServers, RttHistory rttHistory, ProbeContext context) throws InterruptedException {
+        Log.d(TAG, "MMA: Starting DNS test on specified list of servers.");
+        String[] testedServers = rttHistory == null ? dnsServers : rttHistory.filterReachable(dnsServers);
+
+        //Every request is queued directly so that no pool thread blocks waiting for other requests to finish.
+        //IPv4 and IPv6 servers are tested at the same time, so both families race under the same conditions.
+        final ExecutorService probeExecutor = ExecutorManager.getInstance().getProbeExecutor();
+        final List<Future<?>> requestFutures = new ArrayList<>(testedServers.length * TEST_DOMAIN_COUNT);
+        final byte[][] requestsA = TEST_DOMAIN_REQUESTS_A;
+        final byte[][] requestsAAAA = TEST_DOMAIN_REQUESTS_AAAA;
+        final CountDownLatch latch = new CountDownLatch(testedServers.length * TEST_DOMAIN_COUNT);
+        final ServerResults[] serverResults = new ServerResults[testedServers.length];
+        long maxTimeout = 0;
+
+        for (int i = 0; i < testedServers.length; i++) {
+            final String dnsServer = testedServers[i];
+            final long timeout = rttHistory == null ? TIMEOUT : rttHistory.getTimeout(dnsServer);
+            maxTimeout = Math.max(maxTimeout, timeout);
+            final byte[][] serverRequests = isIpv6Server(dnsServer) ? requestsAAAA : requestsA;
+            final ServerResults results = new ServerResults(serverRequests.length);
+            serverResults[i] = results;
+
+            for (final byte[] requestQuestion : serverRequests) {
+                Runnable request = () -> {
+                    try {
+                        if (Thread.currentThread().isInterrupted()) {
+                            Log.d(TAG, "MMA: This DNS test was interrupted");
+                            return;
+                        }
+                        if (context.isExpired()) return;
+
+                        long rtt = requestDomain(dnsServer, requestQuestion, context.getAttemptTimeout(timeout), context.getNetwork());
+                        results.addRtt(rtt);
+                        if (rttHistory != null) rttHistory.onSample(dnsServer, rtt);
+                    } catch (IOException e) {
+                        //Requests cut short by the shared deadline don't say anything about the server
+                        if (!context.isExpired()) results.addFailure();
+                        Log.e(TAG, "MMA: DNS RTT Error " + dnsServer + ": " + e);
+                    } finally {
+                        latch.countDown();
+                    }
+                };
 
-        for (final String dnsServer : dnsServers) {
-            threadPoolExecutor.execute(() -> {
                 try {
-                    QosInfo testResult = requestAllDomains(dnsServer, threadPoolExecutor);
-                    testResults.add(testResult);
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "MMA: This DNS task was interrupted");
-                } finally {
+                    requestFutures.add(probeExecutor.submit(request));
+                } catch (RejectedExecutionException e) {
+                    //The executor was shut down along with the service, the request counts as failed
+                    results.addFailure();
                     latch.countDown();
                 }
-            });
+            }
         }
 
-        //Wait until all servers have completed their tests
+        //Wait until all servers have completed their tests. Requests time out on their own, so the wait is only
+        //bounded in case a request never runs, with enough room for every request to time out in turn, but never
+        //past the context's deadline.
         Log.d(TAG, "MMA: Waiting for DNS tests to complete...");
         try {
-            latch.await();
+            if (!latch.await(Math.min(maxTimeout * TEST_DOMAIN_COUNT, context.getRemainingMillis()), TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "MMA: DNS tests didn't complete in time, using the results so far");
+                cancelRequests(requestFutures);
+            }
         } catch (InterruptedException e) {
             Log.d(TAG, "MMA: Main DNS test latch was interrupted");
 
-            //Make sure child threads are interrupted correctly before finishing interruption.
-            threadPoolExecutor.shutdownNow();
-            Log.d(TAG, "MMA: Awaiting threadpool shutdown...");
-            threadPoolExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            //Make sure pending requests are cancelled before finishing interruption. The shared executor keeps running.
+            cancelRequests(requestFutures);
 
             //Continue interruption sequence.
             throw new InterruptedException();
         }
 
+        final List<QosInfo> testResults = new ArrayList<>(testedServers.length);
+        for (int i = 0; i < testedServers.length; i++) {
+            QosInfo qosInfo = serverResults[i].toQosInfo(testedServers[i]);
+            if (rttHistory != null) rttHistory.onMeasurementFinished(testedServers[i], qosInfo.getTotalSuccessfulRequests());
+            testResults.add(qosInfo);
+        }
         return testResults;
     }
 
-    //Test our default list DNS servers.
+    private static void cancelRequests(List<Future<?>> requestFutures) {
+        for (int i = 0; i < requestFutures.size(); i++) {
+            requestFutures.get(i).cancel(true);
+        }
+    }
+
+    //Test our default list DNS servers, on both IPv4 and IPv6.
     @WorkerThread
     public static List<QosInfo> testDefaultServers() throws InterruptedException {
         return testServers(TEST_DNS_SERVERS);
     }
 
-    //Run a test with every randomized test domains on the specified DNS server.
-    private static QosInfo requestAllDomains(String dnsServer, ThreadPoolExecutor threadPoolExecutor) throws InterruptedException {
-        //TODO: Implement Retries
-
-        //Split DNS requests into separate threads
-        final List<Long> individualValues = Collections.synchronizedList(new ArrayList<>());
-        final AtomicInteger failures = new AtomicInteger(0);
-        final CountDownLatch latch = new CountDownLatch(TEST_DOMAINS.length);
+    //Test our default list DNS servers, on both IPv4 and IPv6, using the timeouts estimated from the current network's RTT history.
+    @WorkerThread
+    public static List<QosInfo> testDefaultServers(RttHistory rttHistory) throws InterruptedException {
+        return testServers(TEST_DNS_SERVERS, rttHistory);
+    }
 
-        for (final byte[] requestQuestion : TEST_DOMAIN_REQUESTS) {
-            threadPoolExecutor.execute(() -> {
-                try {
-                    //TODO: Is this working? Latch seems to be handling all cancelations automatically
-                    if (Thread.currentThread().isInterrupted()) {
-                        Log.d(TAG, "MMA: This DNS test was interrupted");
-                        return;
-                    }
+    //Test our default list DNS servers through the context's network, without running past its deadline.
+    @WorkerThread
+    public static List<QosInfo> testDefaultServers(RttHistory rttHistory, ProbeContext context) throws InterruptedException {
+        return testServers(TEST_DNS_SERVERS, rttHistory, context);
+    }
 
-                    individualValues.add(requestDomain(dnsServer, requestQuestion));
-//                Log.d(TAG, "MMA: DNS RTT Result " + dnsServer + " on " + TEST_DOMAINS[i] + ": " + individualValues.get(individualValues.size() - 1));
-                } catch (IOException e) {
-                    failures.incrementAndGet();
-                    Log.e(TAG, "MMA: DNS RTT Error " + dnsServer + ": " + e);
-                } finally {
-                    latch.countDown();
-                }
-            });
-        }
+    //Make a single request to the specified DNS server. A new random domain is used each time so the response can't come from
+    //the server's cache. Used to sample latency while other tests are running, so it doesn't affect the RTT history.
+    @WorkerThread
+    public static long testServer(String dnsServer, int timeout) throws IOException {
+        return testServer(dnsServer, timeout, null);
+    }
 
-        //Wait until all requests have returned
-        latch.await();
-
-        //TODO: cleanup test logs
-//        Log.d(TAG, "MMA: DNS RTT values size " + dnsServer + ": " + individualValues.size());
-//        QosInfo qosInfo = new QosInfo(dnsServer, individualValues, failures.get());
-//        Log.d(TAG, "MMA: DNS RTT Min Result " + qosInfo.getDnsServer() + ": " + qosInfo.getMinRTTValue());
-//        Log.d(TAG, "MMA: DNS RTT Average Result " + qosInfo.getDnsServer() + ": " + qosInfo.getRttMean());
-//        Log.d(TAG, "MMA: DNS RTT variance " + qosInfo.getDnsServer() + ": " + qosInfo.getRttVariance());
-//        Log.d(TAG, "MMA: DNS RTT failures " + qosInfo.getDnsServer() + ": " + qosInfo.getTotalFailedRequests());
-//        Log.d(TAG, "MMA: DNS RTT SuccessRate " + qosInfo.getDnsServer() + ": " + qosInfo.getSuccessRate());
-//        Log.d(TAG, "MMA: DNS RTT StdDev " + qosInfo.getDnsServer() + ": " + qosInfo.getRttStdDev());
-        return new QosInfo(dnsServer, individualValues, failures.get());
+    //Make a single request to the specified DNS server through a specific network, or the default one if it's null.
+    @WorkerThread
+    public static long testServer(String dnsServer, int timeout, Network network) throws IOException {
+        short queryType = isIpv6Server(dnsServer) ? QUERY_TYPE_AAAA : QUERY_TYPE_A;
+        return requestDomain(dnsServer, buildQuestion(generateRandomDomain(), queryType), timeout, network);
     }
 
     //Make the DNS request to the specified DNS server using a specified domain.
-    private static long requestDomain(String dnsServer, byte[] requestQuestion) throws IOException {
+    private static long requestDomain(String dnsServer, byte[] requestQuestion, int timeout, Network network) throws IOException {
         //Request
-        DatagramPacket requestPacket;
-        if (dnsServer.contains(":")) {
-            InetAddress ipv6Dns = InetAddress.getByName(dnsServer);
-            requestPacket = new DatagramPacket(requestQuestion, requestQuestion.length, InetAddress.getByAddress(ipv6Dns.getAddress()), DNS_PORT);
-        } else {
-            requestPacket = new DatagramPacket(requestQuestion, requestQuestion.length, InetAddress.getByAddress(getServer(dnsServer)), DNS_PORT);
-        }
+        DatagramPacket requestPacket = new DatagramPacket(requestQuestion, requestQuestion.length, parseAddress(dnsServer), DNS_PORT);
 
         //Response
         DatagramPacket responsePacket;
@@ -162,69 +221,29 @@ public class DnsTester {
 
         //Operation
         DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(TIMEOUT);
-
-        long startTime = SystemClock.elapsedRealtime();
-        socket.send(requestPacket);
-        socket.receive(responsePacket);
-        long endTime = SystemClock.elapsedRealtime();
-        socket.close();
-
-        return (endTime - startTime);
-    }
-
-    private static int parseNumericAddress(String ipaddr) {
-        //  Check if the string is valid
-        if (ipaddr == null || ipaddr.length() < 7 || ipaddr.length() > 15)
-            return 0;
-
-        //  Check the address string, should be n.n.n.n format
-        StringTokenizer token = new StringTokenizer(ipaddr, ".");
-        if (token.countTokens() != 4)
-            return 0;
-
-        int ipInt = 0;
-
-        while (token.hasMoreTokens()) {
-            //  Get the current token and convert to an integer value
-            String ipNum = token.nextToken();
-
-            try {
-
-                //  Validate the current address part
-                int ipVal = Integer.valueOf(ipNum).intValue();
-                if (ipVal < 0 || ipVal > 255)
-                    return 0;
-
-                //  Add to the integer address
-                ipInt = (ipInt << 8) + ipVal;
-            } catch (NumberFormatException ex) {
-                return 0;
-            }
+        try {
+            //Bound sockets ignore the default network, so a non-default network can be measured at the same time
+            if (network != null) network.bindSocket(socket);
+            socket.setSoTimeout(timeout);
+
+            long startTime = SystemClock.elapsedRealtime();
+            socket.send(requestPacket);
+            socket.receive(responsePacket);
+            long endTime = SystemClock.elapsedRealtime();
+
+            return (endTime - startTime);
+        } finally {
+            socket.close();
         }
-
-        //  Return the integer address
-        return ipInt;
     }
 
-    private static byte[] getServer(String address) {
-
-        int ipInt = parseNumericAddress(address);
-        if (ipInt == 0)
-            return null;
-
-        byte[] server = new byte[4];
-
-        server[3] = (byte) (ipInt & 0xFF);
-        server[2] = (byte) ((ipInt >> 8) & 0xFF);
-        server[1] = (byte) ((ipInt >> 16) & 0xFF);
-        server[0] = (byte) ((ipInt >> 24) & 0xFF);
-
-        return server;
+    //Parse a numeric IPv4 or IPv6 address. Literals are parsed directly without making a DNS lookup.
+    private static InetAddress parseAddress(String address) throws UnknownHostException {
+        return InetAddress.getByName(address);
     }
 
     //Convert a domain from a String representation into a format ready to be sent as a request.
-    private static byte[] buildQuestion(String domain) throws IOException {
+    private static byte[] buildQuestion(String domain, short queryType) throws IOException {
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
@@ -263,8 +282,8 @@ public class DnsTester {
         // No more parts
         dos.writeByte(0x00);
 
-        // Type 0x01 = A (Host Request)
-        dos.writeShort(QUERY_TYPE);
+        // Type 0x01 = A (IPv4 Host Request), 0x1c = AAAA (IPv6 Host Request)
+        dos.writeShort(queryType);
 
         // Class 0x01 = IN
         dos.writeShort(0x0001);
@@ -297,4 +316,30 @@ public class DnsTester {
 
         return generatedString + ".com";
     }
+
+    //RTTs received from a single server. Another request may still be writing when the results are read after a
+    //timeout, so an RTT is only counted once its value is stored.
+    private static class ServerResults {
+        private final long[] mRttValues;
+        private int mSuccesses = 0;
+        private int mFailures = 0;
+
+        private ServerResults(int requestCount) {
+            mRttValues = new long[requestCount];
+        }
+
+        private synchronized void addRtt(long rtt) {
+            mRttValues[mSuccesses] = rtt;
+            mSuccesses++;
+        }
+
+        private synchronized void addFailure() {
+            mFailures++;
+        }
+
+        //QosInfo keeps its own copy of the values, so late requests can't change it afterwards
+        private synchronized QosInfo toQosInfo(String dnsServer) {
+            return new QosInfo(dnsServer, mRttValues, mSuccesses, mFailures);
+        }
+    }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.core.util.Pair;
+import io.openschema.mma.MobileMetricsService;
+
+/**
+ * Singleton owning every background thread used by the SDK, so the amount of threads stays bounded no matter how many
+ * measurements or DB writes are requested at the same time. Shut down along with {@link MobileMetricsService}.
+ * Executors are created again on first use after a shutdown.
+ * <ul>
+ * <li>I/O: orchestrates measurements, waiting for the work it hands to the secondary and probe executors.</li>
+ * <li>Secondary: measures a non-default network alongside the measurement running on the I/O executor. These only wait
+ * for the probe executor.</li>
+ * <li>Probe: individual network requests, e.g. DNS queries or throughput streams. These never wait for other tasks.</li>
+ * <li>Database: writes to the local DB, run one at a time in the order they're requested.</li>
+ * <li>Collectors: single {@link HandlerThread} running the collectors' network callbacks and periodic tasks.</li>
+ * </ul>
+ * Tasks never wait for work queued on their own executor, since it could be stuck behind them once every thread is busy.
+ */
+public class ExecutorManager {
+
+    private static final String TAG = "ExecutorManager";
+
+    /**
+     * Metric name to be used for the executors' statistics.
+     */
+    public static final String METRIC_NAME = "openschemaExecutors";
+    public static final String METRIC_LARGEST_POOL_SIZE_SUFFIX = "LargestPoolSize";
+    public static final String METRIC_ACTIVE_SUFFIX = "Active";
+    public static final String METRIC_QUEUED_SUFFIX = "Queued";
+    public static final String METRIC_PEAK_QUEUED_SUFFIX = "PeakQueued";
+    public static final String METRIC_COMPLETED_SUFFIX = "Completed";
+    public static final String METRIC_CALLER_RUNS_SUFFIX = "CallerRuns";
+
+    private static final String IO_EXECUTOR_NAME = "io";
+    private static final String SECONDARY_EXECUTOR_NAME = "secondary";
+    private static final String PROBE_EXECUTOR_NAME = "probe";
+    private static final String DATABASE_EXECUTOR_NAME = "db";
+    private static final String COLLECTOR_THREAD_NAME = "mma-collectors";
+
+    //Thread caps for each executor. Extra tasks are queued, and run on the calling thread once the queue is full.
+    private static final int IO_MAX_THREADS = 8;
+    private static final int SECONDARY_MAX_THREADS = 2;
+    private static final int PROBE_MAX_THREADS = 32;
+    private static final int DATABASE_MAX_THREADS = 1;
+    private static final int IO_QUEUE_CAPACITY = 64;
+    private static final int SECONDARY_QUEUE_CAPACITY = 8;
+    private static final int PROBE_QUEUE_CAPACITY = 512;
+
+    //Idle threads are released after this long, so nothing stays alive between measurements
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ExecutorManager _instance = null;
+
+    public static ExecutorManager getInstance() {
+        if (_instance == null) {
+            synchronized (ExecutorManager.class) {
+                if (_instance == null) {
+                    _instance = new ExecutorManager();
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private BoundedExecutor mIoExecutor = null;
+    private BoundedExecutor mSecondaryExecutor = null;
+    private BoundedExecutor mProbeExecutor = null;
+    private BoundedExecutor mDatabaseExecutor = null;
+    private HandlerThread mCollectorThread = null;
+
+    private ExecutorManager() { }
+
+    /**
+     * Executor for tasks that coordinate other work, such as a full network quality measurement.
+     */
+    public synchronized ExecutorService getIoExecutor() {
+        if (mIoExecutor == null || mIoExecutor.isShutdown()) {
+            mIoExecutor = new BoundedExecutor(IO_EXECUTOR_NAME, IO_MAX_THREADS, new ArrayBlockingQueue<>(IO_QUEUE_CAPACITY));
+        }
+        return mIoExecutor;
+    }
+
+    /**
+     * Executor for measurements of non-default networks, started by a measurement running on the I/O executor.
+     */
+    public synchronized ExecutorService getSecondaryExecutor() {
+        if (mSecondaryExecutor == null || mSecondaryExecutor.isShutdown()) {
+            mSecondaryExecutor = new BoundedExecutor(SECONDARY_EXECUTOR_NAME, SECONDARY_MAX_THREADS, new ArrayBlockingQueue<>(SECONDARY_QUEUE_CAPACITY));
+        }
+        return mSecondaryExecutor;
+    }
+
+    /**
+     * Executor for short, independent network requests.
+     */
+    public synchronized ExecutorService getProbeExecutor() {
+        if (mProbeExecutor == null || mProbeExecutor.isShutdown()) {
+            mProbeExecutor = new BoundedExecutor(PROBE_EXECUTOR_NAME, PROBE_MAX_THREADS, new ArrayBlockingQueue<>(PROBE_QUEUE_CAPACITY));
+        }
+        return mProbeExecutor;
+    }
+
+    /**
+     * Executor for writes to the local DB. Its queue isn't bounded so no write is ever dropped.
+     */
+    public synchronized ExecutorService getDatabaseExecutor() {
+        if (mDatabaseExecutor == null || mDatabaseExecutor.isShutdown()) {
+            mDatabaseExecutor = new BoundedExecutor(DATABASE_EXECUTOR_NAME, DATABASE_MAX_THREADS, new LinkedBlockingQueue<>());
+        }
+        return mDatabaseExecutor;
+    }
+
+    /**
+     * Looper of the thread shared by every collector, used instead of the main thread.
+     */
+    public synchronized Looper getCollectorLooper() {
+        if (mCollectorThread == null || !mCollectorThread.isAlive()) {
+            mCollectorThread = new HandlerThread(COLLECTOR_THREAD_NAME);
+            mCollectorThread.start();
+        }
+        return mCollectorThread.getLooper();
+    }
+
+    /**
+     * Stop every executor once their pending tasks finish, and the collector thread once its pending messages are handled.
+     */
+    public synchronized void shutdown() {
+        Log.d(TAG, "MMA: Shutting down executors");
+        if (mIoExecutor != null) mIoExecutor.shutdown();
+        if (mSecondaryExecutor != null) mSecondaryExecutor.shutdown();
+        if (mProbeExecutor != null) mProbeExecutor.shutdown();
+        if (mDatabaseExecutor != null) mDatabaseExecutor.shutdown();
+        if (mCollectorThread != null) mCollectorThread.quitSafely();
+        mIoExecutor = null;
+        mSecondaryExecutor = null;
+        mProbeExecutor = null;
+        mDatabaseExecutor = null;
+        mCollectorThread = null;
+    }
+
+    /**
+     * Returns the current statistics of every executor, named "&lt;executor&gt;&lt;suffix&gt;". Peak values restart after each call.
+     */
+    public synchronized List<Pair<String, String>> getMetrics() {
+        List<Pair<String, String>> metricsList = new ArrayList<>();
+        addMetrics(metricsList, IO_EXECUTOR_NAME, mIoExecutor);
+        addMetrics(metricsList, SECONDARY_EXECUTOR_NAME, mSecondaryExecutor);
+        addMetrics(metricsList, PROBE_EXECUTOR_NAME, mProbeExecutor);
+        addMetrics(metricsList, DATABASE_EXECUTOR_NAME, mDatabaseExecutor);
+        return metricsList;
+    }
+
+    private void addMetrics(List<Pair<String, String>> metricsList, String name, BoundedExecutor executor) {
+        if (executor == null) return;
+        metricsList.add(new Pair<>(name + METRIC_LARGEST_POOL_SIZE_SUFFIX, Integer.toString(executor.getLargestPoolSize())));
+        metricsList.add(new Pair<>(name + METRIC_ACTIVE_SUFFIX, Integer.toString(executor.getActiveCount())));
+        metricsList.add(new Pair<>(name + METRIC_QUEUED_SUFFIX, Integer.toString(executor.getQueue().size())));
+        metricsList.add(new Pair<>(name + METRIC_PEAK_QUEUED_SUFFIX, Integer.toString(executor.resetPeakQueueLength())));
+        metricsList.add(new Pair<>(name + METRIC_COMPLETED_SUFFIX, Long.toString(executor.getCompletedTaskCount())));
+        metricsList.add(new Pair<>(name + METRIC_CALLER_RUNS_SUFFIX, Integer.toString(executor.getCallerRuns())));
+    }
+
+    //Pool that grows up to its cap before queueing tasks, and releases idle threads. Also keeps track of its peak queue length.
+    private static class BoundedExecutor extends ThreadPoolExecutor {
+
+        private final AtomicInteger mPeakQueueLength = new AtomicInteger(0);
+        private final AtomicInteger mCallerRuns = new AtomicInteger(0);
+
+        private BoundedExecutor(String name, int maxThreads, BlockingQueue<Runnable> queue) {
+            super(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new NamedThreadFactory(name));
+            allowCoreThreadTimeOut(true);
+            setRejectedExecutionHandler(new CountingCallerRunsPolicy());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(command);
+            int queueLength = getQueue().size();
+            mPeakQueueLength.accumulateAndGet(queueLength, Math::max);
+        }
+
+        private int resetPeakQueueLength() {
+            return mPeakQueueLength.getAndSet(getQueue().size());
+        }
+
+        private int getCallerRuns() {
+            return mCallerRuns.get();
+        }
+
+        //Same as CallerRunsPolicy, but counting how often it happens. Tasks submitted after a shutdown are rejected
+        //instead of silently dropped, so no one waits forever on their Future.
+        private static class CountingCallerRunsPolicy implements RejectedExecutionHandler {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) throw new RejectedExecutionException("Task " + r + " rejected, executor was shut down");
+                ((BoundedExecutor) executor).mCallerRuns.incrementAndGet();
+                r.run();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+        private NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "mma-" + mName + "-" + mThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
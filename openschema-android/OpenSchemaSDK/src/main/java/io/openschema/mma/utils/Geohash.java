@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Encodes coordinates into geohash cells. Cells are hierarchical: each extra character splits a cell into 32, and
+ * a cell's code is always a prefix of the codes of the cells within it.
+ */
+public class Geohash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    /**
+     * Maximum precision supported, about 3.7 cm x 1.9 cm cells.
+     */
+    public static final int MAX_PRECISION = 12;
+
+    /**
+     * Returns the code of the cell containing the coordinates, using the amount of characters set by precision.
+     * As a reference, precision 5 is about 4.9 km x 4.9 km and precision 6 is about 1.2 km x 0.6 km.
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        precision = Math.max(1, Math.min(MAX_PRECISION, precision));
+
+        double minLatitude = -90, maxLatitude = 90;
+        double minLongitude = -180, maxLongitude = 180;
+        StringBuilder geohash = new StringBuilder(precision);
+        boolean isLongitudeBit = true;
+        int bitCount = 0, charIndex = 0;
+
+        //Bits alternate between longitude & latitude, starting with longitude, and every 5 bits form a character
+        while (geohash.length() < precision) {
+            if (isLongitudeBit) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    charIndex = (charIndex << 1) | 1;
+                    minLongitude = middle;
+                } else {
+                    charIndex = charIndex << 1;
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    charIndex = (charIndex << 1) | 1;
+                    minLatitude = middle;
+                } else {
+                    charIndex = charIndex << 1;
+                    maxLatitude = middle;
+                }
+            }
+            isLongitudeBit = !isLongitudeBit;
+
+            if (++bitCount == 5) {
+                geohash.append(BASE32[charIndex]);
+                bitCount = 0;
+                charIndex = 0;
+            }
+        }
+        return geohash.toString();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.openschema.mma.data.pojo.Histogram;
+
+/**
+ * Accumulates session usage and quality scores into geohash cells over a window, so compact per-cell summaries can
+ * be uploaded instead of raw coordinates. Cells are split by transport type and use the precision set through
+ * {@link CollectorConfig#setGridAggregation(boolean, int)}.
+ */
+public class GridAggregator {
+
+    private static final String TAG = "GridAggregator";
+
+    /**
+     * Cell used for entries recorded without a location.
+     */
+    public static final String GEOHASH_UNKNOWN = "unknown";
+
+    //Once this amount of cells is reached, new entries are recorded on single-character cells instead, which keeps
+    //memory and upload size bounded while still keeping a coarse location
+    private static final int MAX_CELLS = 512;
+
+    //Upper bounds of the quality score sketch's buckets, covering the default scorer's range
+    private static final double[] SCORE_BUCKET_BOUNDS = {0.5, 1.0, 1.5, 2.0, 2.5, 3.0, 3.5, 4.0, 4.5, 5.0};
+
+    private static GridAggregator _instance = null;
+
+    public static GridAggregator getInstance() {
+        if (_instance == null) {
+            synchronized (GridAggregator.class) {
+                if (_instance == null) {
+                    _instance = new GridAggregator();
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private final Map<String, CellSummary> mCells = new HashMap<>();
+    private long mWindowStart = System.currentTimeMillis();
+
+    private GridAggregator() { }
+
+    /**
+     * Adds a session segment's duration and usage to the cell containing the location.
+     */
+    public synchronized void recordSegment(int transportType, Location location, long durationMillis, long rxBytes, long txBytes) {
+        CellSummary cell = getCell(transportType, location);
+        cell.mSegmentCount++;
+        cell.mDurationMillis += durationMillis;
+        cell.mRxBytes += rxBytes;
+        cell.mTxBytes += txBytes;
+    }
+
+    /**
+     * Adds a network quality score to the cell containing the location.
+     */
+    public synchronized void recordQualityScore(int transportType, Location location, double score) {
+        if (Double.isNaN(score)) return;
+
+        CellSummary cell = getCell(transportType, location);
+        cell.mScoreCount++;
+        cell.mScoreSum += score;
+        int bucket = 0;
+        while (bucket < SCORE_BUCKET_BOUNDS.length && score > SCORE_BUCKET_BOUNDS[bucket]) bucket++;
+        cell.mScoreBucketCounts[bucket]++;
+    }
+
+    /**
+     * Serializes the cells recorded during the current window, so they can be restored through {@link #restore(String)}
+     * if the process dies before the window is flushed.
+     */
+    public synchronized String checkpoint() {
+        return new Gson().toJson(new Checkpoint(mWindowStart, new ArrayList<>(mCells.values())));
+    }
+
+    /**
+     * Adds the cells from a checkpoint to the current window, which then starts at the earlier of both windows.
+     */
+    public synchronized void restore(String checkpoint) {
+        Checkpoint restored;
+        try {
+            restored = new Gson().fromJson(checkpoint, Checkpoint.class);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "MMA: Discarding unreadable checkpoint: " + e);
+            return;
+        }
+        if (restored == null || restored.mCells == null) return;
+
+        mWindowStart = Math.min(mWindowStart, restored.mWindowStart);
+        for (CellSummary restoredCell : restored.mCells) {
+            if (restoredCell == null || restoredCell.mGeohash == null) continue;
+
+            String key = restoredCell.mTransportType + ":" + restoredCell.mGeohash;
+            CellSummary cell = mCells.get(key);
+            if (cell == null) {
+                cell = new CellSummary(restoredCell.mTransportType, restoredCell.mGeohash);
+                mCells.put(key, cell);
+            }
+            cell.add(restoredCell);
+        }
+    }
+
+    public synchronized long getWindowStart() { return mWindowStart; }
+
+    /**
+     * Returns the summaries of every cell recorded since the last call, and starts a new window.
+     */
+    public synchronized List<CellSummary> flush() {
+        List<CellSummary> cells = new ArrayList<>(mCells.values());
+        for (CellSummary cell : cells) {
+            cell.mWindowStart = mWindowStart;
+        }
+
+        mCells.clear();
+        mWindowStart = System.currentTimeMillis();
+        return cells;
+    }
+
+    private CellSummary getCell(int transportType, Location location) {
+        int precision = CollectorConfig.getInstance().getGridPrecision();
+        String geohash = location == null ? GEOHASH_UNKNOWN : Geohash.encode(location.getLatitude(), location.getLongitude(), precision);
+
+        String key = transportType + ":" + geohash;
+        CellSummary cell = mCells.get(key);
+        if (cell == null && mCells.size() >= MAX_CELLS && location != null) {
+            Log.d(TAG, "MMA: Cell limit reached, using a coarser cell");
+            geohash = geohash.substring(0, 1);
+            key = transportType + ":" + geohash;
+            cell = mCells.get(key);
+        }
+
+        if (cell == null) {
+            cell = new CellSummary(transportType, geohash);
+            mCells.put(key, cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Window saved by {@link #checkpoint()}.
+     */
+    private static class Checkpoint {
+        @SerializedName("windowStart") private long mWindowStart;
+        @SerializedName("cells") private List<CellSummary> mCells;
+
+        private Checkpoint(long windowStart, List<CellSummary> cells) {
+            mWindowStart = windowStart;
+            mCells = cells;
+        }
+    }
+
+    /**
+     * Totals accumulated in a single cell during a window.
+     */
+    public static class CellSummary {
+        @SerializedName("transportType") private final int mTransportType;
+        @SerializedName("geohash") private final String mGeohash;
+        //Only set once flushed, checkpoints keep the window's start separately
+        private transient long mWindowStart;
+
+        @SerializedName("segmentCount") private int mSegmentCount = 0;
+        @SerializedName("durationMillis") private long mDurationMillis = 0;
+        @SerializedName("rxBytes") private long mRxBytes = 0;
+        @SerializedName("txBytes") private long mTxBytes = 0;
+
+        @SerializedName("scoreCount") private int mScoreCount = 0;
+        @SerializedName("scoreSum") private double mScoreSum = 0;
+        @SerializedName("scoreBucketCounts") private final long[] mScoreBucketCounts = new long[SCORE_BUCKET_BOUNDS.length + 1];
+
+        private CellSummary(int transportType, String geohash) {
+            mTransportType = transportType;
+            mGeohash = geohash;
+        }
+
+        private void add(CellSummary other) {
+            mSegmentCount += other.mSegmentCount;
+            mDurationMillis += other.mDurationMillis;
+            mRxBytes += other.mRxBytes;
+            mTxBytes += other.mTxBytes;
+            mScoreCount += other.mScoreCount;
+            mScoreSum += other.mScoreSum;
+            //Checkpoints saved with different bucket bounds can't be merged bucket by bucket, so their scores only
+            //count towards the totals
+            if (other.mScoreBucketCounts != null && other.mScoreBucketCounts.length == mScoreBucketCounts.length) {
+                for (int i = 0; i < mScoreBucketCounts.length; i++) {
+                    mScoreBucketCounts[i] += other.mScoreBucketCounts[i];
+                }
+            } else {
+                mScoreBucketCounts[mScoreBucketCounts.length - 1] += other.mScoreCount;
+            }
+        }
+
+        public int getTransportType() { return mTransportType; }
+        public String getGeohash() { return mGeohash; }
+        public long getWindowStart() { return mWindowStart; }
+        public int getSegmentCount() { return mSegmentCount; }
+        public long getDurationMillis() { return mDurationMillis; }
+        public long getRxBytes() { return mRxBytes; }
+        public long getTxBytes() { return mTxBytes; }
+        public int getScoreCount() { return mScoreCount; }
+
+        /**
+         * Returns the quality scores' distribution, with cumulative buckets like the latency histograms.
+         * Only buckets where the cumulative count increases are included, and the +Inf bucket is left out.
+         */
+        public Histogram getScoreHistogram() {
+            List<Histogram.Bucket> buckets = new ArrayList<>();
+            long cumulativeCount = 0;
+            for (int i = 0; i < SCORE_BUCKET_BOUNDS.length; i++) {
+                if (mScoreBucketCounts[i] == 0) continue;
+
+                cumulativeCount += mScoreBucketCounts[i];
+                buckets.add(new Histogram.Bucket(cumulativeCount, SCORE_BUCKET_BOUNDS[i]));
+            }
+            return new Histogram(mScoreCount, mScoreSum, buckets);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Measures the time from sending an HTTP GET request until the response headers start arriving.
+ * Without connection reuse every request closes its connection, so the time includes the TCP (and TLS)
+ * handshakes. When reusing connections, the keep-alive connection from the previous attempt is used and
+ * only the first attempt pays for the handshakes.
+ */
+public class HttpTtfbProbe extends QualityProbe {
+
+    //Responses bigger than this are dropped instead of read to allow reusing their connection
+    private static final int MAX_DRAINED_BYTES = 64 * 1024;
+
+    private final URL mUrl;
+
+    public HttpTtfbProbe(String url) throws MalformedURLException {
+        this(new URL(url));
+    }
+
+    public HttpTtfbProbe(URL url) {
+        super(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        mUrl = url;
+    }
+
+    @Override
+    public String getType() { return "httpTtfb"; }
+
+    @Override
+    public String getTarget() {
+        return mUrl.toString();
+    }
+
+    @Override
+    protected Session openSession(ProbeContext context) {
+        return new HttpSession();
+    }
+
+    private class HttpSession extends Session {
+        private final byte[] mDrainBuffer = new byte[4096];
+
+        @Override
+        protected long measure(ProbeContext context, int timeout) throws IOException {
+            URLConnection urlConnection = context.openConnection(mUrl);
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                throw new IOException("Not an HTTP URL: " + mUrl);
+            }
+
+            HttpURLConnection connection = (HttpURLConnection) urlConnection;
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setUseCaches(false);
+            connection.setInstanceFollowRedirects(false);
+            if (!isReusingConnection()) {
+                connection.setRequestProperty("Connection", "close");
+            }
+
+            try {
+                //The response code is only available once the status line has been received
+                long startTime = System.nanoTime();
+                connection.getResponseCode();
+                long rtt = elapsedMillis(startTime);
+
+                drainResponse(connection);
+                return rtt;
+            } finally {
+                if (!isReusingConnection()) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        //Keep-alive connections are only returned to the pool after their response has been fully read
+        private void drainResponse(HttpURLConnection connection) throws IOException {
+            InputStream inputStream = connection.getErrorStream();
+            if (inputStream == null) {
+                inputStream = connection.getInputStream();
+            }
+
+            try {
+                int totalRead = 0;
+                int read;
+                while ((read = inputStream.read(mDrainBuffer)) != -1) {
+                    totalRead += read;
+                    if (totalRead > MAX_DRAINED_BYTES) {
+                        connection.disconnect();
+                        return;
+                    }
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Latency histogram using a fixed set of log-scale buckets (roughly 10 per decade, from 1ms to 10s).
+ * Since the buckets never change, histograms can be merged by adding their counts and percentiles
+ * can be estimated without keeping the individual samples.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Inclusive upper bound of every bucket in milliseconds. An extra overflow bucket holds anything above the last bound.
+     */
+    private static final long[] BUCKET_UPPER_BOUNDS = {
+            1, 2, 3, 4, 5, 6, 8, 10, 13, 16, 20, 25, 32, 40, 50, 63, 79, 100, 126, 158, 200, 251, 316, 398,
+            501, 631, 794, 1000, 1259, 1585, 1995, 2512, 3162, 3981, 5012, 6310, 7943, 10000
+    };
+
+    private final long[] mCounts = new long[BUCKET_UPPER_BOUNDS.length + 1];
+    private long mSampleCount = 0;
+    private long mSampleSum = 0;
+    private long mMinValue = Long.MAX_VALUE;
+    private long mMaxValue = Long.MIN_VALUE;
+
+    /**
+     * Adds a latency sample in milliseconds.
+     */
+    public void record(long value) {
+        mCounts[getBucketIndex(value)]++;
+        mSampleCount++;
+        mSampleSum += value;
+        if (value < mMinValue) mMinValue = value;
+        if (value > mMaxValue) mMaxValue = value;
+    }
+
+    /**
+     * Adds every sample recorded in another histogram to this one.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mSampleCount += other.mSampleCount;
+        mSampleSum += other.mSampleSum;
+        if (other.mMinValue < mMinValue) mMinValue = other.mMinValue;
+        if (other.mMaxValue > mMaxValue) mMaxValue = other.mMaxValue;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mSampleCount = 0;
+        mSampleSum = 0;
+        mMinValue = Long.MAX_VALUE;
+        mMaxValue = Long.MIN_VALUE;
+    }
+
+    /**
+     * Estimates the value at the specified percentile (0.0 to 1.0) by interpolating linearly inside
+     * the bucket that contains it. Returns 0 if no samples have been recorded.
+     */
+    public double getPercentile(double percentile) {
+        if (mSampleCount == 0) return 0;
+
+        double targetRank = Math.max(0, Math.min(1, percentile)) * mSampleCount;
+        long cumulativeCount = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            long bucketCount = mCounts[i];
+            if (bucketCount == 0) continue;
+
+            if (cumulativeCount + bucketCount >= targetRank) {
+                double lowerBound = i == 0 ? 0 : BUCKET_UPPER_BOUNDS[i - 1];
+                double upperBound = i < BUCKET_UPPER_BOUNDS.length ? BUCKET_UPPER_BOUNDS[i] : mMaxValue;
+                double estimate = lowerBound + (upperBound - lowerBound) * (targetRank - cumulativeCount) / bucketCount;
+
+                //The real samples can't be outside the recorded range
+                return Math.max(mMinValue, Math.min(mMaxValue, estimate));
+            }
+            cumulativeCount += bucketCount;
+        }
+        return mMaxValue;
+    }
+
+    public long getSampleCount() { return mSampleCount; }
+
+    public long getSampleSum() { return mSampleSum; }
+
+    /**
+     * Returns the amount of samples in the bucket at the specified index.
+     */
+    public long getCount(int bucketIndex) { return mCounts[bucketIndex]; }
+
+    /**
+     * Returns the amount of buckets, including the overflow bucket.
+     */
+    public static int getBucketCount() { return BUCKET_UPPER_BOUNDS.length + 1; }
+
+    /**
+     * Returns the inclusive upper bound of the bucket at the specified index. The overflow bucket returns {@link Long#MAX_VALUE}.
+     */
+    public static long getUpperBound(int bucketIndex) {
+        return bucketIndex < BUCKET_UPPER_BOUNDS.length ? BUCKET_UPPER_BOUNDS[bucketIndex] : Long.MAX_VALUE;
+    }
+
+    //Binary search of the first bucket whose upper bound contains the value.
+    private static int getBucketIndex(long value) {
+        int low = 0;
+        int high = BUCKET_UPPER_BOUNDS.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (BUCKET_UPPER_BOUNDS[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Results of a throughput test run along with latency probes, used to detect bufferbloat.
+ */
+public class LoadedLatencyResult {
+
+    private final ThroughputResult mThroughputResult;
+    private final LatencyHistogram mLoadedHistogram;
+    private final int mFailedProbes;
+    private final double mIdleLatency;
+    private final double mIdleLatencyP90;
+    private final double mMeanRssi;
+
+    /**
+     * @param idleLatency    Median latency measured on the same server before loading the link
+     * @param idleLatencyP90 90th percentile latency measured on the same server before loading the link
+     */
+    public LoadedLatencyResult(ThroughputResult throughputResult, LatencyHistogram loadedHistogram, int failedProbes,
+                               double idleLatency, double idleLatencyP90, double meanRssi) {
+        mThroughputResult = throughputResult;
+        mLoadedHistogram = loadedHistogram;
+        mFailedProbes = failedProbes;
+        mIdleLatency = idleLatency;
+        mIdleLatencyP90 = idleLatencyP90;
+        mMeanRssi = meanRssi;
+    }
+
+    public ThroughputResult getThroughputResult() { return mThroughputResult; }
+
+    /**
+     * Returns whether any latency sample was taken while the link was loaded.
+     */
+    public boolean hasLoadedLatency() { return mLoadedHistogram.getSampleCount() > 0; }
+
+    public LatencyHistogram getLoadedHistogram() { return mLoadedHistogram; }
+
+    public int getFailedProbes() { return mFailedProbes; }
+
+    public double getIdleLatency() { return mIdleLatency; }
+
+    public double getLoadedLatency() { return mLoadedHistogram.getPercentile(0.5); }
+
+    /**
+     * Increase of the median latency caused by loading the link.
+     */
+    public double getLatencyDelta() { return getLoadedLatency() - mIdleLatency; }
+
+    /**
+     * Increase of the 90th percentile latency caused by loading the link.
+     */
+    public double getLatencyP90Delta() { return mLoadedHistogram.getPercentile(0.9) - mIdleLatencyP90; }
+
+    /**
+     * Round trips per minute while the link was loaded. Higher is better.
+     */
+    public double getResponsiveness() { return toRoundTripsPerMinute(getLoadedLatency()); }
+
+    /**
+     * Mean RSSI sampled during the test, NaN if it wasn't sampled.
+     */
+    public double getMeanRssi() { return mMeanRssi; }
+
+    public static double toRoundTripsPerMinute(double latencyMillis) {
+        if (latencyMillis <= 0) return 0;
+        return 60000 / latencyMillis;
+    }
+}
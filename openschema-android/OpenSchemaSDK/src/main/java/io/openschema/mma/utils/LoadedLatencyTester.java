@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntSupplier;
+
+import androidx.annotation.WorkerThread;
+
+/**
+ * Runs a throughput test while sampling the latency to a DNS server, to measure how much latency grows
+ * when the link is loaded (bufferbloat). Both share the same {@link ProbeContext} deadline.
+ */
+public class LoadedLatencyTester {
+    private static final String TAG = "LoadedLatencyTester";
+
+    //Each latency probe waits at most this long, so a single lost response doesn't hide the rest of the test
+    private static final long PROBE_TIMEOUT = 2000;
+    //Minimum time between the start of consecutive probes, to keep their own load negligible
+    private static final long MIN_PROBE_INTERVAL = 50;
+    private static final long RSSI_SAMPLE_INTERVAL = 1000;
+
+    /**
+     * Run the download throughput test while probing.
+     *
+     * @param dnsServer   Server to probe, or null to run the throughput test alone
+     * @param idleResult  Results previously measured on the same server without load
+     * @param rssiSampler Source of the RSSI sampled during the test, or null to skip it
+     */
+    @WorkerThread
+    public static LoadedLatencyResult testDownload(ThroughputTester throughputTester, ProbeContext context, long byteCap,
+                                                   String dnsServer, QosInfo idleResult, IntSupplier rssiSampler) throws InterruptedException {
+        return runTest(() -> throughputTester.testDownload(context, byteCap), context, dnsServer, idleResult, rssiSampler);
+    }
+
+    /**
+     * Run the upload throughput test while probing.
+     *
+     * @param dnsServer   Server to probe, or null to run the throughput test alone
+     * @param idleResult  Results previously measured on the same server without load
+     * @param rssiSampler Source of the RSSI sampled during the test, or null to skip it
+     */
+    @WorkerThread
+    public static LoadedLatencyResult testUpload(ThroughputTester throughputTester, ProbeContext context, long byteCap,
+                                                 String dnsServer, QosInfo idleResult, IntSupplier rssiSampler) throws InterruptedException {
+        return runTest(() -> throughputTester.testUpload(context, byteCap), context, dnsServer, idleResult, rssiSampler);
+    }
+
+    private static LoadedLatencyResult runTest(LoadTest load, ProbeContext context, String dnsServer,
+                                               QosInfo idleResult, IntSupplier rssiSampler) throws InterruptedException {
+        //Latency probes run on the probe executor while this thread samples the throughput test's streams, so
+        //neither waits for a task that could be queued behind it on its own executor
+        LoadedProber prober = new LoadedProber(context, dnsServer, rssiSampler, Thread.currentThread());
+        Future<?> proberFuture;
+        try {
+            proberFuture = ExecutorManager.getInstance().getProbeExecutor().submit(prober);
+        } catch (RejectedExecutionException e) {
+            //The executor was shut down along with the service
+            Log.e(TAG, "MMA: Throughput test couldn't be started");
+            return new LoadedLatencyResult(new ThroughputResult(0, 0, 0, 0, 0, 0), new LatencyHistogram(), 0, Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        ThroughputResult throughputResult;
+        try {
+            throughputResult = load.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "MMA: Throughput test failed: " + e);
+            throughputResult = new ThroughputResult(0, 0, 0, 0, 0, 0);
+        } finally {
+            prober.stop();
+        }
+
+        //The prober stops after its current probe. Its samples are only used once it has finished writing them.
+        boolean proberFinished = false;
+        try {
+            proberFuture.get(PROBE_TIMEOUT + MIN_PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+            proberFinished = true;
+        } catch (ExecutionException | TimeoutException e) {
+            Log.e(TAG, "MMA: Latency probes under load didn't finish: " + e);
+        } finally {
+            proberFuture.cancel(true);
+        }
+
+        double idleLatency = idleResult == null ? Double.NaN : idleResult.getRttP50();
+        double idleLatencyP90 = idleResult == null ? Double.NaN : idleResult.getRttP90();
+        if (!proberFinished) {
+            return new LoadedLatencyResult(throughputResult, new LatencyHistogram(), 0, idleLatency, idleLatencyP90, Double.NaN);
+        }
+        double meanRssi = prober.mRssiCount == 0 ? Double.NaN : (double) prober.mRssiSum / prober.mRssiCount;
+        return new LoadedLatencyResult(throughputResult, prober.mHistogram, prober.mFailedProbes, idleLatency, idleLatencyP90, meanRssi);
+    }
+
+    private interface LoadTest {
+        ThroughputResult run() throws InterruptedException;
+    }
+
+    /**
+     * Probes the DNS server and samples the RSSI sequentially until stopped or the context's deadline expires.
+     */
+    private static class LoadedProber implements Runnable {
+        private final ProbeContext mContext;
+        private final String mDnsServer;
+        private final IntSupplier mRssiSampler;
+        private final Thread mCallerThread;
+        private volatile boolean mStopped = false;
+
+        private final LatencyHistogram mHistogram = new LatencyHistogram();
+        private int mFailedProbes = 0;
+        private long mRssiSum = 0;
+        private int mRssiCount = 0;
+
+        private LoadedProber(ProbeContext context, String dnsServer, IntSupplier rssiSampler, Thread callerThread) {
+            mContext = context;
+            mDnsServer = dnsServer;
+            mRssiSampler = rssiSampler;
+            mCallerThread = callerThread;
+        }
+
+        @Override
+        public void run() {
+            //A saturated probe executor runs this on the caller before the throughput test starts, so it can't overlap it
+            if (Thread.currentThread() == mCallerThread) return;
+
+            long nextRssiSample = System.nanoTime();
+            try {
+                while (!mStopped && !mContext.isExpired()) {
+                    long probeStart = System.nanoTime();
+
+                    if (mDnsServer != null) {
+                        try {
+                            mHistogram.record(DnsTester.testServer(mDnsServer, mContext.getAttemptTimeout(PROBE_TIMEOUT), mContext.getNetwork()));
+                        } catch (IOException e) {
+                            mFailedProbes++;
+                        }
+                    }
+
+                    if (mRssiSampler != null && probeStart >= nextRssiSample) {
+                        mRssiSum += mRssiSampler.getAsInt();
+                        mRssiCount++;
+                        nextRssiSample = probeStart + TimeUnit.MILLISECONDS.toNanos(RSSI_SAMPLE_INTERVAL);
+                    }
+
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeStart);
+                    if (elapsed < MIN_PROBE_INTERVAL) {
+                        Thread.sleep(MIN_PROBE_INTERVAL - elapsed);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //Cancelled along with the measurement
+            }
+        }
+
+        private void stop() {
+            mStopped = true;
+        }
+    }
+}
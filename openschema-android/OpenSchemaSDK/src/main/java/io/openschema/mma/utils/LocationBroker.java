@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.CancellationTokenSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.core.content.ContextCompat;
+
+/**
+ * Single source of location fixes shared by every collector, so network handovers don't trigger several fixes
+ * seconds apart. Fixes are served in order of cost:
+ * <ol>
+ * <li>The cached fix, kept up to date with fixes requested by other apps through the passive provider.</li>
+ * <li>The fused provider's last known fix.</li>
+ * <li>A new fix from the fused provider, shared by every request made while it's being computed.</li>
+ * </ol>
+ * Cached and last known fixes are only used if they're within the age and accuracy set through
+ * {@link CollectorConfig#setLocationFreshness(long, float)}.
+ */
+public class LocationBroker {
+
+    private static final String TAG = "LocationBroker";
+
+    //Minimum time between passive fixes, these don't cost any power on their own
+    private static final long PASSIVE_MIN_INTERVAL = 1000 * 60; //60 seconds
+
+    private static LocationBroker _instance = null;
+
+    /**
+     * Call to retrieve a {@link LocationBroker} object.
+     */
+    public static LocationBroker getInstance(Context context) {
+        if (_instance == null) {
+            synchronized (LocationBroker.class) {
+                if (_instance == null) {
+                    _instance = new LocationBroker(context.getApplicationContext());
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private final Context mContext;
+    private final FusedLocationProviderClient mLocationClient;
+    private final LocationManager mLocationManager;
+
+    private Location mCachedLocation = null;
+    private final List<PendingRequest> mPendingRequests = new ArrayList<>();
+    private CancellationTokenSource mCancellationTokenSource = null;
+    private boolean mIsPassiveListening = false;
+
+    private LocationBroker(Context appContext) {
+        mContext = appContext;
+        mLocationClient = LocationServices.getFusedLocationProviderClient(appContext);
+        mLocationManager = (LocationManager) appContext.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    /**
+     * Request a location fix. The listener is always called through the handler, so it runs on the caller's thread,
+     * with a null location if it couldn't be computed.
+     */
+    @SuppressLint("MissingPermission")
+    public synchronized void requestLocation(Listener listener, Handler handler) {
+        if (!isLocationPermissionGranted() || !LocationServicesChecker.isLocationEnabled(mContext)) {
+            deliverLocation(listener, handler, null);
+            return;
+        }
+
+        startPassiveUpdates();
+        if (isUsable(mCachedLocation)) {
+            Log.d(TAG, "MMA: Using cached location");
+            deliverLocation(listener, handler, mCachedLocation);
+            return;
+        }
+
+        //Concurrent requests wait for the fix already in progress
+        mPendingRequests.add(new PendingRequest(listener, handler));
+        if (mPendingRequests.size() > 1) return;
+
+        CancellationTokenSource cancellationTokenSource = new CancellationTokenSource();
+        mCancellationTokenSource = cancellationTokenSource;
+        mLocationClient.getLastLocation()
+                .addOnCompleteListener(task -> {
+                    Location lastLocation = task.isSuccessful() ? task.getResult() : null;
+                    if (isUsable(lastLocation)) {
+                        Log.d(TAG, "MMA: Using last known location");
+                        onLocationResult(cancellationTokenSource, lastLocation);
+                    } else {
+                        requestCurrentLocation(cancellationTokenSource);
+                    }
+                });
+    }
+
+    /**
+     * Returns the cached fix if it's within the configured age and accuracy, or null otherwise. Never requests a fix.
+     */
+    public synchronized Location getCachedLocation() {
+        return isUsable(mCachedLocation) ? mCachedLocation : null;
+    }
+
+    /**
+     * Stop waiting for a location requested by the listener. The fix in progress is only cancelled once no other
+     * listener is waiting for it.
+     */
+    public synchronized void cancelRequest(Listener listener) {
+        if (!mPendingRequests.removeIf(request -> request.mListener == listener)) return;
+
+        if (mPendingRequests.isEmpty() && mCancellationTokenSource != null) {
+            mCancellationTokenSource.cancel();
+            mCancellationTokenSource = null;
+        }
+    }
+
+    /**
+     * Cancel any fix in progress and stop listening for passive fixes.
+     */
+    public synchronized void shutdown() {
+        mPendingRequests.clear();
+        if (mCancellationTokenSource != null) {
+            mCancellationTokenSource.cancel();
+            mCancellationTokenSource = null;
+        }
+        if (mIsPassiveListening) {
+            mLocationManager.removeUpdates(mPassiveListener);
+            mIsPassiveListening = false;
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private synchronized void requestCurrentLocation(CancellationTokenSource cancellationTokenSource) {
+        //Every listener stopped waiting while the last known location was retrieved
+        if (cancellationTokenSource != mCancellationTokenSource) return;
+
+        Log.d(TAG, "MMA: Requesting a new location fix");
+        //TODO: need to evaluate the correct priority/accuracy
+        //TODO: need to consider cases where google play services aren't available
+        mLocationClient.getCurrentLocation(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, cancellationTokenSource.getToken())
+                .addOnSuccessListener(location -> onLocationResult(cancellationTokenSource, location))
+                .addOnFailureListener(e -> {
+                    e.printStackTrace();
+                    onLocationResult(cancellationTokenSource, null);
+                });
+    }
+
+    private synchronized void onLocationResult(CancellationTokenSource cancellationTokenSource, Location location) {
+        //Results from cancelled requests are ignored
+        if (cancellationTokenSource != mCancellationTokenSource) return;
+        mCancellationTokenSource = null;
+
+        if (location != null) cacheLocation(location);
+        for (PendingRequest request : mPendingRequests) {
+            deliverLocation(request.mListener, request.mHandler, location);
+        }
+        mPendingRequests.clear();
+    }
+
+    @SuppressLint("MissingPermission")
+    private void startPassiveUpdates() {
+        if (mIsPassiveListening || mLocationManager == null) return;
+
+        try {
+            mLocationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_MIN_INTERVAL, 0, mPassiveListener, Looper.getMainLooper());
+            mIsPassiveListening = true;
+        } catch (IllegalArgumentException | SecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void cacheLocation(Location location) {
+        if (mCachedLocation == null || location.getElapsedRealtimeNanos() >= mCachedLocation.getElapsedRealtimeNanos()) {
+            mCachedLocation = location;
+        }
+    }
+
+    private boolean isUsable(Location location) {
+        if (location == null || !location.hasAccuracy()) return false;
+
+        CollectorConfig config = CollectorConfig.getInstance();
+        long ageMillis = TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos());
+        return ageMillis <= config.getLocationMaxAge() && location.getAccuracy() <= config.getLocationMaxAccuracy();
+    }
+
+    private boolean isLocationPermissionGranted() {
+        return ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    //Posted even when already on the handler's thread, so listeners never run while this class holds its lock
+    private void deliverLocation(Listener listener, Handler handler, Location location) {
+        handler.post(() -> listener.onLocationResult(location));
+    }
+
+    //Receives the fixes requested by other apps at no extra cost
+    private final LocationListener mPassiveListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            if (location != null) cacheLocation(location);
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) { }
+
+        @Override
+        public void onProviderEnabled(String provider) { }
+
+        @Override
+        public void onProviderDisabled(String provider) { }
+    };
+
+    public interface Listener {
+        void onLocationResult(Location location);
+    }
+
+    private static class PendingRequest {
+        private final Listener mListener;
+        private final Handler mHandler;
+
+        private PendingRequest(Listener listener, Handler handler) {
+            mListener = listener;
+            mHandler = handler;
+        }
+    }
+}
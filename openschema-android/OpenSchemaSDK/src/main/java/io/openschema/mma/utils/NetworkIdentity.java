@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.content.Context;
+import android.net.NetworkCapabilities;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
+
+/**
+ * Utility class to build a key identifying the network the device is currently attached to.
+ */
+public class NetworkIdentity {
+
+    //Reported instead of the real BSSID when the app can't access the device's location
+    private static final String PLACEHOLDER_BSSID = "02:00:00:00:00:00";
+
+    /**
+     * Returns a key made of the transport type plus the Wi-Fi BSSID or the cellular operator, or null if the network
+     * can't be identified. Unidentified networks must not share any state, since they could be any network.
+     */
+    public static String getNetworkKey(Context context, int transportType) {
+        String identifier = null;
+        switch (transportType) {
+            case NetworkCapabilities.TRANSPORT_WIFI:
+                WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+                WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+                if (wifiInfo != null) identifier = wifiInfo.getBSSID();
+                if (PLACEHOLDER_BSSID.equals(identifier)) identifier = null;
+                break;
+            case NetworkCapabilities.TRANSPORT_CELLULAR:
+                TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                identifier = telephonyManager.getNetworkOperator();
+                break;
+        }
+
+        if (identifier == null || identifier.isEmpty()) return null;
+        return TransportType.getTransportString(transportType) + ":" + identifier;
+    }
+
+    /**
+     * Returns a key identifying the network more precisely than {@link #getNetworkKey(Context, int)}, adding the
+     * registered cell ID to cellular networks. Falls back to the operator alone if the cell can't be read, and returns
+     * null if the network can't be identified.
+     */
+    public static String getMeasurementKey(Context context, int transportType) {
+        String networkKey = getNetworkKey(context, transportType);
+        if (networkKey == null || transportType != NetworkCapabilities.TRANSPORT_CELLULAR) return networkKey;
+
+        long cellId = getRegisteredCellId(context);
+        return cellId == TelephonyStateCache.UNKNOWN_CELL_ID ? networkKey : networkKey + ":" + cellId;
+    }
+
+    //Same cell reported to CellularNetworkMetrics. Requires location permission & location services to be enabled.
+    private static long getRegisteredCellId(Context context) {
+        return TelephonyStateCache.getInstance(context).getSnapshot().getCellIdentity();
+    }
+
+}
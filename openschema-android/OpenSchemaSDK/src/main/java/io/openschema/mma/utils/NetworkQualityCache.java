@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.openschema.mma.data.entity.NetworkQualityEntity;
+
+/**
+ * In-memory cache holding the last network quality measurement taken on each network, so reconnecting to a
+ * recently measured network doesn't trigger a new measurement. Networks are identified through
+ * {@link NetworkIdentity#getMeasurementKey}.
+ */
+public class NetworkQualityCache {
+
+    //Oldest entries are dropped once this amount of networks is cached
+    private static final int MAX_ENTRIES = 32;
+
+    private final Map<String, CachedMeasurement> mMeasurements = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Returns the last measurement taken on the network if it's newer than the TTL, or null otherwise.
+     */
+    public synchronized NetworkQualityEntity get(String measurementKey, long ttlMillis) {
+        CachedMeasurement cachedMeasurement = mMeasurements.get(measurementKey);
+        if (cachedMeasurement == null) return null;
+
+        if (cachedMeasurement.isExpired(ttlMillis)) {
+            mMeasurements.remove(measurementKey);
+            return null;
+        }
+        return cachedMeasurement.mEntity;
+    }
+
+    public synchronized void put(String measurementKey, NetworkQualityEntity entity) {
+        mMeasurements.put(measurementKey, new CachedMeasurement(entity));
+        if (mMeasurements.size() > MAX_ENTRIES) {
+            Iterator<String> iterator = mMeasurements.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        mMeasurements.clear();
+    }
+
+    private static class CachedMeasurement {
+        private final NetworkQualityEntity mEntity;
+        //Elapsed realtime is used so changes to the wall clock don't affect the TTL
+        private final long mMeasuredAt;
+
+        private CachedMeasurement(NetworkQualityEntity entity) {
+            mEntity = entity;
+            mMeasuredAt = SystemClock.elapsedRealtime();
+        }
+
+        private boolean isExpired(long ttlMillis) {
+            return SystemClock.elapsedRealtime() - mMeasuredAt >= ttlMillis;
+        }
+    }
+}
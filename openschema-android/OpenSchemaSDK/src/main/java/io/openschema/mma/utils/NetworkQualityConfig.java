@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.openschema.mma.MobileMetricsAgent;
+
+/**
+ * Singleton holding the network quality options supplied through {@link MobileMetricsAgent.Builder}
+ * so they can be accessed by the collectors running inside the service. Options of the other collectors are held by
+ * {@link CollectorConfig}.
+ */
+public class NetworkQualityConfig {
+
+    private static final String TAG = "NetworkQualityConfig";
+
+    /**
+     * Default lower bound for the timeout used on each probe request, in milliseconds.
+     */
+    public static final long DEFAULT_PROBE_TIMEOUT_FLOOR = 250;
+
+    /**
+     * Default upper bound for the timeout used on each probe request, in milliseconds.
+     */
+    public static final long DEFAULT_PROBE_TIMEOUT_CEILING = 5000;
+
+    /**
+     * Default maximum time all the additional quality probes can take on each measurement, in milliseconds.
+     */
+    public static final long DEFAULT_PROBE_BUDGET = 15000;
+
+    /**
+     * Default maximum amount of bytes throughput tests can use per day.
+     */
+    public static final long DEFAULT_THROUGHPUT_DAILY_BYTE_CAP = 50 * 1024 * 1024;
+
+    /**
+     * Default time a network quality measurement is reused for the same network, in milliseconds.
+     */
+    public static final long DEFAULT_QUALITY_CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Default bounds for the interval between background network quality samples, in milliseconds.
+     */
+    public static final long DEFAULT_SAMPLING_MIN_INTERVAL = 15 * 60 * 1000;
+    public static final long DEFAULT_SAMPLING_MAX_INTERVAL = 4 * 60 * 60 * 1000;
+
+    private static NetworkQualityConfig _instance = null;
+
+    public static NetworkQualityConfig getInstance() {
+        if (_instance == null) {
+            synchronized (NetworkQualityConfig.class) {
+                if (_instance == null) {
+                    _instance = new NetworkQualityConfig();
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private volatile long mProbeTimeoutFloor = DEFAULT_PROBE_TIMEOUT_FLOOR;
+    private volatile long mProbeTimeoutCeiling = DEFAULT_PROBE_TIMEOUT_CEILING;
+    private volatile QualityScorer mQualityScorer = new DefaultQualityScorer();
+    private final List<QualityScorer> mAlternativeQualityScorers = new CopyOnWriteArrayList<>();
+    private final List<QualityProbe> mQualityProbes = new CopyOnWriteArrayList<>();
+    private volatile long mProbeBudget = DEFAULT_PROBE_BUDGET;
+    private volatile UdpEchoProbe mUdpEchoProbe = null;
+    private volatile ThroughputTester mThroughputTester = null;
+    private volatile long mThroughputDailyByteCap = DEFAULT_THROUGHPUT_DAILY_BYTE_CAP;
+    private volatile boolean mLatencyUnderLoadEnabled = false;
+    private volatile long mQualityCacheTtl = DEFAULT_QUALITY_CACHE_TTL;
+    private volatile boolean mSamplingEnabled = false;
+    private volatile long mSamplingMinInterval = DEFAULT_SAMPLING_MIN_INTERVAL;
+    private volatile long mSamplingMaxInterval = DEFAULT_SAMPLING_MAX_INTERVAL;
+    private volatile boolean mConcurrentMeasurementEnabled = false;
+
+    private NetworkQualityConfig() { }
+
+    /**
+     * Set the bounds applied to the timeouts estimated from each server's RTT history.
+     */
+    public void setProbeTimeoutBounds(long floorMillis, long ceilingMillis) {
+        if (floorMillis <= 0 || ceilingMillis < floorMillis) {
+            Log.e(TAG, "MMA: Invalid probe timeout bounds, keeping previous values");
+            return;
+        }
+        mProbeTimeoutFloor = floorMillis;
+        mProbeTimeoutCeiling = ceilingMillis;
+    }
+
+    /**
+     * Set the model used to calculate the reported quality score.
+     */
+    public void setQualityScorer(QualityScorer qualityScorer) {
+        if (qualityScorer == null) {
+            Log.e(TAG, "MMA: Quality scorer can't be null, keeping previous model");
+            return;
+        }
+        mQualityScorer = qualityScorer;
+    }
+
+    /**
+     * Set the models evaluated along with the main scorer. Their scores are reported as separate metrics to allow comparing them.
+     */
+    public void setAlternativeQualityScorers(List<QualityScorer> qualityScorers) {
+        mAlternativeQualityScorers.clear();
+        for (QualityScorer qualityScorer : qualityScorers) {
+            if (qualityScorer == null) continue;
+            mAlternativeQualityScorers.add(qualityScorer);
+        }
+    }
+
+    /**
+     * Set the probes run on every network quality measurement after the DNS tests.
+     */
+    public void setQualityProbes(List<QualityProbe> qualityProbes) {
+        mQualityProbes.clear();
+        for (QualityProbe qualityProbe : qualityProbes) {
+            if (qualityProbe == null) continue;
+            mQualityProbes.add(qualityProbe);
+        }
+    }
+
+    /**
+     * Set the maximum time all the quality probes can take on each measurement.
+     */
+    public void setProbeBudget(long budgetMillis) {
+        if (budgetMillis <= 0) {
+            Log.e(TAG, "MMA: Invalid probe budget, keeping previous value");
+            return;
+        }
+        mProbeBudget = budgetMillis;
+    }
+
+    /**
+     * Enable the throughput test on every network quality measurement, or disable it by passing null.
+     */
+    public void setThroughputTester(ThroughputTester throughputTester, long dailyByteCap) {
+        if (dailyByteCap < 0) {
+            Log.e(TAG, "MMA: Invalid throughput daily byte cap, keeping previous value");
+        } else {
+            mThroughputDailyByteCap = dailyByteCap;
+        }
+        mThroughputTester = throughputTester;
+    }
+
+    /**
+     * Set whether the latency is probed while the throughput test is running.
+     */
+    public void setLatencyUnderLoadEnabled(boolean enabled) {
+        mLatencyUnderLoadEnabled = enabled;
+    }
+
+    /**
+     * Set how long a measurement is reused when the same network is measured again. Passing 0 disables the cache.
+     */
+    public void setQualityCacheTtl(long ttlMillis) {
+        if (ttlMillis < 0) {
+            Log.e(TAG, "MMA: Invalid quality cache TTL, keeping previous value");
+            return;
+        }
+        mQualityCacheTtl = ttlMillis;
+    }
+
+    public long getQualityCacheTtl() { return mQualityCacheTtl; }
+
+    /**
+     * Set whether the active network is sampled periodically in the background, besides on network changes.
+     */
+    public void setSamplingEnabled(boolean enabled) {
+        mSamplingEnabled = enabled;
+    }
+
+    /**
+     * Set the bounds of the adaptive interval between background samples.
+     */
+    public void setSamplingIntervals(long minIntervalMillis, long maxIntervalMillis) {
+        if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+            Log.e(TAG, "MMA: Invalid sampling intervals, keeping previous values");
+            return;
+        }
+        mSamplingMinInterval = minIntervalMillis;
+        mSamplingMaxInterval = maxIntervalMillis;
+    }
+
+    /**
+     * Set whether the connected non-default network is measured along with the default one, e.g. cellular while on Wi-Fi.
+     */
+    public void setConcurrentMeasurementEnabled(boolean enabled) {
+        mConcurrentMeasurementEnabled = enabled;
+    }
+
+    public boolean isConcurrentMeasurementEnabled() { return mConcurrentMeasurementEnabled; }
+
+    public boolean isSamplingEnabled() { return mSamplingEnabled; }
+
+    public long getSamplingMinInterval() { return mSamplingMinInterval; }
+
+    public long getSamplingMaxInterval() { return mSamplingMaxInterval; }
+
+    public boolean isLatencyUnderLoadEnabled() { return mLatencyUnderLoadEnabled; }
+
+    public ThroughputTester getThroughputTester() { return mThroughputTester; }
+
+    public long getThroughputDailyByteCap() { return mThroughputDailyByteCap; }
+
+    /**
+     * Set the UDP echo probe run on every network quality measurement, or disable it by passing null.
+     */
+    public void setUdpEchoProbe(UdpEchoProbe udpEchoProbe) {
+        mUdpEchoProbe = udpEchoProbe;
+    }
+
+    public UdpEchoProbe getUdpEchoProbe() { return mUdpEchoProbe; }
+
+    public List<QualityProbe> getQualityProbes() { return mQualityProbes; }
+
+    public long getProbeBudget() { return mProbeBudget; }
+
+    public QualityScorer getQualityScorer() { return mQualityScorer; }
+
+    public List<QualityScorer> getAlternativeQualityScorers() { return mAlternativeQualityScorers; }
+
+    public long getProbeTimeoutFloor() { return mProbeTimeoutFloor; }
+
+    public long getProbeTimeoutCeiling() { return mProbeTimeoutCeiling; }
+}
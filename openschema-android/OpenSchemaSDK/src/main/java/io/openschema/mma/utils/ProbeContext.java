@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.net.Network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * Resources shared by every {@link QualityProbe} run during the same measurement. All probes share a single
+ * deadline, so a slow endpoint can't delay the measurement past its budget.
+ * <p>
+ * Name resolution, sockets, datagram channels and URL connections are created through this class so they
+ * can be bound to a specific network, allowing non-default networks to be measured.
+ */
+public class ProbeContext {
+
+    private final long mDeadlineNanos;
+    private final SocketFactory mSocketFactory;
+    private final Network mNetwork;
+
+    /**
+     * @param budgetMillis Maximum time every probe using this context can take in total, in milliseconds
+     */
+    public ProbeContext(long budgetMillis) {
+        this(budgetMillis, SocketFactory.getDefault());
+    }
+
+    /**
+     * @param budgetMillis Maximum time every probe using this context can take in total, in milliseconds
+     * @param network      Network every request is sent through, or null to use the default network
+     */
+    public ProbeContext(long budgetMillis, Network network) {
+        mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        mSocketFactory = network == null ? SocketFactory.getDefault() : network.getSocketFactory();
+        mNetwork = network;
+    }
+
+    /**
+     * @param budgetMillis  Maximum time every probe using this context can take in total, in milliseconds
+     * @param socketFactory Factory used to create the probes' sockets
+     */
+    public ProbeContext(long budgetMillis, SocketFactory socketFactory) {
+        mDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        mSocketFactory = socketFactory;
+        mNetwork = null;
+    }
+
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return getRemainingMillis() == 0;
+    }
+
+    /**
+     * Returns the timeout to use on the next attempt, so that it never runs past the shared deadline.
+     */
+    public int getAttemptTimeout(long timeoutMillis) {
+        return (int) Math.max(1, Math.min(timeoutMillis, getRemainingMillis()));
+    }
+
+    public InetAddress resolve(String host) throws IOException {
+        return mNetwork == null ? InetAddress.getByName(host) : mNetwork.getByName(host);
+    }
+
+    /**
+     * Create a connected socket, using the socket factory supplied to this context.
+     */
+    public Socket connect(SocketAddress address, int timeout) throws IOException {
+        Socket socket = mSocketFactory.createSocket();
+        try {
+            socket.connect(address, timeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public DatagramChannel openDatagramChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (mNetwork != null) {
+            try {
+                mNetwork.bindSocket(channel.socket());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        return channel;
+    }
+
+    public URLConnection openConnection(URL url) throws IOException {
+        return mNetwork == null ? url.openConnection() : mNetwork.openConnection(url);
+    }
+
+    public SocketFactory getSocketFactory() { return mSocketFactory; }
+
+    /**
+     * Returns the network the requests are bound to, or null if they use the default network.
+     */
+    public Network getNetwork() { return mNetwork; }
+}
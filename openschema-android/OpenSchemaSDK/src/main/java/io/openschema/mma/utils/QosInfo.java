@@ -1,105 +1,142 @@
 package io.openschema.mma.utils;
 
-import java.util.List;
+import java.util.Arrays;
 
 public class QosInfo {
 
     private static final String TAG = "QosInfo";
 
+    //Samples further than this amount of standard deviations from the mean are considered outliers
+    private static final double OUTLIER_STD_DEVS = 2;
+
     private final String mDnsServer;
-    private final List<Long> mRttValues;
-    private double mRttMean;
-    private float mRttVariance;
+    private final long[] mRttValues;
     private final int mTotalFailedRequests;
-    private long mMinRTTValue;
-    private double mRttStdDev;
     private final double mSuccessRate;
 
-    public QosInfo(String dnsServer, List<Long> rttValues, int totalFailedRequests) {
+    //Statistics over every sample
+    private double mRttMean;
+    private double mRttVariance;
+    private double mRttStdDev;
+    private long mMinRTTValue;
+    private double mJitter;
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    //Statistics over the samples left after removing outliers
+    private double mTrimLowerBound;
+    private double mTrimUpperBound;
+    private int mTrimmedCount;
+    private double mTrimmedRttMean;
+    private double mTrimmedRttStdDev;
+
+    /**
+     * @param rttValues           RTT of every successful request, in the order they were received
+     * @param rttCount            Amount of valid values in rttValues
+     * @param totalFailedRequests Amount of requests that didn't receive a response
+     */
+    public QosInfo(String dnsServer, long[] rttValues, int rttCount, int totalFailedRequests) {
         mDnsServer = dnsServer;
-        mRttValues = rttValues;
+        mRttValues = Arrays.copyOf(rttValues, rttCount);
         mTotalFailedRequests = totalFailedRequests;
-        mRttMean = calculateMean();
-        mMinRTTValue = getMinRTT();
-        mRttVariance = calculateVariance();
-        mRttStdDev = calculateStandardDeviation();
         mSuccessRate = calculateSuccessRate();
+        calculateStatistics();
+        calculateTrimmedStatistics();
     }
 
-    private long getMinRTT() {
-        return mRttValues.stream()
-                .mapToLong(d -> d)
-                .filter(d -> d != 0)
-                .min()
-                .orElse(0);
-    }
-
-    private double calculateMean() {
-        return mRttValues.stream()
-                .mapToDouble(d -> d)
-                .average()
-                .orElse(0.0);
+    private double calculateSuccessRate() {
+        int totalRequests = mRttValues.length + mTotalFailedRequests;
+        if (totalRequests == 0) return 0.0;
+        return (double) mRttValues.length / totalRequests;
     }
 
-    private float calculateVariance() {
-        float temp = 0;
-        for (Long a : mRttValues) {
-            temp += (a - mRttMean) * (a - mRttMean);
+    //Single pass using Welford's online algorithm for the mean & variance, also feeding the histogram and jitter.
+    private void calculateStatistics() {
+        double mean = 0;
+        double m2 = 0;
+        long min = Long.MAX_VALUE;
+        long successiveDifferenceSum = 0;
+
+        for (int i = 0; i < mRttValues.length; i++) {
+            long value = mRttValues[i];
+            double delta = value - mean;
+            mean += delta / (i + 1);
+            m2 += delta * (value - mean);
+
+            //Failed RTTs can come through as 0, they're ignored for the minimum
+            if (value != 0 && value < min) min = value;
+            if (i > 0) successiveDifferenceSum += Math.abs(value - mRttValues[i - 1]);
+            mHistogram.record(value);
         }
 
-        if (temp == 0) return 0;
-        return temp / (mRttValues.size() - 1);
-    }
-
-    private double calculateStandardDeviation() {
-        if (mRttVariance == 0.0) return 0.0;
-        return Math.sqrt(mRttVariance);
-    }
-
-    private double calculateSuccessRate() {
-        if (mRttValues.isEmpty()) return 0.0;
-        return (double) (mRttValues.size() - mTotalFailedRequests) / mRttValues.size();
+        mRttMean = mean;
+        mRttVariance = mRttValues.length > 1 ? m2 / (mRttValues.length - 1) : 0;
+        mRttStdDev = Math.sqrt(mRttVariance);
+        mMinRTTValue = min == Long.MAX_VALUE ? 0 : min;
+        mJitter = mRttValues.length > 1 ? (double) successiveDifferenceSum / (mRttValues.length - 1) : 0;
     }
 
-    public void cleanData() {
-
-        double plusStdDev = mRttMean + 2 * mRttStdDev;
-        double minusStdDev = mRttMean - 2 * mRttStdDev;
-
-        //TODO: cleanup test logs
-//        Log.d(TAG, "MMA: Cleaning DNS: " + mDnsServer);
-//        Log.d(TAG, "MMA: Mean + StdDev: " + plusStdDev);
-//        Log.d(TAG, "MMA: Mean - StdDev: " + minusStdDev);
-
-        for (int i = 0; i < mRttValues.size(); i++) {
-            if (mRttValues.get(i) > plusStdDev || mRttValues.get(i) < minusStdDev) {
-//                Log.d(TAG, "MMA: Value to be deleted:" + mRttValues.get(i));
-                //TODO: does removing the element during loop crash the app?
-                mRttValues.remove(i);
-            }
+    //Single pass over the samples within the outlier bounds. The original samples aren't modified.
+    private void calculateTrimmedStatistics() {
+        mTrimUpperBound = mRttMean + OUTLIER_STD_DEVS * mRttStdDev;
+        mTrimLowerBound = mRttMean - OUTLIER_STD_DEVS * mRttStdDev;
+
+        double mean = 0;
+        double m2 = 0;
+        int count = 0;
+        for (long value : mRttValues) {
+            if (!isWithinTrimmedRange(value)) continue;
+
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
         }
 
-//        Log.d(TAG, "MMA: Finished Cleaning DNS: " + mDnsServer);
-        mRttMean = calculateMean();
-        mMinRTTValue = getMinRTT();
-        mRttVariance = getRttVariance();
-        mRttStdDev = getRttStdDev();
+        mTrimmedCount = count;
+        mTrimmedRttMean = mean;
+        mTrimmedRttStdDev = count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+    }
 
+    /**
+     * Returns whether the value is kept after removing outliers.
+     */
+    public boolean isWithinTrimmedRange(long value) {
+        return value >= mTrimLowerBound && value <= mTrimUpperBound;
     }
 
     public String getDnsServer() { return mDnsServer; }
 
     public double getRttMean() { return mRttMean; }
 
-    public float getRttVariance() { return mRttVariance; }
+    public double getRttVariance() { return mRttVariance; }
 
     public double getRttStdDev() { return mRttStdDev; }
 
+    public int getTotalSuccessfulRequests() { return mRttValues.length; }
+
     public int getTotalFailedRequests() { return mTotalFailedRequests; }
 
     public long getMinRTTValue() { return mMinRTTValue; }
 
     public double getSuccessRate() { return mSuccessRate; }
 
-    public List<Long> getRttValues() { return mRttValues;}
+    public double getJitter() { return mJitter; }
+
+    public double getRttP50() { return mHistogram.getPercentile(0.5); }
+
+    public double getRttP90() { return mHistogram.getPercentile(0.9); }
+
+    public double getRttP99() { return mHistogram.getPercentile(0.99); }
+
+    public LatencyHistogram getHistogram() { return mHistogram; }
+
+    public int getTrimmedRttCount() { return mTrimmedCount; }
+
+    public double getTrimmedRttMean() { return mTrimmedRttMean; }
+
+    public double getTrimmedRttStdDev() { return mTrimmedRttStdDev; }
+
+    public int getRttCount() { return mRttValues.length; }
+
+    public long getRttValue(int index) { return mRttValues[index]; }
 }
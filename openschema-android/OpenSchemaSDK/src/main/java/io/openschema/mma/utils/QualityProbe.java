@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Active test repeated several times against a single endpoint to measure the latency perceived by apps.
+ * Results are returned as a {@link QosInfo}, the same summary used for the DNS tests.
+ * <p>
+ * Probes are created through their constructors and registered with
+ * {@link io.openschema.mma.MobileMetricsAgent.Builder#addQualityProbe(QualityProbe) MobileMetricsAgent.Builder}.
+ */
+public abstract class QualityProbe {
+
+    public static final int DEFAULT_ATTEMPTS = 5;
+    public static final long DEFAULT_ATTEMPT_TIMEOUT = 3000;
+
+    protected final String mHost;
+    protected final int mPort;
+    private int mAttempts = DEFAULT_ATTEMPTS;
+    private long mAttemptTimeout = DEFAULT_ATTEMPT_TIMEOUT;
+    private boolean mReuseConnection = false;
+
+    protected QualityProbe(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Short identifier of the probe type.
+     */
+    public abstract String getType();
+
+    /**
+     * Endpoint measured by the probe, reported along with its metrics.
+     */
+    public String getTarget() {
+        return mHost + ":" + mPort;
+    }
+
+    /**
+     * Identifier of the probe, used in logs and its results.
+     */
+    public String getName() {
+        return getType() + ":" + getTarget();
+    }
+
+    /**
+     * @param attempts Amount of samples taken on each run
+     */
+    public QualityProbe setAttempts(int attempts) {
+        mAttempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time a single attempt can take, in milliseconds
+     */
+    public QualityProbe setAttemptTimeout(long timeoutMillis) {
+        mAttemptTimeout = Math.max(1, timeoutMillis);
+        return this;
+    }
+
+    /**
+     * @param reuseConnection Whether consecutive attempts can reuse connection state from the previous ones. Probe
+     *                        types explain what's reused, which lets measuring the cold and warm cases separately.
+     */
+    public QualityProbe setReuseConnection(boolean reuseConnection) {
+        mReuseConnection = reuseConnection;
+        return this;
+    }
+
+    public boolean isReusingConnection() { return mReuseConnection; }
+
+    /**
+     * Run every attempt of the probe, stopping early if the context's deadline expires. Attempts that
+     * weren't started or completed due to the deadline aren't considered failures.
+     * <p>
+     * Every run keeps its state in its own {@link Session}, so the same probe can measure several networks at once.
+     */
+    public QosInfo run(ProbeContext context) throws InterruptedException {
+        long[] rttValues = new long[mAttempts];
+        int successes = 0;
+        int failures = 0;
+
+        Session session;
+        try {
+            session = openSession(context);
+        } catch (IOException e) {
+            return new QosInfo(getName(), rttValues, 0, mAttempts);
+        }
+
+        try {
+            for (int i = 0; i < mAttempts; i++) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (context.isExpired()) break;
+
+                try {
+                    rttValues[successes] = session.measure(context, context.getAttemptTimeout(mAttemptTimeout));
+                    successes++;
+                } catch (IOException e) {
+                    //Attempts cut short by the shared deadline don't say anything about the endpoint
+                    if (context.isExpired()) break;
+                    failures++;
+                    //A broken connection can't be reused for the next attempt
+                    session.release();
+                }
+            }
+        } finally {
+            session.release();
+        }
+
+        return new QosInfo(getName(), rttValues, successes, failures);
+    }
+
+    /**
+     * Called once before the attempts of a run start, outside of the measured time.
+     */
+    protected abstract Session openSession(ProbeContext context) throws IOException;
+
+    /**
+     * State kept between the attempts of a single run, such as the resolved address or a connection to reuse.
+     */
+    protected abstract static class Session {
+
+        /**
+         * Take a single sample.
+         *
+         * @return Measured time in milliseconds
+         */
+        protected abstract long measure(ProbeContext context, int timeout) throws IOException;
+
+        /**
+         * Close any connection kept between attempts.
+         */
+        protected void release() { }
+    }
+
+    protected InetSocketAddress resolveAddress(ProbeContext context) throws IOException {
+        return new InetSocketAddress(context.resolve(mHost), mPort);
+    }
+
+    protected static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
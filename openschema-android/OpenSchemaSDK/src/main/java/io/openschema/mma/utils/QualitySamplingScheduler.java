@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Calculates the delay before the next background network quality sample on the active network.
+ * <p>
+ * The interval doubles after every sample whose score matches the previous ones, up to the configured maximum, and
+ * goes back to the minimum as soon as the score changes. The result is then stretched or shortened depending on the
+ * charging state, the battery level and whether the screen is on.
+ */
+public class QualitySamplingScheduler {
+
+    private static final String TAG = "QualitySamplingScheduler";
+
+    //Score differences smaller than this are considered the same network quality
+    private static final double SCORE_CHANGE_THRESHOLD = 0.5;
+    //Weight given to each new score on the running mean & variance
+    private static final double SCORE_SMOOTHING = 0.3;
+    //Limit to the amount of doublings, way past any sensible maximum interval
+    private static final int MAX_BACKOFF_STEPS = 16;
+
+    //Battery levels (%) at or below which sampling is slowed down while discharging
+    private static final int LOW_BATTERY_LEVEL = 20;
+    private static final int CRITICAL_BATTERY_LEVEL = 10;
+
+    private static final double CHARGING_FACTOR = 0.5;
+    private static final double SCREEN_OFF_FACTOR = 2;
+    private static final double LOW_BATTERY_FACTOR = 4;
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+
+    private int mBackoffSteps = 0;
+    private double mLastScore = Double.NaN;
+    private double mScoreMean = Double.NaN;
+    private double mScoreVariance = 0;
+
+    public QualitySamplingScheduler(Context context) {
+        mContext = context;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Forget the score history, used when the active network changes.
+     */
+    public synchronized void reset() {
+        mBackoffSteps = 0;
+        mLastScore = Double.NaN;
+        mScoreMean = Double.NaN;
+        mScoreVariance = 0;
+    }
+
+    /**
+     * Update the backoff with the score from the latest measurement.
+     */
+    public synchronized void onScoreMeasured(double score) {
+        if (Double.isNaN(score)) {
+            //Failed measurements aren't a sign of a stable network
+            mBackoffSteps = 0;
+            return;
+        }
+
+        if (Double.isNaN(mScoreMean)) {
+            mScoreMean = score;
+        } else {
+            //Exponentially weighted mean & variance, so old samples stop mattering after a few measurements
+            double delta = score - mScoreMean;
+            mScoreMean += SCORE_SMOOTHING * delta;
+            mScoreVariance = (1 - SCORE_SMOOTHING) * (mScoreVariance + SCORE_SMOOTHING * delta * delta);
+        }
+
+        if (!Double.isNaN(mLastScore) && Math.abs(score - mLastScore) >= SCORE_CHANGE_THRESHOLD) {
+            //Quality changed, sample more often to follow it
+            mBackoffSteps = 0;
+        } else if (Math.sqrt(mScoreVariance) < SCORE_CHANGE_THRESHOLD) {
+            mBackoffSteps = Math.min(mBackoffSteps + 1, MAX_BACKOFF_STEPS);
+        }
+        mLastScore = score;
+    }
+
+    /**
+     * Returns the delay until the next sample in milliseconds, always within the configured bounds.
+     */
+    public synchronized long getNextInterval() {
+        NetworkQualityConfig networkQualityConfig = NetworkQualityConfig.getInstance();
+        long minInterval = networkQualityConfig.getSamplingMinInterval();
+        long maxInterval = networkQualityConfig.getSamplingMaxInterval();
+
+        double interval = minInterval * Math.pow(2, mBackoffSteps);
+        interval *= getDeviceStateFactor();
+
+        long nextInterval = (long) Math.max(minInterval, Math.min(maxInterval, interval));
+        Log.d(TAG, "MMA: Next quality sample in " + nextInterval + "ms (backoff steps: " + mBackoffSteps + ")");
+        return nextInterval;
+    }
+
+    private double getDeviceStateFactor() {
+        //Sticky broadcast, no receiver is actually registered
+        Intent batteryStatus = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean isCharging = false;
+        int batteryLevel = 100;
+        if (batteryStatus != null) {
+            int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+
+            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) batteryLevel = level * 100 / scale;
+        }
+
+        if (isCharging) return CHARGING_FACTOR;
+
+        double factor = 1;
+        if (mPowerManager != null && !mPowerManager.isInteractive()) factor *= SCREEN_OFF_FACTOR;
+        if (batteryLevel <= CRITICAL_BATTERY_LEVEL) {
+            factor *= LOW_BATTERY_FACTOR * LOW_BATTERY_FACTOR;
+        } else if (batteryLevel <= LOW_BATTERY_LEVEL) {
+            factor *= LOW_BATTERY_FACTOR;
+        }
+        return factor;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.util.Arrays;
+
+/**
+ * Primitive summaries of a network quality measurement used as the input of a {@link QualityScorer}.
+ * <p>
+ * Servers are split between the reference servers hardcoded in {@link DnsTester} and the servers
+ * configured on the device. The arrays only grow when a measurement has more servers or samples than any
+ * previous one, so an instance can be cleared and reused without allocating.
+ */
+public class QualityScoreInput {
+
+    private final ServerGroup mReferenceServers = new ServerGroup();
+    private final ServerGroup mDeviceServers = new ServerGroup();
+
+    public ServerGroup getReferenceServers() { return mReferenceServers; }
+
+    public ServerGroup getDeviceServers() { return mDeviceServers; }
+
+    public void clear() {
+        mReferenceServers.clear();
+        mDeviceServers.clear();
+    }
+
+    /**
+     * Summaries of a set of servers, stored as parallel arrays indexed by server.
+     */
+    public static class ServerGroup {
+        private static final int INITIAL_SERVER_CAPACITY = 8;
+        private static final int INITIAL_SAMPLE_CAPACITY = 64;
+
+        private int mServerCount = 0;
+        private double[] mSuccessRates = new double[INITIAL_SERVER_CAPACITY];
+        private long[] mMinRtts = new long[INITIAL_SERVER_CAPACITY];
+        private double[] mTrimmedRttMeans = new double[INITIAL_SERVER_CAPACITY];
+        private double[] mTrimmedRttStdDevs = new double[INITIAL_SERVER_CAPACITY];
+
+        //Samples left after removing outliers, stored back to back for every server
+        private int[] mSampleOffsets = new int[INITIAL_SERVER_CAPACITY];
+        private int[] mSampleCounts = new int[INITIAL_SERVER_CAPACITY];
+        private long[] mTrimmedSamples = new long[INITIAL_SAMPLE_CAPACITY];
+        private int mTotalSamples = 0;
+
+        public void clear() {
+            mServerCount = 0;
+            mTotalSamples = 0;
+        }
+
+        /**
+         * Add the summary of a tested server, keeping only the samples within its trimmed range.
+         */
+        public void addServer(QosInfo qosInfo) {
+            int index = startServer(qosInfo.getSuccessRate(), qosInfo.getMinRTTValue(), qosInfo.getTrimmedRttMean(), qosInfo.getTrimmedRttStdDev());
+            ensureSampleCapacity(mTotalSamples + qosInfo.getRttCount());
+            for (int i = 0; i < qosInfo.getRttCount(); i++) {
+                long value = qosInfo.getRttValue(i);
+                if (!qosInfo.isWithinTrimmedRange(value)) continue;
+                mTrimmedSamples[mTotalSamples++] = value;
+                mSampleCounts[index]++;
+            }
+        }
+
+        /**
+         * Add the summary of a server from precalculated values.
+         *
+         * @param trimmedSamples Samples left after removing outliers, only the first sampleCount values are used
+         */
+        public void addServer(double successRate, long minRtt, double trimmedRttMean, double trimmedRttStdDev, long[] trimmedSamples, int sampleCount) {
+            int index = startServer(successRate, minRtt, trimmedRttMean, trimmedRttStdDev);
+            ensureSampleCapacity(mTotalSamples + sampleCount);
+            System.arraycopy(trimmedSamples, 0, mTrimmedSamples, mTotalSamples, sampleCount);
+            mTotalSamples += sampleCount;
+            mSampleCounts[index] = sampleCount;
+        }
+
+        private int startServer(double successRate, long minRtt, double trimmedRttMean, double trimmedRttStdDev) {
+            if (mServerCount == mSuccessRates.length) {
+                int capacity = mServerCount * 2;
+                mSuccessRates = Arrays.copyOf(mSuccessRates, capacity);
+                mMinRtts = Arrays.copyOf(mMinRtts, capacity);
+                mTrimmedRttMeans = Arrays.copyOf(mTrimmedRttMeans, capacity);
+                mTrimmedRttStdDevs = Arrays.copyOf(mTrimmedRttStdDevs, capacity);
+                mSampleOffsets = Arrays.copyOf(mSampleOffsets, capacity);
+                mSampleCounts = Arrays.copyOf(mSampleCounts, capacity);
+            }
+
+            int index = mServerCount++;
+            mSuccessRates[index] = successRate;
+            mMinRtts[index] = minRtt;
+            mTrimmedRttMeans[index] = trimmedRttMean;
+            mTrimmedRttStdDevs[index] = trimmedRttStdDev;
+            mSampleOffsets[index] = mTotalSamples;
+            mSampleCounts[index] = 0;
+            return index;
+        }
+
+        private void ensureSampleCapacity(int capacity) {
+            if (capacity > mTrimmedSamples.length) {
+                mTrimmedSamples = Arrays.copyOf(mTrimmedSamples, Math.max(capacity, mTrimmedSamples.length * 2));
+            }
+        }
+
+        public int getServerCount() { return mServerCount; }
+
+        public double getSuccessRate(int server) { return mSuccessRates[server]; }
+
+        public long getMinRtt(int server) { return mMinRtts[server]; }
+
+        public double getTrimmedRttMean(int server) { return mTrimmedRttMeans[server]; }
+
+        public double getTrimmedRttStdDev(int server) { return mTrimmedRttStdDevs[server]; }
+
+        public int getTrimmedSampleCount(int server) { return mSampleCounts[server]; }
+
+        public long getTrimmedSample(int server, int index) { return mTrimmedSamples[mSampleOffsets[server] + index]; }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Model used to turn the summaries collected by the network quality tests into a single score.
+ * <p>
+ * Implementations must be stateless, since the same instance is shared by every measurement and
+ * can be called from multiple threads. Custom models can be registered through
+ * {@link io.openschema.mma.MobileMetricsAgent.Builder MobileMetricsAgent.Builder}.
+ */
+public interface QualityScorer {
+
+    /**
+     * Short identifier of the model, reported along with its score.
+     */
+    String getName();
+
+    /**
+     * Calculate the quality score. Returns {@link Double#NaN} if the input doesn't have enough information.
+     */
+    double score(QualityScoreInput input);
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+/**
+ * Radio measurements of the serving cell and its neighbors at a point in time. Values that couldn't be read are
+ * {@link #UNAVAILABLE}.
+ */
+public class RadioSample {
+
+    /**
+     * Same value used by the platform for unavailable cell measurements.
+     */
+    public static final int UNAVAILABLE = Integer.MAX_VALUE;
+
+    private final long mTimestamp;
+    private final int mDataNetworkType;
+    private final long mCellIdentity;
+    private final int mPci;
+    private final int mRsrp;
+    private final int mRsrq;
+    private final int mSinr;
+    private final int mCqi;
+    private final int[] mNeighborPcis;
+    private final int[] mNeighborRsrps;
+
+    public RadioSample(long timestamp, int dataNetworkType, long cellIdentity, int pci, int rsrp, int rsrq, int sinr, int cqi,
+                       int[] neighborPcis, int[] neighborRsrps) {
+        mTimestamp = timestamp;
+        mDataNetworkType = dataNetworkType;
+        mCellIdentity = cellIdentity;
+        mPci = pci;
+        mRsrp = rsrp;
+        mRsrq = rsrq;
+        mSinr = sinr;
+        mCqi = cqi;
+        mNeighborPcis = neighborPcis;
+        mNeighborRsrps = neighborRsrps;
+    }
+
+    public long getTimestamp() { return mTimestamp; }
+
+    public int getDataNetworkType() { return mDataNetworkType; }
+
+    public long getCellIdentity() { return mCellIdentity; }
+
+    /**
+     * Physical cell ID of the serving cell.
+     */
+    public int getPci() { return mPci; }
+
+    /**
+     * RSRP in dBm. SS-RSRP for NR cells.
+     */
+    public int getRsrp() { return mRsrp; }
+
+    /**
+     * RSRQ in dB. SS-RSRQ for NR cells.
+     */
+    public int getRsrq() { return mRsrq; }
+
+    /**
+     * RSSNR for LTE cells, SS-SINR for NR cells, as reported by the platform.
+     */
+    public int getSinr() { return mSinr; }
+
+    public int getCqi() { return mCqi; }
+
+    public int getNeighborCount() { return mNeighborPcis.length; }
+
+    public int getNeighborPci(int index) { return mNeighborPcis[index]; }
+
+    public int getNeighborRsrp(int index) { return mNeighborRsrps[index]; }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Packs consecutive {@link RadioSample} objects into a single block, storing each value as the difference from the
+ * previous sample's value. Differences are zigzag & varint encoded, so a stable radio costs a few bytes per sample.
+ * <p>
+ * Each sample is written as:
+ * <ol>
+ * <li>varint: milliseconds since the previous sample, or since the block's start for the first one.</li>
+ * <li>byte: flags telling which of the following fields are present.</li>
+ * <li>{@link #FLAG_NETWORK_TYPE} varint: data network type, only written when it changes.</li>
+ * <li>{@link #FLAG_CELL} zigzag varint: cell ID delta, only written when it changes.</li>
+ * <li>{@link #FLAG_PCI} varint: serving PCI, only written when it changes.</li>
+ * <li>{@link #FLAG_RSRP}, {@link #FLAG_RSRQ}, {@link #FLAG_SINR}, {@link #FLAG_CQI} zigzag varint: delta from the
+ * last value written for the same field in this block, starting from 0. Unavailable values are skipped.</li>
+ * <li>varint: neighbor count, followed by the varint PCI & zigzag varint RSRP delta of each neighbor. The first
+ * neighbor's RSRP is relative to the last RSRP written, the rest to the previous neighbor.</li>
+ * </ol>
+ */
+public class RadioSeriesEncoder {
+
+    /**
+     * Name & version of the block format, to be uploaded along with the block.
+     */
+    public static final String ENCODING = "delta-varint-v1";
+
+    public static final int FLAG_NETWORK_TYPE = 1;
+    public static final int FLAG_CELL = 1 << 1;
+    public static final int FLAG_PCI = 1 << 2;
+    public static final int FLAG_RSRP = 1 << 3;
+    public static final int FLAG_RSRQ = 1 << 4;
+    public static final int FLAG_SINR = 1 << 5;
+    public static final int FLAG_CQI = 1 << 6;
+
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final long mBlockStart;
+    private int mSampleCount = 0;
+
+    //Values written last, used as the reference for the next deltas
+    private long mLastTimestamp;
+    private boolean mHasServingCell = false;
+    private int mLastDataNetworkType;
+    private long mLastCellIdentity = 0;
+    private int mLastPci;
+    private int mLastRsrp = 0;
+    private int mLastRsrq = 0;
+    private int mLastSinr = 0;
+    private int mLastCqi = 0;
+
+    public RadioSeriesEncoder(long blockStart) {
+        mBlockStart = blockStart;
+        mLastTimestamp = blockStart;
+    }
+
+    public void add(RadioSample sample) {
+        writeVarint(Math.max(0, sample.getTimestamp() - mLastTimestamp));
+        mLastTimestamp = Math.max(mLastTimestamp, sample.getTimestamp());
+
+        int flags = 0;
+        if (!mHasServingCell || sample.getDataNetworkType() != mLastDataNetworkType) flags |= FLAG_NETWORK_TYPE;
+        if (!mHasServingCell || sample.getCellIdentity() != mLastCellIdentity) flags |= FLAG_CELL;
+        if (!mHasServingCell || sample.getPci() != mLastPci) flags |= FLAG_PCI;
+        if (sample.getRsrp() != RadioSample.UNAVAILABLE) flags |= FLAG_RSRP;
+        if (sample.getRsrq() != RadioSample.UNAVAILABLE) flags |= FLAG_RSRQ;
+        if (sample.getSinr() != RadioSample.UNAVAILABLE) flags |= FLAG_SINR;
+        if (sample.getCqi() != RadioSample.UNAVAILABLE) flags |= FLAG_CQI;
+        mBuffer.write(flags);
+        mHasServingCell = true;
+
+        if ((flags & FLAG_NETWORK_TYPE) != 0) {
+            writeVarint(sample.getDataNetworkType());
+            mLastDataNetworkType = sample.getDataNetworkType();
+        }
+        if ((flags & FLAG_CELL) != 0) {
+            writeZigzag(sample.getCellIdentity() - mLastCellIdentity);
+            mLastCellIdentity = sample.getCellIdentity();
+        }
+        if ((flags & FLAG_PCI) != 0) {
+            //Unavailable PCIs are written as 0, real ones are shifted by 1
+            writeVarint(sample.getPci() == RadioSample.UNAVAILABLE ? 0 : sample.getPci() + 1L);
+            mLastPci = sample.getPci();
+        }
+        if ((flags & FLAG_RSRP) != 0) {
+            writeZigzag(sample.getRsrp() - mLastRsrp);
+            mLastRsrp = sample.getRsrp();
+        }
+        if ((flags & FLAG_RSRQ) != 0) {
+            writeZigzag(sample.getRsrq() - mLastRsrq);
+            mLastRsrq = sample.getRsrq();
+        }
+        if ((flags & FLAG_SINR) != 0) {
+            writeZigzag(sample.getSinr() - mLastSinr);
+            mLastSinr = sample.getSinr();
+        }
+        if ((flags & FLAG_CQI) != 0) {
+            writeZigzag(sample.getCqi() - mLastCqi);
+            mLastCqi = sample.getCqi();
+        }
+
+        writeVarint(sample.getNeighborCount());
+        int referenceRsrp = mLastRsrp;
+        for (int i = 0; i < sample.getNeighborCount(); i++) {
+            writeVarint(sample.getNeighborPci(i));
+            writeZigzag(sample.getNeighborRsrp(i) - referenceRsrp);
+            referenceRsrp = sample.getNeighborRsrp(i);
+        }
+
+        mSampleCount++;
+    }
+
+    public long getBlockStart() { return mBlockStart; }
+
+    public int getSampleCount() { return mSampleCount; }
+
+    public int getByteCount() { return mBuffer.size(); }
+
+    public byte[] toByteArray() { return mBuffer.toByteArray(); }
+
+    private void writeZigzag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    //Unsigned LEB128, 7 bits per byte with the high bit set on every byte but the last
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mBuffer.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.write((int) value);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a smoothed RTT estimation for every server tested on a specific network. The estimation
+ * follows TCP's retransmission timeout calculation (RFC 6298) and is persisted between measurements
+ * so that each request can use a timeout close to the server's real response time instead of a fixed value.
+ * <p>
+ * Networks that can't be identified start from the initial estimations every time, and nothing is persisted for them.
+ */
+public class RttHistory {
+
+    private static final String TAG = "RttHistory";
+
+    //RFC 6298 constants
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private static final long CLOCK_GRANULARITY = 1;
+    private static final long INITIAL_TIMEOUT = 1000;
+
+    //Servers without any response in this many consecutive measurements are skipped until their backoff expires
+    private static final int UNREACHABLE_THRESHOLD = 3;
+    private static final long UNREACHABLE_BACKOFF_BASE = 1000 * 60 * 5; //5 minutes
+    private static final long UNREACHABLE_BACKOFF_MAX = 1000 * 60 * 60 * 24; //24 hours
+
+    //Estimations not updated for this long are removed from persistent storage
+    private static final long STALE_ENTRY_AGE = 1000L * 60 * 60 * 24 * 30; //30 days
+
+    private final SharedPreferences mSharedPreferences;
+    private final String mNetworkKey;
+    private final long mTimeoutFloor;
+    private final long mTimeoutCeiling;
+    private final Map<String, Estimation> mEstimations = new ConcurrentHashMap<>();
+
+    /**
+     * @param networkKey Key from {@link NetworkIdentity#getNetworkKey}, or null if the network can't be identified
+     */
+    public RttHistory(Context context, String networkKey) {
+        mSharedPreferences = SharedPreferencesHelper.getInstance(context);
+        mNetworkKey = networkKey;
+
+        NetworkQualityConfig config = NetworkQualityConfig.getInstance();
+        mTimeoutFloor = config.getProbeTimeoutFloor();
+        mTimeoutCeiling = config.getProbeTimeoutCeiling();
+
+        pruneStaleEntries();
+    }
+
+    /**
+     * Returns the timeout to use on the next request made to the server, bounded by the configured floor and ceiling.
+     */
+    public long getTimeout(String server) {
+        return clampTimeout(getEstimation(server).mRto);
+    }
+
+    /**
+     * Returns the servers that haven't been flagged as unreachable, keeping the original order.
+     * If every server has been flagged, the full list is returned to avoid skipping the test entirely.
+     */
+    public String[] filterReachable(String[] servers) {
+        long now = System.currentTimeMillis();
+        List<String> reachableServers = new ArrayList<>();
+        for (String server : servers) {
+            Estimation estimation = getEstimation(server);
+            if (estimation.mConsecutiveFailures < UNREACHABLE_THRESHOLD || now >= estimation.mRetryAfter) {
+                reachableServers.add(server);
+            } else {
+                Log.d(TAG, "MMA: Skipping unreachable server " + server + " on " + mNetworkKey);
+            }
+        }
+
+        if (reachableServers.isEmpty()) return servers;
+        return reachableServers.toArray(new String[0]);
+    }
+
+    /**
+     * Feeds a successful RTT sample into the server's estimation.
+     */
+    public void onSample(String server, long rtt) {
+        Estimation estimation = getEstimation(server);
+        synchronized (estimation) {
+            if (estimation.mSrtt < 0) {
+                estimation.mSrtt = rtt;
+                estimation.mRttVar = rtt / 2.0;
+            } else {
+                estimation.mRttVar = (1 - BETA) * estimation.mRttVar + BETA * Math.abs(estimation.mSrtt - rtt);
+                estimation.mSrtt = (1 - ALPHA) * estimation.mSrtt + ALPHA * rtt;
+            }
+            estimation.mRto = (long) Math.ceil(estimation.mSrtt + Math.max(CLOCK_GRANULARITY, K * estimation.mRttVar));
+        }
+    }
+
+    /**
+     * Called once every request sent to a server in the current measurement has finished.
+     * A measurement without any response doubles the server's timeout and counts towards flagging it as unreachable.
+     */
+    public void onMeasurementFinished(String server, int successfulRequests) {
+        Estimation estimation = getEstimation(server);
+        synchronized (estimation) {
+            long now = System.currentTimeMillis();
+            estimation.mLastUpdated = now;
+
+            if (successfulRequests > 0) {
+                estimation.mConsecutiveFailures = 0;
+                estimation.mRetryAfter = 0;
+                return;
+            }
+
+            estimation.mRto = Math.min(estimation.mRto * 2, mTimeoutCeiling);
+            estimation.mConsecutiveFailures++;
+            if (estimation.mConsecutiveFailures >= UNREACHABLE_THRESHOLD) {
+                int backoffExponent = Math.min(estimation.mConsecutiveFailures - UNREACHABLE_THRESHOLD, 16);
+                long backoff = Math.min(UNREACHABLE_BACKOFF_BASE << backoffExponent, UNREACHABLE_BACKOFF_MAX);
+                estimation.mRetryAfter = now + backoff;
+                Log.d(TAG, "MMA: Server " + server + " is unreachable on " + mNetworkKey + ", retrying in " + backoff + "ms");
+            }
+        }
+    }
+
+    /**
+     * Persists every estimation updated during this measurement.
+     */
+    public void save() {
+        if (mNetworkKey == null) return;
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        for (Map.Entry<String, Estimation> entry : mEstimations.entrySet()) {
+            Estimation estimation = entry.getValue();
+            synchronized (estimation) {
+                editor.putString(getPreferenceKey(entry.getKey()), estimation.serialize());
+            }
+        }
+        editor.apply();
+    }
+
+    private long clampTimeout(long timeout) {
+        return Math.max(mTimeoutFloor, Math.min(timeout, mTimeoutCeiling));
+    }
+
+    private Estimation getEstimation(String server) {
+        if (mNetworkKey == null) return mEstimations.computeIfAbsent(server, key -> new Estimation());
+        return mEstimations.computeIfAbsent(server, key -> Estimation.deserialize(mSharedPreferences.getString(getPreferenceKey(key), null)));
+    }
+
+    private String getPreferenceKey(String server) {
+        return SharedPreferencesHelper.KEY_RTT_HISTORY_PREFIX + mNetworkKey + "|" + server;
+    }
+
+    //Remove estimations from networks that haven't been seen in a long time to keep the preferences file bounded.
+    private void pruneStaleEntries() {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(SharedPreferencesHelper.KEY_RTT_HISTORY_PREFIX) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+
+            Estimation estimation = Estimation.deserialize((String) entry.getValue());
+            if (now - estimation.mLastUpdated > STALE_ENTRY_AGE) {
+                if (editor == null) editor = mSharedPreferences.edit();
+                editor.remove(entry.getKey());
+            }
+        }
+        if (editor != null) editor.apply();
+    }
+
+    //Mutable RTT state of a single server. Access is synchronized on the object itself.
+    private static class Estimation {
+        private static final String SEPARATOR = ";";
+
+        double mSrtt = -1;
+        double mRttVar = 0;
+        long mRto = INITIAL_TIMEOUT;
+        int mConsecutiveFailures = 0;
+        long mRetryAfter = 0;
+        long mLastUpdated = 0;
+
+        String serialize() {
+            return mSrtt + SEPARATOR + mRttVar + SEPARATOR + mRto + SEPARATOR + mConsecutiveFailures + SEPARATOR + mRetryAfter + SEPARATOR + mLastUpdated;
+        }
+
+        static Estimation deserialize(String value) {
+            Estimation estimation = new Estimation();
+            if (value == null) return estimation;
+
+            String[] fields = value.split(SEPARATOR);
+            if (fields.length != 6) return estimation;
+
+            try {
+                estimation.mSrtt = Double.parseDouble(fields[0]);
+                estimation.mRttVar = Double.parseDouble(fields[1]);
+                estimation.mRto = Long.parseLong(fields[2]);
+                estimation.mConsecutiveFailures = Integer.parseInt(fields[3]);
+                estimation.mRetryAfter = Long.parseLong(fields[4]);
+                estimation.mLastUpdated = Long.parseLong(fields[5]);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "MMA: Discarding malformed RTT history entry: " + value);
+                return new Estimation();
+            }
+            return estimation;
+        }
+    }
+}
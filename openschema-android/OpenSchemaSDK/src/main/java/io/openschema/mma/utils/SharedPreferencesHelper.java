@@ -42,6 +42,26 @@ public class SharedPreferencesHelper {
      */
     public static final String KEY_LAST_HOURLY_USAGE_TIMESTAMP = "key_last_hourly_usage_timestamp";
 
+    /**
+     * Prefix of the keys used to save the smoothed RTT of each (network, server) pair tested by DnsTester.
+     */
+    public static final String KEY_RTT_HISTORY_PREFIX = "key_rtt_history_";
+
+    /**
+     * Key used to save the day currently being charged by throughput tests.
+     */
+    public static final String KEY_THROUGHPUT_DAY = "key_throughput_day";
+
+    /**
+     * Key used to save the amount of bytes used by throughput tests during the current day.
+     */
+    public static final String KEY_THROUGHPUT_BYTES_USED = "key_throughput_bytes_used";
+
+    /**
+     * Key used to save the grid cells accumulated since the last upload, in case the process dies before it.
+     */
+    public static final String KEY_GRID_CHECKPOINT = "key_grid_checkpoint";
+
     /**
      * Get a SharedPreferences instance using the library's file key.
      */
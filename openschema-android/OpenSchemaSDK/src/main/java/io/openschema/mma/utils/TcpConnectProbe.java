@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Measures the time to establish a TCP connection (SYN to SYN-ACK) with an endpoint.
+ * Every attempt requires a new handshake, so connection reuse doesn't apply to this probe.
+ */
+public class TcpConnectProbe extends QualityProbe {
+
+    public TcpConnectProbe(String host, int port) {
+        super(host, port);
+    }
+
+    @Override
+    public String getType() { return "tcpConnect"; }
+
+    @Override
+    protected Session openSession(ProbeContext context) throws IOException {
+        InetSocketAddress address = resolveAddress(context);
+        return new Session() {
+            @Override
+            protected long measure(ProbeContext context, int timeout) throws IOException {
+                long startTime = System.nanoTime();
+                Socket socket = context.connect(address, timeout);
+                long rtt = elapsedMillis(startTime);
+                socket.close();
+                return rtt;
+            }
+        };
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellIdentityNr;
+import android.telephony.CellIdentityWcdma;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoCdma;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoNr;
+import android.telephony.CellInfoWcdma;
+import android.telephony.CellSignalStrength;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.UnaryOperator;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+
+/**
+ * Keeps the latest state of the registered cell, updated by the telephony callbacks instead of querying the modem
+ * every time a collector needs it. Readers get an immutable {@link CellSnapshot} without blocking.
+ * <p>
+ * Listens for cell info, signal strength, service state and data connection changes on the collectors' thread while
+ * {@link #start()} is active. Until then, or if no callback arrived yet, the snapshot is built once synchronously.
+ */
+public class TelephonyStateCache {
+
+    private static final String TAG = "TelephonyStateCache";
+
+    public static final long UNKNOWN_CELL_ID = -1;
+
+    //Some devices only report cell info when asked, so an update is requested once the cell info gets this old
+    private static final long CELL_INFO_MAX_AGE = 1000 * 60; //60 seconds
+
+    //Range of valid GSM signal strength values in ASU, 99 meaning unknown. Converted as dBm = -113 + 2 * ASU (3GPP TS 27.007)
+    private static final int GSM_ASU_MAX = 31;
+    private static final int INVALID_CDMA_DBM = -120;
+
+    private static TelephonyStateCache _instance = null;
+
+    /**
+     * Call to retrieve a {@link TelephonyStateCache} object.
+     */
+    public static TelephonyStateCache getInstance(Context context) {
+        if (_instance == null) {
+            synchronized (TelephonyStateCache.class) {
+                if (_instance == null) {
+                    _instance = new TelephonyStateCache(context.getApplicationContext());
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private final Context mContext;
+    private final TelephonyManager mTelephonyManager;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile CellSnapshot mSnapshot = null;
+    private Handler mHandler = null;
+    private PhoneStateListener mPhoneStateListener = null;
+    private boolean mIsCellInfoUpdatePending = false;
+
+    private TelephonyStateCache(Context appContext) {
+        mContext = appContext;
+        mTelephonyManager = (TelephonyManager) appContext.getSystemService(Context.TELEPHONY_SERVICE);
+    }
+
+    /**
+     * Start listening for telephony changes on the collectors' thread.
+     */
+    public synchronized void start() {
+        if (mHandler != null) return;
+        Log.d(TAG, "MMA: Starting telephony listener");
+
+        Handler handler = new Handler(ExecutorManager.getInstance().getCollectorLooper());
+        mHandler = handler;
+        //The listener delivers its callbacks on the looper of the thread creating it
+        handler.post(() -> {
+            synchronized (TelephonyStateCache.this) {
+                if (mHandler != handler) return;
+                mPhoneStateListener = new SnapshotListener();
+                mTelephonyManager.listen(mPhoneStateListener, getListenEvents());
+            }
+        });
+    }
+
+    /**
+     * Stop listening for telephony changes. The last snapshot is kept.
+     */
+    public synchronized void stop() {
+        if (mHandler == null) return;
+        Log.d(TAG, "MMA: Stopping telephony listener");
+
+        if (mPhoneStateListener != null) {
+            mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mPhoneStateListener = null;
+        }
+        mHandler = null;
+        mIsCellInfoUpdatePending = false;
+    }
+
+    /**
+     * Register a listener to be notified on the collectors' thread every time the snapshot is replaced.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the latest state of the registered cell.
+     */
+    @NonNull
+    public CellSnapshot getSnapshot() {
+        CellSnapshot snapshot = mSnapshot;
+        if (snapshot == null) snapshot = getCurrentSnapshot();
+
+        if (SystemClock.elapsedRealtime() - snapshot.getCellInfoTimestamp() > CELL_INFO_MAX_AGE) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                requestCellInfoUpdate();
+            } else {
+                snapshot = queryCellInfo(snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private synchronized CellSnapshot getCurrentSnapshot() {
+        if (mSnapshot == null) {
+            Log.d(TAG, "MMA: No telephony callback received yet, querying cell info");
+            mSnapshot = queryCurrentState();
+        }
+        return mSnapshot;
+    }
+
+    //Listeners are notified outside the lock, on the collectors' thread where every callback arrives
+    private void updateSnapshot(UnaryOperator<CellSnapshot> update) {
+        CellSnapshot previous, current;
+        synchronized (this) {
+            previous = getCurrentSnapshot();
+            current = update.apply(previous);
+            mSnapshot = current;
+        }
+        notifyListeners(previous, current);
+    }
+
+    private void notifyListeners(CellSnapshot previous, CellSnapshot current) {
+        for (Listener listener : mListeners) {
+            listener.onSnapshotChanged(previous, current);
+        }
+    }
+
+    //Before Q the modem can't be asked for an update, so the cell info is read again on the caller's thread. Listeners
+    //are still notified on the collectors' thread.
+    @SuppressLint("MissingPermission")
+    private CellSnapshot queryCellInfo(CellSnapshot staleSnapshot) {
+        if (!isCellInfoAvailable()) return staleSnapshot;
+        List<CellInfo> allCellInfo = mTelephonyManager.getAllCellInfo();
+        //Same as the callback, the last known cell is kept if the modem doesn't report any list
+        if (allCellInfo == null) return staleSnapshot;
+
+        CellSnapshot previous, current;
+        Handler handler;
+        synchronized (this) {
+            previous = getCurrentSnapshot();
+            current = previous.withCellInfo(allCellInfo);
+            mSnapshot = current;
+            handler = mHandler;
+        }
+        if (handler != null) handler.post(() -> notifyListeners(previous, current));
+        return current;
+    }
+
+    @SuppressLint("MissingPermission")
+    private CellSnapshot queryCurrentState() {
+        int dataNetworkType = TelephonyManager.NETWORK_TYPE_UNKNOWN;
+        if (isPermissionGranted(Manifest.permission.READ_PHONE_STATE)) {
+            dataNetworkType = mTelephonyManager.getDataNetworkType();
+        }
+
+        List<CellInfo> allCellInfo = null;
+        if (isCellInfoAvailable()) {
+            allCellInfo = mTelephonyManager.getAllCellInfo();
+        }
+        return CellSnapshot.EMPTY.withDataNetworkType(dataNetworkType).withCellInfo(allCellInfo);
+    }
+
+    //Asks the modem for fresh cell info without waiting for it. Results arrive through the same path as the callbacks.
+    @SuppressLint("MissingPermission")
+    private synchronized void requestCellInfoUpdate() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || mHandler == null || mIsCellInfoUpdatePending || !isCellInfoAvailable()) {
+            return;
+        }
+
+        mIsCellInfoUpdatePending = true;
+        Handler handler = mHandler;
+        mTelephonyManager.requestCellInfoUpdate(handler::post, new TelephonyManager.CellInfoCallback() {
+            @Override
+            public void onCellInfo(@NonNull List<CellInfo> cellInfo) {
+                synchronized (TelephonyStateCache.this) {
+                    mIsCellInfoUpdatePending = false;
+                }
+                updateSnapshot(snapshot -> snapshot.withCellInfo(cellInfo));
+            }
+
+            @Override
+            public void onError(int errorCode, Throwable detail) {
+                Log.d(TAG, "MMA: Cell info update failed: " + errorCode);
+                synchronized (TelephonyStateCache.this) {
+                    mIsCellInfoUpdatePending = false;
+                }
+            }
+        });
+    }
+
+    private int getListenEvents() {
+        int events = PhoneStateListener.LISTEN_SIGNAL_STRENGTHS |
+                PhoneStateListener.LISTEN_SERVICE_STATE |
+                PhoneStateListener.LISTEN_DATA_CONNECTION_STATE;
+        if (isPermissionGranted(Manifest.permission.ACCESS_FINE_LOCATION)) {
+            events |= PhoneStateListener.LISTEN_CELL_INFO;
+        }
+        return events;
+    }
+
+    // Requires location permission & location services to be enabled, otherwise returned list will be empty
+    private boolean isCellInfoAvailable() {
+        return isPermissionGranted(Manifest.permission.ACCESS_FINE_LOCATION) && LocationServicesChecker.isLocationEnabled(mContext);
+    }
+
+    private boolean isPermissionGranted(String permission) {
+        return ContextCompat.checkSelfPermission(mContext, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Converts the Data Network Type int value to a Radio Technology string
+     */
+    public static String getRadioTechnologyString(int dataNetworkType) {
+        switch (dataNetworkType) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return "2G";
+            case TelephonyManager.NETWORK_TYPE_UMTS:
+            case TelephonyManager.NETWORK_TYPE_EVDO_0:
+            case TelephonyManager.NETWORK_TYPE_EVDO_A:
+            case TelephonyManager.NETWORK_TYPE_HSDPA:
+            case TelephonyManager.NETWORK_TYPE_HSUPA:
+            case TelephonyManager.NETWORK_TYPE_HSPA:
+            case TelephonyManager.NETWORK_TYPE_EVDO_B:
+            case TelephonyManager.NETWORK_TYPE_EHRPD:
+            case TelephonyManager.NETWORK_TYPE_HSPAP:
+                return "3G";
+            case TelephonyManager.NETWORK_TYPE_LTE:
+                return "4G";
+            case TelephonyManager.NETWORK_TYPE_NR:
+                return "5G";
+            default:
+                return "Unknown";
+        }
+    }
+
+    //Each callback replaces the snapshot with a copy holding the new value
+    private class SnapshotListener extends PhoneStateListener {
+
+        @Override
+        public void onCellInfoChanged(List<CellInfo> cellInfo) {
+            //Some devices report a null list here, the last known cell is kept until the next update
+            if (cellInfo == null) return;
+            updateSnapshot(snapshot -> snapshot.withCellInfo(cellInfo));
+        }
+
+        @Override
+        public void onSignalStrengthsChanged(android.telephony.SignalStrength signalStrength) {
+            if (signalStrength == null) return;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                int dbm = readLegacyDbm(signalStrength);
+                //The dBm read from the cell info is kept when the legacy values don't cover the current technology
+                if (dbm == 0) return;
+                updateSnapshot(snapshot -> snapshot.withSignalStrength(dbm, snapshot.getCellSignalStrengths()));
+                return;
+            }
+            List<CellSignalStrength> cellSignalStrengths = Collections.unmodifiableList(new ArrayList<>(signalStrength.getCellSignalStrengths()));
+            int dbm = cellSignalStrengths.isEmpty() ? 0 : cellSignalStrengths.get(0).getDbm();
+            updateSnapshot(snapshot -> snapshot.withSignalStrength(dbm, cellSignalStrengths));
+        }
+
+        //Only GSM and CDMA values are public before Q. Returns 0 if neither is valid.
+        @SuppressWarnings("deprecation")
+        private int readLegacyDbm(android.telephony.SignalStrength signalStrength) {
+            if (signalStrength.isGsm()) {
+                int asu = signalStrength.getGsmSignalStrength();
+                return asu >= 0 && asu <= GSM_ASU_MAX ? -113 + 2 * asu : 0;
+            }
+            int dbm = signalStrength.getCdmaDbm();
+            if (dbm <= INVALID_CDMA_DBM || dbm >= 0) dbm = signalStrength.getEvdoDbm();
+            return dbm <= INVALID_CDMA_DBM || dbm >= 0 ? 0 : dbm;
+        }
+
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            if (serviceState == null) return;
+            boolean inService = serviceState.getState() == ServiceState.STATE_IN_SERVICE;
+            updateSnapshot(snapshot -> snapshot.withInService(inService));
+        }
+
+        @Override
+        public void onDataConnectionStateChanged(int state, int networkType) {
+            updateSnapshot(snapshot -> snapshot.withDataNetworkType(networkType));
+        }
+    }
+
+    public interface Listener {
+        void onSnapshotChanged(CellSnapshot previous, CellSnapshot current);
+    }
+
+    /**
+     * Immutable state of the registered cell. Values that couldn't be read are null, {@link #UNKNOWN_CELL_ID} or 0 dBm.
+     */
+    public static class CellSnapshot {
+
+        private static final CellSnapshot EMPTY = new CellSnapshot(TelephonyManager.NETWORK_TYPE_UNKNOWN, true,
+                Collections.emptyList(), null, null, null, UNKNOWN_CELL_ID, 0, Collections.emptyList(), 0);
+
+        private final int mDataNetworkType;
+        private final boolean mInService;
+        private final List<CellInfo> mAllCellInfo;
+        private final CellInfo mRegisteredCellInfo;
+        private final String mMobileCountryCode;
+        private final String mMobileNetworkCode;
+        private final long mCellIdentity;
+        private final int mDbm;
+        private final List<CellSignalStrength> mCellSignalStrengths;
+        private final long mCellInfoTimestamp;
+
+        private CellSnapshot(int dataNetworkType, boolean inService, List<CellInfo> allCellInfo, CellInfo registeredCellInfo,
+                             String mobileCountryCode, String mobileNetworkCode, long cellIdentity, int dbm,
+                             List<CellSignalStrength> cellSignalStrengths, long cellInfoTimestamp) {
+            mDataNetworkType = dataNetworkType;
+            mInService = inService;
+            mAllCellInfo = allCellInfo;
+            mRegisteredCellInfo = registeredCellInfo;
+            mMobileCountryCode = mobileCountryCode;
+            mMobileNetworkCode = mobileNetworkCode;
+            mCellIdentity = cellIdentity;
+            mDbm = dbm;
+            mCellSignalStrengths = cellSignalStrengths;
+            mCellInfoTimestamp = cellInfoTimestamp;
+        }
+
+        private CellSnapshot withDataNetworkType(int dataNetworkType) {
+            return new CellSnapshot(dataNetworkType, mInService, mAllCellInfo, mRegisteredCellInfo,
+                    mMobileCountryCode, mMobileNetworkCode, mCellIdentity, mDbm, mCellSignalStrengths, mCellInfoTimestamp);
+        }
+
+        private CellSnapshot withInService(boolean inService) {
+            return new CellSnapshot(mDataNetworkType, inService, mAllCellInfo, mRegisteredCellInfo,
+                    mMobileCountryCode, mMobileNetworkCode, mCellIdentity, mDbm, mCellSignalStrengths, mCellInfoTimestamp);
+        }
+
+        private CellSnapshot withSignalStrength(int dbm, List<CellSignalStrength> cellSignalStrengths) {
+            return new CellSnapshot(mDataNetworkType, mInService, mAllCellInfo, mRegisteredCellInfo,
+                    mMobileCountryCode, mMobileNetworkCode, mCellIdentity, dbm, cellSignalStrengths, mCellInfoTimestamp);
+        }
+
+        //The cell list is only walked here, once per update, instead of once per reader
+        private CellSnapshot withCellInfo(List<CellInfo> allCellInfo) {
+            long timestamp = SystemClock.elapsedRealtime();
+            if (allCellInfo == null) {
+                return new CellSnapshot(mDataNetworkType, mInService, Collections.emptyList(), null,
+                        null, null, UNKNOWN_CELL_ID, mDbm, mCellSignalStrengths, timestamp);
+            }
+
+            CellInfo registeredCellInfo = null;
+            for (int i = 0; i < allCellInfo.size(); i++) {
+                CellInfo cellInfo = allCellInfo.get(i);
+                //TODO: Can there be more than 1 registered network?
+                if (cellInfo != null && cellInfo.isRegistered()) {
+                    registeredCellInfo = cellInfo;
+                    break;
+                }
+            }
+
+            List<CellInfo> cellInfoCopy = Collections.unmodifiableList(new ArrayList<>(allCellInfo));
+            if (registeredCellInfo == null) {
+                return new CellSnapshot(mDataNetworkType, mInService, cellInfoCopy, null,
+                        null, null, UNKNOWN_CELL_ID, mDbm, mCellSignalStrengths, timestamp);
+            }
+
+            String[] codes = new String[2];
+            long cellIdentity = readCellIdentity(registeredCellInfo, codes);
+            return new CellSnapshot(mDataNetworkType, mInService, cellInfoCopy, registeredCellInfo,
+                    codes[0], codes[1], cellIdentity, readDbm(registeredCellInfo), mCellSignalStrengths, timestamp);
+        }
+
+        //Returns the cell ID and fills the country & network codes, if the cell reports them
+        private static long readCellIdentity(CellInfo cellInfo, String[] codes) {
+            if (cellInfo instanceof CellInfoCdma) {
+                //TODO: Is this the correct equivalent?
+                return toCellIdentity(((CellInfoCdma) cellInfo).getCellIdentity().getBasestationId());
+            } else if (cellInfo instanceof CellInfoGsm) {
+                CellIdentityGsm cellIdentity = ((CellInfoGsm) cellInfo).getCellIdentity();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    codes[0] = cellIdentity.getMccString();
+                    codes[1] = cellIdentity.getMncString();
+                } else {
+                    codes[0] = toCodeString(cellIdentity.getMcc());
+                    codes[1] = toCodeString(cellIdentity.getMnc());
+                }
+                return toCellIdentity(cellIdentity.getCid());
+            } else if (cellInfo instanceof CellInfoLte) {
+                CellIdentityLte cellIdentity = ((CellInfoLte) cellInfo).getCellIdentity();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    codes[0] = cellIdentity.getMccString();
+                    codes[1] = cellIdentity.getMncString();
+                } else {
+                    codes[0] = toCodeString(cellIdentity.getMcc());
+                    codes[1] = toCodeString(cellIdentity.getMnc());
+                }
+                return toCellIdentity(cellIdentity.getCi());
+            } else if (cellInfo instanceof CellInfoWcdma) {
+                CellIdentityWcdma cellIdentity = ((CellInfoWcdma) cellInfo).getCellIdentity();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    codes[0] = cellIdentity.getMccString();
+                    codes[1] = cellIdentity.getMncString();
+                } else {
+                    codes[0] = toCodeString(cellIdentity.getMcc());
+                    codes[1] = toCodeString(cellIdentity.getMnc());
+                }
+                return toCellIdentity(cellIdentity.getCid());
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                    cellInfo instanceof CellInfoNr) {
+                CellIdentityNr cellIdentity = (CellIdentityNr) ((CellInfoNr) cellInfo).getCellIdentity();
+                codes[0] = cellIdentity.getMccString();
+                codes[1] = cellIdentity.getMncString();
+                long nci = cellIdentity.getNci();
+                //The NR cell ID is reported as a long, with its own unavailable value
+                return nci == Long.MAX_VALUE || nci < 0 ? UNKNOWN_CELL_ID : nci;
+            }
+            return UNKNOWN_CELL_ID;
+        }
+
+        //Cells report CellInfo.UNAVAILABLE (Integer.MAX_VALUE) when their ID is unknown, and -1 on older devices
+        private static long toCellIdentity(int cellId) {
+            return cellId == Integer.MAX_VALUE || cellId < 0 ? UNKNOWN_CELL_ID : cellId;
+        }
+
+        private static String toCodeString(int code) {
+            return code == Integer.MAX_VALUE || code < 0 ? null : Integer.toString(code);
+        }
+
+        private static int readDbm(CellInfo cellInfo) {
+            if (cellInfo instanceof CellInfoCdma) {
+                return ((CellInfoCdma) cellInfo).getCellSignalStrength().getDbm();
+            } else if (cellInfo instanceof CellInfoGsm) {
+                return ((CellInfoGsm) cellInfo).getCellSignalStrength().getDbm();
+            } else if (cellInfo instanceof CellInfoLte) {
+                return ((CellInfoLte) cellInfo).getCellSignalStrength().getDbm();
+            } else if (cellInfo instanceof CellInfoWcdma) {
+                return ((CellInfoWcdma) cellInfo).getCellSignalStrength().getDbm();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+                    cellInfo instanceof CellInfoNr) {
+                return ((CellInfoNr) cellInfo).getCellSignalStrength().getDbm();
+            }
+            return 0;
+        }
+
+        public int getDataNetworkType() { return mDataNetworkType; }
+        public String getRadioTechnology() { return getRadioTechnologyString(mDataNetworkType); }
+        public boolean isInService() { return mInService; }
+        /**
+         * Every cell reported by the modem, registered and neighboring. The list can't be modified.
+         */
+        public List<CellInfo> getAllCellInfo() { return mAllCellInfo; }
+        public CellInfo getRegisteredCellInfo() { return mRegisteredCellInfo; }
+        public String getMobileCountryCode() { return mMobileCountryCode; }
+        public String getMobileNetworkCode() { return mMobileNetworkCode; }
+        public long getCellIdentity() { return mCellIdentity; }
+        public int getDbm() { return mDbm; }
+        /**
+         * Latest signal strengths pushed for the serving cells, updated more often than the cell info. Always empty
+         * before Android Q, where only {@link #getDbm()} follows the signal strength updates.
+         */
+        public List<CellSignalStrength> getCellSignalStrengths() { return mCellSignalStrengths; }
+        /**
+         * {@link SystemClock#elapsedRealtime()} of the last cell info update.
+         */
+        public long getCellInfoTimestamp() { return mCellInfoTimestamp; }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the data used by throughput tests during the current day so they stay under the configured cap.
+ * The usage is persisted so that the cap survives restarts of the service.
+ * <p>
+ * Measurements can run concurrently, so tests reserve their bytes before starting and settle the reservation with
+ * the bytes actually transferred once they finish. The usage is updated through compare-and-set, so two tests can't
+ * be granted the same remaining bytes.
+ */
+public class ThroughputBudget {
+
+    private static ThroughputBudget _instance = null;
+
+    /**
+     * Call to retrieve a {@link ThroughputBudget} object.
+     */
+    public static ThroughputBudget getInstance(Context context) {
+        if (_instance == null) {
+            synchronized (ThroughputBudget.class) {
+                if (_instance == null) {
+                    _instance = new ThroughputBudget(context.getApplicationContext());
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private final SharedPreferences mSharedPreferences;
+    private final AtomicReference<DailyUsage> mUsage;
+
+    private ThroughputBudget(Context appContext) {
+        mSharedPreferences = SharedPreferencesHelper.getInstance(appContext);
+        mUsage = new AtomicReference<>(new DailyUsage(
+                mSharedPreferences.getLong(SharedPreferencesHelper.KEY_THROUGHPUT_DAY, -1),
+                mSharedPreferences.getLong(SharedPreferencesHelper.KEY_THROUGHPUT_BYTES_USED, 0)));
+    }
+
+    /**
+     * Charge up to maxBytes of the remaining budget to the current day, before running a test.
+     *
+     * @return The reservation, or null if less than minBytes remain, in which case nothing is charged
+     */
+    public Reservation reserve(long dailyByteCap, long minBytes, long maxBytes) {
+        long today = getCurrentDay();
+        while (true) {
+            DailyUsage usage = mUsage.get();
+            long usedBytes = usage.getBytes(today);
+            long reservedBytes = Math.min(maxBytes, dailyByteCap - usedBytes);
+            if (reservedBytes <= 0 || reservedBytes < minBytes) return null;
+
+            if (mUsage.compareAndSet(usage, new DailyUsage(today, usedBytes + reservedBytes))) {
+                persist();
+                return new Reservation(today, reservedBytes);
+            }
+        }
+    }
+
+    /**
+     * Replace a reservation with the bytes the test actually transferred, which can be slightly above the reserved
+     * amount. Reservations from a previous day stay charged to that day.
+     */
+    public void settle(Reservation reservation, long transferredBytes) {
+        long difference = transferredBytes - reservation.mBytes;
+        if (difference == 0) return;
+
+        while (true) {
+            DailyUsage usage = mUsage.get();
+            if (usage.mDay != reservation.mDay) return;
+
+            if (mUsage.compareAndSet(usage, new DailyUsage(usage.mDay, Math.max(0, usage.mBytes + difference)))) {
+                persist();
+                return;
+            }
+        }
+    }
+
+    //Saves the latest usage. Serialized so a thread can't overwrite a newer value with the one it set earlier.
+    private synchronized void persist() {
+        DailyUsage usage = mUsage.get();
+        mSharedPreferences.edit()
+                .putLong(SharedPreferencesHelper.KEY_THROUGHPUT_DAY, usage.mDay)
+                .putLong(SharedPreferencesHelper.KEY_THROUGHPUT_BYTES_USED, usage.mBytes)
+                .apply();
+    }
+
+    private long getCurrentDay() {
+        return CalendarUtils.getCurrentDayCalendar().getTimeInMillis();
+    }
+
+    /**
+     * Bytes granted to a single test by {@link #reserve(long, long, long)}.
+     */
+    public static class Reservation {
+        private final long mDay;
+        private final long mBytes;
+
+        private Reservation(long day, long bytes) {
+            mDay = day;
+            mBytes = bytes;
+        }
+
+        public long getBytes() { return mBytes; }
+    }
+
+    //Immutable so the day and its bytes are always swapped together
+    private static class DailyUsage {
+        private final long mDay;
+        private final long mBytes;
+
+        private DailyUsage(long day, long bytes) {
+            mDay = day;
+            mBytes = bytes;
+        }
+
+        //Usage saved for a previous day doesn't count
+        private long getBytes(long day) {
+            return mDay == day ? mBytes : 0;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Results of a single direction of a throughput test. Goodput values are in megabits per second.
+ */
+public class ThroughputResult {
+
+    private final long mTransferredBytes;
+    private final long mDurationMillis;
+    private final long mRampUpMillis;
+    private final double mGoodputP10;
+    private final double mGoodputP50;
+    private final double mGoodputP90;
+
+    public ThroughputResult(long transferredBytes, long durationMillis, long rampUpMillis, double goodputP10, double goodputP50, double goodputP90) {
+        mTransferredBytes = transferredBytes;
+        mDurationMillis = durationMillis;
+        mRampUpMillis = rampUpMillis;
+        mGoodputP10 = goodputP10;
+        mGoodputP50 = goodputP50;
+        mGoodputP90 = goodputP90;
+    }
+
+    /**
+     * Total payload bytes transferred across every stream, which is what's charged to the daily byte cap.
+     */
+    public long getTransferredBytes() { return mTransferredBytes; }
+
+    public long getDurationMillis() { return mDurationMillis; }
+
+    /**
+     * Time it took until the transfer first reached 90% of its sustained goodput.
+     */
+    public long getRampUpMillis() { return mRampUpMillis; }
+
+    public double getGoodputP10() { return mGoodputP10; }
+
+    public double getGoodputP50() { return mGoodputP50; }
+
+    public double getGoodputP90() { return mGoodputP90; }
+}
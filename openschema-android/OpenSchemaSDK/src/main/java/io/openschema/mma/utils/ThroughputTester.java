@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures download and upload goodput against HTTP endpoints using several parallel streams.
+ * Each direction stops once its maximum duration or byte cap is reached, whichever comes first.
+ * <p>
+ * Received data is read into a fixed buffer per stream and discarded, and uploads repeatedly send the same
+ * buffer, so memory use doesn't depend on the amount of data transferred.
+ */
+public class ThroughputTester {
+
+    public static final int DEFAULT_STREAMS = 4;
+    public static final long DEFAULT_MAX_DURATION = 8000;
+    public static final long DEFAULT_MAX_BYTES = 20 * 1024 * 1024;
+
+    private static final long SAMPLE_INTERVAL = 100;
+    private static final long MIN_PARTIAL_SAMPLE = 10;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    //The transfer has ramped up once an interval reaches this fraction of the sustained (90th percentile) goodput
+    private static final double RAMP_UP_FRACTION = 0.9;
+
+    private final URL mDownloadUrl;
+    private final URL mUploadUrl;
+    private int mStreams = DEFAULT_STREAMS;
+    private long mMaxDuration = DEFAULT_MAX_DURATION;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * @param downloadUrl URL returning a large response body, or null to skip the download test
+     * @param uploadUrl   URL accepting large POST requests, or null to skip the upload test
+     */
+    public ThroughputTester(String downloadUrl, String uploadUrl) throws MalformedURLException {
+        mDownloadUrl = downloadUrl == null ? null : new URL(downloadUrl);
+        mUploadUrl = uploadUrl == null ? null : new URL(uploadUrl);
+    }
+
+    /**
+     * @param streams Amount of parallel connections used on each direction
+     */
+    public ThroughputTester setStreams(int streams) {
+        mStreams = Math.max(1, streams);
+        return this;
+    }
+
+    /**
+     * @param durationMillis Maximum time each direction can take, in milliseconds
+     */
+    public ThroughputTester setMaxDuration(long durationMillis) {
+        mMaxDuration = Math.max(SAMPLE_INTERVAL, durationMillis);
+        return this;
+    }
+
+    /**
+     * @param maxBytes Maximum amount of bytes transferred on each direction
+     */
+    public ThroughputTester setMaxBytes(long maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+        return this;
+    }
+
+    public long getMaxDuration() { return mMaxDuration; }
+
+    public long getMaxBytes() { return mMaxBytes; }
+
+    public boolean hasDownload() { return mDownloadUrl != null; }
+
+    public boolean hasUpload() { return mUploadUrl != null; }
+
+    /**
+     * Run the download test.
+     *
+     * @param byteCap Bytes allowed for this test, lowered to the configured maximum if needed
+     */
+    public ThroughputResult testDownload(ProbeContext context, long byteCap) throws InterruptedException {
+        return runTest(context, new Transfer(context, mDownloadUrl, Math.min(byteCap, mMaxBytes), false));
+    }
+
+    /**
+     * Run the upload test.
+     *
+     * @param byteCap Bytes allowed for this test, lowered to the configured maximum if needed
+     */
+    public ThroughputResult testUpload(ProbeContext context, long byteCap) throws InterruptedException {
+        return runTest(context, new Transfer(context, mUploadUrl, Math.min(byteCap, mMaxBytes), true));
+    }
+
+    private ThroughputResult runTest(ProbeContext context, Transfer transfer) throws InterruptedException {
+        if (transfer.mByteCap <= 0 || context.isExpired()) {
+            return new ThroughputResult(0, 0, 0, 0, 0, 0);
+        }
+
+        long duration = Math.min(mMaxDuration, context.getRemainingMillis());
+        double[] samples = new double[(int) (duration / SAMPLE_INTERVAL) + 1];
+        int sampleCount = 0;
+
+        //Streams run on the shared probe executor, the latch tells when all of them have stopped
+        ExecutorService executorService = ExecutorManager.getInstance().getProbeExecutor();
+        CountDownLatch finishedStreams = new CountDownLatch(mStreams);
+        Future<?>[] streams = new Future<?>[mStreams];
+        for (int i = 0; i < mStreams; i++) {
+            try {
+                streams[i] = executorService.submit(() -> {
+                    try {
+                        transfer.run();
+                    } finally {
+                        finishedStreams.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //The executor was shut down along with the service, this stream never runs
+                finishedStreams.countDown();
+            }
+        }
+
+        //Sample the combined goodput of every stream at a fixed interval
+        long startTime = System.nanoTime();
+        long previousTime = startTime;
+        long previousBytes = 0;
+        try {
+            while (!transfer.isStopped() && sampleCount < samples.length) {
+                if (finishedStreams.await(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS)) break;
+
+                long now = System.nanoTime();
+                long bytes = transfer.getTransferredBytes();
+                samples[sampleCount++] = toMegabitsPerSecond(bytes - previousBytes, now - previousTime);
+                previousTime = now;
+                previousBytes = bytes;
+            }
+
+            //Streams that stopped before the end of an interval, e.g. due to the byte cap, still count for its partial length
+            long now = System.nanoTime();
+            long bytes = transfer.getTransferredBytes();
+            if (bytes > previousBytes && (sampleCount == 0 || now - previousTime >= TimeUnit.MILLISECONDS.toNanos(MIN_PARTIAL_SAMPLE)) && sampleCount < samples.length) {
+                samples[sampleCount++] = toMegabitsPerSecond(bytes - previousBytes, now - previousTime);
+            }
+        } finally {
+            //Let streams finish their current request before closing what's still blocked
+            transfer.stop();
+            if (!finishedStreams.await(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS)) {
+                transfer.closeConnections();
+                for (Future<?> stream : streams) {
+                    if (stream != null) stream.cancel(true);
+                }
+            }
+        }
+        //Streams cancelled before they started never count down, so this wait is bounded
+        finishedStreams.await(1, TimeUnit.SECONDS);
+
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        return summarize(samples, sampleCount, transfer.getTransferredBytes(), durationMillis);
+    }
+
+    private ThroughputResult summarize(double[] samples, int sampleCount, long transferredBytes, long durationMillis) {
+        if (sampleCount == 0) {
+            return new ThroughputResult(transferredBytes, durationMillis, 0, 0, 0, 0);
+        }
+
+        double[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        double sustainedGoodput = getPercentile(sorted, sorted.length, 0.9);
+
+        int rampUpIndex = 0;
+        while (rampUpIndex < sampleCount - 1 && samples[rampUpIndex] < sustainedGoodput * RAMP_UP_FRACTION) {
+            rampUpIndex++;
+        }
+
+        //Percentiles only use the intervals after the ramp-up
+        int steadyCount = sampleCount - rampUpIndex;
+        System.arraycopy(samples, rampUpIndex, sorted, 0, steadyCount);
+        Arrays.sort(sorted, 0, steadyCount);
+
+        return new ThroughputResult(transferredBytes, durationMillis, rampUpIndex * SAMPLE_INTERVAL,
+                getPercentile(sorted, steadyCount, 0.1), getPercentile(sorted, steadyCount, 0.5), getPercentile(sorted, steadyCount, 0.9));
+    }
+
+    //Nearest-rank percentile over the first count values of a sorted array
+    private static double getPercentile(double[] sorted, int count, double percentile) {
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private static double toMegabitsPerSecond(long bytes, long nanos) {
+        if (nanos <= 0) return 0;
+        return (bytes * 8.0) / (nanos / 1000.0);
+    }
+
+    /**
+     * Work done by every stream of a test. Each stream keeps making requests until the test is stopped.
+     */
+    private static class Transfer implements Runnable {
+        private final ProbeContext mContext;
+        private final URL mUrl;
+        private final long mByteCap;
+        private final boolean mIsUpload;
+        private final AtomicLong mTransferredBytes = new AtomicLong(0);
+        private final Set<HttpURLConnection> mActiveConnections = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        private volatile boolean mStopped = false;
+
+        Transfer(ProbeContext context, URL url, long byteCap, boolean isUpload) {
+            mContext = context;
+            mUrl = url;
+            mByteCap = byteCap;
+            mIsUpload = isUpload;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!mStopped && !Thread.currentThread().isInterrupted()) {
+                HttpURLConnection connection = null;
+                try {
+                    connection = openConnection();
+                    if (mIsUpload) {
+                        upload(connection, buffer);
+                    } else {
+                        download(connection, buffer);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    //A stream that can't transfer anything stops, the remaining ones keep going. Some implementations
+                    //throw unchecked exceptions when the connection is closed from another thread to stop the test.
+                    return;
+                } finally {
+                    if (connection != null) {
+                        mActiveConnections.remove(connection);
+                        connection.disconnect();
+                    }
+                }
+            }
+        }
+
+        private HttpURLConnection openConnection() throws IOException {
+            URLConnection urlConnection = mContext.openConnection(mUrl);
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                throw new IOException("Not an HTTP URL: " + mUrl);
+            }
+
+            HttpURLConnection connection = (HttpURLConnection) urlConnection;
+            int timeout = mContext.getAttemptTimeout(DEFAULT_MAX_DURATION);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setUseCaches(false);
+            mActiveConnections.add(connection);
+            return connection;
+        }
+
+        private void download(HttpURLConnection connection, byte[] buffer) throws IOException {
+            InputStream inputStream = connection.getInputStream();
+            try {
+                int read;
+                while (!mStopped && (read = inputStream.read(buffer)) != -1) {
+                    onTransferred(read);
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        private void upload(HttpURLConnection connection, byte[] buffer) throws IOException {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setChunkedStreamingMode(buffer.length);
+
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                while (!mStopped) {
+                    outputStream.write(buffer);
+                    onTransferred(buffer.length);
+                }
+            } finally {
+                outputStream.close();
+            }
+            connection.getResponseCode();
+        }
+
+        private void onTransferred(int bytes) {
+            if (mTransferredBytes.addAndGet(bytes) >= mByteCap) {
+                stop();
+            }
+        }
+
+        long getTransferredBytes() { return mTransferredBytes.get(); }
+
+        boolean isStopped() { return mStopped; }
+
+        void stop() {
+            mStopped = true;
+        }
+
+        //Blocked reads & writes aren't interruptible, so the connections are closed to release their streams
+        void closeConnections() {
+            synchronized (mActiveConnections) {
+                for (HttpURLConnection connection : mActiveConnections) {
+                    connection.disconnect();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Measures the time taken by the TLS handshake with an endpoint, excluding the TCP connection.
+ * When reusing connections, the TLS session is kept between attempts so they measure resumed handshakes.
+ * Otherwise the session is invalidated after each attempt to always measure full handshakes.
+ */
+public class TlsHandshakeProbe extends QualityProbe {
+
+    public static final int DEFAULT_PORT = 443;
+
+    private final SSLSocketFactory mSslSocketFactory;
+
+    public TlsHandshakeProbe(String host) {
+        this(host, DEFAULT_PORT);
+    }
+
+    public TlsHandshakeProbe(String host, int port) {
+        this(host, port, (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    /**
+     * @param sslSocketFactory Factory used to layer TLS over the connected sockets, which defines the trusted certificates
+     */
+    public TlsHandshakeProbe(String host, int port, SSLSocketFactory sslSocketFactory) {
+        super(host, port);
+        mSslSocketFactory = sslSocketFactory;
+    }
+
+    @Override
+    public String getType() { return "tlsHandshake"; }
+
+    @Override
+    protected Session openSession(ProbeContext context) throws IOException {
+        InetSocketAddress address = resolveAddress(context);
+        return new Session() {
+            @Override
+            protected long measure(ProbeContext context, int timeout) throws IOException {
+                Socket socket = context.connect(address, timeout);
+                SSLSocket sslSocket = null;
+                try {
+                    socket.setSoTimeout(timeout);
+                    sslSocket = (SSLSocket) mSslSocketFactory.createSocket(socket, mHost, mPort, true);
+
+                    long startTime = System.nanoTime();
+                    sslSocket.startHandshake();
+                    long rtt = elapsedMillis(startTime);
+
+                    if (!isReusingConnection()) {
+                        sslSocket.getSession().invalidate();
+                    }
+                    return rtt;
+                } finally {
+                    if (sslSocket != null) {
+                        sslSocket.close();
+                    } else {
+                        socket.close();
+                    }
+                }
+            }
+        };
+    }
+}
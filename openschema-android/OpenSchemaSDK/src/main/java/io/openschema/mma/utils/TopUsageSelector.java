@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+/**
+ * Selects the entries with the highest usage out of parallel rx & tx arrays, without sorting the whole input. The
+ * selector keeps its own buffer of indices, so it can be reused between selections without allocating.
+ */
+public class TopUsageSelector {
+
+    private final int[] mTopIndices;
+    private int mTopCount = 0;
+
+    /**
+     * @param maxCount Maximum amount of entries selected
+     */
+    public TopUsageSelector(int maxCount) {
+        mTopIndices = new int[maxCount];
+    }
+
+    /**
+     * Selects up to maxCount of the first count entries, ranked by descending rx + tx bytes. Entries without any
+     * usage are never selected. Entries with the same usage keep their order in the arrays, and once the selection
+     * is full only an entry with strictly higher usage than the last selected one replaces it.
+     *
+     * @return Amount of entries selected
+     */
+    public int select(long[] rxBytes, long[] txBytes, int count) {
+        //The top entries' indices are kept sorted by descending usage through insertion
+        int topCount = 0;
+        for (int i = 0; i < count; i++) {
+            long usage = rxBytes[i] + txBytes[i];
+            if (usage == 0) continue;
+            if (topCount == mTopIndices.length && usage <= getUsage(rxBytes, txBytes, mTopIndices[topCount - 1])) continue;
+
+            int position = topCount < mTopIndices.length ? topCount++ : mTopIndices.length - 1;
+            while (position > 0 && getUsage(rxBytes, txBytes, mTopIndices[position - 1]) < usage) {
+                mTopIndices[position] = mTopIndices[position - 1];
+                position--;
+            }
+            mTopIndices[position] = i;
+        }
+        mTopCount = topCount;
+        return topCount;
+    }
+
+    /**
+     * Returns the index in the arrays of the entry at the given rank of the last selection, 0 being the highest usage.
+     */
+    public int getTopIndex(int rank) {
+        if (rank >= mTopCount) throw new IndexOutOfBoundsException("Rank " + rank + " out of " + mTopCount + " selected entries");
+        return mTopIndices[rank];
+    }
+
+    /**
+     * Returns the bytes left for the entries that weren't selected: the total minus the selected entries' values.
+     * The total can include entries that aren't in the array.
+     */
+    public long getRemainder(long total, long[] values) {
+        long remainder = total;
+        for (int i = 0; i < mTopCount; i++) {
+            remainder -= values[mTopIndices[i]];
+        }
+        return remainder;
+    }
+
+    private static long getUsage(long[] rxBytes, long[] txBytes, int index) {
+        return rxBytes[index] + txBytes[index];
+    }
+}
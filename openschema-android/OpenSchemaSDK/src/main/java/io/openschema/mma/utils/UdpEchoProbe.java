@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a paced stream of sequence-numbered and timestamped UDP packets to an echo reflector, which sends every
+ * datagram back unchanged, to estimate loss, reordering, duplication and jitter the way a VoIP call would see them.
+ * <p>
+ * Sending and receiving run on the calling thread using a single preallocated direct buffer, so no
+ * memory is allocated per packet.
+ */
+public class UdpEchoProbe {
+
+    public static final int DEFAULT_PACKET_COUNT = 100;
+    public static final long DEFAULT_PACKET_INTERVAL = 20;
+    public static final int DEFAULT_PACKET_SIZE = 172;
+    public static final long DEFAULT_RECEIVE_GRACE = 1000;
+
+    //Packet header: magic, sequence number & send time in nanoseconds
+    static final int MAGIC = 0x4F534550;
+    static final int HEADER_SIZE = 4 + 4 + 8;
+
+    //RFC 3550 jitter gain
+    private static final double JITTER_GAIN = 1.0 / 16;
+
+    private final String mHost;
+    private final int mPort;
+    private int mPacketCount = DEFAULT_PACKET_COUNT;
+    private long mPacketInterval = DEFAULT_PACKET_INTERVAL;
+    private int mPacketSize = DEFAULT_PACKET_SIZE;
+    private long mReceiveGrace = DEFAULT_RECEIVE_GRACE;
+
+    public UdpEchoProbe(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public String getName() {
+        return "udpEcho:" + mHost + ":" + mPort;
+    }
+
+    /**
+     * @param packetCount Amount of packets sent on each run
+     */
+    public UdpEchoProbe setPacketCount(int packetCount) {
+        mPacketCount = Math.max(1, packetCount);
+        return this;
+    }
+
+    /**
+     * @param intervalMillis Time between consecutive packets, in milliseconds
+     */
+    public UdpEchoProbe setPacketInterval(long intervalMillis) {
+        mPacketInterval = Math.max(1, intervalMillis);
+        return this;
+    }
+
+    /**
+     * @param packetSize Size of every packet's payload in bytes, at least the size of the probe's header
+     */
+    public UdpEchoProbe setPacketSize(int packetSize) {
+        mPacketSize = Math.max(HEADER_SIZE, packetSize);
+        return this;
+    }
+
+    /**
+     * @param graceMillis Time to wait for late packets after the last one has been sent, in milliseconds
+     */
+    public UdpEchoProbe setReceiveGrace(long graceMillis) {
+        mReceiveGrace = Math.max(0, graceMillis);
+        return this;
+    }
+
+    /**
+     * Send the stream and collect its echoes. The stream stops early if the context's deadline expires,
+     * in which case only the packets already sent are considered.
+     */
+    public UdpEchoResult run(ProbeContext context) throws IOException, InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(context.resolve(mHost), mPort);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(mPacketSize);
+        //Each received sequence number, to detect duplicates
+        boolean[] received = new boolean[mPacketCount];
+        LatencyHistogram rttHistogram = new LatencyHistogram();
+
+        int sent = 0;
+        int receivedCount = 0;
+        int reordered = 0;
+        int duplicates = 0;
+        int highestSequence = -1;
+        long previousTransit = -1;
+        double jitter = 0;
+
+        DatagramChannel channel = context.openDatagramChannel();
+        Selector selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(address);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(mPacketInterval);
+            long startTime = System.nanoTime();
+            long nextSendTime = startTime;
+            long endTime = Long.MAX_VALUE;
+
+            while (true) {
+                if (Thread.interrupted()) throw new InterruptedException();
+
+                long now = System.nanoTime();
+                boolean sending = sent < mPacketCount && !context.isExpired();
+                if (sending && now >= nextSendTime) {
+                    buffer.clear();
+                    buffer.putInt(MAGIC).putInt(sent).putLong(now);
+                    buffer.position(0).limit(mPacketSize);
+                    int written;
+                    try {
+                        written = channel.write(buffer);
+                    } catch (PortUnreachableException e) {
+                        //Reported for an earlier packet, the stream continues and counts the lost ones
+                        written = 0;
+                    }
+                    //Only packets that actually left count as sent. Otherwise the socket's buffer is full and the
+                    //same packet is retried on the next iteration, after waiting for the selector.
+                    if (written == mPacketSize) {
+                        sent++;
+                        nextSendTime = startTime + sent * intervalNanos;
+                        continue;
+                    }
+                }
+
+                if (!sending) {
+                    //Done sending, wait a bit longer for the packets still in flight
+                    if (endTime == Long.MAX_VALUE) {
+                        endTime = now + TimeUnit.MILLISECONDS.toNanos(Math.min(mReceiveGrace, context.getRemainingMillis()));
+                    }
+                    if (receivedCount == sent || now >= endTime) break;
+                }
+
+                long waitUntil = sending ? nextSendTime : endTime;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitUntil - now)));
+                selector.selectedKeys().clear();
+
+                //Drain every packet already queued
+                while (true) {
+                    buffer.clear();
+                    try {
+                        if (channel.read(buffer) <= 0) break;
+                    } catch (PortUnreachableException e) {
+                        continue;
+                    }
+                    long receiveTime = System.nanoTime();
+
+                    buffer.flip();
+                    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) continue;
+                    int sequence = buffer.getInt();
+                    long sendTime = buffer.getLong();
+                    if (sequence < 0 || sequence >= sent) continue;
+
+                    if (received[sequence]) {
+                        duplicates++;
+                        continue;
+                    }
+                    received[sequence] = true;
+                    receivedCount++;
+
+                    if (sequence < highestSequence) {
+                        reordered++;
+                    } else {
+                        highestSequence = sequence;
+                    }
+
+                    //RFC 3550 section 6.4.1, using the round trip transit since both timestamps come from this clock
+                    long transit = receiveTime - sendTime;
+                    rttHistogram.record(TimeUnit.NANOSECONDS.toMillis(transit));
+                    if (previousTransit != -1) {
+                        double difference = Math.abs(transit - previousTransit) / 1_000_000.0;
+                        jitter += (difference - jitter) * JITTER_GAIN;
+                    }
+                    previousTransit = transit;
+                }
+            }
+        } finally {
+            selector.close();
+            channel.close();
+        }
+
+        return new UdpEchoResult(sent, receivedCount, reordered, duplicates, jitter, rttHistogram);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+/**
+ * Results of a {@link UdpEchoProbe} stream.
+ */
+public class UdpEchoResult {
+
+    private final int mPacketsSent;
+    private final int mPacketsReceived;
+    private final int mReorderedPackets;
+    private final int mDuplicatePackets;
+    private final double mJitter;
+    private final LatencyHistogram mRttHistogram;
+
+    public UdpEchoResult(int packetsSent, int packetsReceived, int reorderedPackets, int duplicatePackets, double jitter, LatencyHistogram rttHistogram) {
+        mPacketsSent = packetsSent;
+        mPacketsReceived = packetsReceived;
+        mReorderedPackets = reorderedPackets;
+        mDuplicatePackets = duplicatePackets;
+        mJitter = jitter;
+        mRttHistogram = rttHistogram;
+    }
+
+    public int getPacketsSent() { return mPacketsSent; }
+
+    /**
+     * Amount of distinct packets echoed back, duplicates aren't included.
+     */
+    public int getPacketsReceived() { return mPacketsReceived; }
+
+    public double getLossRate() {
+        if (mPacketsSent == 0) return 0;
+        return (double) (mPacketsSent - mPacketsReceived) / mPacketsSent;
+    }
+
+    /**
+     * Amount of packets received after a packet with a higher sequence number.
+     */
+    public int getReorderedPackets() { return mReorderedPackets; }
+
+    public int getDuplicatePackets() { return mDuplicatePackets; }
+
+    /**
+     * Interarrival jitter in milliseconds, estimated as in RFC 3550 over the round trip times.
+     */
+    public double getJitter() { return mJitter; }
+
+    public LatencyHistogram getRttHistogram() { return mRttHistogram; }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import android.app.usage.NetworkStats;
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide entry point for device usage queries, shared by the collectors, workers and UI so the same
+ * NetworkStatsManager windows aren't queried repeatedly.
+ * <p>
+ * Windows that have already closed are cached permanently, since their usage won't change anymore. Windows
+ * that haven't closed yet are reused for a short time, and concurrent identical queries wait for a single call.
+ */
+public class UsageQueryService {
+
+    private static final String TAG = "UsageQueryService";
+
+    //Windows ending before this long ago are considered closed, giving the OS time to persist their last stats
+    private static final long CLOSED_WINDOW_DELAY = 1000 * 60 * 2; //2 min
+    //Time an open window's usage is reused for, and granularity of the end of open windows. Open windows are those
+    //that haven't closed yet.
+    private static final long OPEN_WINDOW_TTL = 1000 * 10; //10 seconds
+    //Oldest closed windows are dropped once this amount is cached
+    private static final int MAX_CLOSED_ENTRIES = 512;
+    private static final int MAX_OPEN_ENTRIES = 32;
+
+    private static UsageQueryService _instance = null;
+
+    /**
+     * Call to retrieve a {@link UsageQueryService} object.
+     */
+    public static UsageQueryService getInstance(Context context) {
+        if (_instance == null) {
+            synchronized (UsageQueryService.class) {
+                if (_instance == null) {
+                    _instance = new UsageQueryService(context.getApplicationContext());
+                }
+            }
+        }
+        return _instance;
+    }
+
+    private final UsageRetriever mUsageRetriever;
+    private final Map<String, DeviceUsage> mClosedWindows = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, DeviceUsage> mOpenWindows = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<DeviceUsage>> mInFlightQueries = new ConcurrentHashMap<>();
+
+    private UsageQueryService(Context appContext) {
+        mUsageRetriever = new UsageRetriever(appContext);
+    }
+
+    /**
+     * Returns the device's usage on the transport during the time window, or null if it couldn't be queried.
+     * Windows that haven't closed yet have their end rounded down to a multiple of 10 seconds, so they may leave out
+     * the last few seconds of usage.
+     */
+    public DeviceUsage getDeviceUsage(int transportType, long startTime, long endTime) {
+        long now = System.currentTimeMillis();
+        boolean isClosed = endTime <= now - CLOSED_WINDOW_DELAY;
+
+        //Open windows, usually ending at the caller's current time, are rounded down so calls within a few seconds of each
+        //other share the same query. The rounded end is also the one queried, so every window with the same key has the
+        //same usage. Closed windows keep their exact end.
+        if (!isClosed) {
+            long roundedEndTime = endTime - Math.floorMod(endTime, OPEN_WINDOW_TTL);
+            if (roundedEndTime > startTime) endTime = roundedEndTime;
+        }
+        String key = transportType + ":" + startTime + ":" + endTime;
+
+        DeviceUsage cachedUsage = getCachedUsage(key, isClosed);
+        if (cachedUsage != null) return cachedUsage;
+
+        //Only the first caller queries the OS, any concurrent callers wait for its result
+        CompletableFuture<DeviceUsage> query = new CompletableFuture<>();
+        CompletableFuture<DeviceUsage> inFlightQuery = mInFlightQueries.putIfAbsent(key, query);
+        if (inFlightQuery != null) return inFlightQuery.join();
+
+        try {
+            DeviceUsage usage = null;
+            NetworkStats.Bucket bucket = mUsageRetriever.getDeviceNetworkBucket(transportType, startTime, endTime);
+            if (bucket != null) {
+                usage = new DeviceUsage(bucket.getRxBytes(), bucket.getTxBytes());
+                putCachedUsage(key, usage, isClosed);
+            }
+            query.complete(usage);
+            return usage;
+        } catch (RuntimeException e) {
+            query.completeExceptionally(e);
+            throw e;
+        } finally {
+            mInFlightQueries.remove(key, query);
+        }
+    }
+
+    /**
+     * Returns the device's total usage on the transport during the time window, or 0 if it couldn't be queried.
+     */
+    public long getDeviceTonnage(int transportType, long startTime, long endTime) {
+        DeviceUsage usage = getDeviceUsage(transportType, startTime, endTime);
+        return usage == null ? 0 : usage.getTotalBytes();
+    }
+
+    private synchronized DeviceUsage getCachedUsage(String key, boolean isClosed) {
+        if (isClosed) return mClosedWindows.get(key);
+
+        DeviceUsage usage = mOpenWindows.get(key);
+        if (usage != null && SystemClock.elapsedRealtime() - usage.mQueriedAt >= OPEN_WINDOW_TTL) {
+            mOpenWindows.remove(key);
+            return null;
+        }
+        return usage;
+    }
+
+    private synchronized void putCachedUsage(String key, DeviceUsage usage, boolean isClosed) {
+        Map<String, DeviceUsage> cache = isClosed ? mClosedWindows : mOpenWindows;
+        cache.put(key, usage);
+        if (cache.size() > (isClosed ? MAX_CLOSED_ENTRIES : MAX_OPEN_ENTRIES)) {
+            Iterator<String> iterator = cache.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Immutable result of a device usage query.
+     */
+    public static class DeviceUsage {
+        private final long mRxBytes;
+        private final long mTxBytes;
+        //Elapsed realtime is used so changes to the wall clock don't affect the TTL
+        private final long mQueriedAt;
+
+        private DeviceUsage(long rxBytes, long txBytes) {
+            mRxBytes = rxBytes;
+            mTxBytes = txBytes;
+            mQueriedAt = SystemClock.elapsedRealtime();
+        }
+
+        public long getRxBytes() { return mRxBytes; }
+        public long getTxBytes() { return mTxBytes; }
+        public long getTotalBytes() { return mRxBytes + mTxBytes; }
+    }
+}
@@ -19,10 +19,13 @@ import android.app.AppOpsManager;
 import android.app.usage.NetworkStats;
 import android.app.usage.NetworkStatsManager;
 import android.content.Context;
+import android.net.ConnectivityManager;
 import android.net.NetworkCapabilities;
 import android.net.TrafficStats;
 import android.os.Build;
+import android.os.Handler;
 import android.telephony.TelephonyManager;
+import android.util.SparseLongArray;
 
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.OPSTR_GET_USAGE_STATS;
@@ -32,6 +35,7 @@ import static android.app.AppOpsManager.OPSTR_GET_USAGE_STATS;
  */
 public class UsageRetriever {
     private static final String TAG = "UsageRetriever";
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
     private NetworkStatsManager mNetworkStatsManager = null;
     private String mSubscriberId = null;
 
@@ -131,8 +135,7 @@ public class UsageRetriever {
     }
 
     private long getDeviceCellularTonnage(long startTime, long endTime) {
-        if (mNetworkStatsManager != null &&
-                !(Build.VERSION.SDK_INT < 28 && (mSubscriberId == null || mSubscriberId.equals("")))) {
+        if (mNetworkStatsManager != null && isCellularUsageAvailable()) {
             NetworkStats.Bucket cellBucket = null;
 
             try {
@@ -153,8 +156,7 @@ public class UsageRetriever {
     }
 
     private NetworkStats.Bucket getDeviceCellularBucket(long startTime, long endTime) {
-        if (mNetworkStatsManager != null &&
-                !(Build.VERSION.SDK_INT < 28 && (mSubscriberId == null || mSubscriberId.equals("")))) {
+        if (mNetworkStatsManager != null && isCellularUsageAvailable()) {
             NetworkStats.Bucket cellBucket = null;
 
             try {
@@ -172,11 +174,175 @@ public class UsageRetriever {
         return null;
     }
 
+    /**
+     * Register a callback that the OS calls every time the transport's device usage grows by the threshold.
+     * The OS enforces a minimum threshold of 2 MiB.
+     *
+     * @return Whether the callback was registered. Usage must be polled instead if it wasn't.
+     */
+    public boolean registerUsageCallback(int transportType, long thresholdBytes, NetworkStatsManager.UsageCallback callback, Handler handler) {
+        if (mNetworkStatsManager == null) {
+            android.util.Log.e(TAG, "MMA: Missing required Usage Access permissions");
+            return false;
+        }
+
+        int networkType = getNetworkType(transportType);
+        if (networkType == -1) return false;
+
+        try {
+            mNetworkStatsManager.registerUsageCallback(networkType, getSubscriberId(transportType), thresholdBytes, callback, handler);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Add the usage of every UID on the transport during the time window to the supplied maps, keyed by UID.
+     * Buckets are streamed through a single reused object, so memory only grows with the amount of UIDs with traffic.
+     *
+     * @return Whether the usage could be queried
+     */
+    public boolean getAppUsage(int transportType, long startTime, long endTime, SparseLongArray rxBytes, SparseLongArray txBytes) {
+        if (mNetworkStatsManager == null) {
+            android.util.Log.e(TAG, "MMA: Missing required Usage Access permissions");
+            return false;
+        }
+
+        int networkType = getNetworkType(transportType);
+        if (networkType == -1) return false;
+
+        NetworkStats networkStats = null;
+        try {
+            networkStats = mNetworkStatsManager.querySummary(networkType, getSubscriberId(transportType), startTime, endTime);
+            NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+            while (networkStats.hasNextBucket()) {
+                networkStats.getNextBucket(bucket);
+                int uid = bucket.getUid();
+                rxBytes.put(uid, rxBytes.get(uid) + bucket.getRxBytes());
+                txBytes.put(uid, txBytes.get(uid) + bucket.getTxBytes());
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (networkStats != null) networkStats.close();
+        }
+    }
+
+    /**
+     * Split the usage of every UID on the transport into consecutive hours starting at startTime, through a single
+     * queryDetails call. Buckets spanning several hours are split in proportion to their overlap with each hour, so
+     * values are less precise than querying each hour on its own.
+     *
+     * @param rxBytes One map per hour, keyed by UID
+     * @param txBytes One map per hour, keyed by UID
+     * @return Whether the usage could be queried
+     */
+    public boolean getHourlyAppUsage(int transportType, long startTime, SparseLongArray[] rxBytes, SparseLongArray[] txBytes) {
+        if (mNetworkStatsManager == null) {
+            android.util.Log.e(TAG, "MMA: Missing required Usage Access permissions");
+            return false;
+        }
+
+        int networkType = getNetworkType(transportType);
+        if (networkType == -1) return false;
+
+        long endTime = startTime + rxBytes.length * HOUR_MILLIS;
+        NetworkStats networkStats = null;
+        try {
+            networkStats = mNetworkStatsManager.queryDetails(networkType, getSubscriberId(transportType), startTime, endTime);
+            NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+            while (networkStats.hasNextBucket()) {
+                networkStats.getNextBucket(bucket);
+                int uid = bucket.getUid();
+                //Both maps get every UID with traffic, even if only one direction had any
+                splitByHour(bucket.getStartTimeStamp(), bucket.getEndTimeStamp(), bucket.getRxBytes(), bucket.getTxBytes(), startTime, rxBytes.length,
+                        (hour, hourRxBytes, hourTxBytes) -> {
+                            rxBytes[hour].put(uid, rxBytes[hour].get(uid) + hourRxBytes);
+                            txBytes[hour].put(uid, txBytes[hour].get(uid) + hourTxBytes);
+                        });
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (networkStats != null) networkStats.close();
+        }
+    }
+
+    /**
+     * Split a bucket's bytes between each hour it overlaps, in proportion to the overlap. Hours are counted from
+     * startTime, and only the first hourCount hours are reported. Buckets without any bytes aren't reported.
+     */
+    static void splitByHour(long bucketStart, long bucketEnd, long rxBytes, long txBytes, long startTime, int hourCount, HourlySplitListener listener) {
+        long bucketDuration = bucketEnd - bucketStart;
+        if (rxBytes + txBytes == 0 || bucketDuration <= 0) return;
+
+        int firstHour = (int) Math.max(0, Math.floorDiv(bucketStart - startTime, HOUR_MILLIS));
+        int lastHour = (int) Math.min(hourCount - 1, Math.floorDiv(bucketEnd - 1 - startTime, HOUR_MILLIS));
+        for (int i = firstHour; i <= lastHour; i++) {
+            long hourStart = startTime + i * HOUR_MILLIS;
+            long overlap = Math.min(bucketEnd, hourStart + HOUR_MILLIS) - Math.max(bucketStart, hourStart);
+            if (overlap <= 0) continue;
+
+            listener.onHourlyBytes(i, rxBytes * overlap / bucketDuration, txBytes * overlap / bucketDuration);
+        }
+    }
+
+    interface HourlySplitListener {
+        void onHourlyBytes(int hour, long rxBytes, long txBytes);
+    }
+
+    //Returns the network type used by NetworkStatsManager for the transport, or -1 if its usage can't be queried.
+    private int getNetworkType(int transportType) {
+        switch (transportType) {
+            case NetworkCapabilities.TRANSPORT_WIFI:
+                return ConnectivityManager.TYPE_WIFI;
+            case NetworkCapabilities.TRANSPORT_CELLULAR:
+                if (!isCellularUsageAvailable()) return -1;
+                return ConnectivityManager.TYPE_MOBILE;
+            default:
+                //Error
+                return -1;
+        }
+    }
+
+    //Subscriber ID passed to NetworkStatsManager for the transport. Only cellular queries are filtered by SIM.
+    private String getSubscriberId(int transportType) {
+        return transportType == NetworkCapabilities.TRANSPORT_CELLULAR ? mSubscriberId : null;
+    }
+
+    //Before Android 9, cellular usage can only be queried with the SIM's subscriber ID
+    private boolean isCellularUsageAvailable() {
+        return Build.VERSION.SDK_INT >= 28 || (mSubscriberId != null && !mSubscriberId.equals(""));
+    }
+
+    public void unregisterUsageCallback(NetworkStatsManager.UsageCallback callback) {
+        if (mNetworkStatsManager == null) return;
+
+        try {
+            mNetworkStatsManager.unregisterUsageCallback(callback);
+        } catch (Exception e) {
+            //Callback wasn't registered
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the bytes received through the transport since boot from the TrafficStats counters. These are cheap to read
+     * and don't require usage access, but Wi-Fi is estimated as every non-mobile interface.
+     *
+     * @return The counter's value, or {@link TrafficStats#UNSUPPORTED} if the device doesn't support it
+     */
     public long getRxBytes(int transportType) {
         switch (transportType) {
             case NetworkCapabilities.TRANSPORT_WIFI:
                 //TODO: test if data retrieved is correct. Seems to be gathering data even when wifi was OFF.
-                return TrafficStats.getTotalRxBytes() - TrafficStats.getMobileRxBytes();
+                return subtractCounters(TrafficStats.getTotalRxBytes(), TrafficStats.getMobileRxBytes());
             case NetworkCapabilities.TRANSPORT_CELLULAR:
                 return TrafficStats.getMobileRxBytes();
             default:
@@ -185,10 +351,15 @@ public class UsageRetriever {
         }
     }
 
+    /**
+     * Read the bytes transmitted through the transport since boot from the TrafficStats counters.
+     *
+     * @return The counter's value, or {@link TrafficStats#UNSUPPORTED} if the device doesn't support it
+     */
     public long getTxBytes(int transportType) {
         switch (transportType) {
             case NetworkCapabilities.TRANSPORT_WIFI:
-                return TrafficStats.getTotalTxBytes() - TrafficStats.getMobileTxBytes();
+                return subtractCounters(TrafficStats.getTotalTxBytes(), TrafficStats.getMobileTxBytes());
             case NetworkCapabilities.TRANSPORT_CELLULAR:
                 return TrafficStats.getMobileTxBytes();
             default:
@@ -196,4 +367,11 @@ public class UsageRetriever {
                 return 0;
         }
     }
+
+    private static long subtractCounters(long total, long mobile) {
+        if (total == TrafficStats.UNSUPPORTED) return TrafficStats.UNSUPPORTED;
+        //Devices without a mobile interface may report it as unsupported
+        if (mobile == TrafficStats.UNSUPPORTED) return total;
+        return total - mobile;
+    }
 }
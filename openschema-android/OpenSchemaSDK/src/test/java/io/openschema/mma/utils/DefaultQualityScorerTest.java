@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Golden values for {@link DefaultQualityScorer}, worked out by hand from the steps documented in the scorer.
+ */
+public class DefaultQualityScorerTest {
+    private static final double DELTA = 1e-9;
+
+    private final DefaultQualityScorer mScorer = new DefaultQualityScorer();
+    private QualityScoreInput mInput;
+
+    @Before
+    public void setUp() {
+        mInput = new QualityScoreInput();
+    }
+
+    @Test
+    public void score_allServersHealthy() {
+        mInput.getReferenceServers().addServer(1.0, 10, 20, 5, new long[]{18, 20, 22}, 3);
+        mInput.getReferenceServers().addServer(1.0, 12, 30, 10, new long[]{25, 30, 35}, 3);
+        mInput.getDeviceServers().addServer(1.0, 15, 40, 8, new long[]{40, 40}, 2);
+
+        //Pivot 4 (40ms), every sample scales to 4. Std dev mean 7.67ms -> 5. Confidence 1.
+        assertEquals(0.7 * 4 + 0.3 * 5, mScorer.score(mInput), DELTA);
+    }
+
+    @Test
+    public void score_failedReferenceLowersConfidence() {
+        mInput.getReferenceServers().addServer(1.0, 10, 20, 5, new long[]{18, 20, 22}, 3);
+        mInput.getReferenceServers().addServer(0.4, 12, 30, 10, new long[]{25, 30, 35}, 3);
+        mInput.getDeviceServers().addServer(1.0, 15, 40, 8, new long[]{40, 40}, 2);
+
+        //Reference success 1/2, average success (1 + 0.4 + 1) / 3 = 0.8 -> confidence 0.65
+        assertEquals((0.7 * 4 + 0.3 * 5) * 0.65, mScorer.score(mInput), DELTA);
+    }
+
+    @Test
+    public void score_skipsUnusableDeviceServers() {
+        mInput.getReferenceServers().addServer(1.0, 10, 20, 4, new long[]{20}, 1);
+        //Lowest RTT but mostly failing, then a usable one, then one without any successful RTT
+        mInput.getDeviceServers().addServer(0.3, 5, 10, 1, new long[]{10}, 1);
+        mInput.getDeviceServers().addServer(1.0, 30, 60, 20, new long[]{50, 60, 70}, 3);
+        mInput.getDeviceServers().addServer(0.0, 0, 0, 0, new long[0], 0);
+
+        //Pivot 3 (60ms), samples scale to 3.6, 3 & 18/7. Std dev mean 12ms -> 5. Confidence 1.
+        double averageScaledRtt = (3.6 + 3.0 + 18.0 / 7) / 3;
+        assertEquals(0.7 * averageScaledRtt + 0.3 * 5, mScorer.score(mInput), DELTA);
+    }
+
+    @Test
+    public void score_clampsScaledSamples() {
+        mInput.getReferenceServers().addServer(1.0, 50, 150, 150, new long[]{150}, 1);
+        mInput.getDeviceServers().addServer(1.0, 20, 100, 200, new long[]{20, 100, 400}, 3);
+
+        //Pivot 2 (100ms), samples scale to 10, 2 & 0.5, clamped to 5, 2 & 1. Std dev mean 175ms -> 1.
+        assertEquals(0.7 * (8.0 / 3) + 0.3 * 1, mScorer.score(mInput), DELTA);
+    }
+
+    @Test
+    public void score_withoutDeviceServers_isNaN() {
+        mInput.getReferenceServers().addServer(1.0, 10, 20, 5, new long[]{20}, 1);
+
+        assertTrue(Double.isNaN(mScorer.score(mInput)));
+    }
+
+    @Test
+    public void score_withoutReferenceServers_isNaN() {
+        mInput.getDeviceServers().addServer(1.0, 15, 40, 8, new long[]{40, 40}, 2);
+
+        assertTrue(Double.isNaN(mScorer.score(mInput)));
+    }
+
+    @Test
+    public void score_withoutUsableDeviceServers_isNaN() {
+        mInput.getReferenceServers().addServer(1.0, 10, 20, 5, new long[]{20}, 1);
+        mInput.getDeviceServers().addServer(0.2, 15, 40, 8, new long[]{40}, 1);
+        mInput.getDeviceServers().addServer(0.0, 0, 0, 0, new long[0], 0);
+
+        assertTrue(Double.isNaN(mScorer.score(mInput)));
+    }
+
+    @Test
+    public void score_reusedInput_matchesFreshInput() {
+        mInput.getReferenceServers().addServer(1.0, 5, 200, 300, new long[]{150, 200, 250, 300}, 4);
+        mInput.getDeviceServers().addServer(1.0, 5, 200, 300, new long[]{150, 200, 250, 300}, 4);
+        mScorer.score(mInput);
+
+        mInput.clear();
+        mInput.getReferenceServers().addServer(1.0, 10, 20, 5, new long[]{18, 20, 22}, 3);
+        mInput.getReferenceServers().addServer(1.0, 12, 30, 10, new long[]{25, 30, 35}, 3);
+        mInput.getDeviceServers().addServer(1.0, 15, 40, 8, new long[]{40, 40}, 2);
+
+        assertEquals(0.7 * 4 + 0.3 * 5, mScorer.score(mInput), DELTA);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link GridAggregator} checkpoints restore the same totals. Entries are recorded without a location,
+ * so they all fall in the {@link GridAggregator#GEOHASH_UNKNOWN} cell.
+ */
+public class GridAggregatorTest {
+    private static final int TRANSPORT_WIFI = 1;
+    private static final int TRANSPORT_CELLULAR = 0;
+
+    private final GridAggregator mGridAggregator = GridAggregator.getInstance();
+
+    @Before
+    public void setUp() {
+        mGridAggregator.flush();
+    }
+
+    @Test
+    public void restore_checkpoint_keepsTotals() {
+        mGridAggregator.recordSegment(TRANSPORT_WIFI, null, 60000, 1000, 200);
+        mGridAggregator.recordQualityScore(TRANSPORT_WIFI, null, 4.2);
+        mGridAggregator.recordSegment(TRANSPORT_CELLULAR, null, 30000, 500, 100);
+        long windowStart = mGridAggregator.getWindowStart();
+        String checkpoint = mGridAggregator.checkpoint();
+
+        //Simulates a new process, whose window starts later
+        mGridAggregator.flush();
+        mGridAggregator.restore(checkpoint);
+        List<GridAggregator.CellSummary> cells = mGridAggregator.flush();
+
+        assertEquals(2, cells.size());
+        GridAggregator.CellSummary wifiCell = findCell(cells, TRANSPORT_WIFI);
+        assertEquals(GridAggregator.GEOHASH_UNKNOWN, wifiCell.getGeohash());
+        assertEquals(windowStart, wifiCell.getWindowStart());
+        assertEquals(1, wifiCell.getSegmentCount());
+        assertEquals(60000, wifiCell.getDurationMillis());
+        assertEquals(1000, wifiCell.getRxBytes());
+        assertEquals(200, wifiCell.getTxBytes());
+        assertEquals(1, wifiCell.getScoreCount());
+        assertEquals(4.2, wifiCell.getScoreHistogram().getSampleSum(), 1e-9);
+        assertEquals(500, findCell(cells, TRANSPORT_CELLULAR).getRxBytes());
+    }
+
+    @Test
+    public void restore_mergesWithCurrentWindow() {
+        mGridAggregator.recordSegment(TRANSPORT_WIFI, null, 60000, 1000, 200);
+        mGridAggregator.recordQualityScore(TRANSPORT_WIFI, null, 2.2);
+        String checkpoint = mGridAggregator.checkpoint();
+        mGridAggregator.flush();
+
+        mGridAggregator.recordSegment(TRANSPORT_WIFI, null, 10000, 50, 5);
+        mGridAggregator.recordQualityScore(TRANSPORT_WIFI, null, 4.8);
+        mGridAggregator.restore(checkpoint);
+        List<GridAggregator.CellSummary> cells = mGridAggregator.flush();
+
+        assertEquals(1, cells.size());
+        GridAggregator.CellSummary cell = cells.get(0);
+        assertEquals(2, cell.getSegmentCount());
+        assertEquals(70000, cell.getDurationMillis());
+        assertEquals(1050, cell.getRxBytes());
+        assertEquals(205, cell.getTxBytes());
+        assertEquals(2, cell.getScoreCount());
+        //Cumulative buckets: 2.2 falls under 2.5 and 4.8 under 5.0
+        assertEquals(2, cell.getScoreHistogram().getBuckets().size());
+        assertEquals(2, cell.getScoreHistogram().getBuckets().get(1).getCumulativeCount());
+    }
+
+    @Test
+    public void restore_invalidCheckpoint_isIgnored() {
+        mGridAggregator.recordSegment(TRANSPORT_WIFI, null, 60000, 1000, 200);
+
+        mGridAggregator.restore("{\"cells\":[{\"transportType\":1}]}");
+        mGridAggregator.restore("null");
+
+        List<GridAggregator.CellSummary> cells = mGridAggregator.flush();
+        assertEquals(1, cells.size());
+        assertEquals(1000, cells.get(0).getRxBytes());
+    }
+
+    private static GridAggregator.CellSummary findCell(List<GridAggregator.CellSummary> cells, int transportType) {
+        for (GridAggregator.CellSummary cell : cells) {
+            if (cell.getTransportType() == transportType) return cell;
+        }
+        fail("No cell for transport " + transportType);
+        return null;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the quality probes against servers on the loopback interface.
+ */
+public class QualityProbeTest {
+    private static final long BUDGET = 10000;
+    private static final int ATTEMPTS = 3;
+
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+    private final AtomicInteger mHandledRequests = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        if (mServerThread != null) mServerThread.join(1000);
+    }
+
+    @Test
+    public void tcpConnect_loopback_allAttemptsSucceed() throws Exception {
+        startServer(false);
+        QualityProbe probe = new TcpConnectProbe("127.0.0.1", mServerSocket.getLocalPort()).setAttempts(ATTEMPTS);
+
+        QosInfo result = probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault()));
+
+        assertEquals(ATTEMPTS, result.getRttCount());
+        assertEquals(0, result.getTotalFailedRequests());
+        assertEquals(1.0, result.getSuccessRate(), 0.0);
+    }
+
+    @Test
+    public void tcpConnect_closedPort_countsFailures() throws Exception {
+        int port = mServerSocket.getLocalPort();
+        mServerSocket.close();
+        QualityProbe probe = new TcpConnectProbe("127.0.0.1", port).setAttempts(ATTEMPTS);
+
+        QosInfo result = probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault()));
+
+        assertEquals(0, result.getRttCount());
+        assertEquals(ATTEMPTS, result.getTotalFailedRequests());
+        assertEquals(0.0, result.getSuccessRate(), 0.0);
+    }
+
+    @Test
+    public void httpTtfb_loopback_measuresEveryRequest() throws Exception {
+        startServer(true);
+        QualityProbe probe = new HttpTtfbProbe("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/ping").setAttempts(ATTEMPTS);
+
+        QosInfo result = probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault()));
+
+        assertEquals(ATTEMPTS, result.getRttCount());
+        assertEquals(0, result.getTotalFailedRequests());
+        assertEquals(ATTEMPTS, mHandledRequests.get());
+    }
+
+    @Test
+    public void httpTtfb_concurrentRuns_measureIndependently() throws Exception {
+        startServer(true);
+        QualityProbe probe = new HttpTtfbProbe("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/ping").setAttempts(ATTEMPTS);
+
+        //The same probe instance measures two networks at once during concurrent measurements
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<QosInfo> first = executorService.submit(() -> probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault())));
+            Future<QosInfo> second = executorService.submit(() -> probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault())));
+
+            assertEquals(ATTEMPTS, first.get().getRttCount());
+            assertEquals(ATTEMPTS, second.get().getRttCount());
+            assertEquals(2 * ATTEMPTS, mHandledRequests.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void tlsHandshake_plainServer_countsFailures() throws Exception {
+        startServer(false);
+        QualityProbe probe = new TlsHandshakeProbe("127.0.0.1", mServerSocket.getLocalPort())
+                .setAttempts(ATTEMPTS)
+                .setAttemptTimeout(2000);
+
+        QosInfo result = probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault()));
+
+        assertEquals(0, result.getRttCount());
+        assertEquals(ATTEMPTS, result.getTotalFailedRequests());
+    }
+
+    @Test
+    public void run_expiredContext_doesNotCountFailures() throws Exception {
+        startServer(false);
+        QualityProbe probe = new TcpConnectProbe("127.0.0.1", mServerSocket.getLocalPort()).setAttempts(ATTEMPTS);
+
+        QosInfo result = probe.run(new ProbeContext(0, SocketFactory.getDefault()));
+
+        assertEquals(0, result.getRttCount());
+        assertEquals(0, result.getTotalFailedRequests());
+    }
+
+    @Test
+    public void getTarget_describesEndpoint() throws Exception {
+        assertEquals("example.com:853", new TcpConnectProbe("example.com", 853).getTarget());
+        assertEquals("tlsHandshake:example.com:443", new TlsHandshakeProbe("example.com").getName());
+
+        HttpTtfbProbe httpProbe = new HttpTtfbProbe("https://example.com/generate_204");
+        assertEquals("https://example.com/generate_204", httpProbe.getTarget());
+        assertEquals("httpTtfb:https://example.com/generate_204", httpProbe.getName());
+    }
+
+    //Accepts connections until the server socket is closed. HTTP requests get an empty response, otherwise the
+    //connection is closed right away.
+    private void startServer(boolean respondHttp) {
+        mServerThread = new Thread(() -> {
+            while (!mServerSocket.isClosed()) {
+                try (Socket socket = mServerSocket.accept()) {
+                    if (respondHttp) respondHttp(socket);
+                } catch (IOException e) {
+                    //Closed by the test
+                }
+            }
+        });
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+    }
+
+    private void respondHttp(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            //Skip the request line & headers
+        }
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write("HTTP/1.1 204 No Content\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+        mHandledRequests.incrementAndGet();
+    }
+}
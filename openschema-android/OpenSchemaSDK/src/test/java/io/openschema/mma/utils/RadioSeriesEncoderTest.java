@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pins the {@link RadioSeriesEncoder#ENCODING} block format through a reference decoder, which the backend's decoder
+ * must match.
+ */
+public class RadioSeriesEncoderTest {
+
+    private static final int NETWORK_TYPE_LTE = 13;
+    private static final int NETWORK_TYPE_NR = 20;
+    private static final int UNAVAILABLE = RadioSample.UNAVAILABLE;
+    private static final long UNKNOWN_CELL_ID = -1;
+
+    @Test
+    public void encoding_singleSample_matchesGoldenBytes() {
+        RadioSeriesEncoder encoder = new RadioSeriesEncoder(1000);
+        encoder.add(new RadioSample(1500, NETWORK_TYPE_LTE, 300, 5, -100, -10, UNAVAILABLE, UNAVAILABLE,
+                new int[]{7}, new int[]{-104}));
+
+        byte[] expected = {
+                (byte) 0xF4, 0x03,       //500 ms since the block's start
+                0x1F,                    //Network type, cell, PCI, RSRP & RSRQ present
+                0x0D,                    //LTE
+                (byte) 0xD8, 0x04,       //Cell 300, zigzag 600
+                0x06,                    //PCI 5, shifted by 1
+                (byte) 0xC7, 0x01,       //RSRP -100, zigzag 199
+                0x13,                    //RSRQ -10, zigzag 19
+                0x01,                    //1 neighbor
+                0x07,                    //Neighbor PCI 7
+                0x07                     //Neighbor RSRP -104, -4 from the serving RSRP, zigzag 7
+        };
+        assertArrayEquals(expected, encoder.toByteArray());
+        assertEquals(expected.length, encoder.getByteCount());
+        assertEquals(1, encoder.getSampleCount());
+    }
+
+    @Test
+    public void encoding_stableSamples_onlyWriteChangedFields() {
+        RadioSeriesEncoder encoder = new RadioSeriesEncoder(0);
+        RadioSample first = new RadioSample(5000, NETWORK_TYPE_LTE, 123456789L, 101, -95, -11, 15, 9, new int[0], new int[0]);
+        RadioSample second = new RadioSample(10000, NETWORK_TYPE_LTE, 123456789L, 101, -95, -11, 15, 9, new int[0], new int[0]);
+        encoder.add(first);
+        int firstLength = encoder.getByteCount();
+        encoder.add(second);
+
+        //Time delta (2 bytes), flags, 4 zero deltas & neighbor count
+        assertEquals(8, encoder.getByteCount() - firstLength);
+
+        List<DecodedSample> decoded = decode(encoder.toByteArray(), 0);
+        assertEquals(2, decoded.size());
+        assertFlags(decoded.get(1), RadioSeriesEncoder.FLAG_RSRP | RadioSeriesEncoder.FLAG_RSRQ |
+                RadioSeriesEncoder.FLAG_SINR | RadioSeriesEncoder.FLAG_CQI);
+        assertSampleEquals(second, decoded.get(1));
+    }
+
+    @Test
+    public void roundTrip_unavailableFields_areSkipped() {
+        List<RadioSample> samples = new ArrayList<>();
+        samples.add(new RadioSample(1000, NETWORK_TYPE_LTE, 42, UNAVAILABLE, UNAVAILABLE, UNAVAILABLE, UNAVAILABLE, UNAVAILABLE,
+                new int[0], new int[0]));
+        samples.add(new RadioSample(2000, NETWORK_TYPE_LTE, 42, 17, -90, UNAVAILABLE, 20, UNAVAILABLE,
+                new int[0], new int[0]));
+        samples.add(new RadioSample(3000, NETWORK_TYPE_LTE, 42, 17, UNAVAILABLE, -12, UNAVAILABLE, 7,
+                new int[0], new int[0]));
+
+        List<DecodedSample> decoded = roundTrip(samples, 0);
+        assertFlags(decoded.get(0), RadioSeriesEncoder.FLAG_NETWORK_TYPE | RadioSeriesEncoder.FLAG_CELL | RadioSeriesEncoder.FLAG_PCI);
+        assertFlags(decoded.get(1), RadioSeriesEncoder.FLAG_PCI | RadioSeriesEncoder.FLAG_RSRP | RadioSeriesEncoder.FLAG_SINR);
+        assertFlags(decoded.get(2), RadioSeriesEncoder.FLAG_RSRQ | RadioSeriesEncoder.FLAG_CQI);
+    }
+
+    @Test
+    public void roundTrip_cellAndNetworkTypeChanges_areWritten() {
+        List<RadioSample> samples = new ArrayList<>();
+        samples.add(new RadioSample(1000, NETWORK_TYPE_LTE, 5000000000L, 300, -100, -10, 5, 10, new int[0], new int[0]));
+        //Handover to a lower cell ID, negative delta
+        samples.add(new RadioSample(2000, NETWORK_TYPE_LTE, 4999999000L, 12, -100, -10, 5, 10, new int[0], new int[0]));
+        //Radio technology change within the same cell
+        samples.add(new RadioSample(3000, NETWORK_TYPE_NR, 4999999000L, 12, -100, -10, 5, 10, new int[0], new int[0]));
+        //Back to an unknown cell
+        samples.add(new RadioSample(4000, NETWORK_TYPE_NR, UNKNOWN_CELL_ID, 12, -100, -10, 5, 10, new int[0], new int[0]));
+
+        List<DecodedSample> decoded = roundTrip(samples, 0);
+        int signalFlags = RadioSeriesEncoder.FLAG_RSRP | RadioSeriesEncoder.FLAG_RSRQ | RadioSeriesEncoder.FLAG_SINR | RadioSeriesEncoder.FLAG_CQI;
+        assertFlags(decoded.get(1), RadioSeriesEncoder.FLAG_CELL | RadioSeriesEncoder.FLAG_PCI | signalFlags);
+        assertFlags(decoded.get(2), RadioSeriesEncoder.FLAG_NETWORK_TYPE | signalFlags);
+        assertFlags(decoded.get(3), RadioSeriesEncoder.FLAG_CELL | signalFlags);
+    }
+
+    @Test
+    public void roundTrip_negativeDeltas_areZigzagEncoded() {
+        List<RadioSample> samples = new ArrayList<>();
+        samples.add(new RadioSample(1000, NETWORK_TYPE_LTE, 1, 1, -80, -5, 30, 15, new int[0], new int[0]));
+        samples.add(new RadioSample(1001, NETWORK_TYPE_LTE, 1, 1, -140, -20, -10, 0, new int[0], new int[0]));
+        samples.add(new RadioSample(900000, NETWORK_TYPE_LTE, 1, 1, -44, -3, 30, 15, new int[0], new int[0]));
+
+        roundTrip(samples, 500);
+    }
+
+    @Test
+    public void roundTrip_neighbors_areChainedFromServingRsrp() {
+        List<RadioSample> samples = new ArrayList<>();
+        samples.add(new RadioSample(1000, NETWORK_TYPE_LTE, 7, 100, -90, -9, 10, 12,
+                new int[]{101, 102, 503}, new int[]{-95, -110, -85}));
+        //Serving RSRP unavailable, neighbors are relative to the last RSRP written
+        samples.add(new RadioSample(2000, NETWORK_TYPE_LTE, 7, 100, UNAVAILABLE, -9, 10, 12,
+                new int[]{0, 101}, new int[]{-120, -96}));
+
+        roundTrip(samples, 0);
+    }
+
+    @Test
+    public void encoding_timestampsGoingBack_areWrittenAsZero() {
+        RadioSeriesEncoder encoder = new RadioSeriesEncoder(1000);
+        encoder.add(new RadioSample(500, NETWORK_TYPE_LTE, 1, 1, -90, -9, 10, 12, new int[0], new int[0]));
+
+        assertEquals(1000, decode(encoder.toByteArray(), 1000).get(0).getTimestamp());
+    }
+
+    //Encodes & decodes the samples, checking every value survives
+    private static List<DecodedSample> roundTrip(List<RadioSample> samples, long blockStart) {
+        RadioSeriesEncoder encoder = new RadioSeriesEncoder(blockStart);
+        for (RadioSample sample : samples) {
+            encoder.add(sample);
+        }
+        assertEquals(samples.size(), encoder.getSampleCount());
+
+        List<DecodedSample> decoded = decode(encoder.toByteArray(), blockStart);
+        assertEquals(samples.size(), decoded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertSampleEquals(samples.get(i), decoded.get(i));
+        }
+        return decoded;
+    }
+
+    private static void assertSampleEquals(RadioSample expected, RadioSample actual) {
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getDataNetworkType(), actual.getDataNetworkType());
+        assertEquals(expected.getCellIdentity(), actual.getCellIdentity());
+        assertEquals(expected.getPci(), actual.getPci());
+        assertEquals(expected.getRsrp(), actual.getRsrp());
+        assertEquals(expected.getRsrq(), actual.getRsrq());
+        assertEquals(expected.getSinr(), actual.getSinr());
+        assertEquals(expected.getCqi(), actual.getCqi());
+        assertEquals(expected.getNeighborCount(), actual.getNeighborCount());
+        for (int i = 0; i < expected.getNeighborCount(); i++) {
+            assertEquals(expected.getNeighborPci(i), actual.getNeighborPci(i));
+            assertEquals(expected.getNeighborRsrp(i), actual.getNeighborRsrp(i));
+        }
+    }
+
+    private static void assertFlags(RadioSample sample, int expectedFlags) {
+        assertEquals(expectedFlags, ((DecodedSample) sample).mFlags);
+    }
+
+    //Reference decoder for the delta-varint-v1 format
+    private static List<DecodedSample> decode(byte[] block, long blockStart) {
+        Reader reader = new Reader(block);
+        List<DecodedSample> samples = new ArrayList<>();
+
+        long timestamp = blockStart;
+        int networkType = 0, pci = UNAVAILABLE;
+        long cellIdentity = 0;
+        int lastRsrp = 0, lastRsrq = 0, lastSinr = 0, lastCqi = 0;
+        while (reader.hasMore()) {
+            timestamp += reader.readVarint();
+            int flags = reader.readByte();
+
+            if ((flags & RadioSeriesEncoder.FLAG_NETWORK_TYPE) != 0) networkType = (int) reader.readVarint();
+            if ((flags & RadioSeriesEncoder.FLAG_CELL) != 0) cellIdentity += reader.readZigzag();
+            if ((flags & RadioSeriesEncoder.FLAG_PCI) != 0) {
+                long shiftedPci = reader.readVarint();
+                pci = shiftedPci == 0 ? UNAVAILABLE : (int) (shiftedPci - 1);
+            }
+
+            int rsrp = UNAVAILABLE, rsrq = UNAVAILABLE, sinr = UNAVAILABLE, cqi = UNAVAILABLE;
+            if ((flags & RadioSeriesEncoder.FLAG_RSRP) != 0) rsrp = lastRsrp += reader.readZigzag();
+            if ((flags & RadioSeriesEncoder.FLAG_RSRQ) != 0) rsrq = lastRsrq += reader.readZigzag();
+            if ((flags & RadioSeriesEncoder.FLAG_SINR) != 0) sinr = lastSinr += reader.readZigzag();
+            if ((flags & RadioSeriesEncoder.FLAG_CQI) != 0) cqi = lastCqi += reader.readZigzag();
+
+            int neighborCount = (int) reader.readVarint();
+            int[] neighborPcis = new int[neighborCount];
+            int[] neighborRsrps = new int[neighborCount];
+            int referenceRsrp = lastRsrp;
+            for (int i = 0; i < neighborCount; i++) {
+                neighborPcis[i] = (int) reader.readVarint();
+                referenceRsrp += reader.readZigzag();
+                neighborRsrps[i] = referenceRsrp;
+            }
+
+            samples.add(new DecodedSample(flags, timestamp, networkType, cellIdentity, pci, rsrp, rsrq, sinr, cqi, neighborPcis, neighborRsrps));
+        }
+        return samples;
+    }
+
+    private static class DecodedSample extends RadioSample {
+        private final int mFlags;
+
+        private DecodedSample(int flags, long timestamp, int dataNetworkType, long cellIdentity, int pci, int rsrp, int rsrq, int sinr, int cqi,
+                              int[] neighborPcis, int[] neighborRsrps) {
+            super(timestamp, dataNetworkType, cellIdentity, pci, rsrp, rsrq, sinr, cqi, neighborPcis, neighborRsrps);
+            mFlags = flags;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] mBytes;
+        private int mPosition = 0;
+
+        private Reader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        private boolean hasMore() {
+            return mPosition < mBytes.length;
+        }
+
+        private int readByte() {
+            return mBytes[mPosition++] & 0xFF;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int current = readByte();
+                value |= (long) (current & 0x7F) << shift;
+                if ((current & 0x80) == 0) return value;
+                shift += 7;
+            }
+        }
+
+        private long readZigzag() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package io.openschema.mma.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TopUsageSelectorTest {
+
+    private static int[] getTopIndices(TopUsageSelector selector, int topCount) {
+        int[] topIndices = new int[topCount];
+        for (int i = 0; i < topCount; i++) {
+            topIndices[i] = selector.getTopIndex(i);
+        }
+        return topIndices;
+    }
+
+    @Test
+    public void select_ranksByTotalUsage() {
+        TopUsageSelector selector = new TopUsageSelector(3);
+        long[] rxBytes = {100, 500, 10, 300, 200};
+        long[] txBytes = {0, 0, 400, 0, 50};
+
+        //Usage 100, 500, 410, 300, 250
+        assertEquals(3, selector.select(rxBytes, txBytes, rxBytes.length));
+        assertArrayEquals(new int[]{1, 2, 3}, getTopIndices(selector, 3));
+    }
+
+    @Test
+    public void select_fewerEntriesThanK_selectsAll() {
+        TopUsageSelector selector = new TopUsageSelector(10);
+        long[] rxBytes = {100, 300};
+        long[] txBytes = {0, 0};
+
+        assertEquals(2, selector.select(rxBytes, txBytes, rxBytes.length));
+        assertArrayEquals(new int[]{1, 0}, getTopIndices(selector, 2));
+    }
+
+    @Test
+    public void select_skipsEntriesWithoutUsage() {
+        TopUsageSelector selector = new TopUsageSelector(3);
+        long[] rxBytes = {0, 100, 0, 0};
+        long[] txBytes = {0, 0, 0, 50};
+
+        assertEquals(2, selector.select(rxBytes, txBytes, rxBytes.length));
+        assertArrayEquals(new int[]{1, 3}, getTopIndices(selector, 2));
+    }
+
+    @Test
+    public void select_ties_keepEarlierEntries() {
+        TopUsageSelector selector = new TopUsageSelector(2);
+        long[] rxBytes = {100, 200, 100, 100};
+        long[] txBytes = {0, 0, 0, 0};
+
+        //Index 0 is selected before the later entries with the same usage, which can't replace it
+        assertEquals(2, selector.select(rxBytes, txBytes, rxBytes.length));
+        assertArrayEquals(new int[]{1, 0}, getTopIndices(selector, 2));
+    }
+
+    @Test
+    public void select_onlyConsidersCountEntries() {
+        TopUsageSelector selector = new TopUsageSelector(2);
+        //Arrays are reused with a larger capacity than the current amount of entries
+        long[] rxBytes = {100, 200, 900, 900};
+        long[] txBytes = {0, 0, 0, 0};
+
+        assertEquals(2, selector.select(rxBytes, txBytes, 2));
+        assertArrayEquals(new int[]{1, 0}, getTopIndices(selector, 2));
+    }
+
+    @Test
+    public void getRemainder_isTheUsageOfUnselectedEntries() {
+        TopUsageSelector selector = new TopUsageSelector(2);
+        long[] rxBytes = {100, 500, 10, 300};
+        long[] txBytes = {5, 0, 400, 20};
+        selector.select(rxBytes, txBytes, rxBytes.length);
+
+        //Selected 1 & 2, the rest goes to "other". The tx total also holds 7 bytes from an entry outside the arrays.
+        assertEquals(400, selector.getRemainder(910, rxBytes));
+        assertEquals(32, selector.getRemainder(432, txBytes));
+    }
+
+    @Test
+    public void getRemainder_allSelected_isZero() {
+        TopUsageSelector selector = new TopUsageSelector(5);
+        long[] rxBytes = {100, 200};
+        long[] txBytes = {10, 20};
+        selector.select(rxBytes, txBytes, rxBytes.length);
+
+        assertEquals(0, selector.getRemainder(300, rxBytes));
+        assertEquals(0, selector.getRemainder(30, txBytes));
+    }
+
+    @Test
+    public void select_reused_replacesPreviousSelection() {
+        TopUsageSelector selector = new TopUsageSelector(3);
+        selector.select(new long[]{100, 200, 300}, new long[]{0, 0, 0}, 3);
+
+        long[] rxBytes = {50};
+        long[] txBytes = {0};
+        assertEquals(1, selector.select(rxBytes, txBytes, 1));
+        assertEquals(0, selector.getTopIndex(0));
+        assertEquals(0, selector.getRemainder(50, rxBytes));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getTopIndex_beyondSelection_throws() {
+        TopUsageSelector selector = new TopUsageSelector(3);
+        selector.select(new long[]{100}, new long[]{0}, 1);
+        selector.getTopIndex(1);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link UdpEchoProbe} against a {@link UdpEchoReflector} on the loopback interface.
+ */
+public class UdpEchoProbeTest {
+    private static final long BUDGET = 10000;
+    private static final int PACKET_COUNT = 20;
+
+    private UdpEchoReflector mReflector;
+    private Thread mReflectorThread;
+
+    @Before
+    public void setUp() throws Exception {
+        mReflector = new UdpEchoReflector(0);
+        mReflectorThread = new Thread(mReflector);
+        mReflectorThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mReflector.close();
+        mReflectorThread.join(1000);
+    }
+
+    @Test
+    public void run_reflector_receivesEveryPacket() throws Exception {
+        UdpEchoProbe probe = createProbe(mReflector.getPort());
+
+        UdpEchoResult result = probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault()));
+
+        assertEquals(PACKET_COUNT, result.getPacketsSent());
+        assertEquals(PACKET_COUNT, result.getPacketsReceived());
+        assertEquals(0.0, result.getLossRate(), 0.0);
+        assertEquals(0, result.getDuplicatePackets());
+        assertEquals(PACKET_COUNT, result.getRttHistogram().getSampleCount());
+    }
+
+    @Test
+    public void run_withoutReflector_losesEveryPacket() throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        UdpEchoProbe probe = createProbe(port);
+
+        UdpEchoResult result = probe.run(new ProbeContext(BUDGET, SocketFactory.getDefault()));
+
+        assertEquals(PACKET_COUNT, result.getPacketsSent());
+        assertEquals(0, result.getPacketsReceived());
+        assertEquals(1.0, result.getLossRate(), 0.0);
+    }
+
+    @Test
+    public void run_expiredContext_sendsNothing() throws Exception {
+        UdpEchoProbe probe = createProbe(mReflector.getPort());
+
+        UdpEchoResult result = probe.run(new ProbeContext(0, SocketFactory.getDefault()));
+
+        assertEquals(0, result.getPacketsSent());
+        assertEquals(0, result.getPacketsReceived());
+    }
+
+    private static UdpEchoProbe createProbe(int port) {
+        return new UdpEchoProbe("127.0.0.1", port)
+                .setPacketCount(PACKET_COUNT)
+                .setPacketInterval(1)
+                .setReceiveGrace(200);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.openschema.mma.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Minimal UDP echo server on the loopback interface, used to test {@link UdpEchoProbe}. Every datagram is sent
+ * back unchanged to its sender.
+ */
+public class UdpEchoReflector implements Runnable {
+
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private final DatagramChannel mChannel;
+
+    /**
+     * Bind the reflector to the specified loopback port. Use 0 to pick any free port.
+     */
+    public UdpEchoReflector(int port) throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public int getPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Echo datagrams until {@link #close()} is called.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress sender = mChannel.receive(buffer);
+                buffer.flip();
+                mChannel.send(buffer, sender);
+            }
+        } catch (IOException e) {
+            //Stopped through close(). Other errors also stop echoing, which tests see as lost packets.
+        }
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
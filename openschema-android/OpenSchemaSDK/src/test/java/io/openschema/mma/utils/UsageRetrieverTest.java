@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UsageRetrieverTest {
+
+    private static final long HOUR_MILLIS = 1000 * 60 * 60;
+    private static final long START_TIME = 1600000000000L - 1600000000000L % HOUR_MILLIS;
+
+    //Each reported split as {hour, rxBytes, txBytes}
+    private static List<long[]> split(long bucketStart, long bucketEnd, long rxBytes, long txBytes, int hourCount) {
+        List<long[]> splits = new ArrayList<>();
+        UsageRetriever.splitByHour(bucketStart, bucketEnd, rxBytes, txBytes, START_TIME, hourCount,
+                (hour, hourRxBytes, hourTxBytes) -> splits.add(new long[]{hour, hourRxBytes, hourTxBytes}));
+        return splits;
+    }
+
+    @Test
+    public void splitByHour_bucketWithinHour_isReportedOnce() {
+        List<long[]> splits = split(START_TIME + HOUR_MILLIS, START_TIME + 2 * HOUR_MILLIS, 1000, 500, 3);
+
+        assertEquals(1, splits.size());
+        assertArrayEquals(new long[]{1, 1000, 500}, splits.get(0));
+    }
+
+    @Test
+    public void splitByHour_bucketAcrossHours_isSplitByOverlap() {
+        //Last quarter of hour 0, all of hour 1 & first half of hour 2
+        List<long[]> splits = split(START_TIME + 3 * HOUR_MILLIS / 4, START_TIME + 5 * HOUR_MILLIS / 2, 700, 1400, 3);
+
+        assertEquals(3, splits.size());
+        assertArrayEquals(new long[]{0, 100, 200}, splits.get(0));
+        assertArrayEquals(new long[]{1, 400, 800}, splits.get(1));
+        assertArrayEquals(new long[]{2, 200, 400}, splits.get(2));
+    }
+
+    @Test
+    public void splitByHour_rxOnlyBucket_reportsBothDirections() {
+        List<long[]> splits = split(START_TIME, START_TIME + 2 * HOUR_MILLIS, 2000, 0, 2);
+
+        assertEquals(2, splits.size());
+        assertArrayEquals(new long[]{0, 1000, 0}, splits.get(0));
+        assertArrayEquals(new long[]{1, 1000, 0}, splits.get(1));
+    }
+
+    @Test
+    public void splitByHour_txOnlyBucket_reportsBothDirections() {
+        List<long[]> splits = split(START_TIME, START_TIME + HOUR_MILLIS, 0, 300, 1);
+
+        assertEquals(1, splits.size());
+        assertArrayEquals(new long[]{0, 0, 300}, splits.get(0));
+    }
+
+    @Test
+    public void splitByHour_bucketWithoutBytes_isSkipped() {
+        assertTrue(split(START_TIME, START_TIME + HOUR_MILLIS, 0, 0, 1).isEmpty());
+    }
+
+    @Test
+    public void splitByHour_hoursOutsideWindow_areSkipped() {
+        //Bucket starting before the window & ending after its only hour
+        List<long[]> splits = split(START_TIME - HOUR_MILLIS, START_TIME + 2 * HOUR_MILLIS, 300, 600, 1);
+
+        assertEquals(1, splits.size());
+        assertArrayEquals(new long[]{0, 100, 200}, splits.get(0));
+    }
+
+    @Test
+    public void splitByHour_emptyBucket_isSkipped() {
+        assertTrue(split(START_TIME, START_TIME, 100, 100, 1).isEmpty());
+    }
+}
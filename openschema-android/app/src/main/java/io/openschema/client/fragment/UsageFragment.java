@@ -71,7 +71,8 @@ public class UsageFragment extends Fragment {
         });
 
         mBinding.usageNetworkQuality.setMeasureBtnClickListener(view1 -> {
-            mNetworkQualityViewModel.remeasureNetworkQuality();
+            //Explicit requests from the user skip the cached measurement, repeated taps still share the same measurement
+            mNetworkQualityViewModel.remeasureNetworkQuality(true);
         });
     }
 
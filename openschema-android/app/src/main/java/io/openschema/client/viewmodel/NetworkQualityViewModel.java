@@ -14,6 +14,7 @@ import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 import io.openschema.client.view.NetworkQualityView;
 import io.openschema.mma.MobileMetricsService;
 import io.openschema.mma.data.MetricsRepository;
@@ -62,16 +63,27 @@ public class NetworkQualityViewModel extends AndroidViewModel {
                 .build();
         mConnectivityManager.requestNetwork(activeNetworkRequest, mNetworkCallBack);
 
-        mActiveNetworkQuality = new ActiveNetworkQuality(mMetricsRepository.getLastNetworkQualityMeasurement(), mActiveNetworkExists);
+        //Wi-Fi & cellular can be measured at the same time, so only the active network type's measurements are tracked
+        LiveData<NetworkQualityEntity> latestMeasurement = Transformations.switchMap(mActiveNetworkExists, transportType ->
+                transportType == NO_ACTIVE_NETWORK ? new MutableLiveData<>(null) : mMetricsRepository.getLastNetworkQualityMeasurement(transportType));
+        mActiveNetworkQuality = new ActiveNetworkQuality(latestMeasurement, mActiveNetworkExists);
     }
 
     public void remeasureNetworkQuality() {
+        remeasureNetworkQuality(false);
+    }
+
+    /**
+     * @param forceRefresh Measure again even if the SDK has a recent measurement cached for the active network
+     */
+    public void remeasureNetworkQuality(boolean forceRefresh) {
         //Notify mediator that we are remeasuring network quality
         mActiveNetworkQuality.onRemeasure();
 
         //Calling startService with specified action to call method within active Service instance.
         Intent i = new Intent(getApplication(), MobileMetricsService.class);
         i.setAction(MobileMetricsService.ACTION_MEASURE_NETWORK_QUALITY);
+        i.putExtra(MobileMetricsService.EXTRA_FORCE_REFRESH, forceRefresh);
         getApplication().startService(i);
     }
 
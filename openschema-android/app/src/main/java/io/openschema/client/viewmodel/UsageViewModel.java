@@ -34,7 +34,9 @@ import io.openschema.client.view.TimeSelector;
 import io.openschema.mma.data.MetricsRepository;
 import io.openschema.mma.data.entity.HourlyUsageEntity;
 import io.openschema.mma.data.entity.NetworkUsageEntity;
+import io.openschema.mma.utils.ExecutorManager;
 import io.openschema.mma.utils.SharedPreferencesHelper;
+import io.openschema.mma.utils.UsageQueryService;
 import io.openschema.mma.utils.UsageRetriever;
 
 public class UsageViewModel extends AndroidViewModel {
@@ -88,14 +90,14 @@ public class UsageViewModel extends AndroidViewModel {
 
         private final MutableLiveData<List<HourlyUsageEntity>> mDummyEntry = new MutableLiveData<>(new ArrayList<>());
         private final Handler mHandler;
-        private final UsageRetriever mUsageRetriever;
+        private final UsageQueryService mUsageQueryService;
         private final SharedPreferences mSharedPreferences;
 
         private List<HourlyUsageEntity> mDatabaseEntries = null;
 
 
         public HourlyLiveData(LiveData<List<HourlyUsageEntity>> databaseEntries, Application application) {
-            mUsageRetriever = new UsageRetriever(application);
+            mUsageQueryService = UsageQueryService.getInstance(application);
             mSharedPreferences = SharedPreferencesHelper.getInstance(application);
 
             addSource(databaseEntries, networkUsageEntities -> {
@@ -128,24 +130,29 @@ public class UsageViewModel extends AndroidViewModel {
                 //TODO:  Possible issue of time windows when more than a single hour is missing from database.
                 long lastCollectedTimestamp = mSharedPreferences.getLong(SharedPreferencesHelper.KEY_LAST_HOURLY_USAGE_TIMESTAMP, -1);
 
+                //Usage queries are binder calls, so they're kept off the main thread
                 if (lastCollectedTimestamp != -1) {
-                    long endTime = System.currentTimeMillis();
-                    long cellularUsage = mUsageRetriever.getDeviceTonnage(NetworkCapabilities.TRANSPORT_CELLULAR, lastCollectedTimestamp, endTime);
-                    long wifiUsage = mUsageRetriever.getDeviceTonnage(NetworkCapabilities.TRANSPORT_WIFI, lastCollectedTimestamp, endTime);
-
-//                    Log.d(TAG, "UI: Generating dummy entry for missing data since: " + lastCollectedTimestamp +
-//                            "\nCellular usage: " + cellularUsage +
-//                            "\nWi-Fi usage: " + wifiUsage);
-
-                    //TODO: Can optimize with fixed list that only changes usage values to avoid instantiating over and over
-                    List<HourlyUsageEntity> dummyList = new ArrayList<>();
-                    dummyList.add(new HourlyUsageEntity(NetworkCapabilities.TRANSPORT_CELLULAR, cellularUsage, lastCollectedTimestamp));
-                    dummyList.add(new HourlyUsageEntity(NetworkCapabilities.TRANSPORT_WIFI, wifiUsage, lastCollectedTimestamp));
-                    mDummyEntry.setValue(dummyList);
+                    ExecutorManager.getInstance().getIoExecutor().execute(() -> queryMissingUsage(lastCollectedTimestamp));
                 }
 
                 mHandler.postDelayed(this, FREQUENCE_BYTE_MEASUREMENT);
             }
         };
+
+        private void queryMissingUsage(long lastCollectedTimestamp) {
+            long endTime = System.currentTimeMillis();
+            long cellularUsage = mUsageQueryService.getDeviceTonnage(NetworkCapabilities.TRANSPORT_CELLULAR, lastCollectedTimestamp, endTime);
+            long wifiUsage = mUsageQueryService.getDeviceTonnage(NetworkCapabilities.TRANSPORT_WIFI, lastCollectedTimestamp, endTime);
+
+//            Log.d(TAG, "UI: Generating dummy entry for missing data since: " + lastCollectedTimestamp +
+//                    "\nCellular usage: " + cellularUsage +
+//                    "\nWi-Fi usage: " + wifiUsage);
+
+            //TODO: Can optimize with fixed list that only changes usage values to avoid instantiating over and over
+            List<HourlyUsageEntity> dummyList = new ArrayList<>();
+            dummyList.add(new HourlyUsageEntity(NetworkCapabilities.TRANSPORT_CELLULAR, cellularUsage, lastCollectedTimestamp));
+            dummyList.add(new HourlyUsageEntity(NetworkCapabilities.TRANSPORT_WIFI, wifiUsage, lastCollectedTimestamp));
+            mDummyEntry.postValue(dummyList);
+        }
     }
 }
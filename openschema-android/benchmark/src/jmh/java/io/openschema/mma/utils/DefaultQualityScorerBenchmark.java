@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020, The Magma Authors
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.openschema.mma.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of scoring a measurement with {@link DefaultQualityScorer}, sized like a real one: the reference servers of the
+ * preferred family plus the device's DNS servers, with one sample per test domain. Run with the gc profiler to check
+ * that refilling a reused {@link QualityScoreInput} and scoring it don't allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DefaultQualityScorerBenchmark {
+
+    private static final int REFERENCE_SERVER_COUNT = 5;
+    private static final int DEVICE_SERVER_COUNT = 2;
+    private static final int SAMPLE_COUNT = 10;
+
+    private final DefaultQualityScorer mScorer = new DefaultQualityScorer();
+    private final QualityScoreInput mInput = new QualityScoreInput();
+    private QosInfo[] mReferenceResults;
+    private QosInfo[] mDeviceResults;
+
+    @Setup
+    public void setUp() {
+        //Fixed seed, so every run scores the same measurement
+        Random random = new Random(42);
+        mReferenceResults = createResults(random, REFERENCE_SERVER_COUNT);
+        mDeviceResults = createResults(random, DEVICE_SERVER_COUNT);
+        fillInput();
+    }
+
+    @Benchmark
+    public double score() {
+        return mScorer.score(mInput);
+    }
+
+    @Benchmark
+    public double fillAndScore() {
+        fillInput();
+        return mScorer.score(mInput);
+    }
+
+    private void fillInput() {
+        mInput.clear();
+        for (QosInfo qosInfo : mReferenceResults) mInput.getReferenceServers().addServer(qosInfo);
+        for (QosInfo qosInfo : mDeviceResults) mInput.getDeviceServers().addServer(qosInfo);
+    }
+
+    //RTTs around a per-server base latency, with the occasional failed request
+    private static QosInfo[] createResults(Random random, int serverCount) {
+        QosInfo[] results = new QosInfo[serverCount];
+        for (int i = 0; i < serverCount; i++) {
+            long baseRtt = 10 + random.nextInt(90);
+            long[] rttValues = new long[SAMPLE_COUNT];
+            int rttCount = 0;
+            int failures = 0;
+            for (int j = 0; j < SAMPLE_COUNT; j++) {
+                if (random.nextInt(10) == 0) {
+                    failures++;
+                } else {
+                    rttValues[rttCount++] = baseRtt + (long) Math.abs(random.nextGaussian() * baseRtt / 4);
+                }
+            }
+            results[i] = new QosInfo("server" + i, rttValues, rttCount, failures);
+        }
+        return results;
+    }
+}